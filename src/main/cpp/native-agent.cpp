@@ -3,6 +3,13 @@
 #include <stdlib.h>
 #include <stdio.h>
 #include <cstring>
+#include <string>
+#include <vector>
+#include <map>
+#include <unordered_map>
+#include <mutex>
+#include <atomic>
+#include <chrono>
 
 
 
@@ -46,19 +53,133 @@ typedef struct {
  jvmtiEnv *jvmti;
 } GlobalAgentData;
 
+static GlobalAgentData *gdata;
+static bool onLoad;
+
+//============================================================================
+//  Tag Ownership
+//  Every tagging operation runs under the NativeAgent tag lock. Apart from the
+//  plain serial operations (instances, queue, count, cardinality), which tag
+//  every instance with the caller's serial as they always have, each puts
+//  back every tag it set before it returns. A walk can still reach an object that already
+//  carries a tag, such as a class tag or one set through NativeAgent.setTag.
+//  Rather than being skipped or clobbered, that tag is saved in a side table
+//  and restored when the walk releases the object. Walks that give each
+//  object a distinct tag key the table by that tag (SavedTags). Walks that
+//  tag a group of objects with one tag give each displaced object a distinct
+//  displaced tag instead (GroupTags).
+//============================================================================
+
+static const jlong CLASS_TAG_BASE = 0x4000000000000000LL;
+// The low 32 bits of a session tag, which hold an ordinal or a group
+static const jlong SESSION_MASK = 0xFFFFFFFFLL;
+// The session tag bit marking an object whose own tag was displaced
+static const jlong DISPLACED_TAG = 0x80000000LL;
+
+// The session tag base of a tag serial passed by the plain serial operations
+static inline jlong serialSession(jlong serial) {
+  return (serial & SESSION_MASK) << 32;
+}
+
+static inline bool isClassTag(jlong tag) {
+  return tag >= CLASS_TAG_BASE && tag <= (CLASS_TAG_BASE | SESSION_MASK);
+}
+
+typedef std::unordered_map<jlong, jlong> SavedTags;
+
+// Gives an object a distinct tag, saving the tag it already carries
+static inline void ownTag(SavedTags* saved, jlong* tag_ptr, jlong tag) {
+  if(*tag_ptr!=CLEAR_TAG) (*saved)[tag] = *tag_ptr;
+  *tag_ptr = tag;
+}
+
+// Returns the tag an object carried before it was given the passed distinct tag
+static inline jlong savedTag(SavedTags* saved, jlong tag) {
+  if(saved->empty()) return CLEAR_TAG;
+  SavedTags::iterator it = saved->find(tag);
+  return it==saved->end() ? CLEAR_TAG : it->second;
+}
+
+typedef struct {
+ jlong tagBase;
+ // the tag each displaced object carried and the group it was tagged into, by displaced serial
+ std::vector<jlong> saved;
+ std::vector<jint> groups;
+} GroupTags;
+
+// Tags an object into a group (< DISPLACED_TAG), displacing the tag it already carries
+static inline void groupTag(GroupTags* g, jlong* tag_ptr, jint group) {
+  if(*tag_ptr==CLEAR_TAG) {
+    *tag_ptr = g->tagBase | group;
+  } else {
+    jlong serial = (jlong)g->saved.size();
+    g->saved.push_back(*tag_ptr);
+    g->groups.push_back(group);
+    *tag_ptr = g->tagBase | DISPLACED_TAG | serial;
+  }
+}
+
+/*
+ * Fetches the objects tagged into the passed groups and every displaced object,
+ * restoring their tags. The caller Deallocates the returned objects and deletes
+ * the array of the group of each object.
+ */
+static jint fetchGroups(GroupTags* g, const jint* groupIds, jint groupCount, jobject** objects, jint** groups) {
+  jint displaced = (jint)g->saved.size();
+  jint tagCount = groupCount + displaced;
+  jint objCount = 0;
+  jlong* tagArr = NULL;
+  *objects = NULL;
+  if(tagCount > 0) {
+    jlong* tags = new jlong[tagCount];
+    for (int n=0; n<groupCount; n++) tags[n] = g->tagBase | groupIds[n];
+    for (int n=0; n<displaced; n++) tags[groupCount + n] = g->tagBase | DISPLACED_TAG | n;
+    gdata->jvmti->GetObjectsWithTags(tagCount, tags, &objCount, objects, &tagArr);
+    delete[] tags;
+  }
+  *groups = new jint[objCount > 0 ? objCount : 1];
+  for (int n=0; n<objCount; n++) {
+    jlong low = tagArr[n] & SESSION_MASK;
+    if((low & DISPLACED_TAG)!=0) {
+      jlong serial = low & ~DISPLACED_TAG;
+      (*groups)[n] = g->groups[serial];
+      gdata->jvmti->SetTag((*objects)[n], g->saved[serial]);
+    } else {
+      (*groups)[n] = (jint)low;
+      gdata->jvmti->SetTag((*objects)[n], CLEAR_TAG);
+    }
+  }
+  if(tagArr!=NULL) gdata->jvmti->Deallocate((unsigned char*)tagArr);
+  return objCount;
+}
+
+// Fetches the objects tagged into group 0 as a new array of the passed class, restoring their tags
+static jobjectArray fetchGroupArray(JNIEnv *env, GroupTags* g, jclass klass) {
+  jint group = 0;
+  jobject* objArr = NULL;
+  jint* groups = NULL;
+  jint objCount = fetchGroups(g, &group, 1, &objArr, &groups);
+  jobjectArray ret = env->NewObjectArray(objCount, klass, NULL);
+  for (int n=0; n<objCount; n++) {
+    env->SetObjectArrayElement(ret, n, objArr[n]);
+    env->DeleteLocalRef(objArr[n]);
+  }
+  if(objArr!=NULL) gdata->jvmti->Deallocate((unsigned char*)objArr);
+  delete[] groups;
+  return ret;
+}
+
 typedef struct {
  int tagCount;
  int tagMax;
  jlong* tag;
+ // set by the operations that restore the tags they displace, otherwise every object gets the tag
+ GroupTags* group;
  jlong tsize;
  jobject* queue;
 } TagContext;
 
 
- 
-static GlobalAgentData *gdata;
-static bool onLoad;
-
 
 static jobject callbacksInstance;
 static jmethodID callbackIncrementMethod;
@@ -164,60 +285,75 @@ JNIEXPORT jboolean JNICALL Java_com_heliosapm_jvmti_agent_NativeAgent_wasLoaded0
   return onLoad;
 }
 
+extern "C"
+JNIEXPORT jlong JNICALL Java_com_heliosapm_jvmti_agent_NativeAgent_getTag0(JNIEnv *env, jclass thisClass, jobject object) {  
+  jlong tag = CLEAR_TAG;
+  gdata->jvmti->GetTag(object, &tag);
+  return tag;
+}
 
-JNIEXPORT jint JNICALL Agent_OnAttach(JavaVM* jvm, char *options, void *reserved) {
-  cout << "Initializing Agent OnAttach..." << endl;
-  onLoad = false;
+extern "C"
+JNIEXPORT void JNICALL Java_com_heliosapm_jvmti_agent_NativeAgent_setTag0(JNIEnv *env, jclass thisClass, jobject object, jlong tag) {  
+  gdata->jvmti->SetTag(object, tag);
+}
+
+
+// Acquires the jvmtiEnv and adds the capabilities, once per process whichever entry point loaded the library
+static jint initAgent(JavaVM* vm, char *options, bool loading) {
+  if(gdata!=NULL) return JNI_OK;
   jvmtiEnv *jvmti = NULL;
   jvmtiCapabilities capa;
   //jvmtiError error;
   
   // put a jvmtiEnv instance at jvmti.
-  jint result = jvm->GetEnv((void **) &jvmti, JVMTI_VERSION_1_2);
+  jint result = vm->GetEnv((void **) &jvmti, JVMTI_VERSION_1_2);
   if (result != JNI_OK) {
     printf("ERROR: Unable to access JVMTI!\n");
+    return result;
   }
   // add a capability to tag objects
   (void)memset(&capa, 0, sizeof(jvmtiCapabilities));
   capa.can_tag_objects = 1;
   capa.can_generate_compiled_method_load_events = 1;
+  // exception events can only be acquired while loading, so they are requested with an "exceptions" agent option
+  if(loading && options!=NULL && strstr(options, "exceptions")!=NULL) capa.can_generate_exception_events = 1;
   (jvmti)->AddCapabilities(&capa);
  
   // store jvmti in a global data
   gdata = new GlobalAgentData();
-    //(GlobalAgentData*) malloc(sizeof(GlobalAgentData));
+  	//(GlobalAgentData*) malloc(sizeof(GlobalAgentData));
   gdata->jvmti = jvmti;
   cout << "Agent Initialized" << endl;
-
   return JNI_OK;
+}
 
+JNIEXPORT jint JNICALL Agent_OnAttach(JavaVM* jvm, char *options, void *reserved) {
+  cout << "Initializing Agent OnAttach..." << endl;
+  onLoad = false;
+  initAgent(jvm, options, false);
+  return JNI_OK;
 }
  
 JNIEXPORT jint JNICALL Agent_OnLoad(JavaVM *jvm, char *options, void *reserved) {
   cout << "Initializing Agent OnLoad..." << endl;
   onLoad = true;
-  jvmtiEnv *jvmti = NULL;
-  jvmtiCapabilities capa;
-  //jvmtiError error;
-  
-  // put a jvmtiEnv instance at jvmti.
-  jint result = jvm->GetEnv((void **) &jvmti, JVMTI_VERSION_1_2);
-  if (result != JNI_OK) {
-    printf("ERROR: Unable to access JVMTI!\n");
+  initAgent(jvm, options, true);
+  return JNI_OK;
+}
+
+// Called when the library is loaded in process by System.load, which needs no self attach
+JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
+  if(gdata==NULL) {
+    cout << "Initializing Agent JNI_OnLoad..." << endl;
+    onLoad = false;
   }
-  // add a capability to tag objects
-  (void)memset(&capa, 0, sizeof(jvmtiCapabilities));
-  capa.can_tag_objects = 1;
-  capa.can_generate_compiled_method_load_events = 1;
-  (jvmti)->AddCapabilities(&capa);
- 
-  // store jvmti in a global data
-  gdata = new GlobalAgentData();
-  	//(GlobalAgentData*) malloc(sizeof(GlobalAgentData));
-  gdata->jvmti = jvmti;
-  cout << "Agent Initialized" << endl;
+  initAgent(vm, NULL, false);
+  return JNI_VERSION_1_8;
+}
 
-  return JNI_OK;
+extern "C"
+JNIEXPORT jboolean JNICALL Java_com_heliosapm_jvmti_agent_NativeAgent_jvmtiReady0(JNIEnv *env, jclass thisClass) {  
+  return gdata!=NULL;
 }
 
 
@@ -252,7 +388,8 @@ JNICALL jint objectTaggingCallback(jlong class_tag, jlong size, jlong* tag_ptr,
     return JVMTI_VISIT_ABORT;
   }
   ctx->tagCount++;
-  *tag_ptr = *ctx->tag;
+  if(ctx->group!=NULL) groupTag(ctx->group, tag_ptr, 0);
+  else *tag_ptr = *ctx->tag;
   return JVMTI_VISIT_OBJECTS;
 }
 
@@ -356,3 +493,2075 @@ JNIEXPORT jobjectArray  JNICALL Java_com_heliosapm_jvmti_agent_NativeAgent_getIn
 
 
 
+
+
+//============================================================================
+//  Class Census
+//  Loaded classes are tagged with CLASS_TAG_BASE + their index in the
+//  supplied class array so a single IterateThroughHeap can bucket every
+//  object by class_tag without handing any instance back to Java.
+//  The tags the classes carried before are restored after the walk.
+//============================================================================
+
+// Bucket b counts objects sized [2^b, 2^(b+1)). The last bucket is open ended.
+static const jint SIZE_BUCKETS = 36;
+
+typedef struct {
+ jint classCount;
+ jlong* counts;
+ jlong* sizes;
+ jlong* buckets;
+} CensusContext;
+
+static inline jint sizeBucket(jlong size) {
+  if(size <= 1) return 0;
+  jint bucket = 63 - __builtin_clzll((unsigned long long)size);
+  return bucket < SIZE_BUCKETS ? bucket : SIZE_BUCKETS - 1;
+}
+
+// Tags the passed classes with their index, returning the tags they carried for untagClasses
+static jlong* tagClasses(JNIEnv *env, jobjectArray classes, jint classCount) {
+  jlong* saved = new jlong[classCount > 0 ? classCount : 1]();
+  for (int n=0; n<classCount; n++) {
+    jobject klass = env->GetObjectArrayElement(classes, n);
+    if(klass!=NULL) {
+      gdata->jvmti->GetTag(klass, &saved[n]);
+      gdata->jvmti->SetTag(klass, CLASS_TAG_BASE + n);
+      env->DeleteLocalRef(klass);
+    }
+  }
+  return saved;
+}
+
+// Restores the tags the passed classes carried before tagClasses and deletes the saved tags
+static void untagClasses(JNIEnv *env, jobjectArray classes, jint classCount, jlong* saved) {
+  for (int n=0; n<classCount; n++) {
+    jobject klass = env->GetObjectArrayElement(classes, n);
+    if(klass!=NULL) {
+      gdata->jvmti->SetTag(klass, saved[n]);
+      env->DeleteLocalRef(klass);
+    }
+  }
+  delete[] saved;
+}
+
+extern "C"
+JNICALL jint classCensusCallback(jlong class_tag, jlong size, jlong* tag_ptr, jint length, void* user_data) {
+  CensusContext* ctx = (CensusContext*) user_data;
+  jlong index = class_tag - CLASS_TAG_BASE;
+  if(index < 0 || index >= ctx->classCount) return JVMTI_VISIT_OBJECTS;
+  if(ctx->counts!=NULL) ctx->counts[index]++;
+  if(ctx->sizes!=NULL) ctx->sizes[index] += size;
+  if(ctx->buckets!=NULL) ctx->buckets[index * SIZE_BUCKETS + sizeBucket(size)]++;
+  return JVMTI_VISIT_OBJECTS;
+}
+
+extern "C"
+JNIEXPORT jobjectArray JNICALL Java_com_heliosapm_jvmti_agent_NativeAgent_loadedTypesOf0(JNIEnv *env, jclass thisClass, jclass type) {
+  jint classCount = 0;
+  jclass* classes;
+  gdata->jvmti->GetLoadedClasses(&classCount, &classes);
+  int matched = 0;
+  for (int n=0; n<classCount; n++) {
+    if(env->IsAssignableFrom(classes[n], type)) {
+      classes[matched++] = classes[n];
+    } else {
+      env->DeleteLocalRef(classes[n]);
+    }
+  }
+  jobjectArray ret = env->NewObjectArray(matched, env->FindClass("java/lang/Class"), NULL);
+  for (int n=0; n<matched; n++) {
+    env->SetObjectArrayElement(ret, n, classes[n]);
+    env->DeleteLocalRef(classes[n]);
+  }
+  gdata->jvmti->Deallocate((unsigned char*)classes);
+  return ret;
+}
+
+extern "C"
+JNIEXPORT jlong JNICALL Java_com_heliosapm_jvmti_agent_NativeAgent_classCensus0(JNIEnv *env, jclass thisClass, jobjectArray classes, jlongArray counts, jlongArray sizes, jlongArray buckets) {
+  CensusContext ctx;
+  ctx.classCount = env->GetArrayLength(classes);
+  ctx.counts = counts==NULL ? NULL : new jlong[ctx.classCount]();
+  ctx.sizes = sizes==NULL ? NULL : new jlong[ctx.classCount]();
+  ctx.buckets = buckets==NULL ? NULL : new jlong[ctx.classCount * SIZE_BUCKETS]();
+  jvmtiHeapCallbacks callbacks;
+  (void)memset(&callbacks, 0, sizeof(callbacks));
+  callbacks.heap_iteration_callback = &classCensusCallback;
+  jlong* classTags = tagClasses(env, classes, ctx.classCount);
+  gdata->jvmti->IterateThroughHeap(JVMTI_HEAP_FILTER_CLASS_UNTAGGED, NULL, &callbacks, &ctx);
+  untagClasses(env, classes, ctx.classCount, classTags);
+  jlong total = 0;
+  if(ctx.counts!=NULL) {
+    for (int n=0; n<ctx.classCount; n++) total += ctx.counts[n];
+    env->SetLongArrayRegion(counts, 0, ctx.classCount, ctx.counts);
+    delete[] ctx.counts;
+  }
+  if(ctx.sizes!=NULL) {
+    env->SetLongArrayRegion(sizes, 0, ctx.classCount, ctx.sizes);
+    delete[] ctx.sizes;
+  }
+  if(ctx.buckets!=NULL) {
+    env->SetLongArrayRegion(buckets, 0, ctx.classCount * SIZE_BUCKETS, ctx.buckets);
+    delete[] ctx.buckets;
+  }
+  return total;
+}
+
+
+//============================================================================
+//  Shared Heap Census
+//  One IterateThroughHeap serves every declared need at once: objects are
+//  bucketed by class_tag as in the class census, the primitive_field_callback
+//  sums the requested integral fields and up to max instances of each class
+//  are tagged into the group of their class index and fetched back per class.
+//============================================================================
+
+typedef struct {
+ jint classCount;
+ jlong* counts;
+ jlong* sizes;
+ jint fieldCount;
+ jint* fieldClasses;
+ jint* fieldIndices;
+ jlong* fieldSums;
+ jboolean* summed;
+ jint* instanceMax;
+ jint* taken;
+ GroupTags* group;
+} HeapCensusContext;
+
+extern "C"
+JNICALL jint heapCensusCallback(jlong class_tag, jlong size, jlong* tag_ptr, jint length, void* user_data) {
+  HeapCensusContext* ctx = (HeapCensusContext*) user_data;
+  jlong index = class_tag - CLASS_TAG_BASE;
+  if(index < 0 || index >= ctx->classCount) return JVMTI_VISIT_OBJECTS;
+  ctx->counts[index]++;
+  ctx->sizes[index] += size;
+  // a census class tag marks a class object the walk relies on, any other tag is displaced and restored
+  if(ctx->taken[index] < ctx->instanceMax[index] && !isClassTag(*tag_ptr)) {
+    groupTag(ctx->group, tag_ptr, (jint)index);
+    ctx->taken[index]++;
+  }
+  return JVMTI_VISIT_OBJECTS;
+}
+
+extern "C"
+JNICALL jint heapCensusFieldCallback(jvmtiHeapReferenceKind kind, const jvmtiHeapReferenceInfo* info, jlong object_class_tag, jlong* object_tag_ptr, jvalue value, jvmtiPrimitiveType value_type, void* user_data) {
+  if(kind!=JVMTI_HEAP_REFERENCE_FIELD) return JVMTI_VISIT_OBJECTS;
+  HeapCensusContext* ctx = (HeapCensusContext*) user_data;
+  jlong index = object_class_tag - CLASS_TAG_BASE;
+  if(index < 0 || index >= ctx->classCount || !ctx->summed[index]) return JVMTI_VISIT_OBJECTS;
+  for (int f=0; f<ctx->fieldCount; f++) {
+    if(ctx->fieldClasses[f]!=index || ctx->fieldIndices[f]!=info->field.index) continue;
+    switch(value_type) {
+      case JVMTI_PRIMITIVE_TYPE_BOOLEAN: ctx->fieldSums[f] += value.z; break;
+      case JVMTI_PRIMITIVE_TYPE_BYTE: ctx->fieldSums[f] += value.b; break;
+      case JVMTI_PRIMITIVE_TYPE_CHAR: ctx->fieldSums[f] += value.c; break;
+      case JVMTI_PRIMITIVE_TYPE_SHORT: ctx->fieldSums[f] += value.s; break;
+      case JVMTI_PRIMITIVE_TYPE_INT: ctx->fieldSums[f] += value.i; break;
+      case JVMTI_PRIMITIVE_TYPE_LONG: ctx->fieldSums[f] += value.j; break;
+      default: break;
+    }
+  }
+  return JVMTI_VISIT_OBJECTS;
+}
+
+extern "C"
+JNIEXPORT jobjectArray JNICALL Java_com_heliosapm_jvmti_agent_NativeAgent_heapCensus0(JNIEnv *env, jclass thisClass, jobjectArray classes, jlongArray counts, jlongArray sizes, jintArray fieldClasses, jintArray fieldIndices, jlongArray fieldSums, jintArray instanceMax, jlong tagBase) {
+  HeapCensusContext ctx;
+  ctx.classCount = env->GetArrayLength(classes);
+  ctx.counts = new jlong[ctx.classCount]();
+  ctx.sizes = new jlong[ctx.classCount]();
+  ctx.fieldCount = env->GetArrayLength(fieldIndices);
+  ctx.fieldClasses = new jint[ctx.fieldCount];
+  ctx.fieldIndices = new jint[ctx.fieldCount];
+  ctx.fieldSums = new jlong[ctx.fieldCount]();
+  ctx.summed = new jboolean[ctx.classCount]();
+  ctx.instanceMax = new jint[ctx.classCount];
+  ctx.taken = new jint[ctx.classCount]();
+  GroupTags group;
+  group.tagBase = tagBase;
+  ctx.group = &group;
+  env->GetIntArrayRegion(fieldClasses, 0, ctx.fieldCount, ctx.fieldClasses);
+  env->GetIntArrayRegion(fieldIndices, 0, ctx.fieldCount, ctx.fieldIndices);
+  env->GetIntArrayRegion(instanceMax, 0, ctx.classCount, ctx.instanceMax);
+  for (int f=0; f<ctx.fieldCount; f++) ctx.summed[ctx.fieldClasses[f]] = JNI_TRUE;
+  jvmtiHeapCallbacks callbacks;
+  (void)memset(&callbacks, 0, sizeof(callbacks));
+  callbacks.heap_iteration_callback = &heapCensusCallback;
+  // the field callback fires for every primitive field of every object, so only install it when needed
+  if(ctx.fieldCount > 0) callbacks.primitive_field_callback = &heapCensusFieldCallback;
+  jlong* classTags = tagClasses(env, classes, ctx.classCount);
+  gdata->jvmti->IterateThroughHeap(JVMTI_HEAP_FILTER_CLASS_UNTAGGED, NULL, &callbacks, &ctx);
+  untagClasses(env, classes, ctx.classCount, classTags);
+  env->SetLongArrayRegion(counts, 0, ctx.classCount, ctx.counts);
+  env->SetLongArrayRegion(sizes, 0, ctx.classCount, ctx.sizes);
+  env->SetLongArrayRegion(fieldSums, 0, ctx.fieldCount, ctx.fieldSums);
+  jclass objArrClass = env->FindClass("[Ljava/lang/Object;");
+  jclass objClass = env->FindClass("java/lang/Object");
+  jobjectArray ret = env->NewObjectArray(ctx.classCount, objArrClass, NULL);
+  jint groupCount = 0;
+  jint* groupIds = new jint[ctx.classCount];
+  for (int n=0; n<ctx.classCount; n++) {
+    if(ctx.taken[n] > 0) groupIds[groupCount++] = n;
+  }
+  if(groupCount > 0) {
+    jobject* objArr = NULL;
+    jint* groups = NULL;
+    jint objCount = fetchGroups(&group, groupIds, groupCount, &objArr, &groups);
+    jobjectArray* perClass = new jobjectArray[ctx.classCount]();
+    jint* filled = new jint[ctx.classCount]();
+    for (int n=0; n<objCount; n++) {
+      jint index = groups[n];
+      if(perClass[index]==NULL) {
+        perClass[index] = env->NewObjectArray(ctx.taken[index], objClass, NULL);
+        env->SetObjectArrayElement(ret, index, perClass[index]);
+      }
+      // an instance collected since the walk leaves a trailing null
+      env->SetObjectArrayElement(perClass[index], filled[index]++, objArr[n]);
+      env->DeleteLocalRef(objArr[n]);
+    }
+    for (int n=0; n<ctx.classCount; n++) {
+      if(perClass[n]!=NULL) env->DeleteLocalRef(perClass[n]);
+    }
+    if(objArr!=NULL) gdata->jvmti->Deallocate((unsigned char*)objArr);
+    delete[] groups;
+    delete[] perClass;
+    delete[] filled;
+  }
+  delete[] groupIds;
+  delete[] ctx.counts;
+  delete[] ctx.sizes;
+  delete[] ctx.fieldClasses;
+  delete[] ctx.fieldIndices;
+  delete[] ctx.fieldSums;
+  delete[] ctx.summed;
+  delete[] ctx.instanceMax;
+  delete[] ctx.taken;
+  return ret;
+}
+
+
+//============================================================================
+//  Reservoir Sampling
+//  Algorithm R over a single IterateThroughHeap. Each reservoir candidate is
+//  tagged with the session tag | its ordinal so only the k current holders
+//  are fetched back, keeping memory bounded by k rather than instance count.
+//  The tags of evicted candidates are kept so they can be released after the
+//  walk, and any tag a candidate already carried is restored.
+//============================================================================
+
+typedef struct {
+ jint k;
+ jlong seen;
+ jlong tagBase;
+ jlong* chosen;
+ std::vector<jlong>* evicted;
+ SavedTags* saved;
+ unsigned long long random;
+} SampleContext;
+
+static inline unsigned long long nextRandom(SampleContext* ctx) {
+  // xorshift64*
+  ctx->random ^= ctx->random >> 12;
+  ctx->random ^= ctx->random << 25;
+  ctx->random ^= ctx->random >> 27;
+  return ctx->random * 2685821657736338717ULL;
+}
+
+extern "C"
+JNICALL jint reservoirSamplingCallback(jlong class_tag, jlong size, jlong* tag_ptr, jint length, void* user_data) {
+  SampleContext* ctx = (SampleContext*) user_data;
+  // ordinals past the session mask would collide with another session
+  if(ctx->seen > SESSION_MASK) return JVMTI_VISIT_ABORT;
+  jlong ordinal = ctx->seen++;
+  if(ordinal < ctx->k) {
+    ctx->chosen[ordinal] = ctx->tagBase | ordinal;
+    ownTag(ctx->saved, tag_ptr, ctx->chosen[ordinal]);
+  } else {
+    unsigned long long slot = nextRandom(ctx) % (unsigned long long)(ordinal + 1);
+    if(slot < (unsigned long long)ctx->k) {
+      ctx->evicted->push_back(ctx->chosen[slot]);
+      ctx->chosen[slot] = ctx->tagBase | ordinal;
+      ownTag(ctx->saved, tag_ptr, ctx->chosen[slot]);
+    }
+  }
+  return JVMTI_VISIT_OBJECTS;
+}
+
+extern "C"
+JNIEXPORT jobjectArray JNICALL Java_com_heliosapm_jvmti_agent_NativeAgent_sampleInstances0(JNIEnv *env, jclass thisClass, jclass klass, jlong tagBase, jint k, jlong seed) {
+  std::vector<jlong> evicted;
+  SavedTags saved;
+  SampleContext ctx;
+  ctx.k = k;
+  ctx.seen = 0;
+  ctx.tagBase = tagBase;
+  ctx.chosen = new jlong[k];
+  ctx.evicted = &evicted;
+  ctx.saved = &saved;
+  ctx.random = seed==0 ? 0x9E3779B97F4A7C15ULL : (unsigned long long)seed;
+  jvmtiHeapCallbacks callbacks;
+  (void)memset(&callbacks, 0, sizeof(callbacks));
+  callbacks.heap_iteration_callback = &reservoirSamplingCallback;
+  gdata->jvmti->IterateThroughHeap(0, klass, &callbacks, &ctx);
+  jint tagCount = ctx.seen < k ? (jint)ctx.seen : k;
+  jint objCount = 0;
+  jobject* objArr = NULL;
+  jlong* tagArr = NULL;
+  if(tagCount > 0) {
+    gdata->jvmti->GetObjectsWithTags(tagCount, ctx.chosen, &objCount, &objArr, &tagArr);
+  }
+  jobjectArray ret = env->NewObjectArray(objCount, klass, NULL);
+  for (int n=0; n<objCount; n++) {
+    env->SetObjectArrayElement(ret, n, objArr[n]);
+    gdata->jvmti->SetTag(objArr[n], savedTag(&saved, tagArr[n]));
+    env->DeleteLocalRef(objArr[n]);
+  }
+  if(objArr!=NULL) gdata->jvmti->Deallocate((unsigned char*)objArr);
+  if(tagArr!=NULL) gdata->jvmti->Deallocate((unsigned char*)tagArr);
+  delete[] ctx.chosen;
+  // release the evicted candidates
+  if(!evicted.empty()) {
+    objCount = 0;
+    objArr = NULL;
+    tagArr = NULL;
+    gdata->jvmti->GetObjectsWithTags((jint)evicted.size(), &evicted[0], &objCount, &objArr, &tagArr);
+    for (int n=0; n<objCount; n++) {
+      gdata->jvmti->SetTag(objArr[n], savedTag(&saved, tagArr[n]));
+      env->DeleteLocalRef(objArr[n]);
+    }
+    if(objArr!=NULL) gdata->jvmti->Deallocate((unsigned char*)objArr);
+    if(tagArr!=NULL) gdata->jvmti->Deallocate((unsigned char*)tagArr);
+  }
+  return ret;
+}
+
+
+//============================================================================
+//  Predicate Pushdown
+//  Instances are filtered by the primitive_field_callback which, for each
+//  object, follows the heap_iteration_callback. Each satisfied clause sets
+//  a bit in the match mask and the object is tagged once every bit is set.
+//============================================================================
+
+static const jint OP_EQ = 0;
+static const jint OP_NE = 1;
+static const jint OP_GT = 2;
+static const jint OP_GE = 3;
+static const jint OP_LT = 4;
+static const jint OP_LE = 5;
+
+typedef struct {
+ jint clauseCount;
+ jint* fieldIndices;
+ jint* ops;
+ jlong* longValues;
+ jdouble* doubleValues;
+ jboolean* floating;
+ jint matched;
+ jint allMatched;
+ int tagCount;
+ int tagMax;
+ GroupTags* group;
+} PredicateContext;
+
+template <typename T> static inline bool compareValues(jint op, T value, T operand) {
+  switch(op) {
+    case OP_EQ: return value == operand;
+    case OP_NE: return value != operand;
+    case OP_GT: return value > operand;
+    case OP_GE: return value >= operand;
+    case OP_LT: return value < operand;
+    case OP_LE: return value <= operand;
+  }
+  return false;
+}
+
+static jint countClassFields(jclass klass) {
+  jint fieldCount = 0;
+  jfieldID* fields = NULL;
+  if(gdata->jvmti->GetClassFields(klass, &fieldCount, &fields)!=JVMTI_ERROR_NONE) return 0;
+  gdata->jvmti->Deallocate((unsigned char*)fields);
+  return fieldCount;
+}
+
+static void collectInterfaces(JNIEnv *env, jclass klass, jclass* found, jint* foundCount, jint maxFound) {
+  jint ifaceCount = 0;
+  jclass* ifaces = NULL;
+  if(gdata->jvmti->GetImplementedInterfaces(klass, &ifaceCount, &ifaces)!=JVMTI_ERROR_NONE) return;
+  for (int n=0; n<ifaceCount; n++) {
+    bool seen = false;
+    for (int i=0; i<*foundCount; i++) {
+      if(env->IsSameObject(found[i], ifaces[n])) { seen = true; break; }
+    }
+    if(!seen && *foundCount < maxFound) {
+      found[(*foundCount)++] = ifaces[n];
+      collectInterfaces(env, ifaces[n], found, foundCount, maxFound);
+    }
+  }
+  gdata->jvmti->Deallocate((unsigned char*)ifaces);
+}
+
+/*
+ * Computes the JVMTI field index of the named field as defined for
+ * jvmtiHeapReferenceInfoField: the fields of every implemented interface come
+ * first, then the fields of each class from java.lang.Object down to the
+ * class itself, each in GetClassFields order.
+ */
+extern "C"
+JNIEXPORT jint JNICALL Java_com_heliosapm_jvmti_agent_NativeAgent_fieldIndex0(JNIEnv *env, jclass thisClass, jclass klass, jstring fieldName) {
+  const int MAX_DEPTH = 256;
+  jclass hierarchy[MAX_DEPTH];
+  jint depth = 0;
+  jclass ifaces[MAX_DEPTH];
+  jint ifaceCount = 0;
+  for (jclass current = klass; current!=NULL && depth < MAX_DEPTH; current = env->GetSuperclass(current)) {
+    hierarchy[depth++] = current;
+    collectInterfaces(env, current, ifaces, &ifaceCount, MAX_DEPTH);
+  }
+  jint index = 0;
+  for (int n=0; n<ifaceCount; n++) index += countClassFields(ifaces[n]);
+  const char* name = env->GetStringUTFChars(fieldName, NULL);
+  jint found = -1;
+  for (int d=depth-1; d>=0; d--) {
+    jint fieldCount = 0;
+    jfieldID* fields = NULL;
+    if(gdata->jvmti->GetClassFields(hierarchy[d], &fieldCount, &fields)!=JVMTI_ERROR_NONE) continue;
+    for (int f=0; f<fieldCount; f++) {
+      char* fname = NULL;
+      if(gdata->jvmti->GetFieldName(hierarchy[d], fields[f], &fname, NULL, NULL)==JVMTI_ERROR_NONE) {
+        // keep going so the most derived declaration wins when a field is hidden
+        if(strcmp(fname, name)==0) found = index + f;
+        gdata->jvmti->Deallocate((unsigned char*)fname);
+      }
+    }
+    index += fieldCount;
+    gdata->jvmti->Deallocate((unsigned char*)fields);
+  }
+  env->ReleaseStringUTFChars(fieldName, name);
+  return found;
+}
+
+extern "C"
+JNICALL jint predicateObjectCallback(jlong class_tag, jlong size, jlong* tag_ptr, jint length, void* user_data) {
+  PredicateContext* ctx = (PredicateContext*) user_data;
+  if(ctx->tagMax!=0 && ctx->tagCount >= ctx->tagMax) {
+    return JVMTI_VISIT_ABORT;
+  }
+  ctx->matched = 0;
+  return JVMTI_VISIT_OBJECTS;
+}
+
+extern "C"
+JNICALL jint predicateFieldCallback(jvmtiHeapReferenceKind kind, const jvmtiHeapReferenceInfo* info, jlong object_class_tag, jlong* object_tag_ptr, jvalue value, jvmtiPrimitiveType value_type, void* user_data) {
+  if(kind!=JVMTI_HEAP_REFERENCE_FIELD) return JVMTI_VISIT_OBJECTS;
+  PredicateContext* ctx = (PredicateContext*) user_data;
+  if(ctx->matched==ctx->allMatched) return JVMTI_VISIT_OBJECTS;
+  for (int c=0; c<ctx->clauseCount; c++) {
+    if(ctx->fieldIndices[c]!=info->field.index) continue;
+    bool ok;
+    jlong lvalue = 0;
+    jdouble dvalue = 0;
+    bool isFloat = false;
+    switch(value_type) {
+      case JVMTI_PRIMITIVE_TYPE_BOOLEAN: lvalue = value.z; break;
+      case JVMTI_PRIMITIVE_TYPE_BYTE: lvalue = value.b; break;
+      case JVMTI_PRIMITIVE_TYPE_CHAR: lvalue = value.c; break;
+      case JVMTI_PRIMITIVE_TYPE_SHORT: lvalue = value.s; break;
+      case JVMTI_PRIMITIVE_TYPE_INT: lvalue = value.i; break;
+      case JVMTI_PRIMITIVE_TYPE_LONG: lvalue = value.j; break;
+      case JVMTI_PRIMITIVE_TYPE_FLOAT: dvalue = value.f; isFloat = true; break;
+      case JVMTI_PRIMITIVE_TYPE_DOUBLE: dvalue = value.d; isFloat = true; break;
+    }
+    if(isFloat) {
+      ok = compareValues<jdouble>(ctx->ops[c], dvalue, ctx->doubleValues[c]);
+    } else if(ctx->floating[c]) {
+      ok = compareValues<jdouble>(ctx->ops[c], (jdouble)lvalue, ctx->doubleValues[c]);
+    } else {
+      ok = compareValues<jlong>(ctx->ops[c], lvalue, ctx->longValues[c]);
+    }
+    if(ok) ctx->matched |= (1 << c);
+  }
+  if(ctx->matched==ctx->allMatched) {
+    groupTag(ctx->group, object_tag_ptr, 0);
+    ctx->tagCount++;
+  }
+  return JVMTI_VISIT_OBJECTS;
+}
+
+extern "C"
+JNIEXPORT jobjectArray JNICALL Java_com_heliosapm_jvmti_agent_NativeAgent_getMatchingInstances0(JNIEnv *env, jclass thisClass, jclass klass, jlong tag, jint max, jintArray fieldIndices, jintArray ops, jlongArray longValues, jdoubleArray doubleValues, jbooleanArray floating) {
+  PredicateContext ctx;
+  ctx.clauseCount = env->GetArrayLength(fieldIndices);
+  ctx.fieldIndices = new jint[ctx.clauseCount];
+  ctx.ops = new jint[ctx.clauseCount];
+  ctx.longValues = new jlong[ctx.clauseCount];
+  ctx.doubleValues = new jdouble[ctx.clauseCount];
+  ctx.floating = new jboolean[ctx.clauseCount];
+  env->GetIntArrayRegion(fieldIndices, 0, ctx.clauseCount, ctx.fieldIndices);
+  env->GetIntArrayRegion(ops, 0, ctx.clauseCount, ctx.ops);
+  env->GetLongArrayRegion(longValues, 0, ctx.clauseCount, ctx.longValues);
+  env->GetDoubleArrayRegion(doubleValues, 0, ctx.clauseCount, ctx.doubleValues);
+  env->GetBooleanArrayRegion(floating, 0, ctx.clauseCount, ctx.floating);
+  ctx.matched = 0;
+  ctx.allMatched = (1 << ctx.clauseCount) - 1;
+  ctx.tagCount = 0;
+  ctx.tagMax = max;
+  GroupTags group;
+  group.tagBase = serialSession(tag);
+  ctx.group = &group;
+  jvmtiHeapCallbacks callbacks;
+  (void)memset(&callbacks, 0, sizeof(callbacks));
+  callbacks.heap_iteration_callback = &predicateObjectCallback;
+  callbacks.primitive_field_callback = &predicateFieldCallback;
+  gdata->jvmti->IterateThroughHeap(0, klass, &callbacks, &ctx);
+  // fetching the matches also clears their tags
+  jobjectArray ret = fetchGroupArray(env, &group, klass);
+  delete[] ctx.fieldIndices;
+  delete[] ctx.ops;
+  delete[] ctx.longValues;
+  delete[] ctx.doubleValues;
+  delete[] ctx.floating;
+  return ret;
+}
+
+
+//============================================================================
+//  Instance Cursors
+//  Opening a cursor tags every instance for the length of one heap walk and
+//  fetches them into an array of JNI weak global references. Pages are then
+//  served by index, so no tag is held between pages where another operation
+//  could overwrite it, and the instances not yet returned stay collectable.
+//============================================================================
+
+typedef struct {
+ jint count;
+ jweak* refs;
+} InstanceCursorRefs;
+
+extern "C"
+JNIEXPORT jlong JNICALL Java_com_heliosapm_jvmti_agent_NativeAgent_openCursor0(JNIEnv *env, jclass thisClass, jclass klass, jlong tag) {
+  GroupTags group;
+  group.tagBase = serialSession(tag);
+  TagContext ctx;
+  ctx.tagCount = 0;
+  ctx.tagMax = 0;
+  ctx.group = &group;
+  jvmtiHeapCallbacks callbacks;
+  (void)memset(&callbacks, 0, sizeof(callbacks));
+  callbacks.heap_iteration_callback = &objectTaggingCallback;
+  gdata->jvmti->IterateThroughHeap(0, klass, &callbacks, &ctx);
+  jint groupId = 0;
+  jobject* objArr = NULL;
+  jint* groups = NULL;
+  jint objCount = fetchGroups(&group, &groupId, 1, &objArr, &groups);
+  InstanceCursorRefs* cursor = new InstanceCursorRefs();
+  cursor->count = objCount;
+  cursor->refs = new jweak[objCount > 0 ? objCount : 1];
+  for (int n=0; n<objCount; n++) {
+    cursor->refs[n] = env->NewWeakGlobalRef(objArr[n]);
+    env->DeleteLocalRef(objArr[n]);
+  }
+  if(objArr!=NULL) gdata->jvmti->Deallocate((unsigned char*)objArr);
+  delete[] groups;
+  return (jlong)(intptr_t)cursor;
+}
+
+extern "C"
+JNIEXPORT jint JNICALL Java_com_heliosapm_jvmti_agent_NativeAgent_cursorCount0(JNIEnv *env, jclass thisClass, jlong handle) {
+  return ((InstanceCursorRefs*)(intptr_t)handle)->count;
+}
+
+extern "C"
+JNIEXPORT jobjectArray JNICALL Java_com_heliosapm_jvmti_agent_NativeAgent_cursorFetch0(JNIEnv *env, jclass thisClass, jclass klass, jlong handle, jint from, jint count) {
+  InstanceCursorRefs* cursor = (InstanceCursorRefs*)(intptr_t)handle;
+  jint to = from + count < cursor->count ? from + count : cursor->count;
+  std::vector<jobject> live;
+  for (int n=from; n<to; n++) {
+    if(cursor->refs[n]==NULL) continue;
+    // a null local ref means the instance was collected since the cursor was opened
+    jobject obj = env->NewLocalRef(cursor->refs[n]);
+    env->DeleteWeakGlobalRef(cursor->refs[n]);
+    cursor->refs[n] = NULL;
+    if(obj!=NULL) live.push_back(obj);
+  }
+  jobjectArray ret = env->NewObjectArray((jsize)live.size(), klass, NULL);
+  for (size_t n=0; n<live.size(); n++) {
+    env->SetObjectArrayElement(ret, (jsize)n, live[n]);
+    env->DeleteLocalRef(live[n]);
+  }
+  return ret;
+}
+
+extern "C"
+JNIEXPORT jint JNICALL Java_com_heliosapm_jvmti_agent_NativeAgent_cursorRelease0(JNIEnv *env, jclass thisClass, jlong handle) {
+  InstanceCursorRefs* cursor = (InstanceCursorRefs*)(intptr_t)handle;
+  jint released = 0;
+  for (int n=0; n<cursor->count; n++) {
+    if(cursor->refs[n]==NULL) continue;
+    env->DeleteWeakGlobalRef(cursor->refs[n]);
+    released++;
+  }
+  delete[] cursor->refs;
+  delete cursor;
+  return released;
+}
+
+
+//============================================================================
+//  Heap Snapshots
+//  Object and reference records are written straight into the caller's
+//  memory mapped segments. Both record types are 24 bytes and each segment
+//  is a multiple of 24 bytes, so the records form one contiguous array in
+//  the file. With references enabled, objects are tagged with the session
+//  tag | their snapshot id so FollowReferences can resolve both ends of each
+//  edge. The tag an object already carried is saved and restored afterwards.
+//  See com.heliosapm.jvmti.snapshot.HeapSnapshot for the file format.
+//============================================================================
+
+static const jlong SNAPSHOT_ID_MASK = 0xFFFFFFFFLL;
+
+typedef struct {
+ jlong id;
+ jlong size;
+ jint classIndex;
+ jint length;
+} SnapshotObjectRecord;
+
+typedef struct {
+ jlong referrer;
+ jlong referent;
+ jint kind;
+ jint index;
+} SnapshotReferenceRecord;
+
+typedef struct {
+ char** segments;
+ jlong* capacities;
+ jint segmentCount;
+ jint segment;
+ jlong offset;
+ jint classCount;
+ jlong tagBase;
+ jlong* classObjectIds;
+ SavedTags* saved;
+ jlong objectCount;
+ jlong referenceCount;
+ bool truncated;
+} SnapshotContext;
+
+static bool writeSnapshotRecord(SnapshotContext* ctx, const void* record, size_t recordSize) {
+  while(ctx->segment < ctx->segmentCount && ctx->offset + (jlong)recordSize > ctx->capacities[ctx->segment]) {
+    ctx->segment++;
+    ctx->offset = 0;
+  }
+  if(ctx->segment >= ctx->segmentCount) {
+    ctx->truncated = true;
+    return false;
+  }
+  memcpy(ctx->segments[ctx->segment] + ctx->offset, record, recordSize);
+  ctx->offset += recordSize;
+  return true;
+}
+
+static inline jlong snapshotId(SnapshotContext* ctx, jlong tag) {
+  if(tag==CLEAR_TAG) return 0;
+  if((tag & ~SNAPSHOT_ID_MASK)==ctx->tagBase) return tag & SNAPSHOT_ID_MASK;
+  jlong index = tag - CLASS_TAG_BASE;
+  if(index >= 0 && index < ctx->classCount) return ctx->classObjectIds[index];
+  return 0;
+}
+
+extern "C"
+JNICALL jint snapshotObjectCallback(jlong class_tag, jlong size, jlong* tag_ptr, jint length, void* user_data) {
+  SnapshotContext* ctx = (SnapshotContext*) user_data;
+  jlong classIndex = class_tag - CLASS_TAG_BASE;
+  SnapshotObjectRecord record;
+  record.id = ctx->objectCount + 1;
+  record.size = size;
+  record.classIndex = (classIndex >= 0 && classIndex < ctx->classCount) ? (jint)classIndex : -1;
+  record.length = length;
+  if(!writeSnapshotRecord(ctx, &record, sizeof(record))) return JVMTI_VISIT_ABORT;
+  ctx->objectCount++;
+  if(ctx->tagBase!=0 && record.id <= SNAPSHOT_ID_MASK) {
+    jlong tagIndex = *tag_ptr - CLASS_TAG_BASE;
+    if(tagIndex >= 0 && tagIndex < ctx->classCount) {
+      ctx->classObjectIds[tagIndex] = record.id;
+    } else {
+      ownTag(ctx->saved, tag_ptr, ctx->tagBase | record.id);
+    }
+  }
+  return JVMTI_VISIT_OBJECTS;
+}
+
+extern "C"
+JNICALL jint snapshotReferenceCallback(jvmtiHeapReferenceKind reference_kind, const jvmtiHeapReferenceInfo* reference_info, jlong class_tag, jlong referrer_class_tag, jlong size, jlong* tag_ptr, jlong* referrer_tag_ptr, jint length, void* user_data) {
+  SnapshotContext* ctx = (SnapshotContext*) user_data;
+  // The class of each object is already in its object record
+  if(reference_kind==JVMTI_HEAP_REFERENCE_CLASS) return JVMTI_VISIT_OBJECTS;
+  SnapshotReferenceRecord record;
+  record.referent = snapshotId(ctx, *tag_ptr);
+  if(record.referent==0) return JVMTI_VISIT_OBJECTS;
+  record.referrer = referrer_tag_ptr==NULL ? 0 : snapshotId(ctx, *referrer_tag_ptr);
+  record.kind = reference_kind;
+  switch(reference_kind) {
+    case JVMTI_HEAP_REFERENCE_FIELD:
+    case JVMTI_HEAP_REFERENCE_STATIC_FIELD:
+      record.index = reference_info->field.index; break;
+    case JVMTI_HEAP_REFERENCE_ARRAY_ELEMENT:
+      record.index = reference_info->array.index; break;
+    case JVMTI_HEAP_REFERENCE_CONSTANT_POOL:
+      record.index = reference_info->constant_pool.index; break;
+    case JVMTI_HEAP_REFERENCE_STACK_LOCAL:
+      record.index = reference_info->stack_local.depth; break;
+    case JVMTI_HEAP_REFERENCE_JNI_LOCAL:
+      record.index = reference_info->jni_local.depth; break;
+    default:
+      record.index = -1;
+  }
+  if(!writeSnapshotRecord(ctx, &record, sizeof(record))) return JVMTI_VISIT_ABORT;
+  ctx->referenceCount++;
+  return JVMTI_VISIT_OBJECTS;
+}
+
+extern "C"
+JNICALL jint snapshotClearCallback(jlong class_tag, jlong size, jlong* tag_ptr, jint length, void* user_data) {
+  SnapshotContext* ctx = (SnapshotContext*) user_data;
+  if((*tag_ptr & ~SNAPSHOT_ID_MASK)==ctx->tagBase) *tag_ptr = savedTag(ctx->saved, *tag_ptr);
+  return JVMTI_VISIT_OBJECTS;
+}
+
+extern "C"
+JNIEXPORT jboolean JNICALL Java_com_heliosapm_jvmti_agent_NativeAgent_heapSnapshot0(JNIEnv *env, jclass thisClass, jobjectArray segments, jobjectArray classes, jlong tagBase, jlongArray results) {
+  SnapshotContext ctx;
+  (void)memset(&ctx, 0, sizeof(ctx));
+  ctx.segmentCount = env->GetArrayLength(segments);
+  ctx.segments = new char*[ctx.segmentCount];
+  ctx.capacities = new jlong[ctx.segmentCount];
+  for (int n=0; n<ctx.segmentCount; n++) {
+    jobject segment = env->GetObjectArrayElement(segments, n);
+    ctx.segments[n] = (char*) env->GetDirectBufferAddress(segment);
+    ctx.capacities[n] = env->GetDirectBufferCapacity(segment);
+    env->DeleteLocalRef(segment);
+  }
+  ctx.classCount = env->GetArrayLength(classes);
+  ctx.classObjectIds = new jlong[ctx.classCount]();
+  ctx.tagBase = tagBase;
+  SavedTags saved;
+  ctx.saved = &saved;
+  jvmtiHeapCallbacks callbacks;
+  (void)memset(&callbacks, 0, sizeof(callbacks));
+  callbacks.heap_iteration_callback = &snapshotObjectCallback;
+  jlong* classTags = tagClasses(env, classes, ctx.classCount);
+  gdata->jvmti->IterateThroughHeap(0, NULL, &callbacks, &ctx);
+  if(tagBase!=0) {
+    if(!ctx.truncated) {
+      (void)memset(&callbacks, 0, sizeof(callbacks));
+      callbacks.heap_reference_callback = &snapshotReferenceCallback;
+      gdata->jvmti->FollowReferences(0, NULL, NULL, &callbacks, &ctx);
+    }
+    (void)memset(&callbacks, 0, sizeof(callbacks));
+    callbacks.heap_iteration_callback = &snapshotClearCallback;
+    gdata->jvmti->IterateThroughHeap(JVMTI_HEAP_FILTER_UNTAGGED, NULL, &callbacks, &ctx);
+  }
+  untagClasses(env, classes, ctx.classCount, classTags);
+  jlong counts[2] = {ctx.objectCount, ctx.referenceCount};
+  env->SetLongArrayRegion(results, 0, 2, counts);
+  delete[] ctx.classObjectIds;
+  delete[] ctx.capacities;
+  delete[] ctx.segments;
+  return ctx.truncated ? JNI_TRUE : JNI_FALSE;
+}
+
+
+//============================================================================
+//  HPROF Heap Dumps
+//  Writes a JAVA PROFILE 1.0.2 dump with 8 byte ids through a large stdio
+//  buffer. One FollowReferences pass tags reachable objects with the session
+//  tag | their ordinal and assembles each referrer's field values or array
+//  elements, writing the record when the reported referrer changes. Objects
+//  reached but never reported as a referrer (no primitive fields and only
+//  null references, or primitive arrays when contents are omitted) are
+//  written by a final IterateThroughHeap pass, which also restores the tags.
+//  Objects that already carried a tag are given a session tag like any
+//  other, their own tag being saved in a side table until that final pass.
+//  Class objects keep their census class tag which doubles as their id.
+//  References to objects whose class is excluded by the package filters are
+//  written as null so the dump has no dangling ids. Assembling a referrer
+//  until the reported referrer changes relies on HotSpot reporting all of an
+//  object's references together, which JVMTI does not promise: a referrer
+//  reported again after it was written keeps its first record and is counted
+//  as split.
+//============================================================================
+
+static const unsigned char HPROF_UTF8 = 0x01;
+static const unsigned char HPROF_LOAD_CLASS = 0x02;
+static const unsigned char HPROF_STACK_TRACE = 0x05;
+static const unsigned char HPROF_HEAP_DUMP_SEGMENT = 0x1C;
+static const unsigned char HPROF_HEAP_DUMP_END = 0x2C;
+static const unsigned char HPROF_ROOT_UNKNOWN = 0xFF;
+static const unsigned char HPROF_ROOT_JNI_GLOBAL = 0x01;
+static const unsigned char HPROF_ROOT_STICKY_CLASS = 0x05;
+static const unsigned char HPROF_ROOT_MONITOR_USED = 0x07;
+static const unsigned char HPROF_CLASS_DUMP = 0x20;
+static const unsigned char HPROF_INSTANCE_DUMP = 0x21;
+static const unsigned char HPROF_OBJ_ARRAY_DUMP = 0x22;
+static const unsigned char HPROF_PRIM_ARRAY_DUMP = 0x23;
+static const unsigned char HPROF_NORMAL_OBJECT = 2;
+static const jint HPROF_STACK_SERIAL = 1;
+static const jint HPROF_NOT_ARRAY = -1;
+static const jlong HPROF_STRING_ID_BASE = 0x2000000000000000LL;
+static const jlong HPROF_SEGMENT_LIMIT = 1LL << 30;
+static const size_t HPROF_BUFFER_SIZE = 8 * 1024 * 1024;
+
+typedef struct {
+ FILE* file;
+ unsigned char* buffer;
+ size_t position;
+ jlong offset;
+ jlong segmentLengthOffset;
+ bool failed;
+} HprofWriter;
+
+static void hprofFlush(HprofWriter* w) {
+  if(w->position==0) return;
+  if(fwrite(w->buffer, 1, w->position, w->file)!=w->position) w->failed = true;
+  w->offset += w->position;
+  w->position = 0;
+}
+
+static void hprofBytes(HprofWriter* w, const void* data, size_t length) {
+  const unsigned char* bytes = (const unsigned char*) data;
+  while(length > 0) {
+    if(w->position==HPROF_BUFFER_SIZE) hprofFlush(w);
+    size_t chunk = HPROF_BUFFER_SIZE - w->position;
+    if(chunk > length) chunk = length;
+    memcpy(w->buffer + w->position, bytes, chunk);
+    w->position += chunk;
+    bytes += chunk;
+    length -= chunk;
+  }
+}
+
+static inline void hprofU1(HprofWriter* w, unsigned char v) {
+  if(w->position==HPROF_BUFFER_SIZE) hprofFlush(w);
+  w->buffer[w->position++] = v;
+}
+
+static inline void hprofU2(HprofWriter* w, unsigned short v) {
+  v = __builtin_bswap16(v);
+  hprofBytes(w, &v, 2);
+}
+
+static inline void hprofU4(HprofWriter* w, unsigned int v) {
+  v = __builtin_bswap32(v);
+  hprofBytes(w, &v, 4);
+}
+
+static inline void hprofU8(HprofWriter* w, unsigned long long v) {
+  v = __builtin_bswap64(v);
+  hprofBytes(w, &v, 8);
+}
+
+static inline jlong hprofPosition(HprofWriter* w) {
+  return w->offset + w->position;
+}
+
+static bool hprofSeek(FILE* file, jlong offset, int whence) {
+#ifdef WINDOWS
+  return _fseeki64(file, offset, whence)==0;
+#else
+  return fseeko(file, offset, whence)==0;
+#endif
+}
+
+static void hprofOpenSegment(HprofWriter* w) {
+  hprofU1(w, HPROF_HEAP_DUMP_SEGMENT);
+  hprofU4(w, 0);
+  w->segmentLengthOffset = hprofPosition(w);
+  hprofU4(w, 0);
+}
+
+static void hprofCloseSegment(HprofWriter* w) {
+  if(w->segmentLengthOffset < 0) return;
+  unsigned int length = __builtin_bswap32((unsigned int)(hprofPosition(w) - w->segmentLengthOffset - 4));
+  if(w->segmentLengthOffset >= w->offset) {
+    memcpy(w->buffer + (w->segmentLengthOffset - w->offset), &length, 4);
+  } else {
+    hprofFlush(w);
+    if(!hprofSeek(w->file, w->segmentLengthOffset, SEEK_SET)
+        || fwrite(&length, 1, 4, w->file)!=4
+        || !hprofSeek(w->file, 0, SEEK_END)) w->failed = true;
+  }
+  w->segmentLengthOffset = -1;
+}
+
+// Rolls over to a new segment so no segment length overflows its u4
+static inline void hprofSubRecord(HprofWriter* w, unsigned char tag) {
+  if(hprofPosition(w) - w->segmentLengthOffset > HPROF_SEGMENT_LIMIT) {
+    hprofCloseSegment(w);
+    hprofOpenSegment(w);
+  }
+  hprofU1(w, tag);
+}
+
+static unsigned char hprofType(char signature) {
+  switch(signature) {
+    case 'Z': return 4;
+    case 'C': return 5;
+    case 'F': return 6;
+    case 'D': return 7;
+    case 'B': return 8;
+    case 'S': return 9;
+    case 'I': return 10;
+    case 'J': return 11;
+    default: return HPROF_NORMAL_OBJECT;
+  }
+}
+
+static jint hprofTypeSize(unsigned char type) {
+  switch(type) {
+    case 4: case 8: return 1;
+    case 5: case 9: return 2;
+    case 6: case 10: return 4;
+    default: return 8;
+  }
+}
+
+typedef struct {
+ jlong nameId;
+ jlong superId;
+ jlong loaderId;
+ jint instanceSize;
+ jint arrayType;
+ bool included;
+ std::vector<jlong> fieldNameIds;
+ std::vector<unsigned char> fieldTypes;
+ std::vector<jlong> staticNameIds;
+ std::vector<unsigned char> staticTypes;
+ std::vector<jlong> staticValues;
+ // By JVMTI field index: the instance value offset (>= 0), -(static slot + 2), or -1 when unused
+ std::vector<jint> slots;
+ std::vector<unsigned char> slotTypes;
+} HprofClass;
+
+struct HprofContext {
+ HprofWriter writer;
+ jlong tagBase;
+ jlong nextOrdinal;
+ jint classCount;
+ HprofClass* classes;
+ std::map<std::string, jlong> strings;
+ std::vector<bool> reached;
+ std::vector<bool> written;
+ std::unordered_map<jlong, jint> arrayLengths;
+ SavedTags saved;
+ jlong currentTag;
+ jint currentClass;
+ std::vector<unsigned char> fieldData;
+ std::vector<jlong> elements;
+ jlong stats[7];
+};
+
+static const int HPROF_STAT_INSTANCES = 0;
+static const int HPROF_STAT_OBJECT_ARRAYS = 1;
+static const int HPROF_STAT_PRIMITIVE_ARRAYS = 2;
+static const int HPROF_STAT_ROOTS = 3;
+static const int HPROF_STAT_CLASSES = 4;
+static const int HPROF_STAT_BYTES = 5;
+static const int HPROF_STAT_SPLIT = 6;
+
+static jlong hprofString(HprofContext* ctx, const char* value) {
+  std::map<std::string, jlong>::iterator it = ctx->strings.find(value);
+  if(it!=ctx->strings.end()) return it->second;
+  jlong id = HPROF_STRING_ID_BASE + ctx->strings.size() + 1;
+  ctx->strings[value] = id;
+  size_t length = strlen(value);
+  hprofU1(&ctx->writer, HPROF_UTF8);
+  hprofU4(&ctx->writer, 0);
+  hprofU4(&ctx->writer, (unsigned int)(8 + length));
+  hprofU8(&ctx->writer, id);
+  hprofBytes(&ctx->writer, value, length);
+  return id;
+}
+
+static inline bool isSessionTag(HprofContext* ctx, jlong tag) {
+  return tag!=CLEAR_TAG && (tag & ~SNAPSHOT_ID_MASK)==ctx->tagBase;
+}
+
+static inline jint hprofClassIndex(HprofContext* ctx, jlong classTag) {
+  jlong index = classTag - CLASS_TAG_BASE;
+  return (index >= 0 && index < ctx->classCount) ? (jint)index : -1;
+}
+
+static inline void hprofMark(std::vector<bool>& bits, jlong ordinal) {
+  if((size_t)ordinal >= bits.size()) bits.resize(ordinal * 2 + 1024, false);
+  bits[ordinal] = true;
+}
+
+static inline bool hprofIsMarked(std::vector<bool>& bits, jlong ordinal) {
+  return (size_t)ordinal < bits.size() && bits[ordinal];
+}
+
+static bool matchesPackage(const std::string& name, std::vector<std::string>& packages) {
+  if(packages.empty()) return true;
+  for (size_t n=0; n<packages.size(); n++) {
+    if(name.compare(0, packages[n].size(), packages[n])==0) return true;
+  }
+  return false;
+}
+
+// Indicates if the passed tag already identifies an object in the dump
+static inline bool hprofIdentified(HprofContext* ctx, jlong tag) {
+  return isSessionTag(ctx, tag) || hprofClassIndex(ctx, tag) >= 0;
+}
+
+// Returns the id to write for a reference to the passed object, 0 if the object's class is excluded from the dump
+static inline jlong hprofReferenceId(HprofContext* ctx, jlong tag, jlong classTag) {
+  if(tag==0 || hprofClassIndex(ctx, tag) >= 0) return tag;
+  jint classIndex = hprofClassIndex(ctx, classTag);
+  return (classIndex >= 0 && ctx->classes[classIndex].included) ? tag : 0;
+}
+
+// Gives a newly reached object the next ordinal, saving any tag it carried, returning its id or 0 if out of ordinals
+static jlong hprofReach(HprofContext* ctx, jlong* tag_ptr) {
+  jlong ordinal = ctx->nextOrdinal + 1;
+  if(ordinal > SNAPSHOT_ID_MASK) return 0;
+  ctx->nextOrdinal = ordinal;
+  jlong tag = ctx->tagBase | ordinal;
+  ownTag(&ctx->saved, tag_ptr, tag);
+  hprofMark(ctx->reached, ordinal);
+  return tag;
+}
+
+static jlong hprofTagOf(HprofContext* ctx, jobject object) {
+  if(object==NULL) return 0;
+  jlong tag = CLEAR_TAG;
+  gdata->jvmti->GetTag(object, &tag);
+  if(!hprofIdentified(ctx, tag)) {
+    tag = hprofReach(ctx, &tag);
+    if(tag!=0) gdata->jvmti->SetTag(object, tag);
+  }
+  return tag;
+}
+
+/*
+ * Resolves the HPROF layout of a class: its declared instance and static
+ * fields, and the mapping from each JVMTI field index (see fieldIndex0) to
+ * the offset of the value in an instance dump, where the class's own fields
+ * come first followed by each super class's.
+ */
+static void hprofDescribeClass(JNIEnv *env, HprofContext* ctx, jclass klass, HprofClass* info, std::vector<std::string>& packages) {
+  const int MAX_DEPTH = 256;
+  env->PushLocalFrame(MAX_DEPTH * 2 + 16);
+  char* signature = NULL;
+  gdata->jvmti->GetClassSignature(klass, &signature, NULL);
+  std::string sig(signature==NULL ? "" : signature);
+  if(signature!=NULL) gdata->jvmti->Deallocate((unsigned char*)signature);
+  std::string name = (sig.size() > 1 && sig[0]=='L') ? sig.substr(1, sig.size() - 2) : sig;
+  info->nameId = hprofString(ctx, name.c_str());
+  info->arrayType = HPROF_NOT_ARRAY;
+  std::string javaName = name;
+  if(sig.size() > 1 && sig[0]=='[') {
+    size_t dims = sig.find_first_not_of('[');
+    info->arrayType = hprofType(sig[1]);
+    javaName = sig[dims]=='L' ? sig.substr(dims + 1, sig.size() - dims - 2) : "";
+  }
+  for (size_t n=0; n<javaName.size(); n++) if(javaName[n]=='/') javaName[n] = '.';
+  info->included = info->arrayType > HPROF_NORMAL_OBJECT || matchesPackage(javaName, packages);
+  jclass superClass = env->GetSuperclass(klass);
+  jlong superTag = CLEAR_TAG;
+  if(superClass!=NULL) gdata->jvmti->GetTag(superClass, &superTag);
+  // every loaded class carries its class tag, anything else would be a dangling id
+  info->superId = hprofClassIndex(ctx, superTag) >= 0 ? superTag : 0;
+  jobject loader = NULL;
+  gdata->jvmti->GetClassLoader(klass, &loader);
+  info->loaderId = hprofTagOf(ctx, loader);
+  info->instanceSize = 0;
+  if(info->arrayType==HPROF_NOT_ARRAY) {
+    jclass hierarchy[MAX_DEPTH];
+    jint depth = 0;
+    jclass ifaces[MAX_DEPTH];
+    jint ifaceCount = 0;
+    for (jclass current = klass; current!=NULL && depth < MAX_DEPTH; current = env->GetSuperclass(current)) {
+      hierarchy[depth++] = current;
+      collectInterfaces(env, current, ifaces, &ifaceCount, MAX_DEPTH);
+    }
+    jint index = 0;
+    for (int n=0; n<ifaceCount; n++) index += countClassFields(ifaces[n]);
+    info->slots.assign(index, -1);
+    info->slotTypes.assign(index, 0);
+    // instance fields of each level, most derived first, as (jvmti index, type)
+    std::vector< std::vector< std::pair<jint, unsigned char> > > levels(depth);
+    for (int d=depth-1; d>=0; d--) {
+      jint fieldCount = 0;
+      jfieldID* fields = NULL;
+      if(gdata->jvmti->GetClassFields(hierarchy[d], &fieldCount, &fields)!=JVMTI_ERROR_NONE) continue;
+      for (int f=0; f<fieldCount; f++) {
+        char* fname = NULL;
+        char* fsig = NULL;
+        jint modifiers = 0;
+        gdata->jvmti->GetFieldName(hierarchy[d], fields[f], &fname, &fsig, NULL);
+        gdata->jvmti->GetFieldModifiers(hierarchy[d], fields[f], &modifiers);
+        unsigned char type = hprofType(fsig==NULL ? 'L' : fsig[0]);
+        info->slots.push_back(-1);
+        info->slotTypes.push_back(type);
+        if((modifiers & 0x0008)!=0) {
+          if(d==0) {
+            info->slots.back() = -((jint)info->staticNameIds.size() + 2);
+            info->staticNameIds.push_back(hprofString(ctx, fname==NULL ? "" : fname));
+            info->staticTypes.push_back(type);
+            info->staticValues.push_back(0);
+          }
+        } else {
+          levels[d].push_back(std::make_pair(index + f, type));
+          if(d==0) {
+            info->fieldNameIds.push_back(hprofString(ctx, fname==NULL ? "" : fname));
+            info->fieldTypes.push_back(type);
+          }
+        }
+        if(fname!=NULL) gdata->jvmti->Deallocate((unsigned char*)fname);
+        if(fsig!=NULL) gdata->jvmti->Deallocate((unsigned char*)fsig);
+      }
+      index += fieldCount;
+      gdata->jvmti->Deallocate((unsigned char*)fields);
+    }
+    for (int d=0; d<depth; d++) {
+      for (size_t f=0; f<levels[d].size(); f++) {
+        info->slots[levels[d][f].first] = info->instanceSize;
+        info->instanceSize += hprofTypeSize(levels[d][f].second);
+      }
+    }
+  }
+  env->PopLocalFrame(NULL);
+}
+
+static void hprofFlushReferrer(HprofContext* ctx) {
+  if(ctx->currentTag==CLEAR_TAG) return;
+  HprofWriter* w = &ctx->writer;
+  HprofClass* info = &ctx->classes[ctx->currentClass];
+  if(info->included) {
+    hprofMark(ctx->written, ctx->currentTag & SNAPSHOT_ID_MASK);
+    if(info->arrayType==HPROF_NOT_ARRAY) {
+      hprofSubRecord(w, HPROF_INSTANCE_DUMP);
+      hprofU8(w, ctx->currentTag);
+      hprofU4(w, HPROF_STACK_SERIAL);
+      hprofU8(w, CLASS_TAG_BASE + ctx->currentClass);
+      hprofU4(w, (unsigned int)ctx->fieldData.size());
+      hprofBytes(w, ctx->fieldData.data(), ctx->fieldData.size());
+      ctx->stats[HPROF_STAT_INSTANCES]++;
+    } else {
+      hprofSubRecord(w, HPROF_OBJ_ARRAY_DUMP);
+      hprofU8(w, ctx->currentTag);
+      hprofU4(w, HPROF_STACK_SERIAL);
+      hprofU4(w, (unsigned int)ctx->elements.size());
+      hprofU8(w, CLASS_TAG_BASE + ctx->currentClass);
+      for (size_t n=0; n<ctx->elements.size(); n++) hprofU8(w, ctx->elements[n]);
+      ctx->stats[HPROF_STAT_OBJECT_ARRAYS]++;
+    }
+  }
+  ctx->currentTag = CLEAR_TAG;
+}
+
+// Starts assembling the passed referrer, returning false if its class is unknown
+static bool hprofBeginReferrer(HprofContext* ctx, jlong tag, jlong classTag) {
+  if(tag==ctx->currentTag) return true;
+  hprofFlushReferrer(ctx);
+  jint classIndex = hprofClassIndex(ctx, classTag);
+  if(classIndex < 0) return false;
+  if(hprofIsMarked(ctx->written, tag & SNAPSHOT_ID_MASK)) {
+    ctx->stats[HPROF_STAT_SPLIT]++;
+    return false;
+  }
+  HprofClass* info = &ctx->classes[classIndex];
+  if(info->arrayType==HPROF_NOT_ARRAY) {
+    ctx->fieldData.assign(info->instanceSize, 0);
+  } else if(info->arrayType==HPROF_NORMAL_OBJECT) {
+    jlong ordinal = tag & SNAPSHOT_ID_MASK;
+    std::unordered_map<jlong, jint>::iterator it = ctx->arrayLengths.find(ordinal);
+    ctx->elements.assign(it==ctx->arrayLengths.end() ? 0 : it->second, 0);
+    if(it!=ctx->arrayLengths.end()) ctx->arrayLengths.erase(it);
+  } else {
+    return false;
+  }
+  ctx->currentTag = tag;
+  ctx->currentClass = classIndex;
+  return true;
+}
+
+static void hprofPutValue(unsigned char* target, unsigned char type, unsigned long long bits) {
+  switch(hprofTypeSize(type)) {
+    case 1: target[0] = (unsigned char)bits; break;
+    case 2: { unsigned short v = __builtin_bswap16((unsigned short)bits); memcpy(target, &v, 2); break; }
+    case 4: { unsigned int v = __builtin_bswap32((unsigned int)bits); memcpy(target, &v, 4); break; }
+    default: { unsigned long long v = __builtin_bswap64(bits); memcpy(target, &v, 8); break; }
+  }
+}
+
+static unsigned long long hprofValueBits(jvalue value, jvmtiPrimitiveType type) {
+  unsigned long long bits = 0;
+  switch(type) {
+    case JVMTI_PRIMITIVE_TYPE_BOOLEAN: bits = value.z; break;
+    case JVMTI_PRIMITIVE_TYPE_BYTE: bits = (unsigned char)value.b; break;
+    case JVMTI_PRIMITIVE_TYPE_CHAR: bits = value.c; break;
+    case JVMTI_PRIMITIVE_TYPE_SHORT: bits = (unsigned short)value.s; break;
+    case JVMTI_PRIMITIVE_TYPE_INT: bits = (unsigned int)value.i; break;
+    case JVMTI_PRIMITIVE_TYPE_FLOAT: { unsigned int f; memcpy(&f, &value.f, 4); bits = f; break; }
+    case JVMTI_PRIMITIVE_TYPE_LONG: bits = (unsigned long long)value.j; break;
+    case JVMTI_PRIMITIVE_TYPE_DOUBLE: memcpy(&bits, &value.d, 8); break;
+  }
+  return bits;
+}
+
+static void hprofSetStatic(HprofContext* ctx, jint classIndex, jint fieldIndex, unsigned long long bits) {
+  HprofClass* info = &ctx->classes[classIndex];
+  if(fieldIndex < 0 || fieldIndex >= (jint)info->slots.size()) return;
+  jint slot = info->slots[fieldIndex];
+  if(slot <= -2) info->staticValues[-slot - 2] = (jlong)bits;
+}
+
+extern "C"
+JNICALL jint hprofReferenceCallback(jvmtiHeapReferenceKind reference_kind, const jvmtiHeapReferenceInfo* reference_info, jlong class_tag, jlong referrer_class_tag, jlong size, jlong* tag_ptr, jlong* referrer_tag_ptr, jint length, void* user_data) {
+  HprofContext* ctx = (HprofContext*) user_data;
+  if(ctx->writer.failed) return JVMTI_VISIT_ABORT;
+  jlong tag = *tag_ptr;
+  if(!hprofIdentified(ctx, tag)) {
+    // untagged, or tagged by someone else and restored by the leftover pass
+    tag = hprofReach(ctx, tag_ptr);
+    if(tag==0) return 0;
+    jint classIndex = hprofClassIndex(ctx, class_tag);
+    if(classIndex >= 0 && ctx->classes[classIndex].arrayType==HPROF_NORMAL_OBJECT) ctx->arrayLengths[tag & SNAPSHOT_ID_MASK] = length;
+  }
+  if(referrer_tag_ptr==NULL) {
+    if(hprofReferenceId(ctx, tag, class_tag)==0) return JVMTI_VISIT_OBJECTS;
+    HprofWriter* w = &ctx->writer;
+    switch(reference_kind) {
+      case JVMTI_HEAP_REFERENCE_JNI_GLOBAL:
+        hprofSubRecord(w, HPROF_ROOT_JNI_GLOBAL);
+        hprofU8(w, tag);
+        hprofU8(w, 0);
+        break;
+      case JVMTI_HEAP_REFERENCE_SYSTEM_CLASS:
+        hprofSubRecord(w, HPROF_ROOT_STICKY_CLASS);
+        hprofU8(w, tag);
+        break;
+      case JVMTI_HEAP_REFERENCE_MONITOR:
+        hprofSubRecord(w, HPROF_ROOT_MONITOR_USED);
+        hprofU8(w, tag);
+        break;
+      default:
+        hprofSubRecord(w, HPROF_ROOT_UNKNOWN);
+        hprofU8(w, tag);
+    }
+    ctx->stats[HPROF_STAT_ROOTS]++;
+    return JVMTI_VISIT_OBJECTS;
+  }
+  jlong referrer = *referrer_tag_ptr;
+  if(reference_kind==JVMTI_HEAP_REFERENCE_STATIC_FIELD) {
+    jint classIndex = hprofClassIndex(ctx, referrer);
+    if(classIndex >= 0) hprofSetStatic(ctx, classIndex, reference_info->field.index, hprofReferenceId(ctx, tag, class_tag));
+    return JVMTI_VISIT_OBJECTS;
+  }
+  if(!isSessionTag(ctx, referrer)) return JVMTI_VISIT_OBJECTS;
+  tag = hprofReferenceId(ctx, tag, class_tag);
+  if(reference_kind==JVMTI_HEAP_REFERENCE_FIELD) {
+    if(!hprofBeginReferrer(ctx, referrer, referrer_class_tag)) return JVMTI_VISIT_OBJECTS;
+    HprofClass* info = &ctx->classes[ctx->currentClass];
+    jint index = reference_info->field.index;
+    if(index >= 0 && index < (jint)info->slots.size() && info->slots[index] >= 0) {
+      hprofPutValue(ctx->fieldData.data() + info->slots[index], HPROF_NORMAL_OBJECT, tag);
+    }
+  } else if(reference_kind==JVMTI_HEAP_REFERENCE_ARRAY_ELEMENT) {
+    if(!hprofBeginReferrer(ctx, referrer, referrer_class_tag)) return JVMTI_VISIT_OBJECTS;
+    jint index = reference_info->array.index;
+    if(index >= 0 && index < (jint)ctx->elements.size()) ctx->elements[index] = tag;
+  }
+  return JVMTI_VISIT_OBJECTS;
+}
+
+extern "C"
+JNICALL jint hprofPrimitiveFieldCallback(jvmtiHeapReferenceKind kind, const jvmtiHeapReferenceInfo* info, jlong object_class_tag, jlong* object_tag_ptr, jvalue value, jvmtiPrimitiveType value_type, void* user_data) {
+  HprofContext* ctx = (HprofContext*) user_data;
+  jlong tag = *object_tag_ptr;
+  if(kind==JVMTI_HEAP_REFERENCE_STATIC_FIELD) {
+    jint classIndex = hprofClassIndex(ctx, tag);
+    if(classIndex >= 0) hprofSetStatic(ctx, classIndex, info->field.index, hprofValueBits(value, value_type));
+    return JVMTI_VISIT_OBJECTS;
+  }
+  if(!isSessionTag(ctx, tag) || !hprofBeginReferrer(ctx, tag, object_class_tag)) return JVMTI_VISIT_OBJECTS;
+  HprofClass* classInfo = &ctx->classes[ctx->currentClass];
+  jint index = info->field.index;
+  if(index >= 0 && index < (jint)classInfo->slots.size() && classInfo->slots[index] >= 0) {
+    hprofPutValue(ctx->fieldData.data() + classInfo->slots[index], classInfo->slotTypes[index], hprofValueBits(value, value_type));
+  }
+  return JVMTI_VISIT_OBJECTS;
+}
+
+extern "C"
+JNICALL jint hprofArrayPrimitiveCallback(jlong class_tag, jlong size, jlong* tag_ptr, jint element_count, jvmtiPrimitiveType element_type, const void* elements, void* user_data) {
+  HprofContext* ctx = (HprofContext*) user_data;
+  jlong tag = *tag_ptr;
+  if(!isSessionTag(ctx, tag) || hprofIsMarked(ctx->written, tag & SNAPSHOT_ID_MASK)) return JVMTI_VISIT_OBJECTS;
+  hprofMark(ctx->written, tag & SNAPSHOT_ID_MASK);
+  HprofWriter* w = &ctx->writer;
+  unsigned char type = hprofType((char)element_type);
+  jint elementSize = hprofTypeSize(type);
+  hprofSubRecord(w, HPROF_PRIM_ARRAY_DUMP);
+  hprofU8(w, tag);
+  hprofU4(w, HPROF_STACK_SERIAL);
+  hprofU4(w, element_count);
+  hprofU1(w, type);
+  const unsigned char* bytes = (const unsigned char*) elements;
+  if(elementSize==1) {
+    hprofBytes(w, bytes, element_count);
+  } else {
+    unsigned char value[8];
+    for (jint n=0; n<element_count; n++) {
+      unsigned long long bits = 0;
+      memcpy(&bits, bytes + (size_t)n * elementSize, elementSize);
+      hprofPutValue(value, type, bits);
+      hprofBytes(w, value, elementSize);
+    }
+  }
+  ctx->stats[HPROF_STAT_PRIMITIVE_ARRAYS]++;
+  return JVMTI_VISIT_OBJECTS;
+}
+
+extern "C"
+JNICALL jint hprofLeftoverCallback(jlong class_tag, jlong size, jlong* tag_ptr, jint length, void* user_data) {
+  HprofContext* ctx = (HprofContext*) user_data;
+  jlong tag = *tag_ptr;
+  if(!isSessionTag(ctx, tag)) return JVMTI_VISIT_OBJECTS;
+  *tag_ptr = savedTag(&ctx->saved, tag);
+  jlong ordinal = tag & SNAPSHOT_ID_MASK;
+  jint classIndex = hprofClassIndex(ctx, class_tag);
+  if(classIndex < 0 || ctx->writer.failed || !hprofIsMarked(ctx->reached, ordinal) || hprofIsMarked(ctx->written, ordinal)) return JVMTI_VISIT_OBJECTS;
+  HprofWriter* w = &ctx->writer;
+  HprofClass* info = &ctx->classes[classIndex];
+  if(info->arrayType==HPROF_NOT_ARRAY) {
+    if(!info->included) return JVMTI_VISIT_OBJECTS;
+    // only instances with no primitive fields and only null references get here
+    hprofMark(ctx->written, ordinal);
+    hprofSubRecord(w, HPROF_INSTANCE_DUMP);
+    hprofU8(w, tag);
+    hprofU4(w, HPROF_STACK_SERIAL);
+    hprofU8(w, class_tag);
+    hprofU4(w, info->instanceSize);
+    for (jint n=0; n<info->instanceSize; n++) hprofU1(w, 0);
+    ctx->stats[HPROF_STAT_INSTANCES]++;
+  } else if(info->arrayType==HPROF_NORMAL_OBJECT) {
+    if(!info->included) return JVMTI_VISIT_OBJECTS;
+    hprofMark(ctx->written, ordinal);
+    hprofSubRecord(w, HPROF_OBJ_ARRAY_DUMP);
+    hprofU8(w, tag);
+    hprofU4(w, HPROF_STACK_SERIAL);
+    hprofU4(w, length < 0 ? 0 : length);
+    hprofU8(w, class_tag);
+    for (jint n=0; n<length; n++) hprofU8(w, 0);
+    ctx->stats[HPROF_STAT_OBJECT_ARRAYS]++;
+  } else {
+    // contents omitted (or not reported), so written as an empty array of the right type
+    hprofMark(ctx->written, ordinal);
+    hprofSubRecord(w, HPROF_PRIM_ARRAY_DUMP);
+    hprofU8(w, tag);
+    hprofU4(w, HPROF_STACK_SERIAL);
+    hprofU4(w, 0);
+    hprofU1(w, (unsigned char)info->arrayType);
+    ctx->stats[HPROF_STAT_PRIMITIVE_ARRAYS]++;
+  }
+  return JVMTI_VISIT_OBJECTS;
+}
+
+static void hprofClassDump(HprofContext* ctx, jint classIndex) {
+  HprofWriter* w = &ctx->writer;
+  HprofClass* info = &ctx->classes[classIndex];
+  hprofSubRecord(w, HPROF_CLASS_DUMP);
+  hprofU8(w, CLASS_TAG_BASE + classIndex);
+  hprofU4(w, HPROF_STACK_SERIAL);
+  hprofU8(w, info->superId);
+  // class dumps come last, so a loader excluded by the package filters has not been written
+  hprofU8(w, hprofIsMarked(ctx->written, info->loaderId & SNAPSHOT_ID_MASK) ? info->loaderId : 0);
+  hprofU8(w, 0);
+  hprofU8(w, 0);
+  hprofU8(w, 0);
+  hprofU8(w, 0);
+  hprofU4(w, info->instanceSize);
+  hprofU2(w, 0);
+  hprofU2(w, (unsigned short)info->staticNameIds.size());
+  unsigned char value[8];
+  for (size_t n=0; n<info->staticNameIds.size(); n++) {
+    hprofU8(w, info->staticNameIds[n]);
+    hprofU1(w, info->staticTypes[n]);
+    hprofPutValue(value, info->staticTypes[n], (unsigned long long)info->staticValues[n]);
+    hprofBytes(w, value, hprofTypeSize(info->staticTypes[n]));
+  }
+  hprofU2(w, (unsigned short)info->fieldNameIds.size());
+  for (size_t n=0; n<info->fieldNameIds.size(); n++) {
+    hprofU8(w, info->fieldNameIds[n]);
+    hprofU1(w, info->fieldTypes[n]);
+  }
+  ctx->stats[HPROF_STAT_CLASSES]++;
+}
+
+extern "C"
+JNIEXPORT jboolean JNICALL Java_com_heliosapm_jvmti_agent_NativeAgent_hprofDump0(JNIEnv *env, jclass thisClass, jstring fileName, jobjectArray classes, jobjectArray packageFilters, jboolean primitiveContents, jlong tagBase, jlong timestamp, jlongArray results) {
+  const char* path = env->GetStringUTFChars(fileName, NULL);
+  FILE* file = fopen(path, "wb");
+  env->ReleaseStringUTFChars(fileName, path);
+  if(file==NULL) return JNI_FALSE;
+  HprofContext* ctx = new HprofContext();
+  ctx->writer.file = file;
+  ctx->writer.buffer = new unsigned char[HPROF_BUFFER_SIZE];
+  ctx->writer.position = 0;
+  ctx->writer.offset = 0;
+  ctx->writer.segmentLengthOffset = -1;
+  ctx->writer.failed = false;
+  ctx->tagBase = tagBase;
+  ctx->nextOrdinal = 0;
+  ctx->currentTag = CLEAR_TAG;
+  ctx->currentClass = -1;
+  memset(ctx->stats, 0, sizeof(ctx->stats));
+  ctx->classCount = env->GetArrayLength(classes);
+  ctx->classes = new HprofClass[ctx->classCount];
+  std::vector<std::string> packages;
+  jint packageCount = packageFilters==NULL ? 0 : env->GetArrayLength(packageFilters);
+  for (int n=0; n<packageCount; n++) {
+    jstring pkg = (jstring) env->GetObjectArrayElement(packageFilters, n);
+    const char* chars = env->GetStringUTFChars(pkg, NULL);
+    packages.push_back(chars);
+    env->ReleaseStringUTFChars(pkg, chars);
+    env->DeleteLocalRef(pkg);
+  }
+  HprofWriter* w = &ctx->writer;
+  const char* header = "JAVA PROFILE 1.0.2";
+  hprofBytes(w, header, strlen(header) + 1);
+  hprofU4(w, 8);
+  hprofU8(w, timestamp);
+  hprofU1(w, HPROF_STACK_TRACE);
+  hprofU4(w, 0);
+  hprofU4(w, 12);
+  hprofU4(w, HPROF_STACK_SERIAL);
+  hprofU4(w, 0);
+  hprofU4(w, 0);
+  jlong* classTags = tagClasses(env, classes, ctx->classCount);
+  for (int n=0; n<ctx->classCount; n++) {
+    jclass klass = (jclass) env->GetObjectArrayElement(classes, n);
+    hprofDescribeClass(env, ctx, klass, &ctx->classes[n], packages);
+    hprofU1(w, HPROF_LOAD_CLASS);
+    hprofU4(w, 0);
+    hprofU4(w, 24);
+    hprofU4(w, n + 1);
+    hprofU8(w, CLASS_TAG_BASE + n);
+    hprofU4(w, HPROF_STACK_SERIAL);
+    hprofU8(w, ctx->classes[n].nameId);
+    env->DeleteLocalRef(klass);
+  }
+  hprofOpenSegment(w);
+  jvmtiHeapCallbacks callbacks;
+  (void)memset(&callbacks, 0, sizeof(callbacks));
+  callbacks.heap_reference_callback = &hprofReferenceCallback;
+  callbacks.primitive_field_callback = &hprofPrimitiveFieldCallback;
+  if(primitiveContents) callbacks.array_primitive_value_callback = &hprofArrayPrimitiveCallback;
+  gdata->jvmti->FollowReferences(0, NULL, NULL, &callbacks, ctx);
+  hprofFlushReferrer(ctx);
+  (void)memset(&callbacks, 0, sizeof(callbacks));
+  callbacks.heap_iteration_callback = &hprofLeftoverCallback;
+  gdata->jvmti->IterateThroughHeap(JVMTI_HEAP_FILTER_UNTAGGED, NULL, &callbacks, ctx);
+  for (int n=0; n<ctx->classCount; n++) hprofClassDump(ctx, n);
+  hprofCloseSegment(w);
+  hprofU1(w, HPROF_HEAP_DUMP_END);
+  hprofU4(w, 0);
+  hprofU4(w, 0);
+  hprofFlush(w);
+  untagClasses(env, classes, ctx->classCount, classTags);
+  ctx->stats[HPROF_STAT_BYTES] = hprofPosition(w);
+  bool ok = !w->failed;
+  if(fclose(file)!=0) ok = false;
+  env->SetLongArrayRegion(results, 0, 7, ctx->stats);
+  delete[] w->buffer;
+  delete[] ctx->classes;
+  delete ctx;
+  return ok ? JNI_TRUE : JNI_FALSE;
+}
+
+
+/*
+ * Stack sampler: each sample walks every thread's stack from the outermost frame into a
+ * trie keyed by (parent node, method name id). Method ids are resolved to names once
+ * and cached, so samples cost a few hash lookups per frame. The trie and the name table are
+ * capped at maxNodes entries each: a stack that needs a new node or name once the cap is reached
+ * is charged to the <overflow> node under the root. A reset discards the trie, the names and the
+ * method id cache, so method ids of unloaded classes do not outlive it.
+ */
+
+typedef struct {
+  jint parent;
+  jint nameId;
+  jlong wall;
+  jlong cpu;
+} StackNode;
+
+static std::mutex samplerLock;
+static std::vector<StackNode> stackNodes;
+static std::unordered_map<unsigned long long, jint> stackChildren;
+static std::unordered_map<jmethodID, jint> methodNameIds;
+static std::unordered_map<std::string, jint> nameIds;
+static std::vector<std::string> stackNames;
+static jlong stackOverflow = 0;
+static const jint STACK_OVERFLOW_NODE = 1;
+
+static jint internStackName(const std::string& name) {
+  auto found = nameIds.find(name);
+  if(found!=nameIds.end()) return found->second;
+  jint id = (jint)stackNames.size();
+  stackNames.push_back(name);
+  nameIds.emplace(name, id);
+  return id;
+}
+
+static std::string resolveClassName(jclass klass) {
+  std::string resolved;
+  char* signature = NULL;
+  if(klass!=NULL && gdata->jvmti->GetClassSignature(klass, &signature, NULL)==JVMTI_ERROR_NONE) {
+    size_t length = strlen(signature);
+    if(signature[0]=='L' && signature[length-1]==';') resolved.assign(signature + 1, length - 2);
+    else resolved.assign(signature);
+    for (size_t n=0; n<resolved.size(); n++) if(resolved[n]=='/') resolved[n] = '.';
+    gdata->jvmti->Deallocate((unsigned char*)signature);
+  } else {
+    resolved = "<unknown>";
+  }
+  return resolved;
+}
+
+static std::string resolveMethodName(JNIEnv *env, jmethodID method) {
+  jclass declaring = NULL;
+  char* name = NULL;
+  if(gdata->jvmti->GetMethodDeclaringClass(method, &declaring)!=JVMTI_ERROR_NONE) declaring = NULL;
+  std::string resolved = resolveClassName(declaring);
+  if(declaring!=NULL) env->DeleteLocalRef(declaring);
+  resolved += '.';
+  if(gdata->jvmti->GetMethodName(method, &name, NULL, NULL)==JVMTI_ERROR_NONE) {
+    resolved += name;
+    gdata->jvmti->Deallocate((unsigned char*)name);
+  } else {
+    resolved += "<unknown>";
+  }
+  return resolved;
+}
+
+static jint methodNameId(JNIEnv *env, jmethodID method, jint maxNodes) {
+  auto found = methodNameIds.find(method);
+  if(found!=methodNameIds.end()) return found->second;
+  if((jint)stackNames.size() >= maxNodes) return -1;
+  jint id = internStackName(resolveMethodName(env, method));
+  methodNameIds.emplace(method, id);
+  return id;
+}
+
+static inline jint stackChild(jint parent, jint nameId, jint maxNodes) {
+  unsigned long long key = ((unsigned long long)parent << 32) | (unsigned int)nameId;
+  auto found = stackChildren.find(key);
+  if(found!=stackChildren.end()) return found->second;
+  if((jint)stackNodes.size() >= maxNodes) return -1;
+  jint node = (jint)stackNodes.size();
+  stackNodes.push_back({parent, nameId, 0, 0});
+  stackChildren.emplace(key, node);
+  return node;
+}
+
+extern "C"
+JNIEXPORT jint JNICALL Java_com_heliosapm_jvmti_agent_NativeAgent_sampleStacks0(JNIEnv *env, jclass thisClass, jint maxDepth, jint maxNodes) {
+  jvmtiStackInfo* infos = NULL;
+  jint threadCount = 0;
+  if(gdata->jvmti->GetAllStackTraces(maxDepth, &infos, &threadCount)!=JVMTI_ERROR_NONE) return -1;
+  jthread self = NULL;
+  gdata->jvmti->GetCurrentThread(&self);
+  jint sampled = 0;
+  {
+    std::lock_guard<std::mutex> guard(samplerLock);
+    if(stackNodes.empty()) {
+      stackNodes.push_back({-1, -1, 0, 0});
+      stackNodes.push_back({0, internStackName("<overflow>"), 0, 0});
+    }
+    for (int t=0; t<threadCount; t++) {
+      jvmtiStackInfo* info = &infos[t];
+      if(info->frame_count > 0 && !env->IsSameObject(info->thread, self)) {
+        jint node = 0;
+        if(info->frame_count==maxDepth) node = stackChild(node, internStackName("<truncated>"), maxNodes);
+        for (int f=info->frame_count-1; f>=0 && node>=0; f--) {
+          jint nameId = methodNameId(env, info->frame_buffer[f].method, maxNodes);
+          node = nameId < 0 ? -1 : stackChild(node, nameId, maxNodes);
+        }
+        if(node < 0) {
+          node = STACK_OVERFLOW_NODE;
+          stackOverflow++;
+        }
+        stackNodes[node].wall++;
+        if((info->state & JVMTI_THREAD_STATE_RUNNABLE)!=0) stackNodes[node].cpu++;
+        sampled++;
+      }
+      env->DeleteLocalRef(info->thread);
+    }
+  }
+  if(self!=NULL) env->DeleteLocalRef(self);
+  gdata->jvmti->Deallocate((unsigned char*)infos);
+  return sampled;
+}
+
+extern "C"
+JNIEXPORT jint JNICALL Java_com_heliosapm_jvmti_agent_NativeAgent_stackTrieSize0(JNIEnv *env, jclass thisClass) {
+  std::lock_guard<std::mutex> guard(samplerLock);
+  return (jint)stackNodes.size();
+}
+
+extern "C"
+JNIEXPORT jint JNICALL Java_com_heliosapm_jvmti_agent_NativeAgent_stackTrie0(JNIEnv *env, jclass thisClass, jintArray parents, jintArray names, jlongArray wall, jlongArray cpu) {
+  std::lock_guard<std::mutex> guard(samplerLock);
+  jint count = env->GetArrayLength(parents);
+  if((jint)stackNodes.size() < count) count = (jint)stackNodes.size();
+  jint* p = env->GetIntArrayElements(parents, NULL);
+  jint* n = env->GetIntArrayElements(names, NULL);
+  jlong* w = env->GetLongArrayElements(wall, NULL);
+  jlong* c = env->GetLongArrayElements(cpu, NULL);
+  for (int i=0; i<count; i++) {
+    p[i] = stackNodes[i].parent;
+    n[i] = stackNodes[i].nameId;
+    w[i] = stackNodes[i].wall;
+    c[i] = stackNodes[i].cpu;
+  }
+  env->ReleaseIntArrayElements(parents, p, 0);
+  env->ReleaseIntArrayElements(names, n, 0);
+  env->ReleaseLongArrayElements(wall, w, 0);
+  env->ReleaseLongArrayElements(cpu, c, 0);
+  return count;
+}
+
+extern "C"
+JNIEXPORT jobjectArray JNICALL Java_com_heliosapm_jvmti_agent_NativeAgent_stackNames0(JNIEnv *env, jclass thisClass) {
+  std::lock_guard<std::mutex> guard(samplerLock);
+  jobjectArray ret = env->NewObjectArray((jint)stackNames.size(), env->FindClass("java/lang/String"), NULL);
+  for (size_t i=0; i<stackNames.size(); i++) {
+    jstring name = env->NewStringUTF(stackNames[i].c_str());
+    env->SetObjectArrayElement(ret, (jint)i, name);
+    env->DeleteLocalRef(name);
+  }
+  return ret;
+}
+
+extern "C"
+JNIEXPORT void JNICALL Java_com_heliosapm_jvmti_agent_NativeAgent_stackReset0(JNIEnv *env, jclass thisClass) {
+  std::lock_guard<std::mutex> guard(samplerLock);
+  stackNodes.clear();
+  stackChildren.clear();
+  methodNameIds.clear();
+  nameIds.clear();
+  stackNames.clear();
+  stackOverflow = 0;
+}
+
+extern "C"
+JNIEXPORT jlong JNICALL Java_com_heliosapm_jvmti_agent_NativeAgent_stackOverflow0(JNIEnv *env, jclass thisClass) {
+  std::lock_guard<std::mutex> guard(samplerLock);
+  return stackOverflow;
+}
+
+
+/*
+ * Shared JVMTI event callbacks. SetEventCallbacks replaces every callback at once,
+ * so each event based feature sets its fields through an installer run under eventLock
+ * and re-installs the whole table.
+ */
+
+static jvmtiEventCallbacks eventCallbacks;
+static std::mutex eventLock;
+
+typedef void (*CallbackInstaller)(jvmtiEventCallbacks* callbacks);
+
+static bool enableEvents(jvmtiCapabilities* capabilities, const jvmtiEvent* events, int eventCount, bool enable, CallbackInstaller install) {
+  std::lock_guard<std::mutex> guard(eventLock);
+  if(enable) {
+    if(gdata->jvmti->AddCapabilities(capabilities)!=JVMTI_ERROR_NONE) return false;
+    install(&eventCallbacks);
+  }
+  if(gdata->jvmti->SetEventCallbacks(&eventCallbacks, (jint)sizeof(eventCallbacks))!=JVMTI_ERROR_NONE) return false;
+  for (int n=0; n<eventCount; n++) {
+    if(gdata->jvmti->SetEventNotificationMode(enable ? JVMTI_ENABLE : JVMTI_DISABLE, events[n], NULL)!=JVMTI_ERROR_NONE) return false;
+  }
+  return true;
+}
+
+static inline jlong nanoTime() {
+  return (jlong)std::chrono::duration_cast<std::chrono::nanoseconds>(std::chrono::steady_clock::now().time_since_epoch()).count();
+}
+
+
+/*
+ * Monitor contention: MonitorContendedEnter resolves the monitor class and contending call site into a slot of a
+ * fixed size, lock-free, open addressing table and MonitorContendedEntered adds the blocked time to that slot.
+ */
+
+static const jint CONTENTION_TABLE_SIZE = 4096;
+static const jint CONTENTION_MAX_PROBES = 64;
+static const jint CONTENTION_CLASS_NAME_SIZE = 256;
+
+typedef struct {
+  std::atomic<unsigned long long> key;
+  std::atomic<bool> ready;
+  jmethodID method;
+  jlocation location;
+  char monitorClass[CONTENTION_CLASS_NAME_SIZE];
+  std::atomic<jlong> count;
+  std::atomic<jlong> nanos;
+  std::atomic<jlong> maxNanos;
+} ContentionSlot;
+
+static ContentionSlot contentionTable[CONTENTION_TABLE_SIZE];
+static std::atomic<jlong> contentionDropped(0);
+static thread_local jint contendedSlot = -1;
+static thread_local jlong contendedSince = 0;
+
+static inline unsigned long long mixHash(unsigned long long h) {
+  h ^= h >> 33;
+  h *= 0xFF51AFD7ED558CCDULL;
+  h ^= h >> 33;
+  h *= 0xC4CEB9FE1A85EC53ULL;
+  h ^= h >> 33;
+  return h | 1ULL;
+}
+
+static jint contentionSlot(JNIEnv *jni, jthread thread, jobject object) {
+  jmethodID method = NULL;
+  jlocation location = 0;
+  if(gdata->jvmti->GetFrameLocation(thread, 0, &method, &location)!=JVMTI_ERROR_NONE) method = NULL;
+  jclass klass = jni->GetObjectClass(object);
+  jint classHash = 0;
+  gdata->jvmti->GetObjectHashCode(klass, &classHash);
+  unsigned long long key = mixHash(((unsigned long long)(unsigned int)classHash * 0x9E3779B97F4A7C15ULL) ^ ((unsigned long long)(uintptr_t)method * 0xC2B2AE3D27D4EB4FULL) ^ (unsigned long long)location);
+  jint slot = -1;
+  for (int probe=0; probe<CONTENTION_MAX_PROBES; probe++) {
+    jint index = (jint)((key + probe) & (CONTENTION_TABLE_SIZE - 1));
+    ContentionSlot* entry = &contentionTable[index];
+    unsigned long long current = entry->key.load(std::memory_order_acquire);
+    if(current==key) { slot = index; break; }
+    if(current==0 && entry->key.compare_exchange_strong(current, key)) {
+      entry->method = method;
+      entry->location = location;
+      strncpy(entry->monitorClass, resolveClassName(klass).c_str(), CONTENTION_CLASS_NAME_SIZE - 1);
+      entry->monitorClass[CONTENTION_CLASS_NAME_SIZE - 1] = 0;
+      entry->ready.store(true, std::memory_order_release);
+      slot = index;
+      break;
+    }
+    if(current==key) { slot = index; break; }
+  }
+  jni->DeleteLocalRef(klass);
+  if(slot < 0) contentionDropped++;
+  return slot;
+}
+
+JNICALL void monitorContendedEnterCallback(jvmtiEnv *jvmti, JNIEnv* jni, jthread thread, jobject object) {
+  contendedSlot = contentionSlot(jni, thread, object);
+  contendedSince = nanoTime();
+}
+
+JNICALL void monitorContendedEnteredCallback(jvmtiEnv *jvmti, JNIEnv* jni, jthread thread, jobject object) {
+  jint slot = contendedSlot;
+  if(slot < 0 || contendedSince==0) return;
+  jlong elapsed = nanoTime() - contendedSince;
+  contendedSlot = -1;
+  contendedSince = 0;
+  ContentionSlot* entry = &contentionTable[slot];
+  entry->count.fetch_add(1, std::memory_order_relaxed);
+  entry->nanos.fetch_add(elapsed, std::memory_order_relaxed);
+  jlong max = entry->maxNanos.load(std::memory_order_relaxed);
+  while(elapsed > max && !entry->maxNanos.compare_exchange_weak(max, elapsed, std::memory_order_relaxed)) {}
+}
+
+extern "C"
+JNIEXPORT jboolean JNICALL Java_com_heliosapm_jvmti_agent_NativeAgent_monitorContention0(JNIEnv *env, jclass thisClass, jboolean enable) {
+  jvmtiCapabilities capabilities = {0};
+  capabilities.can_generate_monitor_events = 1;
+  const jvmtiEvent events[] = {JVMTI_EVENT_MONITOR_CONTENDED_ENTER, JVMTI_EVENT_MONITOR_CONTENDED_ENTERED};
+  return enableEvents(&capabilities, events, 2, enable, [](jvmtiEventCallbacks* callbacks) {
+    callbacks->MonitorContendedEnter = &monitorContendedEnterCallback;
+    callbacks->MonitorContendedEntered = &monitorContendedEnteredCallback;
+  }) ? JNI_TRUE : JNI_FALSE;
+}
+
+extern "C"
+JNIEXPORT jint JNICALL Java_com_heliosapm_jvmti_agent_NativeAgent_contentionSites0(JNIEnv *env, jclass thisClass, jobjectArray monitorClasses, jobjectArray sites, jlongArray stats) {
+  jint max = env->GetArrayLength(monitorClasses);
+  jint count = 0;
+  for (int n=0; n<CONTENTION_TABLE_SIZE && count<max; n++) {
+    ContentionSlot* entry = &contentionTable[n];
+    if(!entry->ready.load(std::memory_order_acquire)) continue;
+    jlong values[3] = {entry->count.load(std::memory_order_relaxed), entry->nanos.load(std::memory_order_relaxed), entry->maxNanos.load(std::memory_order_relaxed)};
+    if(values[0]==0) continue;
+    std::string site = entry->method==NULL ? std::string("<unknown>") : resolveMethodName(env, entry->method);
+    site += '@';
+    site += std::to_string((long long)entry->location);
+    jstring monitorClass = env->NewStringUTF(entry->monitorClass);
+    jstring siteName = env->NewStringUTF(site.c_str());
+    env->SetObjectArrayElement(monitorClasses, count, monitorClass);
+    env->SetObjectArrayElement(sites, count, siteName);
+    env->SetLongArrayRegion(stats, count * 3, 3, values);
+    env->DeleteLocalRef(monitorClass);
+    env->DeleteLocalRef(siteName);
+    count++;
+  }
+  return count;
+}
+
+extern "C"
+JNIEXPORT jlong JNICALL Java_com_heliosapm_jvmti_agent_NativeAgent_contentionDropped0(JNIEnv *env, jclass thisClass) {
+  return contentionDropped.load();
+}
+
+
+/*
+ * JIT telemetry: CompiledMethodLoad, CompiledMethodUnload and DynamicCodeGenerated maintain per method load and
+ * live code size counters. A load of a method that was already compiled counts as a recompilation.
+ * A load of a code address that is already live is ignored: a method compiled between enabling the events
+ * and the GenerateEvents replay is reported twice, but only ever unloads once.
+ * Method names are only resolved when the table is copied out, since the events carry no JNI environment.
+ * The method table is capped: when it is full, methods with no live code are evicted, and if none are,
+ * loads of new methods are only counted in the totals.
+ */
+
+static const int JIT_LOADS = 0;
+static const int JIT_UNLOADS = 1;
+static const int JIT_RECOMPILES = 2;
+static const int JIT_LIVE_METHODS = 3;
+static const int JIT_LIVE_BYTES = 4;
+static const int JIT_TOTAL_BYTES = 5;
+static const int JIT_DYNAMIC_BLOBS = 6;
+static const int JIT_DYNAMIC_BYTES = 7;
+static const int JIT_UNTRACKED = 8;
+static const int JIT_TOTALS = 9;
+static const size_t JIT_MAX_METHODS = 65536;
+
+typedef struct {
+  jlong loads;
+  jlong unloads;
+  jlong liveBlobs;
+  jlong liveBytes;
+} JitMethod;
+
+typedef struct {
+  jmethodID method;
+  jint size;
+} JitBlob;
+
+static std::mutex jitLock;
+static std::unordered_map<jmethodID, JitMethod> jitMethods;
+static std::unordered_map<const void*, JitBlob> jitBlobs;
+static jlong jitTotals[JIT_TOTALS];
+
+JNICALL void compiledMethodLoadCallback(jvmtiEnv *jvmti, jmethodID method, jint code_size, const void* code_addr, jint map_length, const jvmtiAddrLocationMap* map, const void* compile_info) {
+  std::lock_guard<std::mutex> guard(jitLock);
+  if(jitBlobs.find(code_addr)!=jitBlobs.end()) return;
+  jitTotals[JIT_LOADS]++;
+  jitTotals[JIT_LIVE_BYTES] += code_size;
+  jitTotals[JIT_TOTAL_BYTES] += code_size;
+  if(jitMethods.size() >= JIT_MAX_METHODS && jitMethods.find(method)==jitMethods.end()) {
+    // only sweep when some tracked method has no live code
+    if((jlong)jitMethods.size() > jitTotals[JIT_LIVE_METHODS]) {
+      for (auto it = jitMethods.begin(); it!=jitMethods.end();) {
+        if(it->second.liveBlobs==0) it = jitMethods.erase(it);
+        else ++it;
+      }
+    }
+    if(jitMethods.size() >= JIT_MAX_METHODS) {
+      // the blob keeps the live bytes accurate when it unloads
+      jitBlobs[code_addr] = {NULL, code_size};
+      jitTotals[JIT_UNTRACKED]++;
+      return;
+    }
+  }
+  JitMethod& stats = jitMethods[method];
+  if(stats.loads > 0) jitTotals[JIT_RECOMPILES]++;
+  if(stats.liveBlobs==0) jitTotals[JIT_LIVE_METHODS]++;
+  stats.loads++;
+  stats.liveBlobs++;
+  stats.liveBytes += code_size;
+  jitBlobs[code_addr] = {method, code_size};
+}
+
+JNICALL void compiledMethodUnloadCallback(jvmtiEnv *jvmti, jmethodID method, const void* code_addr) {
+  std::lock_guard<std::mutex> guard(jitLock);
+  jitTotals[JIT_UNLOADS]++;
+  auto blob = jitBlobs.find(code_addr);
+  if(blob==jitBlobs.end()) return;
+  auto found = jitMethods.find(blob->second.method);
+  if(found!=jitMethods.end()) {
+    found->second.unloads++;
+    found->second.liveBlobs--;
+    found->second.liveBytes -= blob->second.size;
+    if(found->second.liveBlobs==0) jitTotals[JIT_LIVE_METHODS]--;
+  }
+  jitTotals[JIT_LIVE_BYTES] -= blob->second.size;
+  jitBlobs.erase(blob);
+}
+
+JNICALL void dynamicCodeGeneratedCallback(jvmtiEnv *jvmti, const char* name, const void* address, jint length) {
+  std::lock_guard<std::mutex> guard(jitLock);
+  jitTotals[JIT_DYNAMIC_BLOBS]++;
+  jitTotals[JIT_DYNAMIC_BYTES] += length;
+}
+
+extern "C"
+JNIEXPORT jboolean JNICALL Java_com_heliosapm_jvmti_agent_NativeAgent_jitEvents0(JNIEnv *env, jclass thisClass, jboolean enable) {
+  jvmtiCapabilities capabilities = {0};
+  capabilities.can_generate_compiled_method_load_events = 1;
+  const jvmtiEvent events[] = {JVMTI_EVENT_COMPILED_METHOD_LOAD, JVMTI_EVENT_COMPILED_METHOD_UNLOAD, JVMTI_EVENT_DYNAMIC_CODE_GENERATED};
+  if(enable) {
+    // cleared before the events are enabled so no event is lost, the replay below restores the current state
+    std::lock_guard<std::mutex> guard(jitLock);
+    jitMethods.clear();
+    jitBlobs.clear();
+    memset(jitTotals, 0, sizeof(jitTotals));
+  }
+  if(!enableEvents(&capabilities, events, 3, enable, [](jvmtiEventCallbacks* callbacks) {
+    callbacks->CompiledMethodLoad = &compiledMethodLoadCallback;
+    callbacks->CompiledMethodUnload = &compiledMethodUnloadCallback;
+    callbacks->DynamicCodeGenerated = &dynamicCodeGeneratedCallback;
+  })) return JNI_FALSE;
+  if(enable) {
+    // replay the code that was compiled or generated before the events were enabled
+    gdata->jvmti->GenerateEvents(JVMTI_EVENT_COMPILED_METHOD_LOAD);
+    gdata->jvmti->GenerateEvents(JVMTI_EVENT_DYNAMIC_CODE_GENERATED);
+  }
+  return JNI_TRUE;
+}
+
+extern "C"
+JNIEXPORT jint JNICALL Java_com_heliosapm_jvmti_agent_NativeAgent_jitMethodCount0(JNIEnv *env, jclass thisClass, jlongArray totals) {
+  std::lock_guard<std::mutex> guard(jitLock);
+  env->SetLongArrayRegion(totals, 0, JIT_TOTALS, jitTotals);
+  return (jint)jitMethods.size();
+}
+
+extern "C"
+JNIEXPORT jint JNICALL Java_com_heliosapm_jvmti_agent_NativeAgent_jitMethods0(JNIEnv *env, jclass thisClass, jobjectArray names, jlongArray stats) {
+  std::vector<std::pair<jmethodID, JitMethod> > copy;
+  {
+    std::lock_guard<std::mutex> guard(jitLock);
+    copy.assign(jitMethods.begin(), jitMethods.end());
+  }
+  jint max = env->GetArrayLength(names);
+  jint count = 0;
+  for (size_t n=0; n<copy.size() && count<max; n++) {
+    jstring name = env->NewStringUTF(resolveMethodName(env, copy[n].first).c_str());
+    jlong values[3] = {copy[n].second.loads, copy[n].second.unloads, copy[n].second.liveBytes};
+    env->SetObjectArrayElement(names, count, name);
+    env->SetLongArrayRegion(stats, count * 3, 3, values);
+    env->DeleteLocalRef(name);
+    count++;
+  }
+  return count;
+}
+
+
+/*
+ * Exception throw sites: the Exception event carries the throw method and location, so no stack walk is needed.
+ * Throws are counted per (exception class, throw site) in a fixed size, lock-free, open addressing table.
+ * Each slot's count is striped over cache line padded counters so hot sites thrown from many threads do not contend.
+ */
+
+static const jint THROW_TABLE_SIZE = 2048;
+static const jint THROW_MAX_PROBES = 64;
+static const jint THROW_STRIPES = 4;
+static const jint THROW_CLASS_NAME_SIZE = 256;
+
+typedef struct alignas(64) {
+  std::atomic<jlong> count;
+} ThrowStripe;
+
+typedef struct {
+  std::atomic<unsigned long long> key;
+  std::atomic<bool> ready;
+  jmethodID method;
+  jlocation location;
+  char exceptionClass[THROW_CLASS_NAME_SIZE];
+  ThrowStripe stripes[THROW_STRIPES];
+} ThrowSlot;
+
+static ThrowSlot throwTable[THROW_TABLE_SIZE];
+static std::atomic<jlong> throwsDropped(0);
+static std::atomic<jint> throwStripeSerial(0);
+static thread_local jint throwStripe = -1;
+
+JNICALL void exceptionCallback(jvmtiEnv *jvmti, JNIEnv* jni, jthread thread, jmethodID method, jlocation location, jobject exception, jmethodID catch_method, jlocation catch_location) {
+  jclass klass = jni->GetObjectClass(exception);
+  jint classHash = 0;
+  gdata->jvmti->GetObjectHashCode(klass, &classHash);
+  unsigned long long key = mixHash(((unsigned long long)(unsigned int)classHash * 0x9E3779B97F4A7C15ULL) ^ ((unsigned long long)(uintptr_t)method * 0xC2B2AE3D27D4EB4FULL) ^ (unsigned long long)location);
+  if(throwStripe < 0) throwStripe = throwStripeSerial.fetch_add(1) & (THROW_STRIPES - 1);
+  bool counted = false;
+  for (int probe=0; probe<THROW_MAX_PROBES && !counted; probe++) {
+    ThrowSlot* entry = &throwTable[(key + probe) & (THROW_TABLE_SIZE - 1)];
+    unsigned long long current = entry->key.load(std::memory_order_acquire);
+    if(current==0 && entry->key.compare_exchange_strong(current, key)) {
+      entry->method = method;
+      entry->location = location;
+      strncpy(entry->exceptionClass, resolveClassName(klass).c_str(), THROW_CLASS_NAME_SIZE - 1);
+      entry->exceptionClass[THROW_CLASS_NAME_SIZE - 1] = 0;
+      entry->ready.store(true, std::memory_order_release);
+      current = key;
+    }
+    if(current==key) {
+      entry->stripes[throwStripe].count.fetch_add(1, std::memory_order_relaxed);
+      counted = true;
+    }
+  }
+  jni->DeleteLocalRef(klass);
+  if(!counted) throwsDropped++;
+}
+
+extern "C"
+JNIEXPORT jboolean JNICALL Java_com_heliosapm_jvmti_agent_NativeAgent_exceptionEvents0(JNIEnv *env, jclass thisClass, jboolean enable) {
+  jvmtiCapabilities capabilities = {0};
+  capabilities.can_generate_exception_events = 1;
+  const jvmtiEvent events[] = {JVMTI_EVENT_EXCEPTION};
+  return enableEvents(&capabilities, events, 1, enable, [](jvmtiEventCallbacks* callbacks) {
+    callbacks->Exception = &exceptionCallback;
+  }) ? JNI_TRUE : JNI_FALSE;
+}
+
+extern "C"
+JNIEXPORT jint JNICALL Java_com_heliosapm_jvmti_agent_NativeAgent_throwSites0(JNIEnv *env, jclass thisClass, jobjectArray exceptionClasses, jobjectArray sites, jlongArray counts) {
+  jint max = env->GetArrayLength(exceptionClasses);
+  jint count = 0;
+  for (int n=0; n<THROW_TABLE_SIZE && count<max; n++) {
+    ThrowSlot* entry = &throwTable[n];
+    if(!entry->ready.load(std::memory_order_acquire)) continue;
+    jlong total = 0;
+    for (int s=0; s<THROW_STRIPES; s++) total += entry->stripes[s].count.load(std::memory_order_relaxed);
+    if(total==0) continue;
+    std::string site = entry->method==NULL ? std::string("<unknown>") : resolveMethodName(env, entry->method);
+    site += '@';
+    site += std::to_string((long long)entry->location);
+    jstring exceptionClass = env->NewStringUTF(entry->exceptionClass);
+    jstring siteName = env->NewStringUTF(site.c_str());
+    env->SetObjectArrayElement(exceptionClasses, count, exceptionClass);
+    env->SetObjectArrayElement(sites, count, siteName);
+    env->SetLongArrayRegion(counts, count, 1, &total);
+    env->DeleteLocalRef(exceptionClass);
+    env->DeleteLocalRef(siteName);
+    count++;
+  }
+  return count;
+}
+
+extern "C"
+JNIEXPORT jlong JNICALL Java_com_heliosapm_jvmti_agent_NativeAgent_throwCount0(JNIEnv *env, jclass thisClass) {
+  jlong total = 0;
+  for (int n=0; n<THROW_TABLE_SIZE; n++) {
+    if(throwTable[n].key.load(std::memory_order_relaxed)==0) continue;
+    for (int s=0; s<THROW_STRIPES; s++) total += throwTable[n].stripes[s].count.load(std::memory_order_relaxed);
+  }
+  return total + throwsDropped.load();
+}
@@ -15,9 +15,12 @@
  */
 package com.heliosapm.jvmti.agent;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.lang.reflect.Array;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LongSummaryStatistics;
@@ -25,11 +28,16 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 import javax.management.ObjectName;
 
+import com.heliosapm.jvmti.snapshot.HeapSnapshot;
 import com.heliosapm.jvmti.util.TimerHistory;
 
 
@@ -55,6 +63,14 @@ public class Agent implements AgentMBean {
 	
 	private final NativeAgent nativeAgent;
 	private final TimerHistory topNTimerHistory;
+	/** Cursors opened through JMX keyed by cursor id */
+	private final Map<Long, InstanceCursor<?>> cursors = new ConcurrentHashMap<Long, InstanceCursor<?>>();
+	/** The JMX cursor id serial */
+	private final AtomicLong cursorSerial = new AtomicLong(0L);
+	/** The idle time in ms after which an abandoned JMX cursor is closed */
+	private final long cursorIdle = Long.getLong(CURSOR_IDLE_PROP, DEFAULT_CURSOR_IDLE);
+	/** Closes idle JMX cursors, started with the first one */
+	private volatile ScheduledExecutorService cursorEvictor = null;
 	
 	
 	/**
@@ -76,6 +92,10 @@ public class Agent implements AgentMBean {
 	public static final String AGENT_OBJECT_NAME_PROP = "com.heliosapm.jvmti.agent.objectname";
 	/** The default JMX ObjectName for the agent */
 	public static final String DEFAULT_AGENT_OBJECT_NAME = "com.heliosapm.jvmti:service=Agent";
+	/** The system property for the idle time in ms after which an abandoned JMX cursor is closed */
+	public static final String CURSOR_IDLE_PROP = "com.heliosapm.jvmti.cursor.idle";
+	/** The default JMX cursor idle timeout in ms */
+	public static final long DEFAULT_CURSOR_IDLE = 300000L;
 	
 	private Agent() {
 		nativeAgent = NativeAgent.getInstance();
@@ -233,14 +253,20 @@ public class Agent implements AgentMBean {
 	
 	/**
 	 * Returns all loaded types equal to or inherrited from the passed type
+	 * for which there are instances in the heap
 	 * @param type The type to retrieve
 	 * @return a set of classes
 	 */
 	public Set<Class<?>> getAllTypesOf(final Class<?> type) {
-		return Arrays.stream(getInstancesOfAny(type))
-		.parallel()
-		.map(o -> o.getClass())
-		.collect(Collectors.toCollection(HashSet<Class<?>>::new));
+		if(type==null) throw new IllegalArgumentException("The passed class was null");
+		final Class<?>[] loaded = nativeAgent.getLoadedTypesOf(type);
+		final long[] counts = new long[loaded.length];
+		nativeAgent.classCensus(loaded, counts, null);
+		final Set<Class<?>> types = new HashSet<Class<?>>();
+		for(int i = 0; i < loaded.length; i++) {
+			if(counts[i] > 0) types.add(loaded[i]);
+		}
+		return types;
 	}
 	
 	/**
@@ -250,12 +276,151 @@ public class Agent implements AgentMBean {
 	 * @return a set of class names
 	 */
 	public Set<String> getAllTypeNamesOf(final Class<?> type) {
-		return Arrays.stream(getInstancesOfAny(type))
-		.parallel()
-		.map(o -> renderClassName(o.getClass()))
+		return getAllTypesOf(type).stream()
+		.map(k -> renderClassName(k))
 		.collect(Collectors.toCollection(HashSet<String>::new));
 	}
 	
+	/**
+	 * Returns all loaded types equal to or inherrited from the passed type,
+	 * whether or not there are instances of them in the heap.
+	 * No heap walk is performed.
+	 * @param type The type to retrieve
+	 * @return a set of classes
+	 */
+	public Set<Class<?>> getLoadedTypesOf(final Class<?> type) {
+		if(type==null) throw new IllegalArgumentException("The passed class was null");
+		return new HashSet<Class<?>>(Arrays.asList(nativeAgent.getLoadedTypesOf(type)));
+	}
+	
+	/**
+	 * Returns a log2 object size histogram for each of the passed classes, collected in a single heap walk.
+	 * <code>histogram[c][b]</code> is the number of instances of <code>classes[c]</code> whose shallow size is
+	 * in <code>[2^b, 2^(b+1))</code> bytes. Each row is trimmed after its last non-empty bucket.
+	 * @param classes The exact classes to histogram
+	 * @return the size histograms, index aligned with <code>classes</code>
+	 */
+	public long[][] getSizeHistogram(final Class<?>... classes) {
+		if(classes==null) throw new IllegalArgumentException("The passed class array was null");
+		final long[] buckets = new long[classes.length * NativeAgent.SIZE_BUCKETS];
+		nativeAgent.classCensus(classes, null, null, buckets);
+		final long[][] histogram = new long[classes.length][];
+		for(int c = 0; c < classes.length; c++) {
+			final int offset = c * NativeAgent.SIZE_BUCKETS;
+			int last = NativeAgent.SIZE_BUCKETS;
+			while(last > 0 && buckets[offset + last - 1]==0) last--;
+			histogram[c] = Arrays.copyOfRange(buckets, offset, offset + last);
+		}
+		return histogram;
+	}
+	
+	/**
+	 * Returns the inclusive lower bound in bytes of the passed size histogram bucket
+	 * @param bucket The bucket index
+	 * @return the bucket's smallest object size
+	 */
+	public static long sizeBucketFloor(final int bucket) {
+		if(bucket < 0 || bucket >= NativeAgent.SIZE_BUCKETS) throw new IllegalArgumentException("Invalid bucket [" + bucket + "]");
+		return bucket==0 ? 0L : 1L << bucket;
+	}
+	
+	/**
+	 * Writes a compact heap snapshot to the passed file
+	 * @param file The file to write to
+	 * @param references true to include the references between objects
+	 * @param maxBytes The maximum record bytes to write. If less than 1, a capacity is estimated from a class census of the heap.
+	 * @return the written snapshot, opened for reading
+	 * @throws IOException thrown on any IO error
+	 */
+	public HeapSnapshot writeHeapSnapshot(final File file, final boolean references, final long maxBytes) throws IOException {
+		return HeapSnapshot.write(file, references, maxBytes);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.jvmti.agent.AgentMBean#writeHeapSnapshot(java.lang.String, boolean)
+	 */
+	@Override
+	public String writeHeapSnapshot(final String fileName, final boolean references) {
+		if(fileName==null || fileName.trim().isEmpty()) throw new IllegalArgumentException("The passed file name was null or empty");
+		try(final HeapSnapshot snapshot = writeHeapSnapshot(new File(fileName.trim()), references, 0L)) {
+			return snapshot.toString();
+		} catch (IOException iex) {
+			throw new RuntimeException("Failed to write heap snapshot to [" + fileName + "]", iex);
+		}
+	}
+	
+	/**
+	 * Writes an HPROF heap dump of the objects reachable from the heap roots. 
+	 * Standard heap analysis tools can open the dump. Filtering by package and omitting 
+	 * primitive array contents shrink the dump, and the time to write it, substantially.
+	 * @param file The file to write to
+	 * @param packages Optional package prefixes. If supplied, only instances and object arrays of classes in those packages are written.
+	 * @param primitiveArrayContents true to include primitive array contents, false to write them as empty arrays
+	 * @return the number of instances, object arrays, primitive arrays, roots and classes written, the file size in bytes
+	 * and the number of objects written with some of their references missing
+	 * @throws IOException thrown if the file cannot be written
+	 */
+	public long[] writeHprof(final File file, final String[] packages, final boolean primitiveArrayContents) throws IOException {
+		return nativeAgent.hprofDump(file, packages, primitiveArrayContents);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.jvmti.agent.AgentMBean#writeHprof(java.lang.String, java.lang.String, boolean)
+	 */
+	@Override
+	public String writeHprof(final String fileName, final String packages, final boolean primitiveArrayContents) {
+		if(fileName==null || fileName.trim().isEmpty()) throw new IllegalArgumentException("The passed file name was null or empty");
+		final String[] prefixes = (packages==null || packages.trim().isEmpty()) ? null 
+				: Arrays.stream(packages.split(",")).map(String::trim).filter(p -> !p.isEmpty()).toArray(String[]::new);
+		try {
+			final long[] r = writeHprof(new File(fileName.trim()), prefixes, primitiveArrayContents);
+			return String.format("Wrote %s instances, %s object arrays, %s primitive arrays, %s roots and %s classes to [%s] (%s bytes)%s", 
+					r[0], r[1], r[2], r[3], r[4], fileName.trim(), r[5], r[6]==0 ? "" : ", " + r[6] + " objects with split references");
+		} catch (IOException iex) {
+			throw new RuntimeException("Failed to write heap dump to [" + fileName + "]", iex);
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.jvmti.agent.AgentMBean#getSizeHistogram(java.lang.String)
+	 */
+	@Override
+	public LinkedHashMap<String, long[]> getSizeHistogram(final String className) {
+		if(className==null || className.trim().isEmpty()) throw new IllegalArgumentException("The passed class name was null or empty");
+		final Map<String, long[]> merged = new HashMap<String, long[]>();
+		final Map<String, Long> bytes = new HashMap<String, Long>();
+		for(final Class<?> clazz: resolveClass(className.trim())) {
+			final Class<?>[] loaded = nativeAgent.getLoadedTypesOf(clazz);
+			final long[] sizes = new long[loaded.length];
+			final long[] buckets = new long[loaded.length * NativeAgent.SIZE_BUCKETS];
+			nativeAgent.classCensus(loaded, null, sizes, buckets);
+			for(int c = 0; c < loaded.length; c++) {
+				if(sizes[c]==0) continue;
+				final String key = renderClassName(loaded[c]);
+				long[] row = merged.get(key);
+				if(row==null) {
+					row = new long[NativeAgent.SIZE_BUCKETS];
+					merged.put(key, row);
+				}
+				for(int b = 0; b < NativeAgent.SIZE_BUCKETS; b++) row[b] += buckets[c * NativeAgent.SIZE_BUCKETS + b];
+				bytes.merge(key, sizes[c], Long::sum);
+			}
+		}
+		final LinkedHashMap<String, long[]> histogram = new LinkedHashMap<String, long[]>(merged.size());
+		bytes.entrySet().stream()
+			.sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+			.forEachOrdered(e -> {
+				final long[] row = merged.get(e.getKey());
+				int last = row.length;
+				while(last > 0 && row[last - 1]==0) last--;
+				histogram.put(e.getKey(), Arrays.copyOf(row, last));
+			});
+		return histogram;
+	}
+	
 	
 	/**
 	 * {@inheritDoc}
@@ -578,6 +743,35 @@ public class Agent implements AgentMBean {
 		return getInstancesOf(klass, Integer.MAX_VALUE);
 	}
 	
+	/**
+	 * Returns an array of instances of the passed class located in the heap whose primitive fields
+	 * satisfy the passed predicate expression. The expression is evaluated natively during the heap walk 
+	 * so only matching instances are referenced. See {@link InstancePredicate} for the expression format.
+	 * e.g. <code>getInstancesOf(directByteBufferClass, "capacity &gt; 1MB", 0)</code>
+	 * @param klass The class to search and return instances of
+	 * @param predicate The predicate expression
+	 * @param maxInstances The maximum number of instances to return. A value of zero is equivalent to {@link Integer#MAX_VALUE}.
+	 * @return A [possibly zero length] array of objects
+	 */
+	public <T> T[] getInstancesOf(final Class<T> klass, final String predicate, final int maxInstances) {
+		if(klass==null) throw new IllegalArgumentException("The passed class was null");
+		if(maxInstances<0) throw new IllegalArgumentException("Invalid maxInstances value [" + maxInstances + "]");
+		return nativeAgent.getInstancesOf(klass, InstancePredicate.parse(predicate), maxInstances);
+	}
+	
+	/**
+	 * Returns a uniformly chosen random sample of instances of the passed class located in the heap.
+	 * Unlike {@link #getInstancesOf(Class, int)}, the result is not biased toward heap order.
+	 * @param klass The class to sample instances of
+	 * @param k The number of instances to sample. If there are fewer than <code>k</code> instances, all of them are returned. 
+	 * @return A [possibly zero length] array of objects
+	 */
+	public <T> T[] sampleInstancesOf(final Class<T> klass, final int k) {
+		if(klass==null) throw new IllegalArgumentException("The passed class was null");
+		if(k<1) throw new IllegalArgumentException("Invalid sample size [" + k + "]");
+		return nativeAgent.sampleInstancesOf(klass, k); 
+	}
+	
 	/**
 	 * Returns an array of instances of the passed class located or inherrited, in the heap, maxing out at {@link Integer#MAX_VALUE} instances.
 	 * @param klass The class to search and return instances of
@@ -598,6 +792,95 @@ public class Agent implements AgentMBean {
 		return getInstancesOfAny(klass, Integer.MAX_VALUE);
 	}
 	
+	/**
+	 * Opens a paged cursor over the instances of the passed class located in the heap.
+	 * The cursor holds no references to unreturned instances, so it can page through
+	 * very large instance populations with bounded memory. The cursor must be closed to release its native references.
+	 * @param klass The exact class to page through instances of
+	 * @return the opened cursor
+	 */
+	public <T> InstanceCursor<T> openInstanceCursor(final Class<T> klass) {
+		return openInstanceCursor(klass, InstanceCursor.DEFAULT_BLOCK_SIZE);
+	}
+	
+	/**
+	 * Opens a paged cursor over the instances of the passed class located in the heap.
+	 * @param klass The exact class to page through instances of
+	 * @param blockSize The number of instances retrieved per block. Pages are served from whole blocks, 
+	 * so a block size close to the typical page size minimizes buffering.
+	 * @return the opened cursor
+	 */
+	public <T> InstanceCursor<T> openInstanceCursor(final Class<T> klass, final int blockSize) {
+		if(klass==null) throw new IllegalArgumentException("The passed class was null");
+		return nativeAgent.openInstanceCursor(klass, blockSize);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.jvmti.agent.AgentMBean#openInstanceCursor(java.lang.String)
+	 */
+	@Override
+	public long openInstanceCursor(final String className) {
+		if(className==null || className.trim().isEmpty()) throw new IllegalArgumentException("The passed class name was null or empty");
+		final Set<Class<?>> classes = resolveClass(className.trim());
+		if(classes.isEmpty()) throw new IllegalArgumentException("Failed to resolve class [" + className + "]");
+		if(classes.size() > 1) throw new IllegalArgumentException("Class name [" + className + "] is ambiguous, resolved " + classes.size() + " classes");
+		final long cursorId = cursorSerial.incrementAndGet();
+		cursors.put(cursorId, openInstanceCursor(classes.iterator().next()));
+		startCursorEvictor();
+		return cursorId;
+	}
+	
+	private void startCursorEvictor() {
+		if(cursorEvictor!=null) return;
+		synchronized(cursors) {
+			if(cursorEvictor!=null) return;
+			cursorEvictor = Executors.newSingleThreadScheduledExecutor(r -> {
+				final Thread t = new Thread(r, "InstanceCursorEvictor");
+				t.setDaemon(true);
+				return t;
+			});
+			final long period = Math.max(1000L, cursorIdle / 2);
+			cursorEvictor.scheduleWithFixedDelay(this::evictIdleCursors, period, period, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * Closes the JMX cursors idle for longer than the cursor idle timeout
+	 */
+	void evictIdleCursors() {
+		for(Map.Entry<Long, InstanceCursor<?>> entry: cursors.entrySet()) {
+			if(entry.getValue().getIdleTime() > cursorIdle && cursors.remove(entry.getKey(), entry.getValue())) {
+				entry.getValue().close();
+			}
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.jvmti.agent.AgentMBean#nextInstances(long, int)
+	 */
+	@Override
+	public String[] nextInstances(final long cursorId, final int batchSize) {
+		final InstanceCursor<?> cursor = cursors.get(cursorId);
+		if(cursor==null) throw new IllegalArgumentException("No open cursor with id [" + cursorId + "]");
+		final Object[] page = cursor.next(batchSize);
+		final String[] rendered = new String[page.length];
+		for(int i = 0; i < page.length; i++) rendered[i] = String.valueOf(page[i]);
+		if(!cursor.hasNext()) closeInstanceCursor(cursorId);
+		return rendered;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.jvmti.agent.AgentMBean#closeInstanceCursor(long)
+	 */
+	@Override
+	public void closeInstanceCursor(final long cursorId) {
+		final InstanceCursor<?> cursor = cursors.remove(cursorId);
+		if(cursor!=null) cursor.close();
+	}
+	
 	/**
 	 * {@inheritDoc}
 	 * @see com.heliosapm.jvmti.agent.AgentMBean#invokeAgainstInstancesOf(java.lang.String, java.lang.String, int)
@@ -630,6 +913,51 @@ public class Agent implements AgentMBean {
 		return topNTimerHistory.last();
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.jvmti.agent.AgentMBean#getTopNP50()
+	 */
+	@Override
+	public long getTopNP50() {
+		return topNTimerHistory.percentile(50);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.jvmti.agent.AgentMBean#getTopNP90()
+	 */
+	@Override
+	public long getTopNP90() {
+		return topNTimerHistory.percentile(90);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.jvmti.agent.AgentMBean#getTopNP99()
+	 */
+	@Override
+	public long getTopNP99() {
+		return topNTimerHistory.percentile(99);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.jvmti.agent.AgentMBean#getTopNP999()
+	 */
+	@Override
+	public long getTopNP999() {
+		return topNTimerHistory.percentile(99.9);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.jvmti.agent.AgentMBean#getTopNRate()
+	 */
+	@Override
+	public double getTopNRate() {
+		return topNTimerHistory.rate(1, TimeUnit.MINUTES);
+	}
+
 	/**
 	 * {@inheritDoc}
 	 * @see com.heliosapm.jvmti.agent.AgentMBean#getTopNCount()
@@ -72,6 +72,57 @@ public interface AgentMBean {
 	 */
 	public LinkedHashMap<String, Long> getTopNInstanceCounts(final String className, final int n, final boolean excludePrims);
 	
+	/**
+	 * Returns a log2 object size histogram for each loaded type equal to or inherrited from the named class
+	 * that has instances in the heap, ordered by descending total bytes. Element <code>b</code> of each histogram
+	 * is the number of instances whose shallow size is in <code>[2^b, 2^(b+1))</code> bytes.
+	 * @param className The name of the class to histogram
+	 * @return the size histograms keyed by class name
+	 */
+	public LinkedHashMap<String, long[]> getSizeHistogram(final String className);
+	
+	/**
+	 * Writes a compact heap snapshot to the named file.
+	 * See {@link com.heliosapm.jvmti.snapshot.HeapSnapshot} for the format.
+	 * @param fileName The file to write to
+	 * @param references true to include the references between objects
+	 * @return a summary of the written snapshot
+	 */
+	public String writeHeapSnapshot(final String fileName, final boolean references);
+	
+	/**
+	 * Writes an HPROF heap dump of the objects reachable from the heap roots to the named file
+	 * @param fileName The file to write to
+	 * @param packages An optional comma separated list of package prefixes. If supplied, only instances and 
+	 * object arrays of classes in those packages are written.
+	 * @param primitiveArrayContents true to include primitive array contents, false to write them as empty arrays
+	 * @return a summary of the written dump
+	 */
+	public String writeHprof(final String fileName, final String packages, final boolean primitiveArrayContents);
+	
+	/**
+	 * Opens a paged cursor over the instances of the named class.
+	 * A cursor not paged for longer than the <code>com.heliosapm.jvmti.cursor.idle</code> timeout (5 minutes by default) is closed.
+	 * @param className The exact class name of the instances to page through
+	 * @return the cursor id to pass to {@link #nextInstances(long, int)} and {@link #closeInstanceCursor(long)}
+	 */
+	public long openInstanceCursor(final String className);
+	
+	/**
+	 * Returns the next page of instances from the identified cursor, rendered with <code>toString()</code>.
+	 * The cursor is closed automatically once exhausted.
+	 * @param cursorId The cursor id
+	 * @param batchSize The maximum number of instances to return
+	 * @return the rendered instances, empty when the cursor is exhausted
+	 */
+	public String[] nextInstances(final long cursorId, final int batchSize);
+	
+	/**
+	 * Closes the identified cursor, releasing the references to any instances not yet returned
+	 * @param cursorId The cursor id
+	 */
+	public void closeInstanceCursor(final long cursorId);
+	
 	
 	/**
 	 * Indicates if the agent was loaded at boot time or was attached
@@ -116,10 +167,45 @@ public interface AgentMBean {
 	/**
 	 * Returns the elapsed time pf the most recent topN operation in ms.
 	 * @return the elapsed time pf the most recent topN operation
-	 * @see com.heliosapm.jvmti.util.TimerHistory#min()
+	 * @see com.heliosapm.jvmti.util.TimerHistory#last()
 	 */
 	public long getTopNLast();
 	
+	/**
+	 * Returns the median elapsed time of recent completed topN operations in ms.
+	 * @return the 50th percentile elapsed time
+	 * @see com.heliosapm.jvmti.util.TimerHistory#percentile(double)
+	 */
+	public long getTopNP50();
+	
+	/**
+	 * Returns the 90th percentile elapsed time of recent completed topN operations in ms.
+	 * @return the 90th percentile elapsed time
+	 * @see com.heliosapm.jvmti.util.TimerHistory#percentile(double)
+	 */
+	public long getTopNP90();
+	
+	/**
+	 * Returns the 99th percentile elapsed time of recent completed topN operations in ms.
+	 * @return the 99th percentile elapsed time
+	 * @see com.heliosapm.jvmti.util.TimerHistory#percentile(double)
+	 */
+	public long getTopNP99();
+	
+	/**
+	 * Returns the 99.9th percentile elapsed time of recent completed topN operations in ms.
+	 * @return the 99.9th percentile elapsed time
+	 * @see com.heliosapm.jvmti.util.TimerHistory#percentile(double)
+	 */
+	public long getTopNP999();
+	
+	/**
+	 * Returns the rate of completed topN operations per second over the last minute
+	 * @return the topN operations per second
+	 * @see com.heliosapm.jvmti.util.TimerHistory#rate(long, java.util.concurrent.TimeUnit)
+	 */
+	public double getTopNRate();
+	
 	/**
 	 * Returns combined statistics for recent topN operations 
 	 * @return combined statistics for recent topN operations 
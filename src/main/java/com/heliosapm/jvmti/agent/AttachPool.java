@@ -0,0 +1,281 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.agent;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.heliosapm.shorthand.attach.vm.VirtualMachine;
+
+/**
+ * <p>Title: AttachPool</p>
+ * <p>Description: A pool of attach sessions keyed by process id, so repeated tasks against the same JVM share one
+ * {@link VirtualMachine} instead of paying for an attach handshake each time. Tasks against the same JVM may run concurrently.
+ * A session that has not been used for a while is health checked before it is handed out and re-attached if the check fails,
+ * and sessions idle for longer than the idle timeout are detached by a background evictor.
+ * Tasks run through the pool must not detach the virtual machine they are given.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.agent.AttachPool</code></p>
+ */
+
+public class AttachPool {
+	/** The singleton instance */
+	private static volatile AttachPool instance = null;
+	/** The singleton instance ctor lock */
+	private static final Object lock = new Object();
+
+	/** The system property for the idle time in ms after which an unused session is detached */
+	public static final String IDLE_PROP = "com.heliosapm.jvmti.attach.idle";
+	/** The system property for the idle time in ms after which a session is health checked before reuse */
+	public static final String CHECK_PROP = "com.heliosapm.jvmti.attach.check";
+	/** The default session idle timeout in ms */
+	public static final long DEFAULT_IDLE = 30000L;
+	/** The default session health check interval in ms */
+	public static final long DEFAULT_CHECK = 5000L;
+
+	/** The sessions keyed by process id */
+	private final Map<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+	/** The session idle timeout in ms */
+	private final long idle;
+	/** The session health check interval in ms */
+	private final long check;
+	/** The number of attaches */
+	private final AtomicLong attaches = new AtomicLong(0L);
+	/** The number of tasks run on an already attached session */
+	private final AtomicLong reuses = new AtomicLong(0L);
+	/** The number of failed health checks */
+	private final AtomicLong failedChecks = new AtomicLong(0L);
+	/** The number of idle sessions detached */
+	private final AtomicLong evictions = new AtomicLong(0L);
+
+	/**
+	 * Acquires the singleton AttachPool instance
+	 * @return the attach pool
+	 */
+	public static AttachPool getInstance() {
+		if(instance==null) {
+			synchronized(lock) {
+				if(instance==null) {
+					instance = new AttachPool(Long.getLong(IDLE_PROP, DEFAULT_IDLE), Long.getLong(CHECK_PROP, DEFAULT_CHECK));
+				}
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Creates a new AttachPool
+	 * @param idle The idle time in ms after which an unused session is detached
+	 * @param check The idle time in ms after which a session is health checked before reuse
+	 */
+	AttachPool(final long idle, final long check) {
+		this.idle = idle;
+		this.check = check;
+		final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+			final Thread t = new Thread(r, "AttachPoolEvictor");
+			t.setDaemon(true);
+			return t;
+		});
+		final long period = Math.max(1000L, idle / 2);
+		evictor.scheduleWithFixedDelay(this::evict, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Runs a task against the pooled attach session for the passed process id, attaching if there is none
+	 * @param pid The process id of the JVM to run the task against
+	 * @param task The task to run. It must not detach the virtual machine.
+	 * @return the return value of the task
+	 * @throws Exception the exception thrown from attaching or from the task
+	 */
+	public <T> T run(final String pid, final VirtualMachineTask<T> task) throws Exception {
+		final Session session = borrow(pid);
+		boolean failed = true;
+		try {
+			task.setVirtualMachine(session.vm);
+			final T result = task.call();
+			failed = false;
+			return result;
+		} finally {
+			session.release(failed);
+		}
+	}
+
+	private Session borrow(final String pid) {
+		while(true) {
+			final Session session = sessions.computeIfAbsent(pid, Session::new);
+			try {
+				if(session.acquire()) return session;
+			} catch (RuntimeException rex) {
+				sessions.remove(pid, session);
+				throw rex;
+			}
+			sessions.remove(pid, session);
+		}
+	}
+
+	/**
+	 * Detaches the sessions idle for longer than the idle timeout
+	 */
+	void evict() {
+		final long now = System.currentTimeMillis();
+		for(Session session: sessions.values()) {
+			if(session.closeIfIdle(now - idle)) {
+				sessions.remove(session.pid, session);
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Detaches all unused sessions
+	 */
+	public void clear() {
+		for(Session session: sessions.values()) {
+			if(session.closeIfIdle(Long.MAX_VALUE)) sessions.remove(session.pid, session);
+		}
+	}
+
+	/**
+	 * Returns the number of attached sessions
+	 * @return the session count
+	 */
+	public int getSessionCount() {
+		return sessions.size();
+	}
+
+	/**
+	 * Returns the number of attaches
+	 * @return the attach count
+	 */
+	public long getAttachCount() {
+		return attaches.get();
+	}
+
+	/**
+	 * Returns the number of tasks run on an already attached session
+	 * @return the reuse count
+	 */
+	public long getReuseCount() {
+		return reuses.get();
+	}
+
+	/**
+	 * Returns the number of failed health checks
+	 * @return the failed check count
+	 */
+	public long getFailedCheckCount() {
+		return failedChecks.get();
+	}
+
+	/**
+	 * Returns the number of idle sessions detached
+	 * @return the eviction count
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	@Override
+	public String toString() {
+		return "AttachPool [sessions=" + sessions.size() + ", attaches=" + attaches.get() + ", reuses=" + reuses.get() 
+			+ ", failedChecks=" + failedChecks.get() + ", evictions=" + evictions.get() + "]";
+	}
+
+	/**
+	 * <p>Title: Session</p>
+	 * <p>Description: An attach session to one JVM, shared by the tasks running against it</p>
+	 */
+	private class Session {
+		/** The process id */
+		final String pid;
+		/** The attached virtual machine, null until the first acquire */
+		VirtualMachine vm = null;
+		/** The number of tasks using the session */
+		int users = 0;
+		/** The time the session was last released */
+		long lastUsed = 0L;
+		/** The time the session was last attached or known to be healthy */
+		long lastChecked = 0L;
+		/** Indicates the session has been detached and must not be used */
+		boolean closed = false;
+
+		Session(final String pid) {
+			this.pid = pid;
+		}
+
+		/**
+		 * Acquires the session for a task, attaching or re-attaching if needed
+		 * @return true if acquired, false if the session was closed and the caller should get a new one
+		 */
+		synchronized boolean acquire() {
+			if(closed) return false;
+			final long now = System.currentTimeMillis();
+			if(vm!=null && users==0 && now - lastChecked > check) {
+				try {
+					vm.getAgentProperties();
+					lastChecked = now;
+				} catch (Exception ex) {
+					failedChecks.incrementAndGet();
+					detach();
+				}
+			}
+			if(vm==null) {
+				try {
+					vm = VirtualMachine.attach(pid);
+				} catch (RuntimeException rex) {
+					closed = true;
+					throw rex;
+				}
+				attaches.incrementAndGet();
+				lastChecked = now;
+			} else {
+				reuses.incrementAndGet();
+			}
+			users++;
+			return true;
+		}
+
+		/**
+		 * Releases the session after a task
+		 * @param failed true if the task failed, forcing a health check before the next use
+		 */
+		synchronized void release(final boolean failed) {
+			users--;
+			lastUsed = System.currentTimeMillis();
+			if(failed) lastChecked = 0L;
+			else lastChecked = lastUsed;
+		}
+
+		/**
+		 * Detaches and closes the session if it is unused and was last used before the passed time
+		 * @param before The idle cutoff time
+		 * @return true if the session was closed
+		 */
+		synchronized boolean closeIfIdle(final long before) {
+			if(closed || users > 0 || lastUsed > before) return false;
+			closed = true;
+			detach();
+			return true;
+		}
+
+		private void detach() {
+			if(vm!=null) try { vm.detach(); } catch (Exception x) {/* No Op */}
+			vm = null;
+		}
+	}
+}
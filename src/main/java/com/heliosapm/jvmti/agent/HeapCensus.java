@@ -0,0 +1,184 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.agent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Title: HeapCensus</p>
+ * <p>Description: The results of a single heap walk run for a {@link HeapCensusRequest}.
+ * Counts and sizes are for exact classes only. Instances returned by the walk are strongly referenced
+ * by the census so it should not be retained beyond the consumers it was collected for.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.agent.HeapCensus</code></p>
+ */
+
+public class HeapCensus {
+	/** The walked classes */
+	private final Class<?>[] classes;
+	/** The instance count of each class */
+	private final long[] counts;
+	/** The total shallow size of each class */
+	private final long[] sizes;
+	/** The index of each class */
+	private final Map<Class<?>, Integer> index;
+	/** The field sums keyed by field name, keyed by class */
+	private final Map<Class<?>, Map<String, Long>> fieldSums;
+	/** The instances returned, index aligned with the classes */
+	private final Object[][] instances;
+	/** The time the walk completed in ms since the epoch */
+	private final long timestamp;
+	/** The elapsed time of the walk in ms */
+	private final long elapsed;
+
+	/**
+	 * Creates a new HeapCensus
+	 * @param classes The walked classes
+	 * @param counts The instance count of each class
+	 * @param sizes The total shallow size of each class
+	 * @param fieldSums The field sums keyed by field name, keyed by class
+	 * @param instances The instances returned, index aligned with the classes. Null elements for classes with none.
+	 * @param timestamp The time the walk completed in ms since the epoch
+	 * @param elapsed The elapsed time of the walk in ms
+	 */
+	HeapCensus(final Class<?>[] classes, final long[] counts, final long[] sizes, final Map<Class<?>, Map<String, Long>> fieldSums, final Object[][] instances, final long timestamp, final long elapsed) {
+		this.classes = classes;
+		this.counts = counts;
+		this.sizes = sizes;
+		this.fieldSums = fieldSums;
+		this.instances = instances;
+		this.timestamp = timestamp;
+		this.elapsed = elapsed;
+		index = new IdentityHashMap<Class<?>, Integer>(classes.length);
+		for(int i = 0; i < classes.length; i++) index.put(classes[i], i);
+	}
+
+	/**
+	 * Returns the walked classes
+	 * @return a copy of the walked classes, index aligned with {@link #getCounts()} and {@link #getSizes()}
+	 */
+	public Class<?>[] getClasses() {
+		return classes.clone();
+	}
+
+	/**
+	 * Returns the instance count of each walked class
+	 * @return a copy of the counts
+	 */
+	public long[] getCounts() {
+		return counts.clone();
+	}
+
+	/**
+	 * Returns the total shallow size of each walked class
+	 * @return a copy of the sizes
+	 */
+	public long[] getSizes() {
+		return sizes.clone();
+	}
+
+	/**
+	 * Returns the number of instances of the passed exact class
+	 * @param klass The class
+	 * @return the instance count, 0 if the class was not walked
+	 */
+	public long getCount(final Class<?> klass) {
+		final Integer i = index.get(klass);
+		return i==null ? 0L : counts[i];
+	}
+
+	/**
+	 * Returns the total shallow size of the instances of the passed exact class
+	 * @param klass The class
+	 * @return the total size in bytes, 0 if the class was not walked
+	 */
+	public long getSize(final Class<?> klass) {
+		final Integer i = index.get(klass);
+		return i==null ? 0L : sizes[i];
+	}
+
+	/**
+	 * Returns the total number of instances of all walked classes
+	 * @return the total instance count
+	 */
+	public long getTotalCount() {
+		long total = 0;
+		for(long c: counts) total += c;
+		return total;
+	}
+
+	/**
+	 * Returns the total shallow size of all walked classes
+	 * @return the total size in bytes
+	 */
+	public long getTotalSize() {
+		long total = 0;
+		for(long s: sizes) total += s;
+		return total;
+	}
+
+	/**
+	 * Returns the sum of a field over every instance of the passed exact class
+	 * @param klass The class
+	 * @param fieldName The field name
+	 * @return the field sum
+	 */
+	public long getFieldSum(final Class<?> klass, final String fieldName) {
+		final Map<String, Long> sums = fieldSums.get(klass);
+		final Long sum = sums==null ? null : sums.get(fieldName);
+		if(sum==null) throw new IllegalArgumentException("Field [" + fieldName + "] of class [" + (klass==null ? null : klass.getName()) + "] was not summed");
+		return sum;
+	}
+
+	/**
+	 * Returns the instances of the passed exact class collected by the walk
+	 * @param klass The class
+	 * @return the instances, empty if none were requested or found
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> List<T> getInstances(final Class<T> klass) {
+		final Integer i = index.get(klass);
+		if(i==null || instances[i]==null) return Collections.emptyList();
+		final List<T> list = new ArrayList<T>(instances[i].length);
+		for(Object o: instances[i]) {
+			if(o!=null) list.add((T)o);
+		}
+		return list;
+	}
+
+	/**
+	 * Returns the time the walk completed
+	 * @return the time in ms since the epoch
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Returns the elapsed time of the walk
+	 * @return the elapsed time in ms
+	 */
+	public long getElapsed() {
+		return elapsed;
+	}
+
+	@Override
+	public String toString() {
+		return "HeapCensus [classes=" + classes.length + ", instances=" + getTotalCount() + ", bytes=" + getTotalSize() + ", elapsed=" + elapsed + "ms]";
+	}
+}
@@ -0,0 +1,170 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.agent;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>Title: HeapCensusRequest</p>
+ * <p>Description: Collects everything wanted from a single heap walk: instance counts and shallow sizes
+ * of exact classes, sums of integral instance fields and bounded sets of instances.
+ * Several consumers may declare into the same request and overlapping declarations are merged,
+ * so one {@link NativeAgent#heapCensus(HeapCensusRequest)} walk serves all of them.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.agent.HeapCensusRequest</code></p>
+ */
+
+public class HeapCensusRequest {
+	/** Indicates if every loaded class should be counted */
+	private boolean allClasses = false;
+	/** The classes to count, in declaration order */
+	private final Set<Class<?>> counted = new LinkedHashSet<Class<?>>();
+	/** The names of the fields to sum keyed by the class declaring or inheriting them */
+	private final Map<Class<?>, Set<String>> sums = new LinkedHashMap<Class<?>, Set<String>>();
+	/** The maximum number of instances to return keyed by class */
+	private final Map<Class<?>, Integer> instances = new LinkedHashMap<Class<?>, Integer>();
+
+	/**
+	 * Requests the instance count and shallow size of every loaded class
+	 * @return this request
+	 */
+	public HeapCensusRequest countAll() {
+		allClasses = true;
+		return this;
+	}
+
+	/**
+	 * Requests the instance count and shallow size of the passed exact classes
+	 * @param classes The classes to count
+	 * @return this request
+	 */
+	public HeapCensusRequest count(final Class<?>... classes) {
+		if(classes==null) throw new IllegalArgumentException("The passed class array was null");
+		for(Class<?> klass: classes) {
+			if(klass==null) throw new IllegalArgumentException("The passed class array contained a null");
+			counted.add(klass);
+		}
+		return this;
+	}
+
+	/**
+	 * Requests the sum of an integral primitive instance field over every instance of the passed exact class.
+	 * The class is also counted.
+	 * @param klass The class whose instances are summed
+	 * @param fieldName The name of the field declared by the class or one of its super classes
+	 * @return this request
+	 */
+	public HeapCensusRequest sum(final Class<?> klass, final String fieldName) {
+		if(klass==null) throw new IllegalArgumentException("The passed class was null");
+		if(fieldName==null || fieldName.trim().isEmpty()) throw new IllegalArgumentException("The passed field name was null or empty");
+		final Field f = InstancePredicate.findField(klass, fieldName.trim());
+		if(f==null) throw new IllegalArgumentException("No field [" + fieldName + "] in class [" + klass.getName() + "]");
+		if(Modifier.isStatic(f.getModifiers())) throw new IllegalArgumentException("Field [" + klass.getName() + "." + fieldName + "] is static");
+		final Class<?> type = f.getType();
+		if(!type.isPrimitive() || type==float.class || type==double.class) throw new IllegalArgumentException("Field [" + klass.getName() + "." + fieldName + "] is not an integral primitive");
+		counted.add(klass);
+		sums.computeIfAbsent(klass, k -> new LinkedHashSet<String>()).add(fieldName.trim());
+		return this;
+	}
+
+	/**
+	 * Requests up to <code>max</code> instances of the passed exact class. The class is also counted.
+	 * When declared more than once, the largest maximum applies.
+	 * @param klass The class to return instances of
+	 * @param max The maximum number of instances
+	 * @return this request
+	 */
+	public HeapCensusRequest instances(final Class<?> klass, final int max) {
+		if(klass==null) throw new IllegalArgumentException("The passed class was null");
+		if(max<1) throw new IllegalArgumentException("Invalid max instances:" + max);
+		counted.add(klass);
+		instances.merge(klass, max, Math::max);
+		return this;
+	}
+
+	/**
+	 * Indicates if nothing has been requested
+	 * @return true if a walk would serve nothing
+	 */
+	public boolean isEmpty() {
+		return !allClasses && counted.isEmpty();
+	}
+
+	/**
+	 * Indicates if every loaded class is counted
+	 * @return true if every loaded class is counted
+	 */
+	public boolean isAllClasses() {
+		return allClasses;
+	}
+
+	/**
+	 * Returns the classes to walk, index aligned with the census arrays
+	 * @param loaded The loaded classes, only used when every loaded class is counted
+	 * @return the classes to walk
+	 */
+	Class<?>[] classes(final Class<?>[] loaded) {
+		if(!allClasses) return counted.toArray(new Class<?>[counted.size()]);
+		final Map<Class<?>, Boolean> present = new IdentityHashMap<Class<?>, Boolean>(loaded.length);
+		final List<Class<?>> classes = new ArrayList<Class<?>>(loaded.length + counted.size());
+		for(Class<?> klass: loaded) {
+			if(present.put(klass, Boolean.TRUE)==null) classes.add(klass);
+		}
+		for(Class<?> klass: counted) {
+			if(present.put(klass, Boolean.TRUE)==null) classes.add(klass);
+		}
+		return classes.toArray(new Class<?>[classes.size()]);
+	}
+
+	/**
+	 * Returns the fields to sum keyed by class
+	 * @return the fields to sum
+	 */
+	Map<Class<?>, Set<String>> sums() {
+		return sums;
+	}
+
+	/**
+	 * Returns the maximum number of instances of a class to return
+	 * @param klass The class
+	 * @return the maximum number of instances, 0 if none were requested
+	 */
+	public int getMaxInstances(final Class<?> klass) {
+		final Integer max = instances.get(klass);
+		return max==null ? 0 : max;
+	}
+
+	/**
+	 * Returns the number of field sums requested
+	 * @return the number of field sums
+	 */
+	public int getFieldSumCount() {
+		int count = 0;
+		for(Set<String> fields: sums.values()) count += fields.size();
+		return count;
+	}
+
+	@Override
+	public String toString() {
+		return "HeapCensusRequest [allClasses=" + allClasses + ", classes=" + counted.size() + ", fieldSums=" + getFieldSumCount() + ", instanceSets=" + instances.size() + "]";
+	}
+}
@@ -0,0 +1,170 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.agent;
+
+import java.io.Closeable;
+import java.lang.reflect.Array;
+import java.util.ArrayDeque;
+
+/**
+ * <p>Title: InstanceCursor</p>
+ * <p>Description: A resumable, paged cursor over the heap instances of an exact type.
+ * The instances are collected into native weak references by one heap walk when the cursor is opened. Each call to {@link #next(int)}
+ * retrieves just enough blocks to fill the page and releases their references, so the Java heap used by the cursor is bounded by
+ * the page size plus one partial block regardless of the total instance count.
+ * Weak references do not keep objects reachable, so instances collected between pages are simply skipped.
+ * The cursor must be closed to free its native references.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.agent.InstanceCursor</code></p>
+ * @param <T> The type of the instances returned by the cursor
+ */
+
+public class InstanceCursor<T> implements Closeable {
+	/** The native agent that collected the instances */
+	private final NativeAgent nativeAgent;
+	/** The exact type of the instances */
+	private final Class<T> type;
+	/** The native cursor handle, 0 for an empty cursor */
+	private final long handle;
+	/** The number of instances per block */
+	private final int blockSize;
+	/** The number of instances collected when the cursor was opened */
+	private final long tagged;
+	/** The number of blocks */
+	private final long blockCount;
+	/** Instances from the last fetched blocks that did not fit in the last page */
+	private final ArrayDeque<T> remainder = new ArrayDeque<T>();
+	/** The next block to fetch */
+	private long nextBlock = 0;
+	/** The number of instances returned so far */
+	private long position = 0;
+	/** Indicates if the cursor has been closed */
+	private boolean closed = false;
+	/** The time the cursor was opened or last paged in ms */
+	private volatile long lastAccess = System.currentTimeMillis();
+
+	/** The maximum number of blocks retrieved in one native call */
+	public static final int MAX_BLOCKS_PER_FETCH = 1024;
+	/** The default number of instances per block */
+	public static final int DEFAULT_BLOCK_SIZE = 256;
+
+	/**
+	 * Creates a new InstanceCursor
+	 * @param nativeAgent The native agent that collected the instances
+	 * @param type The exact type of the instances
+	 * @param handle The native cursor handle, 0 for an empty cursor
+	 * @param blockSize The number of instances per block
+	 * @param tagged The number of instances collected
+	 */
+	InstanceCursor(final NativeAgent nativeAgent, final Class<T> type, final long handle, final int blockSize, final long tagged) {
+		this.nativeAgent = nativeAgent;
+		this.type = type;
+		this.handle = handle;
+		this.blockSize = blockSize;
+		this.tagged = tagged;
+		blockCount = (tagged + blockSize - 1) / blockSize;
+	}
+
+	/**
+	 * Returns the next page of instances
+	 * @param batchSize The maximum number of instances to return
+	 * @return an array of up to <code>batchSize</code> instances, empty when the cursor is exhausted
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized T[] next(final int batchSize) {
+		if(batchSize<1) throw new IllegalArgumentException("Invalid batch size:" + batchSize);
+		if(closed) throw new IllegalStateException("The cursor is closed");
+		lastAccess = System.currentTimeMillis();
+		int needed = batchSize - remainder.size();
+		while(needed > 0 && nextBlock < blockCount) {
+			final int blocks = (int)Math.min(Math.min(blockCount - nextBlock, MAX_BLOCKS_PER_FETCH), (needed + blockSize - 1) / blockSize);
+			final T[] fetched = nativeAgent.cursorFetch(type, handle, (int)(nextBlock * blockSize), blocks * blockSize);
+			nextBlock += blocks;
+			for(T t: fetched) remainder.add(t);
+			needed -= fetched.length;
+		}
+		final T[] page = (T[])Array.newInstance(type, Math.min(batchSize, remainder.size()));
+		for(int i = 0; i < page.length; i++) page[i] = remainder.poll();
+		position += page.length;
+		return page;
+	}
+
+	/**
+	 * Indicates if the cursor may have more instances.
+	 * Instances collected since the cursor was opened may mean the next page is empty regardless.
+	 * @return true if there are unfetched blocks or buffered instances
+	 */
+	public synchronized boolean hasNext() {
+		return !closed && (!remainder.isEmpty() || nextBlock < blockCount);
+	}
+
+	/**
+	 * Releases the native references of all unfetched instances and any buffered instances
+	 * {@inheritDoc}
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public synchronized void close() {
+		if(closed) return;
+		closed = true;
+		remainder.clear();
+		nextBlock = blockCount;
+		if(handle!=0L) nativeAgent.cursorRelease(handle);
+	}
+
+	/**
+	 * Returns the time since the cursor was opened or last paged
+	 * @return the idle time in ms
+	 */
+	public long getIdleTime() {
+		return System.currentTimeMillis() - lastAccess;
+	}
+
+	/**
+	 * Returns the exact type of the instances
+	 * @return the type
+	 */
+	public Class<T> getType() {
+		return type;
+	}
+
+	/**
+	 * Returns the number of instances collected when the cursor was opened
+	 * @return the collected instance count
+	 */
+	public long getTagged() {
+		return tagged;
+	}
+
+	/**
+	 * Returns the number of instances returned so far
+	 * @return the position
+	 */
+	public synchronized long getPosition() {
+		return position;
+	}
+
+	/**
+	 * Indicates if the cursor has been closed
+	 * @return true if closed
+	 */
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public String toString() {
+		return "InstanceCursor [type=" + type.getName() + ", tagged=" + tagged + ", position=" + getPosition() + "]";
+	}
+}
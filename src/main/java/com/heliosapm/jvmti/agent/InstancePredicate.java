@@ -0,0 +1,260 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.agent;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>Title: InstancePredicate</p>
+ * <p>Description: A conjunction of simple comparisons against primitive instance fields,
+ * evaluated natively by the primitive field callback during a heap walk.</p>
+ * <p>The expression format is one or more clauses joined by <b><code>&amp;&amp;</code></b>, where each clause is
+ * <b><code>&lt;field&gt; &lt;op&gt; &lt;literal&gt;</code></b>:<ul>
+ * 	<li><b>field</b>: The name of a primitive instance field declared by the class or one of its super classes</li>
+ *  <li><b>op</b>: One of <code>==, =, !=, &gt;, &gt;=, &lt;, &lt;=</code></li>
+ *  <li><b>literal</b>: An integer (decimal or <code>0x</code> hex, optionally suffixed with a binary size unit
+ *  <code>K, KB, M, MB, G, GB</code>), a floating point number, or <code>true</code>/<code>false</code></li>
+ * </ul>e.g. <code>capacity &gt; 1MB &amp;&amp; capacity &lt;= 64MB</code></p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.agent.InstancePredicate</code></p>
+ */
+
+public class InstancePredicate {
+	/** The parsed clauses */
+	private final List<Clause> clauses;
+	/** The original expression */
+	private final String expression;
+
+	/** The maximum number of clauses (one bit each in the native match mask) */
+	public static final int MAX_CLAUSES = 31;
+
+	/** The clause splitter */
+	private static final Pattern CLAUSE_SPLITTER = Pattern.compile("&&");
+	/** The clause parser */
+	private static final Pattern CLAUSE_PATTERN = Pattern.compile("^\\s*([A-Za-z_$][\\w$]*)\\s*(==|!=|>=|<=|=|>|<)\\s*(\\S+)\\s*$");
+	/** The integral literal parser */
+	private static final Pattern INTEGRAL_PATTERN = Pattern.compile("^([-+]?(?:0[xX][0-9a-fA-F]+|\\d+))([kKmMgG][bB]?)?$");
+
+	/**
+	 * <p>Title: Op</p>
+	 * <p>Description: The supported comparison operators. The ordinal is the native op code.</p>
+	 */
+	public static enum Op {
+		/** Equals */
+		EQ("=="),
+		/** Not equals */
+		NE("!="),
+		/** Greater than */
+		GT(">"),
+		/** Greater than or equal */
+		GE(">="),
+		/** Less than */
+		LT("<"),
+		/** Less than or equal */
+		LE("<=");
+
+		private Op(final String symbol) {
+			this.symbol = symbol;
+		}
+
+		/** The operator symbol */
+		public final String symbol;
+
+		/**
+		 * Decodes the passed symbol to an Op
+		 * @param symbol The symbol to decode
+		 * @return the Op
+		 */
+		public static Op decode(final String symbol) {
+			if("=".equals(symbol)) return EQ;
+			for(Op op: values()) {
+				if(op.symbol.equals(symbol)) return op;
+			}
+			throw new IllegalArgumentException("Invalid operator [" + symbol + "]");
+		}
+	}
+
+	/**
+	 * <p>Title: Clause</p>
+	 * <p>Description: A single field comparison</p>
+	 */
+	public static class Clause {
+		/** The field name */
+		public final String field;
+		/** The comparison operator */
+		public final Op op;
+		/** The literal as a long */
+		public final long longValue;
+		/** The literal as a double */
+		public final double doubleValue;
+		/** Indicates if the literal is floating point */
+		public final boolean floating;
+
+		Clause(final String field, final Op op, final long longValue, final double doubleValue, final boolean floating) {
+			this.field = field;
+			this.op = op;
+			this.longValue = longValue;
+			this.doubleValue = doubleValue;
+			this.floating = floating;
+		}
+
+		@Override
+		public String toString() {
+			return field + " " + op.symbol + " " + (floating ? Double.toString(doubleValue) : Long.toString(longValue));
+		}
+	}
+
+	/**
+	 * Parses the passed expression
+	 * @param expression The expression to parse
+	 * @return the parsed predicate
+	 */
+	public static InstancePredicate parse(final String expression) {
+		if(expression==null || expression.trim().isEmpty()) throw new IllegalArgumentException("The passed expression was null or empty");
+		// keep empty trailing parts so a dangling && is rejected as an empty clause
+		final String[] parts = CLAUSE_SPLITTER.split(expression, -1);
+		if(parts.length > MAX_CLAUSES) throw new IllegalArgumentException("Too many clauses [" + parts.length + "]. Max is " + MAX_CLAUSES);
+		final List<Clause> clauses = new ArrayList<Clause>(parts.length);
+		for(String part: parts) {
+			final Matcher m = CLAUSE_PATTERN.matcher(part);
+			if(!m.matches()) throw new IllegalArgumentException("Invalid clause [" + part.trim() + "] in expression [" + expression + "]");
+			clauses.add(clause(m.group(1), Op.decode(m.group(2)), m.group(3)));
+		}
+		return new InstancePredicate(expression.trim(), clauses);
+	}
+
+	private static Clause clause(final String field, final Op op, final String literal) {
+		if("true".equalsIgnoreCase(literal)) return new Clause(field, op, 1L, 1D, false);
+		if("false".equalsIgnoreCase(literal)) return new Clause(field, op, 0L, 0D, false);
+		final Matcher m = INTEGRAL_PATTERN.matcher(literal);
+		if(m.matches()) {
+			String num = m.group(1);
+			final boolean negative = num.charAt(0)=='-';
+			if(num.charAt(0)=='-' || num.charAt(0)=='+') num = num.substring(1);
+			long value = (num.startsWith("0x") || num.startsWith("0X")) ? Long.parseLong(num.substring(2), 16) : Long.parseLong(num);
+			final String unit = m.group(2);
+			if(unit!=null) {
+				try {
+					switch(Character.toUpperCase(unit.charAt(0))) {
+						case 'K': value = Math.multiplyExact(value, 1024L); break;
+						case 'M': value = Math.multiplyExact(value, 1024L * 1024L); break;
+						case 'G': value = Math.multiplyExact(value, 1024L * 1024L * 1024L); break;
+					}
+				} catch (ArithmeticException aex) {
+					throw new IllegalArgumentException("Literal [" + literal + "] for field [" + field + "] overflows a long");
+				}
+			}
+			if(negative) value = -value;
+			return new Clause(field, op, value, value, false);
+		}
+		try {
+			final double d = Double.parseDouble(literal);
+			return new Clause(field, op, (long)d, d, true);
+		} catch (NumberFormatException nex) {
+			throw new IllegalArgumentException("Invalid literal [" + literal + "] for field [" + field + "]");
+		}
+	}
+
+	private InstancePredicate(final String expression, final List<Clause> clauses) {
+		this.expression = expression;
+		this.clauses = Collections.unmodifiableList(clauses);
+	}
+
+	/**
+	 * Verifies that each clause's field is a primitive instance field of the passed class
+	 * @param klass The class the predicate will be evaluated against
+	 * @return this predicate
+	 */
+	public InstancePredicate validate(final Class<?> klass) {
+		if(klass==null) throw new IllegalArgumentException("The passed class was null");
+		for(Clause clause: clauses) {
+			final Field f = findField(klass, clause.field);
+			if(f==null) throw new IllegalArgumentException("No field [" + clause.field + "] in class [" + klass.getName() + "]");
+			if(Modifier.isStatic(f.getModifiers())) throw new IllegalArgumentException("Field [" + klass.getName() + "." + clause.field + "] is static");
+			if(!f.getType().isPrimitive()) throw new IllegalArgumentException("Field [" + klass.getName() + "." + clause.field + "] is not a primitive");
+		}
+		return this;
+	}
+
+	static Field findField(final Class<?> klass, final String name) {
+		Class<?> current = klass;
+		while(current!=null) {
+			for(Field f: current.getDeclaredFields()) {
+				if(f.getName().equals(name)) return f;
+			}
+			current = current.getSuperclass();
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the parsed clauses
+	 * @return the parsed clauses
+	 */
+	public List<Clause> getClauses() {
+		return clauses;
+	}
+
+	/**
+	 * Returns the native op codes of the clauses
+	 * @return the op codes
+	 */
+	int[] ops() {
+		final int[] ops = new int[clauses.size()];
+		for(int i = 0; i < ops.length; i++) ops[i] = clauses.get(i).op.ordinal();
+		return ops;
+	}
+
+	/**
+	 * Returns the literals of the clauses as longs
+	 * @return the long literals
+	 */
+	long[] longValues() {
+		final long[] values = new long[clauses.size()];
+		for(int i = 0; i < values.length; i++) values[i] = clauses.get(i).longValue;
+		return values;
+	}
+
+	/**
+	 * Returns the literals of the clauses as doubles
+	 * @return the double literals
+	 */
+	double[] doubleValues() {
+		final double[] values = new double[clauses.size()];
+		for(int i = 0; i < values.length; i++) values[i] = clauses.get(i).doubleValue;
+		return values;
+	}
+
+	/**
+	 * Returns the floating point literal indicators of the clauses
+	 * @return the floating point indicators
+	 */
+	boolean[] floating() {
+		final boolean[] values = new boolean[clauses.size()];
+		for(int i = 0; i < values.length; i++) values[i] = clauses.get(i).floating;
+		return values;
+	}
+
+	@Override
+	public String toString() {
+		return expression;
+	}
+
+}
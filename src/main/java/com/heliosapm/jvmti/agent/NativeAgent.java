@@ -14,14 +14,18 @@ package com.heliosapm.jvmti.agent;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.lang.management.ManagementFactory;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -29,6 +33,7 @@ import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
@@ -41,6 +46,11 @@ import org.jctools.maps.NonBlockingHashMapLong;
 import org.jctools.queues.SpscGrowableArrayQueue;
 import org.pmw.tinylog.Logger;
 
+import com.heliosapm.jvmti.snapshot.ContentionProfile;
+import com.heliosapm.jvmti.snapshot.JitProfile;
+import com.heliosapm.jvmti.snapshot.StackProfile;
+import com.heliosapm.jvmti.snapshot.ThrowProfile;
+import com.heliosapm.jvmti.util.NativeLibCache;
 import com.heliosapm.jvmti.util.SystemClock;
 import com.heliosapm.jvmti.util.SystemClock.ElapsedTime;
 import com.heliosapm.jvmti.util.TimerHistory;
@@ -72,6 +82,8 @@ public class NativeAgent {
 	public static final String CONFIG_AGENT_LOCATION = "com.heliosapm.jvmti.lib";
 	/** The system property override to suppress the deleteOnExit on the jar extracted lib. Just set, no value needed. */
 	public static final String CONFIG_AGENT_NO_DEL_LIB = "com.heliosapm.jvmti.lib.nodelonexit";
+	/** The system property override to load the lib by self attaching instead of in process. Just set, no value needed. */
+	public static final String CONFIG_AGENT_SELF_ATTACH = "com.heliosapm.jvmti.lib.selfattach";
 	/** The sys prop for the library path */
 	public static final String SYS_LIB_PATH = "java.library.path";
 	/** The platform path separator */
@@ -82,6 +94,12 @@ public class NativeAgent {
 	public static final String PID = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
 	/** The directory prefix when loading the default lib in dev mode */
 	public static final String DEV_DIR_PREFIX = "target/native/";
+	/** The number of log2 object size buckets in a class census size histogram */
+	public static final int SIZE_BUCKETS = 36;
+	/** The maximum number of distinct monitor contention sites tracked natively */
+	public static final int CONTENTION_SITES = 4096;
+	/** The maximum number of distinct exception throw sites tracked natively */
+	public static final int THROW_SITES = 2048;
 	/** Class Cardinality counter map */
 	private final NonBlockingHashMapLong<NonBlockingHashMap<Class<?>, long[]>> classCounter = new NonBlockingHashMapLong<NonBlockingHashMap<Class<?>, long[]>>(CORES, true);
 	/** Class Cardinality timer map */
@@ -102,6 +120,10 @@ public class NativeAgent {
 	private String libLocation = null;
 	/** The top n timer history */
 	private final TimerHistory topNTimerHistory = new TimerHistory(1000);
+	/** Serializes the native operations that tag objects, each of which restores every tag it set before returning */
+	private final Object tagLock = new Object();
+	/** Keeps a stack trie copy and its name table consistent across a reset */
+	private final Object stackLock = new Object();
 
 	/**
 	 * Acquires the singleton NativeAgent instance
@@ -176,12 +198,12 @@ public class NativeAgent {
 					// determine if we're running in a jar (true) or dev mode (false)
 					final boolean isJar = Agent.class.getProtectionDomain().getCodeSource().getLocation().toString().endsWith(".jar");					
 					if(isJar) {
-						libToLoad = unloadLibFromJar().getAbsolutePath();
+						libToLoad = extractLib().getAbsolutePath();
 					} else {
 						libToLoad = "./target/native/" + libDir();
 					}
 				}
-				loadLibFromFile(libToLoad);
+				loadLib(libToLoad);
 				libLocation = libToLoad;
 				initCallbacks0(this, SpscGrowableArrayQueue.class, END_OF_QUEUE);
 				System.setProperty(AGENT_INSTALLED_PROP, "true");
@@ -198,6 +220,22 @@ public class NativeAgent {
 	
 	
 	
+	/**
+	 * Returns the platform library from the shared library cache, extracting it from the native agent jar if it is not cached yet,
+	 * or from a temp file if the cache cannot be used
+	 * @return the library file
+	 * @throws Exception thrown on any error
+	 */
+	private File extractLib() throws Exception {
+		final File cacheDir = NativeLibCache.cacheDirectory();
+		try {
+			return NativeLibCache.extract(Agent.class.getClassLoader(), libDir(), cacheDir);
+		} catch (Exception ex) {
+			Logger.warn("Failed to extract lib into cache [{}]. Falling back to a temp file: {}", cacheDir, ex.toString());
+			return unloadLibFromJar();
+		}
+	}
+	
 	/**
 	 * Unloads the platform library from the native agent jar and writes it to a temp file
 	 * @return the temp file the library was written to
@@ -233,28 +271,42 @@ public class NativeAgent {
 	}
 	
 	/**
-	 * Acquires a VirtualMachine instance, executes the passed task, and dettaches
-	 * @param task The task to run against the VirtualMachine
+	 * Executes the passed task against this JVM's pooled attach session
+	 * @param task The task to run against the VirtualMachine. It must not detach it.
 	 * @return the return value of the task
 	 * @throws Exception the exception thrown from the task
 	 */
 	public <T> T runInVirtualMachine(final VirtualMachineTask<T> task) throws Exception {
-		VirtualMachine vm = null;
 		try {
-			vm = VirtualMachine.attach(PID);
-			task.setVirtualMachine(vm);
-			return task.call();
+			return AttachPool.getInstance().run(PID, task);
 		} catch (Throwable t) {
 			if(Exception.class.isInstance(t)) throw (Exception)t;
 			throw new RuntimeException(t);
-		} finally {
-			if(vm!=null) try { vm.detach(); } catch (Exception x) {/* No Op */}
 		}
 	}
 	
 	
 	/**
-	 * Loads the native library from the passed file
+	 * Loads the native library in process with {@link System#load(String)}, which acquires the JVMTI environment
+	 * in <code>JNI_OnLoad</code>, falling back to {@link #loadLibFromFile(String)} if that fails
+	 * @param fileName The name of the agent lib file to load 
+	 */
+	public void loadLib(final String fileName) {
+		if(!System.getProperties().containsKey(CONFIG_AGENT_SELF_ATTACH)) {
+			final String absPath = new File(fileName).getAbsolutePath();
+			try {
+				System.load(absPath);
+				if(jvmtiReady0()) return;
+				Logger.warn("Lib file [{}] did not acquire JVMTI when loaded in process. Falling back to self attach.", absPath);
+			} catch (Throwable t) {
+				Logger.warn("Failed to load lib file [{}] in process. Falling back to self attach: {}", absPath, t.toString());
+			}
+		}
+		loadLibFromFile(fileName);
+	}
+	
+	/**
+	 * Loads the native library from the passed file by self attaching and loading it as an agent
 	 * @param fileName The name of the agent lib file to load 
 	 */
 	public void loadLibFromFile(final String fileName) {
@@ -372,7 +424,9 @@ public class NativeAgent {
 		final long tag = tagSerial.incrementAndGet();
 		classCounter.put(tag, new NonBlockingHashMap<Class<?>, long[]>());
 		classCountTimer.put(tag, SystemClock.startClock());
-		typeCardinality0(klazz, tag, Integer.MAX_VALUE);
+		synchronized(tagLock) {
+			typeCardinality0(klazz, tag, Integer.MAX_VALUE);
+		}
 		return classCounter.remove(tag);
 	}
 
@@ -455,7 +509,9 @@ public class NativeAgent {
 	 */
 	public int getInstanceCountOfAny(final Class<?> anyType) {
 		if(anyType==null) throw new IllegalArgumentException("The passed class was null");
-		return countInstances0(anyType, tagSerial.incrementAndGet(), Integer.MAX_VALUE);
+		synchronized(tagLock) {
+			return countInstances0(anyType, tagSerial.incrementAndGet(), Integer.MAX_VALUE);
+		}
 	}
 	
 	/**
@@ -468,7 +524,127 @@ public class NativeAgent {
 	public <T> T[] getInstancesOf(final Class<T> exactType, final int maxInstances) {
 		if(exactType==null) throw new IllegalArgumentException("The passed class was null");
 		if(!isConcrete(exactType)) return (T[])EMPTY_ARR;
-		return (T[])getExactInstances0(exactType, tagSerial.incrementAndGet(), maxInstances);		
+		synchronized(tagLock) {
+			return (T[])getExactInstances0(exactType, tagSerial.incrementAndGet(), maxInstances);
+		}
+	}
+	
+	/**
+	 * Returns a uniform random sample of heap objects of the exact passed type, 
+	 * selected by reservoir sampling during a single heap walk.
+	 * @param exactType The exact type of heap objects to sample
+	 * @param k The sample size
+	 * @return an array of at most <code>k</code> objects found in the heap
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T[] sampleInstancesOf(final Class<T> exactType, final int k) {
+		if(exactType==null) throw new IllegalArgumentException("The passed class was null");
+		if(k<1) throw new IllegalArgumentException("Invalid sample size:" + k);
+		if(!isConcrete(exactType)) return (T[])EMPTY_ARR;
+		synchronized(tagLock) {
+			return (T[])sampleInstances0(exactType, sessionTag(), k, ThreadLocalRandom.current().nextLong());
+		}
+	}
+	
+	/**
+	 * Returns heap objects of the exact passed type for which the passed predicate evaluates true.
+	 * The predicate is evaluated natively against primitive field values during the heap walk
+	 * so only matching objects are tagged and returned.
+	 * @param exactType The exact type of heap objects to return
+	 * @param predicate The predicate to filter by
+	 * @param maxInstances The maximum number of instances
+	 * @return an array of matching objects found in the heap
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T[] getInstancesOf(final Class<T> exactType, final InstancePredicate predicate, final int maxInstances) {
+		if(exactType==null) throw new IllegalArgumentException("The passed class was null");
+		if(predicate==null) throw new IllegalArgumentException("The passed predicate was null");
+		if(!isConcrete(exactType)) return (T[])EMPTY_ARR;
+		predicate.validate(exactType);
+		final List<InstancePredicate.Clause> clauses = predicate.getClauses();
+		final int[] fieldIndices = new int[clauses.size()];
+		for(int i = 0; i < fieldIndices.length; i++) {
+			fieldIndices[i] = fieldIndex0(exactType, clauses.get(i).field);
+			if(fieldIndices[i]==-1) throw new IllegalArgumentException("Failed to resolve field index for [" + exactType.getName() + "." + clauses.get(i).field + "]");
+		}
+		synchronized(tagLock) {
+			return (T[])getMatchingInstances0(exactType, tagSerial.incrementAndGet(), maxInstances, 
+					fieldIndices, predicate.ops(), predicate.longValues(), predicate.doubleValues(), predicate.floating());
+		}
+	}
+
+	/**
+	 * Opens a cursor over the heap objects of the exact passed type.
+	 * One heap walk collects every instance into native weak references,
+	 * then each page retrieves whole blocks and releases their references, so the instances are
+	 * not strongly referenced by the cursor between pages and may still be collected.
+	 * @param exactType The exact type of heap objects to page through
+	 * @param blockSize The number of instances retrieved per block
+	 * @return the opened cursor which must be closed to release the native references
+	 */
+	public <T> InstanceCursor<T> openInstanceCursor(final Class<T> exactType, final int blockSize) {
+		if(exactType==null) throw new IllegalArgumentException("The passed class was null");
+		if(blockSize<1) throw new IllegalArgumentException("Invalid block size:" + blockSize);
+		if(!isConcrete(exactType)) return new InstanceCursor<T>(this, exactType, 0L, blockSize, 0);
+		final long handle;
+		synchronized(tagLock) {
+			handle = openCursor0(exactType, tagSerial.incrementAndGet());
+		}
+		return new InstanceCursor<T>(this, exactType, handle, blockSize, cursorCount0(handle));
+	}
+
+	/**
+	 * Retrieves the still live instances in the passed range of a cursor and releases their references
+	 * @param exactType The cursor type
+	 * @param handle The native cursor handle
+	 * @param from The index of the first instance to retrieve
+	 * @param count The number of instances to retrieve
+	 * @return the retrieved objects
+	 */
+	@SuppressWarnings("unchecked")
+	<T> T[] cursorFetch(final Class<T> exactType, final long handle, final int from, final int count) {
+		return (T[])cursorFetch0(exactType, handle, from, count);
+	}
+
+	/**
+	 * Releases the references of all instances not yet retrieved from a cursor and frees the cursor
+	 * @param handle The native cursor handle, which is invalid once released
+	 * @return the number of references released
+	 */
+	int cursorRelease(final long handle) {
+		return cursorRelease0(handle);
+	}
+
+	/**
+	 * Returns the JVMTI tag of the passed object
+	 * @param object The object to get the tag of
+	 * @return the tag, 0 if untagged
+	 */
+	long getTag(final Object object) {
+		if(object==null) throw new IllegalArgumentException("The passed object was null");
+		return getTag0(object);
+	}
+
+	/**
+	 * Sets the JVMTI tag of the passed object, as another agent sharing the heap might
+	 * @param object The object to tag
+	 * @param tag The tag, 0 to clear
+	 */
+	void setTag(final Object object, final long tag) {
+		if(object==null) throw new IllegalArgumentException("The passed object was null");
+		synchronized(tagLock) {
+			setTag0(object, tag);
+		}
+	}
+
+	/**
+	 * Allocates a tag base for native operations that tag each object with a distinct value.
+	 * The serial occupies the high 32 bits so <code>sessionTag() | ordinal</code> never collides
+	 * with another session or with the plain serial tags.
+	 * @return the session tag base
+	 */
+	private long sessionTag() {
+		return tagSerial.incrementAndGet() << 32;
 	}
 	
 	protected <T> Queue<T> queueInstancesOf(final Class<T> exactType, final int queueSize) {
@@ -477,7 +653,9 @@ public class NativeAgent {
 		final SpscGrowableArrayQueue<Object> queue = new SpscGrowableArrayQueue<Object>(128);
 		threadPool.submit(new Runnable(){
 			public void run() {
-				queueExactInstances0(exactType, tagSerial.incrementAndGet(), queueSize, queue);
+				synchronized(tagLock) {
+					queueExactInstances0(exactType, tagSerial.incrementAndGet(), queueSize, queue);
+				}
 			}
 		});		
 		return (Queue<T>)queue;		
@@ -521,7 +699,287 @@ public class NativeAgent {
 	@SuppressWarnings("unchecked")
 	public <T> T[] getInstancesOfAny(final Class<?> anyType, final int maxInstances) {
 		if(anyType==null) throw new IllegalArgumentException("The passed class was null");
-		return (T[])getInstances0(anyType, tagSerial.incrementAndGet(), maxInstances);		
+		synchronized(tagLock) {
+			return (T[])getInstances0(anyType, tagSerial.incrementAndGet(), maxInstances);
+		}
+	}
+	
+	/**
+	 * Returns all loaded classes equal to or inherrited from the passed type.
+	 * No heap walk is performed and no instances are referenced.
+	 * @param anyType The type to find loaded types of
+	 * @return an array of loaded classes assignable to the passed type
+	 */
+	public Class<?>[] getLoadedTypesOf(final Class<?> anyType) {
+		if(anyType==null) throw new IllegalArgumentException("The passed class was null");
+		return loadedTypesOf0(anyType);
+	}
+	
+	/**
+	 * Runs a single heap walk counting the instances of each of the passed classes.
+	 * Objects are bucketed natively by class so no instance references are created.
+	 * @param classes The exact classes to count instances of
+	 * @param counts An optional array the instance count for each class is written to, index aligned with <code>classes</code>
+	 * @param sizes An optional array the total shallow size for each class is written to, index aligned with <code>classes</code>
+	 * @return the total number of instances counted
+	 */
+	public long classCensus(final Class<?>[] classes, final long[] counts, final long[] sizes) {
+		return classCensus(classes, counts, sizes, null);
+	}
+	
+	/**
+	 * Runs a single heap walk counting the instances of each of the passed classes,
+	 * optionally accumulating a log2 object size histogram per class.
+	 * @param classes The exact classes to count instances of
+	 * @param counts An optional array the instance count for each class is written to, index aligned with <code>classes</code>
+	 * @param sizes An optional array the total shallow size for each class is written to, index aligned with <code>classes</code>
+	 * @param buckets An optional flat array of at least <code>classes.length * {@link #SIZE_BUCKETS}</code> the size histograms are written to.
+	 * The count of instances of <code>classes[c]</code> sized <code>[2^b, 2^(b+1))</code> bytes is written to <code>buckets[c * SIZE_BUCKETS + b]</code>,
+	 * and the last bucket of each class also counts all larger instances.
+	 * @return the total number of instances counted
+	 */
+	public long classCensus(final Class<?>[] classes, final long[] counts, final long[] sizes, final long[] buckets) {
+		if(classes==null) throw new IllegalArgumentException("The passed class array was null");
+		if(counts!=null && counts.length < classes.length) throw new IllegalArgumentException("Counts array is shorter than the class array");
+		if(sizes!=null && sizes.length < classes.length) throw new IllegalArgumentException("Sizes array is shorter than the class array");
+		if(buckets!=null && buckets.length < (long)classes.length * SIZE_BUCKETS) throw new IllegalArgumentException("Buckets array is shorter than the class array * " + SIZE_BUCKETS);
+		if(classes.length==0) return 0L;
+		synchronized(tagLock) {
+			return classCensus0(classes, counts, sizes, buckets);
+		}
+	}
+	
+	/**
+	 * Runs a single heap walk collecting everything declared in the passed request:
+	 * instance counts and shallow sizes, integral field sums and bounded instance sets.
+	 * @param request The request to run
+	 * @return the census
+	 */
+	public HeapCensus heapCensus(final HeapCensusRequest request) {
+		if(request==null) throw new IllegalArgumentException("The passed request was null");
+		final Class<?>[] classes = request.classes(request.isAllClasses() ? getLoadedTypesOf(Object.class) : null);
+		final long[] counts = new long[classes.length];
+		final long[] sizes = new long[classes.length];
+		final Map<Class<?>, Integer> index = new IdentityHashMap<Class<?>, Integer>(classes.length);
+		final int[] instanceMax = new int[classes.length];
+		for(int i = 0; i < classes.length; i++) {
+			index.put(classes[i], i);
+			instanceMax[i] = request.getMaxInstances(classes[i]);
+		}
+		final int fieldCount = request.getFieldSumCount();
+		final int[] fieldClasses = new int[fieldCount];
+		final int[] fieldIndices = new int[fieldCount];
+		int f = 0;
+		for(Map.Entry<Class<?>, Set<String>> entry: request.sums().entrySet()) {
+			for(String field: entry.getValue()) {
+				fieldClasses[f] = index.get(entry.getKey());
+				fieldIndices[f] = fieldIndex0(entry.getKey(), field);
+				if(fieldIndices[f]==-1) throw new IllegalArgumentException("Failed to resolve field index for [" + entry.getKey().getName() + "." + field + "]");
+				f++;
+			}
+		}
+		final long[] fieldSums = new long[fieldCount];
+		final long start = System.currentTimeMillis();
+		Object[][] instances = new Object[classes.length][];
+		if(classes.length > 0) {
+			synchronized(tagLock) {
+				instances = heapCensus0(classes, counts, sizes, fieldClasses, fieldIndices, fieldSums, instanceMax, sessionTag());
+			}
+		}
+		final long end = System.currentTimeMillis();
+		final Map<Class<?>, Map<String, Long>> sums = new IdentityHashMap<Class<?>, Map<String, Long>>();
+		f = 0;
+		for(Map.Entry<Class<?>, Set<String>> entry: request.sums().entrySet()) {
+			final Map<String, Long> classSums = new HashMap<String, Long>();
+			for(String field: entry.getValue()) classSums.put(field, fieldSums[f++]);
+			sums.put(entry.getKey(), classSums);
+		}
+		return new HeapCensus(classes, counts, sizes, sums, instances, end, end - start);
+	}
+	
+	/**
+	 * Writes a heap snapshot into the passed direct (typically memory mapped) buffers.
+	 * One record is written per heap object and, optionally, one per reference, 
+	 * without any per-object calls back into Java. 
+	 * See {@link com.heliosapm.jvmti.snapshot.HeapSnapshot} for the record layout.
+	 * @param segments The direct buffers to write records into, in order. Each buffer's capacity must be a multiple of the record size.
+	 * @param classes The classes whose index is written as each object's class index
+	 * @param references true to also write the references between objects
+	 * @param counts An array of at least 2 the object and reference record counts are written to
+	 * @return true if the segments filled up and the snapshot was truncated, false if it is complete
+	 */
+	public boolean heapSnapshot(final ByteBuffer[] segments, final Class<?>[] classes, final boolean references, final long[] counts) {
+		if(segments==null) throw new IllegalArgumentException("The passed segment array was null");
+		if(classes==null) throw new IllegalArgumentException("The passed class array was null");
+		if(counts==null || counts.length < 2) throw new IllegalArgumentException("The counts array must have at least 2 elements");
+		for(ByteBuffer segment: segments) {
+			if(segment==null || !segment.isDirect()) throw new IllegalArgumentException("All segments must be direct buffers");
+		}
+		synchronized(tagLock) {
+			return heapSnapshot0(segments, classes, references ? sessionTag() : 0L, counts);
+		}
+	}
+	
+	/**
+	 * Writes an HPROF (<code>JAVA PROFILE 1.0.2</code>) heap dump of the objects reachable from the heap roots.
+	 * @param file The file to write to
+	 * @param packages Optional package (or class name) prefixes. When supplied, only instances and object arrays
+	 * of matching classes are written, but every class and primitive array still is. References to objects that are not written are written as null.
+	 * @param primitiveContents true to write primitive array contents, false to write primitive arrays as empty arrays
+	 * @return the number of instances, object arrays, primitive arrays, roots and classes written, the file size in bytes
+	 * and the number of objects whose references were not all reported together, and so were written with some of them missing
+	 * @throws IOException thrown if the file cannot be written
+	 */
+	public long[] hprofDump(final File file, final String[] packages, final boolean primitiveContents) throws IOException {
+		if(file==null) throw new IllegalArgumentException("The passed file was null");
+		if(packages!=null) {
+			for(String pkg: packages) {
+				if(pkg==null) throw new IllegalArgumentException("The passed packages contained a null");
+			}
+		}
+		final long[] results = new long[7];
+		synchronized(tagLock) {
+			final Class<?>[] classes = getLoadedTypesOf(Object.class);
+			if(!hprofDump0(file.getAbsolutePath(), classes, packages, primitiveContents, sessionTag(), System.currentTimeMillis(), results)) {
+				throw new IOException("Failed to write heap dump to [" + file + "]");
+			}
+		}
+		return results;
+	}
+	
+	/**
+	 * Samples the stacks of all live threads except the caller into the native stack trie
+	 * @param maxDepth The maximum number of frames recorded per thread. Deeper stacks are recorded under a <code>&lt;truncated&gt;</code> root frame.
+	 * @param maxNodes The maximum number of trie nodes and of method names retained until the next reset.
+	 * Stacks that do not fit are counted under an <code>&lt;overflow&gt;</code> root frame.
+	 * @return the number of thread stacks sampled
+	 */
+	public int sampleStacks(final int maxDepth, final int maxNodes) {
+		if(maxDepth < 1) throw new IllegalArgumentException("Invalid max depth:" + maxDepth);
+		if(maxNodes < 16) throw new IllegalArgumentException("Invalid max nodes:" + maxNodes);
+		final int sampled = sampleStacks0(maxDepth, maxNodes);
+		if(sampled < 0) throw new IllegalStateException("Failed to acquire thread stack traces");
+		return sampled;
+	}
+	
+	/**
+	 * Copies the native stack trie accumulated by {@link #sampleStacks(int, int)} since the last reset
+	 * @return the stack profile
+	 */
+	public StackProfile stackProfile() {
+		synchronized(stackLock) {
+			final int size = stackTrieSize0();
+			final int[] parents = new int[size];
+			final int[] nameIds = new int[size];
+			final long[] wall = new long[size];
+			final long[] cpu = new long[size];
+			final int nodes = stackTrie0(parents, nameIds, wall, cpu);
+			return new StackProfile(parents, nameIds, wall, cpu, stackNames0(), nodes, stackOverflow0());
+		}
+	}
+	
+	/**
+	 * Returns the number of stack samples counted under the overflow frame since the last reset
+	 * @return the overflow sample count
+	 */
+	public long getStackOverflowCount() {
+		return stackOverflow0();
+	}
+	
+	/**
+	 * Discards the samples in the native stack trie along with the method name cache, so the native memory is bounded by the reset interval
+	 */
+	public void resetStackProfile() {
+		synchronized(stackLock) {
+			stackReset0();
+		}
+	}
+	
+	/**
+	 * Enables or disables native monitor contention tracking.
+	 * Recorded contention is retained while tracking is disabled.
+	 * @param enabled true to enable, false to disable
+	 * @return true if the change was applied, false if the JVM does not support monitor events
+	 */
+	public boolean setMonitorContentionEnabled(final boolean enabled) {
+		return monitorContention0(enabled);
+	}
+	
+	/**
+	 * Copies the native monitor contention table, which accumulates for the life of the JVM
+	 * @return the contention profile
+	 */
+	public ContentionProfile contentionProfile() {
+		final String[] monitorClasses = new String[CONTENTION_SITES];
+		final String[] sites = new String[CONTENTION_SITES];
+		final long[] stats = new long[CONTENTION_SITES * 3];
+		final int count = contentionSites0(monitorClasses, sites, stats);
+		return new ContentionProfile(monitorClasses, sites, stats, count, contentionDropped0());
+	}
+	
+	/**
+	 * Enables or disables the native JIT compilation counters. Enabling resets the counters and
+	 * replays the code compiled or generated before the events were enabled.
+	 * @param enabled true to enable, false to disable
+	 * @return true if the change was applied, false if the JVM does not support compiled method events
+	 */
+	public boolean setJitEventsEnabled(final boolean enabled) {
+		return jitEvents0(enabled);
+	}
+	
+	/**
+	 * Returns the native JIT compilation totals without resolving any method names
+	 * @return the totals, indexed by the {@link JitProfile} total constants
+	 */
+	public long[] jitTotals() {
+		final long[] totals = new long[JitProfile.TOTALS];
+		jitMethodCount0(totals);
+		return totals;
+	}
+	
+	/**
+	 * Copies the native JIT compilation counters, including the per method counters
+	 * @return the JIT profile
+	 */
+	public JitProfile jitProfile() {
+		final long[] totals = new long[JitProfile.TOTALS];
+		final int size = jitMethodCount0(totals);
+		final String[] methods = new String[size];
+		final long[] stats = new long[size * 3];
+		final int count = jitMethods0(methods, stats);
+		return new JitProfile(totals, methods, stats, count);
+	}
+	
+	/**
+	 * Enables or disables native exception throw site counting.
+	 * Recorded throws are retained while counting is disabled.
+	 * @param enabled true to enable, false to disable
+	 * @return true if the change was applied, false if the JVM does not support exception events.
+	 * HotSpot only grants them to agents loaded on the command line with the <code>exceptions</code> option, 
+	 * e.g. <code>-agentpath:/path/liboifagent.so=exceptions</code>.
+	 */
+	public boolean setExceptionEventsEnabled(final boolean enabled) {
+		return exceptionEvents0(enabled);
+	}
+	
+	/**
+	 * Returns the total number of exceptions thrown since counting was first enabled, without resolving any names
+	 * @return the throw count
+	 */
+	public long throwCount() {
+		return throwCount0();
+	}
+	
+	/**
+	 * Copies the native exception throw site table, which accumulates for the life of the JVM
+	 * @return the throw profile
+	 */
+	public ThrowProfile throwProfile() {
+		final String[] exceptionClasses = new String[THROW_SITES];
+		final String[] sites = new String[THROW_SITES];
+		final long[] counts = new long[THROW_SITES];
+		final int count = throwSites0(exceptionClasses, sites, counts);
+		return new ThrowProfile(exceptionClasses, sites, counts, count);
 	}
 	
 	public Map<Class<?>, long[]> typeCardinality(final Class<?> type, final long tag, final int maxInstances) {
@@ -530,7 +988,9 @@ public class NativeAgent {
 		classCounter.put(tag, new NonBlockingHashMap<Class<?>, long[]>());
 		int types = 0;
 		try {
-			typeCardinality0(type, tag, maxInstances);
+			synchronized(tagLock) {
+				typeCardinality0(type, tag, maxInstances);
+			}
 			Map<Class<?>, long[]> counts = classCounter.remove(tag);
 			types = counts.size();
 			return counts;
@@ -575,8 +1035,38 @@ public class NativeAgent {
 //	private static native int queueExactInstances0(Class<?> klass, long tag, int maxInstances, SpscGrowableArrayQueue<Object> queue);
 	private static native Object[] getInstances0(Class<?> klass, long tag, int maxInstances);
 	private static native boolean wasLoaded0();
+	private static native long getTag0(Object object);
+	private static native void setTag0(Object object, long tag);
+	private static native boolean jvmtiReady0();
 	private static native boolean initCallbacks0(Object callbackSite, Class<SpscGrowableArrayQueue> queueClazz, Object endOfQueue);
 	private static native void typeCardinality0(Class<?> targetClass, long tag, int maxInstances);
+	private static native Class<?>[] loadedTypesOf0(Class<?> type);
+	private static native Object[] sampleInstances0(Class<?> klass, long tagBase, int k, long seed);
+	private static native int fieldIndex0(Class<?> klass, String fieldName);
+	private static native Object[] getMatchingInstances0(Class<?> klass, long tag, int maxInstances, int[] fieldIndices, int[] ops, long[] longValues, double[] doubleValues, boolean[] floating);
+	private static native long classCensus0(Class<?>[] classes, long[] counts, long[] sizes, long[] buckets);
+	private static native Object[][] heapCensus0(Class<?>[] classes, long[] counts, long[] sizes, int[] fieldClasses, int[] fieldIndices, long[] fieldSums, int[] instanceMax, long tagBase);
+	private static native long openCursor0(Class<?> klass, long tag);
+	private static native int cursorCount0(long handle);
+	private static native Object[] cursorFetch0(Class<?> klass, long handle, int from, int count);
+	private static native int cursorRelease0(long handle);
+	private static native boolean hprofDump0(String fileName, Class<?>[] classes, String[] packages, boolean primitiveContents, long tagBase, long timestamp, long[] results);
+	private static native boolean heapSnapshot0(ByteBuffer[] segments, Class<?>[] classes, long tagBase, long[] counts);
+	private static native int sampleStacks0(int maxDepth, int maxNodes);
+	private static native int stackTrieSize0();
+	private static native int stackTrie0(int[] parents, int[] nameIds, long[] wall, long[] cpu);
+	private static native String[] stackNames0();
+	private static native void stackReset0();
+	private static native long stackOverflow0();
+	private static native boolean monitorContention0(boolean enable);
+	private static native int contentionSites0(String[] monitorClasses, String[] sites, long[] stats);
+	private static native long contentionDropped0();
+	private static native boolean jitEvents0(boolean enable);
+	private static native int jitMethodCount0(long[] totals);
+	private static native int jitMethods0(String[] methods, long[] stats);
+	private static native boolean exceptionEvents0(boolean enable);
+	private static native long throwCount0();
+	private static native int throwSites0(String[] exceptionClasses, String[] sites, long[] counts);
 	
 	
 	private static class EOQ {
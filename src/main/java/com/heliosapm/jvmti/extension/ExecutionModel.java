@@ -0,0 +1,89 @@
+/**
+ * 
+ */
+package com.heliosapm.jvmti.extension;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.pmw.tinylog.Logger;
+
+/**
+ * The models the {@link ExecutionScheduler} can run extensions with,
+ * selected with the <code>com.heliosapm.jvmti.scheduler.model</code> system property.
+ * @author nwhitehead
+ */
+public enum ExecutionModel {
+	/** A thread pool of up to one thread per core */
+	POOL {
+		@Override
+		public ExecutorService create(final RejectedExecutionHandler rejectionHandler) {
+			final AtomicInteger serial = new AtomicInteger(0);
+			final ThreadPoolExecutor executor = new ThreadPoolExecutor(ExecutionScheduler.CORES, ExecutionScheduler.CORES, 60, TimeUnit.SECONDS, 
+				new LinkedBlockingQueue<Runnable>(), r -> {
+					Thread t = new Thread(r, "ExecutorThread#" + serial.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}, rejectionHandler);
+			executor.allowCoreThreadTimeOut(true);
+			return executor;
+		}
+	},
+	/** A work stealing fork join pool of one thread per core */
+	WORK_STEALING {
+		@Override
+		public ExecutorService create(final RejectedExecutionHandler rejectionHandler) {
+			final AtomicInteger serial = new AtomicInteger(0);
+			return new ForkJoinPool(ExecutionScheduler.CORES, pool -> {
+				final ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+				t.setName("ExecutorThread#" + serial.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}, null, true);
+		}
+	},
+	/** A new virtual thread per extension run on Java 21+, falling back to {@link #WORK_STEALING} on older Javas */
+	VIRTUAL {
+		@Override
+		public ExecutorService create(final RejectedExecutionHandler rejectionHandler) {
+			try {
+				final Method method = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				return (ExecutorService)method.invoke(null);
+			} catch (Exception ex) {
+				Logger.warn("Virtual threads are not available in Java {}. Using {}", System.getProperty("java.version"), WORK_STEALING);
+				return WORK_STEALING.create(rejectionHandler);
+			}
+		}
+	};
+	
+	/** The system property for the execution model */
+	public static final String MODEL_PROP = "com.heliosapm.jvmti.scheduler.model";
+	
+	/**
+	 * Creates the executor extension runs are submitted to
+	 * @param rejectionHandler The handler for runs a bounded executor rejects
+	 * @return the executor
+	 */
+	public abstract ExecutorService create(RejectedExecutionHandler rejectionHandler);
+	
+	/**
+	 * Returns the configured execution model, {@link #POOL} by default
+	 * @return the execution model
+	 */
+	public static ExecutionModel configured() {
+		final String name = System.getProperty(MODEL_PROP, POOL.name()).trim().toUpperCase().replace('-', '_');
+		try {
+			return valueOf(name);
+		} catch (IllegalArgumentException iex) {
+			Logger.warn("Invalid execution model [{}]. Using {}", name, POOL);
+			return POOL;
+		}
+	}
+}
@@ -6,21 +6,41 @@ package com.heliosapm.jvmti.extension;
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.lang.management.ManagementFactory;
 import java.lang.reflect.Constructor;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import javax.management.ObjectName;
 
 import org.pmw.tinylog.Logger;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
 import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.Timer;
+import com.codahale.metrics.Timer.Context;
+import com.heliosapm.jvmti.agent.HeapCensus;
+import com.heliosapm.jvmti.agent.HeapCensusRequest;
 import com.heliosapm.jvmti.agent.NativeAgent;
 import com.heliosapm.utils.jmx.JMXHelper;
 
@@ -37,11 +57,40 @@ public class ExecutionScheduler implements ExecutionSchedulerMXBean, UncaughtExc
 	private static volatile ExecutionScheduler instance = null;
 	private static final Object lock = new Object();
 	public static final int CORES = ManagementFactory.getOperatingSystemMXBean().getAvailableProcessors();
-	private final DropwizardMeterRegistry promReg = new DropwizardMeterRegistry(HierarchicalNameMapper.DEFAULT, Clock.SYSTEM);
-	private final MetricRegistry registry = promReg.getDropwizardRegistry();
+	private final MetricRegistry registry = new MetricRegistry();
+	/** The micrometer registry bridged into the metric registry, created on first use */
+	private volatile DropwizardMeterRegistry meterRegistry = null;
+	
+	/** Set once the JMX reporter has been started */
+	private final AtomicBoolean reporterStarted = new AtomicBoolean(false);
 	
 	private final ScheduledThreadPoolExecutor scheduler;
-	private final ThreadPoolExecutor executor;
+	/** The execution model extension runs are executed with */
+	private final ExecutionModel model = ExecutionModel.configured();
+	private final ExecutorService executor;
+	/** The maximum random delay in ms added to each extension's initial delay */
+	private final long jitter = Long.getLong(JITTER_PROP, DEFAULT_JITTER);
+	/** The number of extension runs submitted */
+	private final LongAdder submitted = new LongAdder();
+	/** The number of extension runs completed */
+	private final LongAdder completed = new LongAdder();
+	/** The number of ticks skipped because the extension's previous run had not finished */
+	private final LongAdder skipped = new LongAdder();
+	/** The number of extension runs rejected by the executor */
+	private final LongAdder rejected = new LongAdder();
+	/** The number of shared heap census walks */
+	private final LongAdder censusWalks = new LongAdder();
+	/** The number of heap census extension runs served by a shared walk */
+	private final LongAdder censusServed = new LongAdder();
+	/** The stage running the shared heap census for all heap census extensions */
+	private final CensusStage census;
+	/** The scheduled extensions, stopped when the JVM shuts down */
+	private final List<ScheduledExtension> extensions = new CopyOnWriteArrayList<ScheduledExtension>();
+	
+	/** The system property for the maximum random delay in ms added to each extension's initial delay */
+	public static final String JITTER_PROP = "com.heliosapm.jvmti.scheduler.jitter";
+	/** The default maximum initial delay jitter in ms */
+	public static final long DEFAULT_JITTER = 1000L;
 	
 	private final ObjectName objectName = JMXHelper.objectName("com.heliosapm.jvmti:service=ExecutionScheduler");
 	
@@ -57,16 +106,7 @@ public class ExecutionScheduler implements ExecutionSchedulerMXBean, UncaughtExc
 	}
 	
 	private ExecutionScheduler() {
-		Metrics.globalRegistry.add(promReg);
-		executor = new ThreadPoolExecutor(1, CORES, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(32), new ThreadFactory(){
-			final AtomicInteger serial = new AtomicInteger(0);
-			@Override
-			public Thread newThread(Runnable r) {
-				Thread t = new Thread(r, "ExecutorThread#" + serial.incrementAndGet());
-				t.setDaemon(true);
-				return t;
-			}			
-		}, this);
+		executor = model.create(this);
 		scheduler = new ScheduledThreadPoolExecutor(2, new ThreadFactory(){
 			final AtomicInteger serial = new AtomicInteger(0);
 			@Override
@@ -85,9 +125,11 @@ public class ExecutionScheduler implements ExecutionSchedulerMXBean, UncaughtExc
 //				}, initialDelay, delay, unit);
 //			}
 		};
-		JmxReporter.forRegistry(registry).build().start();
+		census = new CensusStage();
+		final Thread shutdownHook = new Thread(this::shutdown, "ExecutionSchedulerShutdown");
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
 		JMXHelper.registerMBean(this, objectName);
-		Logger.info("ExecutionScheduler Started");
+		Logger.info("ExecutionScheduler Started with execution model {}", model);
 	}
 	
 	public void schedule(String className) {
@@ -99,13 +141,20 @@ public class ExecutionScheduler implements ExecutionSchedulerMXBean, UncaughtExc
 			long fixedDelay = se.getFixedDelay();
 			long initialDelay = se.getInitialDelay();
 			if(fixedDelay > 0) {
-				ScheduledFuture<?> handle = scheduler.scheduleWithFixedDelay(new Runnable(){
-					public void run() {
-						executor.execute(se);
-					}
-				}, initialDelay, fixedDelay, TimeUnit.MILLISECONDS);
-				se.setScheduleHandle(handle);
-				Logger.info("Extension [{}] scheduled for repeated execution every {} ms.", className, fixedDelay);
+				extensions.add(se);
+				// jitter the first run so extensions with the same schedule do not all fire together
+				if(jitter > 0) initialDelay += ThreadLocalRandom.current().nextLong(Math.min(jitter, fixedDelay) + 1);
+				if(se instanceof HeapCensusExtension) {
+					census.register((HeapCensusExtension)se, initialDelay);
+					Logger.info("Extension [{}] joined the shared heap census, due every {} ms{}.", className, fixedDelay, se.isAdaptive() ? " or longer, adapting to its run time" : "");
+				} else if(se.isAdaptive()) {
+					se.setScheduleHandle(scheduler.schedule(new ExtensionRun(se)::dispatch, initialDelay, TimeUnit.MILLISECONDS));
+					Logger.info("Extension [{}] scheduled for repeated execution at least every {} ms, adapting to its run time.", className, fixedDelay);
+				} else {
+					ScheduledFuture<?> handle = scheduler.scheduleWithFixedDelay(new ExtensionRun(se)::dispatch, initialDelay, fixedDelay, TimeUnit.MILLISECONDS);
+					se.setScheduleHandle(handle);
+					Logger.info("Extension [{}] scheduled for repeated execution every {} ms.", className, fixedDelay);
+				}
 			} else {
 				Logger.info("Extension [{}] had no schedule", className);
 			}
@@ -115,9 +164,232 @@ public class ExecutionScheduler implements ExecutionSchedulerMXBean, UncaughtExc
 		}
 	}
 	
+	/**
+	 * Stops scheduling and stops every scheduled extension so each releases its resources
+	 */
+	private void shutdown() {
+		scheduler.shutdownNow();
+		for(ScheduledExtension se: extensions) se.stop();
+		Logger.info("ExecutionScheduler Stopped");
+	}
+	
+	/**
+	 * Starts the JMX reporter when the first extension runs, so no reporter is started until there is something to report
+	 */
+	private void startReporter() {
+		if(reporterStarted.compareAndSet(false, true)) {
+			JmxReporter.forRegistry(registry).build().start();
+			Logger.info("JmxReporter Started");
+		}
+	}
+	
+	/**
+	 * <p>Title: ExtensionRun</p>
+	 * <p>Description: Dispatches an extension's ticks to the executor, skipping a tick if the previous run has not finished
+	 * so a slow extension never has more than one run queued or running. An adaptive extension is rescheduled
+	 * once after each run with the delay computed from its run time, until the extension is stopped.</p>
+	 */
+	private class ExtensionRun implements Runnable {
+		final ScheduledExtension se;
+		final AtomicBoolean running = new AtomicBoolean(false);
+		final Counter skippedTicks;
+		
+		ExtensionRun(final ScheduledExtension se) {
+			this.se = se;
+			skippedTicks = registry.counter(MetricRegistry.name(se.getClass(), "skipped"));
+		}
+		
+		void dispatch() {
+			if(se.isStopped()) return;
+			if(!running.compareAndSet(false, true)) {
+				skipped.increment();
+				skippedTicks.inc();
+				return;
+			}
+			submitted.increment();
+			try {
+				executor.execute(this);
+			} catch (RejectedExecutionException rex) {
+				rejectedExecution(this, null);
+			}
+		}
+		
+		void scheduleNext() {
+			if(se.isAdaptive() && !se.isStopped() && !scheduler.isShutdown()) {
+				final ScheduledFuture<?> previous = se.getScheduleHandle();
+				if(previous==null || !previous.isCancelled()) {
+					final ScheduledFuture<?> next = scheduler.schedule(this::dispatch, se.getNextDelay(), TimeUnit.MILLISECONDS);
+					se.setScheduleHandle(next);
+					// a stop racing with the reschedule may have cancelled the previous handle only
+					if(se.isStopped()) next.cancel(false);
+				}
+			}
+		}
+		
+		@Override
+		public void run() {
+			try {
+				startReporter();
+				se.run();
+			} finally {
+				completed.increment();
+				running.set(false);
+				scheduleNext();
+			}
+		}
+		
+		@Override
+		public String toString() {
+			return se.getClass().getName();
+		}
+	}
+	
+	/**
+	 * <p>Title: CensusStage</p>
+	 * <p>Description: Runs one heap walk per tick for all the heap census extensions that are due, merging what each
+	 * declares into a single request and handing every one of them the shared census, so N heap extensions cost one walk
+	 * rather than N. An extension due within a quarter of its delay joins the current walk rather than triggering another.
+	 * The stage is rescheduled after each tick for the earliest next due extension, and adaptive extensions count the
+	 * walk time as part of their run time.</p>
+	 */
+	private class CensusStage implements Runnable {
+		final List<Member> members = new CopyOnWriteArrayList<Member>();
+		final AtomicBoolean running = new AtomicBoolean(false);
+		final Timer walkTimer = registry.timer(MetricRegistry.name(ExecutionScheduler.class, "census", "walk"));
+		ScheduledFuture<?> pending = null;
+		
+		void register(final HeapCensusExtension ext, final long initialDelay) {
+			members.add(new Member(ext, System.currentTimeMillis() + initialDelay));
+			wake(initialDelay);
+		}
+		
+		/**
+		 * Schedules a tick after the passed delay unless one is already pending sooner
+		 * @param delay The delay in ms
+		 */
+		synchronized void wake(final long delay) {
+			if(scheduler.isShutdown()) return;
+			// a pending tick whose delay has expired is already dispatching and may not see this wake
+			if(pending!=null && !pending.isDone() && pending.getDelay(TimeUnit.MILLISECONDS) > 0) {
+				if(pending.getDelay(TimeUnit.MILLISECONDS) <= delay) return;
+				pending.cancel(false);
+			}
+			pending = scheduler.schedule(this::dispatch, delay, TimeUnit.MILLISECONDS);
+		}
+		
+		void dispatch() {
+			if(!running.compareAndSet(false, true)) {
+				// the running tick reschedules when it completes
+				skipped.increment();
+				return;
+			}
+			submitted.increment();
+			try {
+				executor.execute(this);
+			} catch (RejectedExecutionException rex) {
+				rejectedExecution(this, null);
+			}
+		}
+		
+		void scheduleNext() {
+			long next = Long.MAX_VALUE;
+			for(Member m: members) next = Math.min(next, m.nextDue);
+			if(next!=Long.MAX_VALUE) wake(Math.max(0L, next - System.currentTimeMillis()));
+		}
+		
+		@Override
+		public void run() {
+			try {
+				startReporter();
+				tick();
+			} catch (Exception ex) {
+				Logger.error("Shared heap census failed", ex);
+			} finally {
+				completed.increment();
+				running.set(false);
+				scheduleNext();
+			}
+		}
+		
+		void tick() {
+			final long now = System.currentTimeMillis();
+			final List<Member> due = new ArrayList<Member>(members.size());
+			final HeapCensusRequest request = new HeapCensusRequest();
+			for(Member m: members) {
+				if(m.ext.isStopped()) {
+					members.remove(m);
+					continue;
+				}
+				if(m.nextDue - now > m.ext.getFixedDelay() / 4) continue;
+				try {
+					m.ext.declare(request);
+					due.add(m);
+				} catch (Exception ex) {
+					Logger.error("Extension [{}] failed to declare its heap census. Stopping scheduled execution.", m, ex);
+					members.remove(m);
+				}
+			}
+			if(due.isEmpty()) return;
+			if(request.isEmpty()) {
+				// nothing declared, so each member's run is a no-op as it is when it runs alone
+				for(Member m: due) m.nextDue = now + m.ext.getNextDelay();
+				return;
+			}
+			final HeapCensus shared;
+			final Context ctx = walkTimer.time();
+			try {
+				shared = NativeAgent.getInstance().heapCensus(request);
+				censusWalks.increment();
+			} catch (RuntimeException ex) {
+				// no member ran, so each retries after its base delay without its schedule adapting to the failure
+				for(Member m: due) m.nextDue = now + m.ext.getFixedDelay();
+				throw ex;
+			} finally {
+				ctx.stop();
+			}
+			final long walkMillis = shared.getElapsed();
+			for(Member m: due) {
+				m.ext.run(shared);
+				censusServed.increment();
+				m.nextDue = now + m.ext.getNextDelay(walkMillis);
+			}
+		}
+		
+		@Override
+		public String toString() {
+			return "CensusStage" + members;
+		}
+	}
+	
+	/**
+	 * A heap census extension registered with the census stage
+	 */
+	private static class Member {
+		final HeapCensusExtension ext;
+		volatile long nextDue;
+		
+		Member(final HeapCensusExtension ext, final long nextDue) {
+			this.ext = ext;
+			this.nextDue = nextDue;
+		}
+		
+		@Override
+		public String toString() {
+			return ext.getClass().getName();
+		}
+	}
+	
 	@Override
 	public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
-		Logger.error("Rejected Execution: {}, Qcap: {}", r, executor.getQueue().remainingCapacity());		
+		rejected.increment();
+		if(r instanceof ExtensionRun) {
+			((ExtensionRun)r).running.set(false);
+			((ExtensionRun)r).scheduleNext();
+		} else if(r instanceof CensusStage) {
+			((CensusStage)r).running.set(false);
+			((CensusStage)r).scheduleNext();
+		}
+		Logger.error("Rejected Execution: {}", r);		
 	}
 	
 	@Override
@@ -133,31 +405,98 @@ public class ExecutionScheduler implements ExecutionSchedulerMXBean, UncaughtExc
 	}
 
 	/**
-	 * @return
+	 * Returns the micrometer registry, creating it and adding it to the micrometer global registry on first call.
+	 * Meters registered with it are mirrored into {@link #getRegistry()} so they are reported with the extension metrics.
+	 * @return the micrometer registry
+	 */
+	public DropwizardMeterRegistry getMeterRegistry() {
+		if(meterRegistry==null) {
+			synchronized(lock) {
+				if(meterRegistry==null) {
+					final DropwizardMeterRegistry mr = new DropwizardMeterRegistry(HierarchicalNameMapper.DEFAULT, Clock.SYSTEM);
+					mr.getDropwizardRegistry().addListener(new MeterBridge());
+					Metrics.globalRegistry.add(mr);
+					meterRegistry = mr;
+					Logger.info("Micrometer registry Started");
+				}
+			}
+		}
+		return meterRegistry;
+	}
+	
+	/**
+	 * <p>Title: MeterBridge</p>
+	 * <p>Description: Mirrors the metrics of the micrometer registry's dropwizard registry into the extension metric registry</p>
+	 */
+	private class MeterBridge implements MetricRegistryListener {
+		/** The names of the metrics mirrored so far */
+		private final Set<String> mirrored = ConcurrentHashMap.newKeySet();
+		
+		private void add(final String name, final Metric metric) {
+			try {
+				registry.register(name, metric);
+				mirrored.add(name);
+			} catch (IllegalArgumentException ex) {
+				Logger.warn("Micrometer meter [{}] clashes with an existing metric and is not reported", name);
+			}
+		}
+		
+		private void remove(final String name) {
+			if(mirrored.remove(name)) registry.remove(name);
+		}
+		
+		@Override public void onGaugeAdded(final String name, final Gauge<?> gauge) { add(name, gauge); }
+		@Override public void onGaugeRemoved(final String name) { remove(name); }
+		@Override public void onCounterAdded(final String name, final Counter counter) { add(name, counter); }
+		@Override public void onCounterRemoved(final String name) { remove(name); }
+		@Override public void onHistogramAdded(final String name, final Histogram histogram) { add(name, histogram); }
+		@Override public void onHistogramRemoved(final String name) { remove(name); }
+		@Override public void onMeterAdded(final String name, final Meter meter) { add(name, meter); }
+		@Override public void onMeterRemoved(final String name) { remove(name); }
+		@Override public void onTimerAdded(final String name, final Timer timer) { add(name, timer); }
+		@Override public void onTimerRemoved(final String name) { remove(name); }
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.jvmti.extension.ExecutionSchedulerMXBean#getExecutionModel()
+	 */
+	public String getExecutionModel() {
+		return model.name();
+	}
+
+	/**
+	 * @return the core pool size, the parallelism of a work stealing pool or -1 for virtual threads
 	 * @see java.util.concurrent.ThreadPoolExecutor#getCorePoolSize()
 	 */
 	public int getCorePoolSize() {
-		return executor.getCorePoolSize();
+		if(executor instanceof ThreadPoolExecutor) return ((ThreadPoolExecutor)executor).getCorePoolSize();
+		if(executor instanceof ForkJoinPool) return ((ForkJoinPool)executor).getParallelism();
+		return -1;
 	}
 
 	/**
-	 * @return
+	 * @return the maximum pool size, the parallelism of a work stealing pool or -1 for virtual threads
 	 * @see java.util.concurrent.ThreadPoolExecutor#getMaximumPoolSize()
 	 */
 	public int getMaximumPoolSize() {
-		return executor.getMaximumPoolSize();
+		if(executor instanceof ThreadPoolExecutor) return ((ThreadPoolExecutor)executor).getMaximumPoolSize();
+		return getCorePoolSize();
 	}
 
 	/**
-	 * @return
+	 * @return the number of queued extension runs
 	 * @see java.util.concurrent.ThreadPoolExecutor#getQueue()
 	 */
 	public int getQueueDepth() {
-		return executor.getQueue().size();
+		if(executor instanceof ThreadPoolExecutor) return ((ThreadPoolExecutor)executor).getQueue().size();
+		if(executor instanceof ForkJoinPool) return ((ForkJoinPool)executor).getQueuedSubmissionCount();
+		return 0;
 	}
 	
 	public int getQueueAvailCap() {
-		return executor.getQueue().remainingCapacity();
+		if(executor instanceof ThreadPoolExecutor) return ((ThreadPoolExecutor)executor).getQueue().remainingCapacity();
+		return Integer.MAX_VALUE;
 	}
 	
 
@@ -166,46 +505,81 @@ public class ExecutionScheduler implements ExecutionSchedulerMXBean, UncaughtExc
 	 * @see java.util.concurrent.ThreadPoolExecutor#purge()
 	 */
 	public void purge() {
-		executor.purge();
+		if(executor instanceof ThreadPoolExecutor) ((ThreadPoolExecutor)executor).purge();
 	}
 
 	/**
-	 * @return
+	 * @return the number of executor threads, or -1 for virtual threads
 	 * @see java.util.concurrent.ThreadPoolExecutor#getPoolSize()
 	 */
 	public int getPoolSize() {
-		return executor.getPoolSize();
+		if(executor instanceof ThreadPoolExecutor) return ((ThreadPoolExecutor)executor).getPoolSize();
+		if(executor instanceof ForkJoinPool) return ((ForkJoinPool)executor).getPoolSize();
+		return -1;
 	}
 
 	/**
-	 * @return
+	 * @return the number of extension runs in progress
 	 * @see java.util.concurrent.ThreadPoolExecutor#getActiveCount()
 	 */
 	public int getActiveCount() {
-		return executor.getActiveCount();
+		return (int)(submitted.sum() - completed.sum() - rejected.sum()) - getQueueDepth();
 	}
 
 	/**
-	 * @return
+	 * @return the largest number of executor threads, or -1 if not known
 	 * @see java.util.concurrent.ThreadPoolExecutor#getLargestPoolSize()
 	 */
 	public int getLargestPoolSize() {
-		return executor.getLargestPoolSize();
+		if(executor instanceof ThreadPoolExecutor) return ((ThreadPoolExecutor)executor).getLargestPoolSize();
+		return -1;
 	}
 
 	/**
-	 * @return
+	 * @return the number of extension runs submitted
 	 * @see java.util.concurrent.ThreadPoolExecutor#getTaskCount()
 	 */
 	public long getTaskCount() {
-		return executor.getTaskCount();
+		return submitted.sum();
 	}
 
 	/**
-	 * @return
+	 * @return the number of extension runs completed
 	 * @see java.util.concurrent.ThreadPoolExecutor#getCompletedTaskCount()
 	 */
 	public long getCompletedTaskCount() {
-		return executor.getCompletedTaskCount();
+		return completed.sum();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.jvmti.extension.ExecutionSchedulerMXBean#getSkippedTickCount()
+	 */
+	public long getSkippedTickCount() {
+		return skipped.sum();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.jvmti.extension.ExecutionSchedulerMXBean#getRejectedCount()
+	 */
+	public long getRejectedCount() {
+		return rejected.sum();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.jvmti.extension.ExecutionSchedulerMXBean#getCensusWalkCount()
+	 */
+	public long getCensusWalkCount() {
+		return censusWalks.sum();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.jvmti.extension.ExecutionSchedulerMXBean#getCensusServedCount()
+	 */
+	public long getCensusServedCount() {
+		return censusServed.sum();
 	}
 }
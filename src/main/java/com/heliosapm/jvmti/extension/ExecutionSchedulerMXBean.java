@@ -2,6 +2,12 @@ package com.heliosapm.jvmti.extension;
 
 public interface ExecutionSchedulerMXBean {
 	
+	/**
+	 * @return the name of the execution model extensions run with
+	 * @see ExecutionModel
+	 */
+	public String getExecutionModel();
+	
 	public int getCorePoolSize();
 
 	/**
@@ -54,4 +60,24 @@ public interface ExecutionSchedulerMXBean {
 	 * @see java.util.concurrent.ThreadPoolExecutor#getCompletedTaskCount()
 	 */
 	public long getCompletedTaskCount();
+
+	/**
+	 * @return the number of ticks skipped because the extension's previous run had not finished
+	 */
+	public long getSkippedTickCount();
+
+	/**
+	 * @return the number of extension runs rejected by the executor
+	 */
+	public long getRejectedCount();
+
+	/**
+	 * @return the number of shared heap census walks
+	 */
+	public long getCensusWalkCount();
+
+	/**
+	 * @return the number of heap census extension runs served by a shared walk
+	 */
+	public long getCensusServedCount();
 }
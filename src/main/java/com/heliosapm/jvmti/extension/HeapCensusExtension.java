@@ -0,0 +1,67 @@
+/**
+ * 
+ */
+package com.heliosapm.jvmti.extension;
+
+import com.codahale.metrics.MetricRegistry;
+import com.heliosapm.jvmti.agent.HeapCensus;
+import com.heliosapm.jvmti.agent.HeapCensusRequest;
+import com.heliosapm.jvmti.agent.NativeAgent;
+
+/**
+ * A scheduled extension that consumes heap data. Rather than walking the heap itself, it declares what it needs
+ * and the {@link ExecutionScheduler}'s census stage runs one walk per tick for every heap extension that is due,
+ * handing each the shared {@link HeapCensus}. Run outside of the scheduler, it walks the heap for itself.
+ * @author nwhitehead
+ */
+public abstract class HeapCensusExtension extends ScheduledExtension {
+	/** The census supplied by the census stage for the current run */
+	private volatile HeapCensus shared = null;
+	
+	/**
+	 * Declares the heap data this extension needs. Called before every walk.
+	 * @param request The request to declare into, which may be shared with other extensions
+	 * @throws Exception thrown if the extension cannot declare its needs, which stops its scheduled execution
+	 */
+	public abstract void declare(HeapCensusRequest request) throws Exception;
+	
+	/**
+	 * Consumes the census collected for this extension
+	 * @param census The census, which may also contain data declared by other extensions
+	 * @throws Exception thrown on any error
+	 */
+	public abstract void doRun(HeapCensus census) throws Exception;
+	
+	protected HeapCensusExtension(final MetricRegistry metricRegistry, final NativeAgent nativeAgent) {
+		super(metricRegistry, nativeAgent);
+	}
+	
+	/**
+	 * Runs against the shared census if one was supplied, otherwise walks the heap for this extension alone
+	 * @see com.heliosapm.jvmti.extension.ScheduledExtension#doRun()
+	 */
+	@Override
+	public final void doRun() throws Exception {
+		HeapCensus census = shared;
+		if(census==null) {
+			final HeapCensusRequest request = new HeapCensusRequest();
+			declare(request);
+			if(request.isEmpty()) return;
+			census = nativeAgent.heapCensus(request);
+		}
+		doRun(census);
+	}
+	
+	/**
+	 * Runs this extension against a census collected by the census stage
+	 * @param census The shared census
+	 */
+	void run(final HeapCensus census) {
+		shared = census;
+		try {
+			run();
+		} finally {
+			shared = null;
+		}
+	}
+}
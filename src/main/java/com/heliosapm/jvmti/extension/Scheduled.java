@@ -30,6 +30,15 @@ public @interface Scheduled {
 	 * @since 3.2
 	 */
 	long initialDelay() default 0;
+	
+	/**
+	 * Stretch the {@link #fixedDelay()} as runs get slower, so the time spent running stays under the
+	 * <code>com.heliosapm.jvmti.scheduler.overhead</code> fraction of wall time. 
+	 * Intended for extensions that pause the JVM, such as heap walks, whose cost grows with the heap.
+	 * The fixed delay is the minimum delay.
+	 * @return true to adapt the delay to the measured run time
+	 */
+	boolean adaptive() default false;
 
 
 }
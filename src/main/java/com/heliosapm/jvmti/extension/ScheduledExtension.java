@@ -4,6 +4,8 @@
 package com.heliosapm.jvmti.extension;
 
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.pmw.tinylog.Logger;
 
@@ -26,6 +28,27 @@ public abstract class ScheduledExtension implements Runnable {
 	protected final Counter runErrors;
 	protected final long fixedDelay;
 	protected final long initialDelay;
+	/** Indicates the delay is adapted to the measured run time */
+	protected final boolean adaptive;
+	/** The exponentially weighted moving average run time in nanos */
+	private volatile long avgRunNanos = 0L;
+	/** Set once the extension has been stopped */
+	private final AtomicBoolean stopped = new AtomicBoolean(false);
+	
+	/** The system property for the maximum fraction of wall time an adaptive extension may spend running */
+	public static final String OVERHEAD_PROP = "com.heliosapm.jvmti.scheduler.overhead";
+	/** The default maximum fraction of wall time an adaptive extension may spend running */
+	public static final double DEFAULT_OVERHEAD = 0.01d;
+	/** The system property for the maximum delay in ms of an adaptive extension */
+	public static final String MAX_DELAY_PROP = "com.heliosapm.jvmti.scheduler.maxdelay";
+	/** The default maximum delay in ms of an adaptive extension */
+	public static final long DEFAULT_MAX_DELAY = 300000L;
+	/** The weight of the latest run time in the moving average */
+	private static final double RUN_TIME_WEIGHT = 0.3d;
+	/** The configured maximum fraction of wall time an adaptive extension may spend running */
+	private static final double OVERHEAD = Double.parseDouble(System.getProperty(OVERHEAD_PROP, Double.toString(DEFAULT_OVERHEAD)));
+	/** The configured maximum delay in ms of an adaptive extension */
+	private static final long MAX_DELAY = Long.getLong(MAX_DELAY_PROP, DEFAULT_MAX_DELAY);
 	
 	
 	
@@ -40,14 +63,17 @@ public abstract class ScheduledExtension implements Runnable {
 		if(scheduled!=null && scheduled.fixedDelay()!=-1) {
 			fixedDelay = scheduled.fixedDelay();
 			initialDelay = scheduled.initialDelay();
+			adaptive = scheduled.adaptive();
 		} else {
 			fixedDelay = -1;
 			initialDelay = -1;			
+			adaptive = false;
 		}
 	}
 	
 	public final void run() {
 		Context ctx = runTimer.time();
+		final long start = System.nanoTime();
 		try {
 			doRun();
 			ctx.close();
@@ -55,8 +81,76 @@ public abstract class ScheduledExtension implements Runnable {
 			runErrors.inc();
 			Logger.warn("ScheduledExtension execution failure", ex);
 			ex.printStackTrace(System.err);
+		} finally {
+			final long elapsed = System.nanoTime() - start;
+			final long avg = avgRunNanos;
+			avgRunNanos = avg==0 ? elapsed : avg + (long)((elapsed - avg) * RUN_TIME_WEIGHT);
 		}
 	}
+	
+	/**
+	 * Stops the extension, cancelling its schedule and releasing its resources through {@link #onStop()}.
+	 * Only the first call has any effect.
+	 */
+	public final void stop() {
+		if(!stopped.compareAndSet(false, true)) return;
+		final ScheduledFuture<?> handle = scheduleHandle;
+		if(handle!=null) handle.cancel(false);
+		try {
+			onStop();
+		} catch (Exception ex) {
+			Logger.warn("ScheduledExtension stop failure", ex);
+		}
+	}
+	
+	/**
+	 * Releases the extension's resources when it is stopped. The default does nothing.
+	 * @throws Exception thrown if a resource cannot be released
+	 */
+	protected void onStop() throws Exception {
+		/* No Op */
+	}
+	
+	/**
+	 * @return true if the extension has been stopped
+	 */
+	public boolean isStopped() {
+		return stopped.get();
+	}
+	
+	/**
+	 * Returns the delay before the next run. For adaptive extensions this is the delay that keeps the
+	 * average run time under the configured fraction of wall time, otherwise it is the fixed delay.
+	 * @return the delay in ms
+	 */
+	public long getNextDelay() {
+		return getNextDelay(0L);
+	}
+	
+	/**
+	 * Returns the delay before the next run, adding the passed time spent on the extension's behalf outside of its own run
+	 * @param sharedMillis The time in ms spent on the extension's behalf, such as its share of a heap walk
+	 * @return the delay in ms
+	 */
+	long getNextDelay(final long sharedMillis) {
+		if(!adaptive) return fixedDelay;
+		return adaptiveDelay(TimeUnit.NANOSECONDS.toMillis(avgRunNanos) + sharedMillis, OVERHEAD, fixedDelay, MAX_DELAY);
+	}
+	
+	/**
+	 * Computes the delay after a run that keeps the time spent running under a fraction of wall time
+	 * @param runMillis The run time in ms
+	 * @param overhead The maximum fraction of wall time spent running
+	 * @param minDelay The minimum delay in ms
+	 * @param maxDelay The maximum delay in ms
+	 * @return the delay in ms
+	 */
+	static long adaptiveDelay(final long runMillis, final double overhead, final long minDelay, final long maxDelay) {
+		if(overhead <= 0 || overhead >= 1) throw new IllegalArgumentException("Invalid overhead fraction:" + overhead);
+		// runMillis / (runMillis + delay) <= overhead
+		final double delay = runMillis * (1d - overhead) / overhead;
+		return Math.max(minDelay, Math.min(Math.max(minDelay, maxDelay), (long)Math.ceil(delay)));
+	}
 
 	/**
 	 * @return the fixedDelay
@@ -65,6 +159,20 @@ public abstract class ScheduledExtension implements Runnable {
 		return fixedDelay;
 	}
 
+	/**
+	 * @return true if the delay is adapted to the measured run time
+	 */
+	public boolean isAdaptive() {
+		return adaptive;
+	}
+
+	/**
+	 * @return the average run time in ms
+	 */
+	public long getAverageRunTime() {
+		return TimeUnit.NANOSECONDS.toMillis(avgRunNanos);
+	}
+
 	/**
 	 * @return the initialDelay
 	 */
@@ -0,0 +1,154 @@
+/**
+ * 
+ */
+package com.heliosapm.jvmti.extension.impls;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+import org.pmw.tinylog.Logger;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.heliosapm.jvmti.agent.Agent;
+import com.heliosapm.jvmti.agent.HeapCensus;
+import com.heliosapm.jvmti.agent.HeapCensusRequest;
+import com.heliosapm.jvmti.agent.NativeAgent;
+import com.heliosapm.jvmti.extension.HeapCensusExtension;
+import com.heliosapm.jvmti.extension.Scheduled;
+import com.heliosapm.jvmti.snapshot.CensusRing;
+import com.heliosapm.jvmti.snapshot.CensusRing.Tick;
+import com.heliosapm.utils.jmx.JMXHelper;
+
+/**
+ * Periodically takes the class counts of the whole heap from the shared heap census and appends it to a memory mapped {@link CensusRing}
+ * so the recent history of the heap composition survives restarts and costs no heap to retain.
+ * The ring file and its size are configured with the {@link #CONFIG_RING_FILE} and {@link #CONFIG_RING_SIZE} system properties.
+ * The ring is locked while open, so JVMs sharing a host must each configure their own ring file.
+ * @author nwhitehead
+ */
+@Scheduled(fixedDelay=60000, initialDelay=5000, adaptive=true)
+public class ClassHistogramExtension extends HeapCensusExtension implements ClassHistogramExtensionMBean {
+	/** The system property defining the census ring file */
+	public static final String CONFIG_RING_FILE = "com.heliosapm.jvmti.census.ring.file";
+	/** The system property defining the census ring data capacity in bytes */
+	public static final String CONFIG_RING_SIZE = "com.heliosapm.jvmti.census.ring.size";
+	/** The default census ring file */
+	public static final String DEFAULT_RING_FILE = new File(System.getProperty("java.io.tmpdir"), "oifagent-census.ring").getAbsolutePath();
+	/** The default census ring data capacity */
+	public static final long DEFAULT_RING_SIZE = 64L * 1024L * 1024L;
+	
+	private final ObjectName objectName = JMXHelper.objectName("com.heliosapm.jvmti:service=ClassHistory");
+	private final CensusRing ring;
+	/** The last census instance count and bytes, replaced as a pair by the scheduler thread and read by the gauges */
+	private volatile long[] lastTotals = new long[2];
+	
+	/**
+	 * @param metricRegistry
+	 * @param nativeAgent
+	 * @throws Exception thrown if the census ring cannot be opened
+	 */
+	public ClassHistogramExtension(MetricRegistry metricRegistry, NativeAgent nativeAgent) throws Exception {
+		super(metricRegistry, nativeAgent);
+		final File file = new File(System.getProperty(CONFIG_RING_FILE, DEFAULT_RING_FILE));
+		final long size = Long.parseLong(System.getProperty(CONFIG_RING_SIZE, Long.toString(DEFAULT_RING_SIZE)).trim());
+		ring = CensusRing.open(file, size);
+		Logger.info("Class census ring opened at [{}], capacity: {} bytes", file, ring.getCapacity());
+		metricRegistry.register(MetricRegistry.name(getClass(), "instance.count"), (Gauge<Long>)() -> lastTotals[0]);
+		metricRegistry.register(MetricRegistry.name(getClass(), "instance.bytes"), (Gauge<Long>)() -> lastTotals[1]);
+		metricRegistry.register(MetricRegistry.name(getClass(), "ring.retained"), (Gauge<Long>)ring::getRetainedBytes);
+		JMXHelper.registerMBean(this, objectName);
+	}
+
+	/**
+	 * 
+	 * @see com.heliosapm.jvmti.extension.HeapCensusExtension#declare(com.heliosapm.jvmti.agent.HeapCensusRequest)
+	 */
+	@Override
+	public void declare(final HeapCensusRequest request) {
+		request.countAll();
+	}
+
+	/**
+	 * 
+	 * @see com.heliosapm.jvmti.extension.HeapCensusExtension#doRun(com.heliosapm.jvmti.agent.HeapCensus)
+	 */
+	@Override
+	public void doRun(final HeapCensus census) throws Exception {
+		final Class<?>[] classes = census.getClasses();
+		final String[] names = new String[classes.length];
+		for(int i = 0; i < classes.length; i++) names[i] = Agent.renderClassName(classes[i]);
+		ring.append(census.getTimestamp(), names, census.getCounts(), census.getSizes());
+		lastTotals = new long[]{census.getTotalCount(), census.getTotalSize()};
+	}
+	
+	/**
+	 * Flushes and closes the census ring and unregisters the history MBean
+	 * @see com.heliosapm.jvmti.extension.ScheduledExtension#onStop()
+	 */
+	@Override
+	protected void onStop() throws Exception {
+		try {
+			ring.close();
+		} finally {
+			if(JMXHelper.isRegistered(objectName)) JMXHelper.unregisterMBean(objectName);
+		}
+	}
+	
+	/**
+	 * Returns the census ring
+	 * @return the census ring
+	 */
+	public CensusRing getRing() {
+		return ring;
+	}
+
+	@Override
+	public LinkedHashMap<Long, LinkedHashMap<String, long[]>> queryHistory(final long fromTime, final long toTime, final int topN) {
+		if(topN < 1) throw new IllegalArgumentException("Invalid topN:" + topN);
+		final LinkedHashMap<Long, LinkedHashMap<String, long[]>> history = new LinkedHashMap<Long, LinkedHashMap<String, long[]>>();
+		ring.replay(fromTime, toTime, tick -> history.put(tick.timestamp, topN(tick, topN)));
+		return history;
+	}
+	
+	@Override
+	public LinkedHashMap<Long, LinkedHashMap<String, long[]>> queryRecentHistory(final int minutes, final int topN) {
+		final long now = System.currentTimeMillis();
+		return queryHistory(now - TimeUnit.MINUTES.toMillis(minutes), now, topN);
+	}
+	
+	private LinkedHashMap<String, long[]> topN(final Tick tick, final int topN) {
+		final Integer[] order = new Integer[tick.classIndexes.length];
+		for(int i = 0; i < order.length; i++) order[i] = i;
+		Arrays.sort(order, (a, b) -> Long.compare(tick.bytes[b], tick.bytes[a]));
+		final LinkedHashMap<String, long[]> top = new LinkedHashMap<String, long[]>();
+		for(int i = 0; i < order.length && i < topN; i++) {
+			top.put(ring.className(tick.classIndexes[order[i]]), new long[]{tick.counts[order[i]], tick.bytes[order[i]]});
+		}
+		return top;
+	}
+
+	@Override
+	public String getRingFile() {
+		return ring.getFile().getAbsolutePath();
+	}
+
+	@Override
+	public long getRecordCount() {
+		return ring.getRecordCount();
+	}
+
+	@Override
+	public long getRetainedBytes() {
+		return ring.getRetainedBytes();
+	}
+
+	@Override
+	public long getCapacity() {
+		return ring.getCapacity();
+	}
+}
@@ -0,0 +1,53 @@
+/**
+ * 
+ */
+package com.heliosapm.jvmti.extension.impls;
+
+import java.util.LinkedHashMap;
+
+/**
+ * JMX interface for the {@link ClassHistogramExtension}
+ * @author nwhitehead
+ */
+public interface ClassHistogramExtensionMBean {
+	/**
+	 * Replays the census ticks recorded between the passed times
+	 * @param fromTime The earliest tick time in ms since the epoch
+	 * @param toTime The latest tick time in ms since the epoch
+	 * @param topN The number of classes to return per tick, by descending bytes
+	 * @return a map of <code>[count, bytes]</code> keyed by class name, keyed by tick time
+	 */
+	public LinkedHashMap<Long, LinkedHashMap<String, long[]>> queryHistory(long fromTime, long toTime, int topN);
+	
+	/**
+	 * Replays the census ticks recorded in the last <code>minutes</code> minutes
+	 * @param minutes The number of minutes of history to return
+	 * @param topN The number of classes to return per tick, by descending bytes
+	 * @return a map of <code>[count, bytes]</code> keyed by class name, keyed by tick time
+	 */
+	public LinkedHashMap<Long, LinkedHashMap<String, long[]>> queryRecentHistory(int minutes, int topN);
+	
+	/**
+	 * Returns the census ring file name
+	 * @return the ring file name
+	 */
+	public String getRingFile();
+	
+	/**
+	 * Returns the total number of ticks recorded in the ring file
+	 * @return the tick count
+	 */
+	public long getRecordCount();
+	
+	/**
+	 * Returns the bytes used by retained ticks
+	 * @return the retained bytes
+	 */
+	public long getRetainedBytes();
+	
+	/**
+	 * Returns the ring capacity in bytes
+	 * @return the ring capacity
+	 */
+	public long getCapacity();
+}
@@ -9,16 +9,18 @@ import org.pmw.tinylog.Logger;
 
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.MetricRegistry;
+import com.heliosapm.jvmti.agent.HeapCensus;
+import com.heliosapm.jvmti.agent.HeapCensusRequest;
 import com.heliosapm.jvmti.agent.NativeAgent;
+import com.heliosapm.jvmti.extension.HeapCensusExtension;
 import com.heliosapm.jvmti.extension.Scheduled;
-import com.heliosapm.jvmti.extension.ScheduledExtension;
 
 /**
  * @author nwhitehead
  *
  */
-@Scheduled(fixedDelay=5000, initialDelay=1000)
-public class DirectByteBufferAllocations extends ScheduledExtension {
+@Scheduled(fixedDelay=5000, initialDelay=1000, adaptive=true)
+public class DirectByteBufferAllocations extends HeapCensusExtension {
 	private static final String DBB_NAME = "java.nio.DirectByteBuffer";
 	private static volatile Class<? extends ByteBuffer> clazz = null;
 	private final long[] instanceCount = new long[]{0};
@@ -48,31 +50,31 @@ public class DirectByteBufferAllocations extends ScheduledExtension {
 	}
 
 	/**
-	 * 
-	 * @see com.heliosapm.jvmti.extension.ScheduledExtension#doRun()
+	 * Counts the direct buffers and sums their capacity field, so no buffer is referenced
+	 * @see com.heliosapm.jvmti.extension.HeapCensusExtension#declare(com.heliosapm.jvmti.agent.HeapCensusRequest)
 	 */
 	@SuppressWarnings("unchecked")
 	@Override
-	public void doRun() throws Exception {
+	public void declare(final HeapCensusRequest request) throws Exception {
 		if(clazz==null) {
 			try {
 				clazz = (Class<? extends ByteBuffer>) Class.forName(DBB_NAME);
 			} catch (Exception ex) {
 				Logger.error("Failed to load class [{}]. Stopping scheduled execution.", DBB_NAME, ex);
-				if(scheduleHandle != null) {
-					scheduleHandle.cancel(true);
-				}
-				return;
+				throw ex;
 			}
 		}
-		final long[] iCount = new long[]{0};
-		final long[] tAllocated = new long[]{0};
-		nativeAgent.instancesOf(clazz, Integer.MAX_VALUE, buff -> {
-			iCount[0]++;
-			tAllocated[0] += buff.capacity();			
-		});
-		instanceCount[0] = iCount[0];
-		totalAllocated[0] = tAllocated[0];		
+		request.sum(clazz, "capacity");
+	}
+
+	/**
+	 * 
+	 * @see com.heliosapm.jvmti.extension.HeapCensusExtension#doRun(com.heliosapm.jvmti.agent.HeapCensus)
+	 */
+	@Override
+	public void doRun(final HeapCensus census) throws Exception {
+		instanceCount[0] = census.getCount(clazz);
+		totalAllocated[0] = census.getFieldSum(clazz, "capacity");
 	}
 
 }
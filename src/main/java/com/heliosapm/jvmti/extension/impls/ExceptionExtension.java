@@ -0,0 +1,102 @@
+/**
+ * 
+ */
+package com.heliosapm.jvmti.extension.impls;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+import org.pmw.tinylog.Logger;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.heliosapm.jvmti.agent.NativeAgent;
+import com.heliosapm.jvmti.extension.Scheduled;
+import com.heliosapm.jvmti.extension.ScheduledExtension;
+import com.heliosapm.utils.jmx.JMXHelper;
+
+/**
+ * Counts exception throws per exception class and throw site with the JVMTI <code>Exception</code> event.
+ * The throw site comes with the event so no stack is walked. Each run marks the total throw meter and the
+ * throw meters of the {@link #TRACKED_CLASSES} most thrown exception classes.
+ * HotSpot only grants exception events to an agent loaded on the command line with the <code>exceptions</code> option.
+ * @author nwhitehead
+ */
+@Scheduled(fixedDelay=5000, initialDelay=1000)
+public class ExceptionExtension extends ScheduledExtension implements ExceptionExtensionMBean {
+	/** The maximum number of exception classes a throw meter is registered for */
+	public static final int TRACKED_CLASSES = 32;
+	
+	private final ObjectName objectName = JMXHelper.objectName("com.heliosapm.jvmti:service=Exceptions");
+	private final Meter throwMeter;
+	private final Map<String, long[]> classCounts = new LinkedHashMap<String, long[]>();
+	private final Map<String, Meter> classMeters = new LinkedHashMap<String, Meter>();
+	private volatile long throwCount;
+	private volatile boolean enabled;
+
+	/**
+	 * @param metricRegistry
+	 * @param nativeAgent
+	 */
+	public ExceptionExtension(MetricRegistry metricRegistry, NativeAgent nativeAgent) {
+		super(metricRegistry, nativeAgent);
+		enabled = nativeAgent.setExceptionEventsEnabled(true);
+		if(!enabled) Logger.warn("Exception events are not supported by this JVM");
+		throwCount = nativeAgent.throwCount();
+		throwMeter = metricRegistry.meter(MetricRegistry.name(getClass(), "throws"));
+		JMXHelper.registerMBean(this, objectName);
+	}
+
+	/**
+	 * 
+	 * @see com.heliosapm.jvmti.extension.ScheduledExtension#doRun()
+	 */
+	@Override
+	public void doRun() throws Exception {
+		final long count = nativeAgent.throwCount();
+		throwMeter.mark(Math.max(0, count - throwCount));
+		throwCount = count;
+		for(Map.Entry<String, Long> entry: nativeAgent.throwProfile().topExceptionClasses(TRACKED_CLASSES).entrySet()) {
+			final long[] prior = classCounts.get(entry.getKey());
+			if(prior!=null) {
+				classMeters.get(entry.getKey()).mark(Math.max(0, entry.getValue() - prior[0]));
+				prior[0] = entry.getValue();
+			} else if(classCounts.size() < TRACKED_CLASSES) {
+				classCounts.put(entry.getKey(), new long[]{entry.getValue()});
+				classMeters.put(entry.getKey(), metricRegistry.meter(MetricRegistry.name(getClass(), "class", entry.getKey(), "throws")));
+			}
+		}
+	}
+
+	@Override
+	public LinkedHashMap<String, Long> topThrowSites(final int topN) {
+		return nativeAgent.throwProfile().topSites(topN);
+	}
+
+	@Override
+	public LinkedHashMap<String, Long> topExceptionClasses(final int topN) {
+		return nativeAgent.throwProfile().topExceptionClasses(topN);
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	@Override
+	public void setEnabled(final boolean enabled) {
+		if(nativeAgent.setExceptionEventsEnabled(enabled)) this.enabled = enabled;
+	}
+
+	@Override
+	public long getThrowCount() {
+		return throwCount;
+	}
+
+	@Override
+	public double getThrowRate() {
+		return throwMeter.getOneMinuteRate();
+	}
+}
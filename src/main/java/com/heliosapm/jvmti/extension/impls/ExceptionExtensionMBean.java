@@ -0,0 +1,50 @@
+/**
+ * 
+ */
+package com.heliosapm.jvmti.extension.impls;
+
+import java.util.LinkedHashMap;
+
+/**
+ * JMX interface for the {@link ExceptionExtension}
+ * @author nwhitehead
+ */
+public interface ExceptionExtensionMBean {
+	/**
+	 * Returns the most frequent throw sites
+	 * @param topN The maximum number of sites to return
+	 * @return a map of throw counts keyed by <code>exception class &lt;- throw site</code>
+	 */
+	public LinkedHashMap<String, Long> topThrowSites(int topN);
+	
+	/**
+	 * Returns the most frequently thrown exception classes
+	 * @param topN The maximum number of exception classes to return
+	 * @return a map of throw counts keyed by exception class name
+	 */
+	public LinkedHashMap<String, Long> topExceptionClasses(int topN);
+	
+	/**
+	 * Indicates if throw counting is enabled
+	 * @return true if enabled
+	 */
+	public boolean isEnabled();
+	
+	/**
+	 * Enables or disables throw counting
+	 * @param enabled true to enable, false to disable
+	 */
+	public void setEnabled(boolean enabled);
+	
+	/**
+	 * Returns the total number of exceptions thrown
+	 * @return the throw count
+	 */
+	public long getThrowCount();
+	
+	/**
+	 * Returns the one minute throw rate
+	 * @return the throws per second
+	 */
+	public double getThrowRate();
+}
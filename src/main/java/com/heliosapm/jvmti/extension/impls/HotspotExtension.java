@@ -3,19 +3,23 @@
  */
 package com.heliosapm.jvmti.extension.impls;
 
+import java.util.concurrent.TimeUnit;
+
 import javax.management.ObjectName;
 
 import org.pmw.tinylog.Logger;
 
-import com.codahale.metrics.JmxAttributeGauge;
 import com.codahale.metrics.MetricRegistry;
 import com.heliosapm.jvmti.agent.NativeAgent;
 import com.heliosapm.jvmti.extension.Scheduled;
 import com.heliosapm.jvmti.extension.ScheduledExtension;
 import com.heliosapm.jvmti.metrics.LongGauge;
+import com.heliosapm.jvmti.util.HsPerfData;
 import com.heliosapm.utils.jmx.JMXHelper;
 
 /**
+ * Reads the safepoint counters from this JVM's hsperfdata file when it is available,
+ * falling back to the <code>sun.management:type=HotspotRuntime</code> MBean.
  * @author nwhitehead
  *
  */
@@ -26,13 +30,33 @@ public class HotspotExtension extends ScheduledExtension {
 	final LongGauge safepointCount = new LongGauge();
 	final LongGauge safepointSyncTime = new LongGauge();
 	final LongGauge totalSafepointTime = new LongGauge();
+	/** The mapped perf data of this JVM, null once closed or if unavailable */
+	volatile HsPerfData perfData;
+	volatile HsPerfData.Counter safepoints;
+	volatile HsPerfData.Counter safepointSyncTicks;
+	volatile HsPerfData.Counter safepointTicks;
 	/**
 	 * @param metricRegistry
 	 * @param nativeAgent
 	 */
 	public HotspotExtension(MetricRegistry metricRegistry, NativeAgent nativeAgent) {
 		super(metricRegistry, nativeAgent);		
-		enabled = JMXHelper.registerHotspotInternal();
+		HsPerfData perfData = null;
+		try {
+			perfData = HsPerfData.self();
+		} catch (Exception ex) {
+			Logger.info("hsperfdata unavailable, using HotspotRuntime MBean: {}", ex.toString());
+		}
+		safepoints = perfData==null ? null : perfData.getCounter("sun.rt.safepoints");
+		safepointSyncTicks = perfData==null ? null : perfData.getCounter("sun.rt.safepointSyncTime");
+		safepointTicks = perfData==null ? null : perfData.getCounter("sun.rt.safepointTime");
+		if(safepoints!=null && safepointSyncTicks!=null && safepointTicks!=null) {
+			this.perfData = perfData;
+			enabled = true;
+		} else {
+			closePerfData(perfData);
+			enabled = JMXHelper.registerHotspotInternal();
+		}
 		if(enabled) {
 			metricRegistry.register(MetricRegistry.name(getClass(), "runtime.safepoint.count"), safepointCount);
 			metricRegistry.register(MetricRegistry.name(getClass(), "runtime.safepoint.synctime"), safepointSyncTime);
@@ -52,15 +76,43 @@ public class HotspotExtension extends ScheduledExtension {
 	public void doRun() throws Exception {
 		if(!enabled) {
 			Logger.info("HotspotExtension failed to register. Cancelling schedule");
-			if(scheduleHandle!=null) {
-				scheduleHandle.cancel(true);
-			}
+			stop();
 			return;			
 		}
+		final HsPerfData.Counter safepoints = this.safepoints, safepointSyncTicks = this.safepointSyncTicks, safepointTicks = this.safepointTicks;
+		if(safepoints!=null && safepointSyncTicks!=null && safepointTicks!=null) {
+			safepointCount.update(safepoints.get());
+			safepointSyncTime.update(safepointSyncTicks.get(TimeUnit.MILLISECONDS));
+			totalSafepointTime.update(safepointTicks.get(TimeUnit.MILLISECONDS));
+			return;
+		}
 		safepointCount.update(JMXHelper.getAttribute(hotspotRuntime, "SafepointCount"));
 		safepointSyncTime.update(JMXHelper.getAttribute(hotspotRuntime, "SafepointSyncTime"));
 		totalSafepointTime.update(JMXHelper.getAttribute(hotspotRuntime, "TotalSafepointTime"));
 		
 	}
+	
+	/**
+	 * Closes the perf data file and drops the counters so the mapping can be released
+	 * @see com.heliosapm.jvmti.extension.ScheduledExtension#onStop()
+	 */
+	@Override
+	protected void onStop() throws Exception {
+		safepoints = null;
+		safepointSyncTicks = null;
+		safepointTicks = null;
+		final HsPerfData pd = perfData;
+		perfData = null;
+		closePerfData(pd);
+	}
+	
+	private static void closePerfData(final HsPerfData perfData) {
+		if(perfData==null) return;
+		try {
+			perfData.close();
+		} catch (Exception ex) {
+			Logger.warn("Failed to close hsperfdata: {}", ex.toString());
+		}
+	}
 
 }
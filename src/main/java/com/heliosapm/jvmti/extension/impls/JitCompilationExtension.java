@@ -0,0 +1,110 @@
+/**
+ * 
+ */
+package com.heliosapm.jvmti.extension.impls;
+
+import java.util.LinkedHashMap;
+
+import javax.management.ObjectName;
+
+import org.pmw.tinylog.Logger;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.heliosapm.jvmti.agent.NativeAgent;
+import com.heliosapm.jvmti.extension.Scheduled;
+import com.heliosapm.jvmti.extension.ScheduledExtension;
+import com.heliosapm.jvmti.snapshot.JitProfile;
+import com.heliosapm.utils.jmx.JMXHelper;
+
+/**
+ * Tracks JIT compilation with the JVMTI <code>CompiledMethodLoad</code>, <code>CompiledMethodUnload</code> 
+ * and <code>DynamicCodeGenerated</code> events. Each run refreshes the code cache gauges and marks the
+ * load, unload and recompile meters so deoptimization and recompilation storms show up as rate spikes.
+ * @author nwhitehead
+ */
+@Scheduled(fixedDelay=5000, initialDelay=1000)
+public class JitCompilationExtension extends ScheduledExtension implements JitCompilationExtensionMBean {
+	private final ObjectName objectName = JMXHelper.objectName("com.heliosapm.jvmti:service=JitCompilation");
+	private final Meter loads;
+	private final Meter unloads;
+	private final Meter recompiles;
+	private volatile long[] totals;
+
+	/**
+	 * @param metricRegistry
+	 * @param nativeAgent
+	 */
+	public JitCompilationExtension(MetricRegistry metricRegistry, NativeAgent nativeAgent) {
+		super(metricRegistry, nativeAgent);
+		if(!nativeAgent.setJitEventsEnabled(true)) Logger.warn("Compiled method events are not supported by this JVM");
+		totals = nativeAgent.jitTotals();
+		loads = metricRegistry.meter(MetricRegistry.name(getClass(), "loads"));
+		unloads = metricRegistry.meter(MetricRegistry.name(getClass(), "unloads"));
+		recompiles = metricRegistry.meter(MetricRegistry.name(getClass(), "recompiles"));
+		metricRegistry.register(MetricRegistry.name(getClass(), "live.methods"), (Gauge<Long>)this::getLiveMethods);
+		metricRegistry.register(MetricRegistry.name(getClass(), "live.bytes"), (Gauge<Long>)this::getLiveCodeBytes);
+		metricRegistry.register(MetricRegistry.name(getClass(), "dynamic.bytes"), (Gauge<Long>)this::getDynamicCodeBytes);
+		JMXHelper.registerMBean(this, objectName);
+	}
+
+	/**
+	 * 
+	 * @see com.heliosapm.jvmti.extension.ScheduledExtension#doRun()
+	 */
+	@Override
+	public void doRun() throws Exception {
+		final long[] prior = totals;
+		final long[] current = nativeAgent.jitTotals();
+		loads.mark(Math.max(0, current[JitProfile.LOADS] - prior[JitProfile.LOADS]));
+		unloads.mark(Math.max(0, current[JitProfile.UNLOADS] - prior[JitProfile.UNLOADS]));
+		recompiles.mark(Math.max(0, current[JitProfile.RECOMPILES] - prior[JitProfile.RECOMPILES]));
+		totals = current;
+	}
+
+	@Override
+	public LinkedHashMap<String, long[]> codeByPackage(final int topN) {
+		return nativeAgent.jitProfile().codeByPackage(topN);
+	}
+
+	@Override
+	public LinkedHashMap<String, long[]> topRecompiledMethods(final int topN) {
+		return nativeAgent.jitProfile().topRecompiled(topN);
+	}
+
+	@Override
+	public long getLoads() {
+		return totals[JitProfile.LOADS];
+	}
+
+	@Override
+	public long getUnloads() {
+		return totals[JitProfile.UNLOADS];
+	}
+
+	@Override
+	public long getRecompiles() {
+		return totals[JitProfile.RECOMPILES];
+	}
+
+	@Override
+	public long getLiveMethods() {
+		return totals[JitProfile.LIVE_METHODS];
+	}
+
+	@Override
+	public long getLiveCodeBytes() {
+		return totals[JitProfile.LIVE_BYTES];
+	}
+
+	@Override
+	public long getDynamicCodeBytes() {
+		return totals[JitProfile.DYNAMIC_BYTES];
+	}
+
+	@Override
+	public long getUntrackedLoads() {
+		return totals[JitProfile.UNTRACKED];
+	}
+}
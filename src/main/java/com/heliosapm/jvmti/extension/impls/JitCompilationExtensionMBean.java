@@ -0,0 +1,68 @@
+/**
+ * 
+ */
+package com.heliosapm.jvmti.extension.impls;
+
+import java.util.LinkedHashMap;
+
+/**
+ * JMX interface for the {@link JitCompilationExtension}
+ * @author nwhitehead
+ */
+public interface JitCompilationExtensionMBean {
+	/**
+	 * Returns the live compiled code size by package, largest first
+	 * @param topN The maximum number of packages to return
+	 * @return a map of <code>[liveMethods, liveBytes, loads]</code> keyed by package name
+	 */
+	public LinkedHashMap<String, long[]> codeByPackage(int topN);
+	
+	/**
+	 * Returns the most recompiled methods
+	 * @param topN The maximum number of methods to return
+	 * @return a map of <code>[loads, unloads, liveBytes]</code> keyed by method name
+	 */
+	public LinkedHashMap<String, long[]> topRecompiledMethods(int topN);
+	
+	/**
+	 * Returns the number of compiled method loads
+	 * @return the load count
+	 */
+	public long getLoads();
+	
+	/**
+	 * Returns the number of compiled method unloads
+	 * @return the unload count
+	 */
+	public long getUnloads();
+	
+	/**
+	 * Returns the number of loads of methods that had already been compiled
+	 * @return the recompile count
+	 */
+	public long getRecompiles();
+	
+	/**
+	 * Returns the number of methods with live compiled code
+	 * @return the live method count
+	 */
+	public long getLiveMethods();
+	
+	/**
+	 * Returns the size of the live compiled code
+	 * @return the live code size in bytes
+	 */
+	public long getLiveCodeBytes();
+	
+	/**
+	 * Returns the size of the dynamically generated code
+	 * @return the dynamic code size in bytes
+	 */
+	public long getDynamicCodeBytes();
+	
+	/**
+	 * Returns the number of compiled method loads not tracked per method because the native method table was full
+	 * @return the untracked load count
+	 */
+	public long getUntrackedLoads();
+}
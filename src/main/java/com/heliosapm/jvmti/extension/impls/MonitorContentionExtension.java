@@ -0,0 +1,108 @@
+/**
+ * 
+ */
+package com.heliosapm.jvmti.extension.impls;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+import org.pmw.tinylog.Logger;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.heliosapm.jvmti.agent.NativeAgent;
+import com.heliosapm.jvmti.extension.Scheduled;
+import com.heliosapm.jvmti.extension.ScheduledExtension;
+import com.heliosapm.jvmti.snapshot.ContentionProfile;
+import com.heliosapm.utils.jmx.JMXHelper;
+
+/**
+ * Tracks monitor contention with the JVMTI <code>MonitorContendedEnter</code> and <code>MonitorContendedEntered</code> events.
+ * Blocked time is aggregated natively per monitor class and contending call site, and each run refreshes the totals
+ * and the blocked time gauges of the {@link #TRACKED_CLASSES} most contended monitor classes.
+ * @author nwhitehead
+ */
+@Scheduled(fixedDelay=5000, initialDelay=1000)
+public class MonitorContentionExtension extends ScheduledExtension implements MonitorContentionExtensionMBean {
+	/** The maximum number of monitor classes a blocked time gauge is registered for */
+	public static final int TRACKED_CLASSES = 32;
+	
+	private final ObjectName objectName = JMXHelper.objectName("com.heliosapm.jvmti:service=MonitorContention");
+	private final Map<String, long[]> classTotals = new LinkedHashMap<String, long[]>();
+	private volatile ContentionProfile profile;
+	private volatile boolean enabled;
+
+	/**
+	 * @param metricRegistry
+	 * @param nativeAgent
+	 */
+	public MonitorContentionExtension(MetricRegistry metricRegistry, NativeAgent nativeAgent) {
+		super(metricRegistry, nativeAgent);
+		enabled = nativeAgent.setMonitorContentionEnabled(true);
+		if(!enabled) Logger.warn("Monitor contention events are not supported by this JVM");
+		profile = nativeAgent.contentionProfile();
+		metricRegistry.register(MetricRegistry.name(getClass(), "contentions"), (Gauge<Long>)this::getContentionCount);
+		metricRegistry.register(MetricRegistry.name(getClass(), "blocked.ms"), (Gauge<Long>)this::getBlockedTime);
+		metricRegistry.register(MetricRegistry.name(getClass(), "dropped"), (Gauge<Long>)() -> profile.getDropped());
+		JMXHelper.registerMBean(this, objectName);
+	}
+
+	/**
+	 * 
+	 * @see com.heliosapm.jvmti.extension.ScheduledExtension#doRun()
+	 */
+	@Override
+	public void doRun() throws Exception {
+		profile = nativeAgent.contentionProfile();
+		for(Map.Entry<String, long[]> entry: profile.topMonitorClasses(TRACKED_CLASSES).entrySet()) {
+			final long[] current = entry.getValue();
+			final long[] totals = classTotals.get(entry.getKey());
+			if(totals!=null) {
+				System.arraycopy(current, 0, totals, 0, current.length);
+			} else if(classTotals.size() < TRACKED_CLASSES) {
+				final long[] tracked = current.clone();
+				classTotals.put(entry.getKey(), tracked);
+				metricRegistry.register(MetricRegistry.name(getClass(), "class", entry.getKey(), "blocked.ms"), 
+					(Gauge<Long>)() -> TimeUnit.NANOSECONDS.toMillis(tracked[ContentionProfile.NANOS]));
+			}
+		}
+	}
+
+	@Override
+	public LinkedHashMap<String, long[]> topContendedSites(final int topN) {
+		return nativeAgent.contentionProfile().topSites(topN);
+	}
+
+	@Override
+	public LinkedHashMap<String, long[]> topContendedClasses(final int topN) {
+		return nativeAgent.contentionProfile().topMonitorClasses(topN);
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	@Override
+	public void setEnabled(final boolean enabled) {
+		if(nativeAgent.setMonitorContentionEnabled(enabled)) this.enabled = enabled;
+	}
+
+	@Override
+	public long getContentionCount() {
+		return profile.getTotalCount();
+	}
+
+	@Override
+	public long getBlockedTime() {
+		return TimeUnit.NANOSECONDS.toMillis(profile.getTotalNanos());
+	}
+
+	@Override
+	public int getSiteCount() {
+		return profile.getSiteCount();
+	}
+}
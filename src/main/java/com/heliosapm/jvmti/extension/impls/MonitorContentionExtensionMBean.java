@@ -0,0 +1,56 @@
+/**
+ * 
+ */
+package com.heliosapm.jvmti.extension.impls;
+
+import java.util.LinkedHashMap;
+
+/**
+ * JMX interface for the {@link MonitorContentionExtension}
+ * @author nwhitehead
+ */
+public interface MonitorContentionExtensionMBean {
+	/**
+	 * Returns the most contended locks by total blocked time
+	 * @param topN The maximum number of sites to return
+	 * @return a map of <code>[count, nanos, maxNanos]</code> keyed by <code>monitor class &lt;- contending site</code>
+	 */
+	public LinkedHashMap<String, long[]> topContendedSites(int topN);
+	
+	/**
+	 * Returns the most contended monitor classes by total blocked time
+	 * @param topN The maximum number of monitor classes to return
+	 * @return a map of <code>[count, nanos, maxNanos]</code> keyed by monitor class name
+	 */
+	public LinkedHashMap<String, long[]> topContendedClasses(int topN);
+	
+	/**
+	 * Indicates if contention tracking is enabled
+	 * @return true if enabled
+	 */
+	public boolean isEnabled();
+	
+	/**
+	 * Enables or disables contention tracking
+	 * @param enabled true to enable, false to disable
+	 */
+	public void setEnabled(boolean enabled);
+	
+	/**
+	 * Returns the total number of contended monitor enters recorded
+	 * @return the contention count
+	 */
+	public long getContentionCount();
+	
+	/**
+	 * Returns the total time threads spent blocked entering contended monitors
+	 * @return the blocked time in milliseconds
+	 */
+	public long getBlockedTime();
+	
+	/**
+	 * Returns the number of distinct contention sites
+	 * @return the site count
+	 */
+	public int getSiteCount();
+}
@@ -0,0 +1,130 @@
+/**
+ * 
+ */
+package com.heliosapm.jvmti.extension.impls;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.heliosapm.jvmti.agent.NativeAgent;
+import com.heliosapm.jvmti.extension.Scheduled;
+import com.heliosapm.jvmti.extension.ScheduledExtension;
+import com.heliosapm.jvmti.snapshot.StackProfile;
+import com.heliosapm.utils.jmx.JMXHelper;
+
+/**
+ * Always-on stack sampler. Each run samples every thread's stack into the native stack trie,
+ * where frames are resolved through a cached method name table, so no stack trace objects are created on the heap.
+ * Samples of runnable threads approximate a cpu profile and samples of all threads a wall clock profile.
+ * The maximum stack depth is configured with the {@link #CONFIG_MAX_DEPTH} system property and the size of the native trie
+ * with the {@link #CONFIG_MAX_NODES} system property. Stacks that no longer fit are counted under an <code>&lt;overflow&gt;</code>
+ * frame until the next {@link #reset()}.
+ * @author nwhitehead
+ */
+@Scheduled(fixedDelay=20, initialDelay=1000, adaptive=true)
+public class StackSamplerExtension extends ScheduledExtension implements StackSamplerExtensionMBean {
+	/** The system property defining the maximum number of frames recorded per stack */
+	public static final String CONFIG_MAX_DEPTH = "com.heliosapm.jvmti.sampler.maxdepth";
+	/** The default maximum number of frames recorded per stack */
+	public static final int DEFAULT_MAX_DEPTH = 128;
+	/** The system property defining the maximum number of native trie nodes and method names retained between resets */
+	public static final String CONFIG_MAX_NODES = "com.heliosapm.jvmti.sampler.maxnodes";
+	/** The default maximum number of native trie nodes and method names */
+	public static final int DEFAULT_MAX_NODES = 256 * 1024;
+	
+	private final ObjectName objectName = JMXHelper.objectName("com.heliosapm.jvmti:service=StackSampler");
+	private final int maxDepth;
+	private final int maxNodes;
+	private final Counter samples;
+	private final LongAdder sampleCount = new LongAdder();
+
+	/**
+	 * @param metricRegistry
+	 * @param nativeAgent
+	 */
+	public StackSamplerExtension(MetricRegistry metricRegistry, NativeAgent nativeAgent) {
+		super(metricRegistry, nativeAgent);
+		maxDepth = Integer.parseInt(System.getProperty(CONFIG_MAX_DEPTH, Integer.toString(DEFAULT_MAX_DEPTH)).trim());
+		maxNodes = Integer.parseInt(System.getProperty(CONFIG_MAX_NODES, Integer.toString(DEFAULT_MAX_NODES)).trim());
+		samples = metricRegistry.counter(MetricRegistry.name(getClass(), "samples"));
+		metricRegistry.register(MetricRegistry.name(getClass(), "overflow"), (Gauge<Long>)nativeAgent::getStackOverflowCount);
+		JMXHelper.registerMBean(this, objectName);
+	}
+
+	/**
+	 * 
+	 * @see com.heliosapm.jvmti.extension.ScheduledExtension#doRun()
+	 */
+	@Override
+	public void doRun() throws Exception {
+		final int sampled = nativeAgent.sampleStacks(maxDepth, maxNodes);
+		samples.inc(sampled);
+		sampleCount.add(sampled);
+	}
+	
+	/**
+	 * Returns a copy of the samples accumulated since the last reset
+	 * @return the stack profile
+	 */
+	public StackProfile getProfile() {
+		return nativeAgent.stackProfile();
+	}
+
+	@Override
+	public String collapsedStacks(final boolean cpuOnly) {
+		return nativeAgent.stackProfile().toCollapsed(cpuOnly);
+	}
+
+	@Override
+	public String writeCollapsedStacks(final String fileName, final boolean cpuOnly) {
+		final File file = new File(fileName);
+		final StackProfile profile = nativeAgent.stackProfile();
+		try(Writer writer = new FileWriter(file)) {
+			profile.writeCollapsed(writer, cpuOnly);
+		} catch (IOException iex) {
+			throw new UncheckedIOException(iex);
+		}
+		return "Wrote " + profile.getSampleCount(cpuOnly) + " samples to [" + file.getAbsolutePath() + "], size: " + file.length() + " bytes";
+	}
+
+	@Override
+	public LinkedHashMap<String, long[]> topMethods(final boolean cpuOnly, final int topN) {
+		return nativeAgent.stackProfile().topMethods(cpuOnly, topN);
+	}
+
+	@Override
+	public void reset() {
+		nativeAgent.resetStackProfile();
+		sampleCount.reset();
+	}
+
+	@Override
+	public long getSampleCount() {
+		return sampleCount.sum();
+	}
+
+	@Override
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	@Override
+	public int getMaxNodes() {
+		return maxNodes;
+	}
+
+	@Override
+	public long getOverflowCount() {
+		return nativeAgent.getStackOverflowCount();
+	}
+}
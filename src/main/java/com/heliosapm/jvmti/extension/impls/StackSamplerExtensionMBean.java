@@ -0,0 +1,64 @@
+/**
+ * 
+ */
+package com.heliosapm.jvmti.extension.impls;
+
+import java.util.LinkedHashMap;
+
+/**
+ * JMX interface for the {@link StackSamplerExtension}
+ * @author nwhitehead
+ */
+public interface StackSamplerExtensionMBean {
+	/**
+	 * Returns the sampled stacks in the collapsed format read by flame graph tools
+	 * @param cpuOnly true for samples of runnable threads only, false for all samples
+	 * @return the collapsed stacks
+	 */
+	public String collapsedStacks(boolean cpuOnly);
+	
+	/**
+	 * Writes the sampled stacks in the collapsed format to the named file
+	 * @param fileName The file to write to
+	 * @param cpuOnly true for samples of runnable threads only, false for all samples
+	 * @return a summary of the written profile
+	 */
+	public String writeCollapsedStacks(String fileName, boolean cpuOnly);
+	
+	/**
+	 * Returns the hottest methods by self samples
+	 * @param cpuOnly true for samples of runnable threads only, false for all samples
+	 * @param topN The maximum number of methods to return
+	 * @return a map of <code>[self, total]</code> sample counts keyed by method name
+	 */
+	public LinkedHashMap<String, long[]> topMethods(boolean cpuOnly, int topN);
+	
+	/**
+	 * Discards the accumulated samples and the native method name cache
+	 */
+	public void reset();
+	
+	/**
+	 * Returns the number of thread stacks sampled since the last reset
+	 * @return the sample count
+	 */
+	public long getSampleCount();
+	
+	/**
+	 * Returns the maximum number of frames recorded per stack
+	 * @return the maximum stack depth
+	 */
+	public int getMaxDepth();
+	
+	/**
+	 * Returns the maximum number of native trie nodes and method names retained between resets
+	 * @return the maximum node count
+	 */
+	public int getMaxNodes();
+	
+	/**
+	 * Returns the number of thread stacks counted under the overflow frame since the last reset because the trie was full
+	 * @return the overflow count
+	 */
+	public long getOverflowCount();
+}
@@ -0,0 +1,217 @@
+/**
+ * 
+ */
+package com.heliosapm.jvmti.extension.impls.thread;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.ToLongFunction;
+
+import org.pmw.tinylog.Logger;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.heliosapm.jvmti.agent.HeapCensus;
+import com.heliosapm.jvmti.agent.HeapCensusRequest;
+import com.heliosapm.jvmti.agent.NativeAgent;
+import com.heliosapm.jvmti.extension.HeapCensusExtension;
+import com.heliosapm.jvmti.extension.Scheduled;
+
+/**
+ * Finds every {@link ThreadPoolExecutor} (including scheduled executors) and {@link ForkJoinPool} in the heap and
+ * publishes gauges for each under <code>ExecutorDiscoveryExtension.executor.&lt;type&gt;-&lt;identity hash&gt;</code>,
+ * so pools created inside libraries are covered without being wired by hand. Each run declares the instances of the
+ * currently loaded executor types into the shared census, registers the pools it has now seen on two consecutive runs
+ * and unregisters the pools that were collected or shut down. Waiting a run keeps short lived pools that are unreachable
+ * but not yet collected from being registered and removed again, and shut down pools are never registered.
+ * Gauges only hold weak references, and at most
+ * {@link #MAX_POOLS_PROP} pools are tracked. The executors themselves are never modified: rejections are counted from the
+ * {@link ThreadPoolMonitor}'s executor hook, and only when that hook is installed.
+ * @author nwhitehead
+ */
+@Scheduled(fixedDelay=15000, initialDelay=5000, adaptive=true)
+public class ExecutorDiscoveryExtension extends HeapCensusExtension {
+	/** The system property defining the maximum number of tracked pools */
+	public static final String MAX_POOLS_PROP = "com.heliosapm.jvmti.executors.max";
+	/** The default maximum number of tracked pools */
+	public static final int DEFAULT_MAX_POOLS = 256;
+	/** The executor base types discovered */
+	private static final Class<?>[] BASE_TYPES = {ThreadPoolExecutor.class, ForkJoinPool.class};
+	
+	private final int maxPools;
+	/** The registration of each tracked pool, keyed weakly by the pool */
+	private final Map<ExecutorService, Registration> registered = new WeakHashMap<ExecutorService, Registration>();
+	/** The untracked pools found by the last run, registered if the next run finds them again */
+	private Map<ExecutorService, Boolean> pending = new WeakHashMap<ExecutorService, Boolean>();
+	/** The tracked pools */
+	private final List<Registration> registrations = new ArrayList<Registration>();
+	/** The names of the tracked pools */
+	private final Set<String> names = new HashSet<String>();
+	/** The loaded executor types declared for the current run */
+	private volatile Class<?>[] types = {};
+	/** The number of pools found beyond the maximum */
+	private volatile long skipped = 0L;
+
+	/**
+	 * @param metricRegistry
+	 * @param nativeAgent
+	 */
+	public ExecutorDiscoveryExtension(MetricRegistry metricRegistry, NativeAgent nativeAgent) {
+		super(metricRegistry, nativeAgent);
+		maxPools = Integer.getInteger(MAX_POOLS_PROP, DEFAULT_MAX_POOLS);
+		metricRegistry.register(MetricRegistry.name(getClass(), "tracked"), (Gauge<Integer>)registrations::size);
+		metricRegistry.register(MetricRegistry.name(getClass(), "skipped"), (Gauge<Long>)() -> skipped);
+	}
+
+	/**
+	 * Requests the instances of every loaded executor type. No heap walk is needed to find the types.
+	 * @see com.heliosapm.jvmti.extension.HeapCensusExtension#declare(com.heliosapm.jvmti.agent.HeapCensusRequest)
+	 */
+	@Override
+	public void declare(final HeapCensusRequest request) throws Exception {
+		final List<Class<?>> loaded = new ArrayList<Class<?>>();
+		for(Class<?> baseType: BASE_TYPES) {
+			loaded.addAll(Arrays.asList(nativeAgent.getLoadedTypesOf(baseType)));
+		}
+		for(Class<?> type: loaded) request.instances(type, maxPools);
+		types = loaded.toArray(new Class<?>[loaded.size()]);
+	}
+
+	/**
+	 * Unregisters the pools that are gone and registers the ones found on the last run too
+	 * @see com.heliosapm.jvmti.extension.HeapCensusExtension#doRun(com.heliosapm.jvmti.agent.HeapCensus)
+	 */
+	@Override
+	public void doRun(final HeapCensus census) throws Exception {
+		for(Iterator<Registration> iter = registrations.iterator(); iter.hasNext();) {
+			final Registration registration = iter.next();
+			final ExecutorService executor = registration.ref.get();
+			if(executor==null || executor.isShutdown()) {
+				if(executor!=null) registered.remove(executor);
+				registration.remove();
+				iter.remove();
+			}
+		}
+		for(Registration registration: registrations) registration.update();
+		final Map<ExecutorService, Boolean> found = new WeakHashMap<ExecutorService, Boolean>();
+		for(Class<?> type: types) {
+			for(Object instance: census.getInstances(type)) {
+				final ExecutorService executor = (ExecutorService)instance;
+				if(registered.containsKey(executor) || executor.isShutdown()) continue;
+				if(!pending.containsKey(executor)) {
+					found.put(executor, Boolean.TRUE);
+					continue;
+				}
+				if(registrations.size() >= maxPools) {
+					// still due for registration once a tracked pool is removed
+					found.put(executor, Boolean.TRUE);
+					skipped++;
+					continue;
+				}
+				final Registration registration = new Registration(executor);
+				registered.put(executor, registration);
+				registrations.add(registration);
+			}
+		}
+		pending = found;
+	}
+
+	/**
+	 * Returns the names of the tracked pools
+	 * @return the pool names
+	 */
+	Set<String> getPoolNames() {
+		return new HashSet<String>(names);
+	}
+	
+	/**
+	 * Returns the metric name of a pool, its type's simple name and identity hash as shown by its <code>toString</code>
+	 * @param executor The pool
+	 * @return the pool name
+	 */
+	static String poolName(final ExecutorService executor) {
+		if(executor==ForkJoinPool.commonPool()) return "ForkJoinPool-common";
+		final String className = executor.getClass().getName();
+		return className.substring(className.lastIndexOf('.') + 1).replace('$', '_') + "-" + Integer.toHexString(System.identityHashCode(executor));
+	}
+	
+	private static <T> Gauge<Long> gauge(final WeakReference<T> ref, final ToLongFunction<T> reader) {
+		return () -> {
+			final T t = ref.get();
+			return t==null ? 0L : reader.applyAsLong(t);
+		};
+	}
+	
+	/**
+	 * The metrics of one tracked pool
+	 */
+	private class Registration {
+		final WeakReference<ExecutorService> ref;
+		final String name;
+		final String prefix;
+		/** The rejected task meter, created once the thread pool hook is installed */
+		Meter rejected = null;
+		long priorRejected = 0L;
+		
+		Registration(final ExecutorService executor) {
+			ref = new WeakReference<ExecutorService>(executor);
+			String unique = poolName(executor);
+			for(int i = 2; !names.add(unique); i++) unique = poolName(executor) + "-" + i;
+			name = unique;
+			prefix = MetricRegistry.name(ExecutorDiscoveryExtension.class, "executor", name);
+			if(executor instanceof ThreadPoolExecutor) {
+				@SuppressWarnings({ "unchecked", "rawtypes" })
+				final WeakReference<ThreadPoolExecutor> tpe = (WeakReference)ref;
+				register("active", gauge(tpe, ThreadPoolExecutor::getActiveCount));
+				register("size", gauge(tpe, ThreadPoolExecutor::getPoolSize));
+				register("queue", gauge(tpe, e -> e.getQueue().size()));
+				register("completed", gauge(tpe, ThreadPoolExecutor::getCompletedTaskCount));
+			} else {
+				@SuppressWarnings({ "unchecked", "rawtypes" })
+				final WeakReference<ForkJoinPool> fjp = (WeakReference)ref;
+				register("active", gauge(fjp, ForkJoinPool::getActiveThreadCount));
+				register("size", gauge(fjp, ForkJoinPool::getPoolSize));
+				register("queue", gauge(fjp, p -> p.getQueuedTaskCount() + p.getQueuedSubmissionCount()));
+				register("steals", gauge(fjp, ForkJoinPool::getStealCount));
+			}
+			Logger.info("Discovered executor [{}]", name);
+		}
+		
+		private void register(final String metric, final Gauge<Long> gauge) {
+			metricRegistry.register(MetricRegistry.name(prefix, metric), gauge);
+		}
+		
+		/**
+		 * Marks the tasks a thread pool rejected since the last update, once the thread pool hook is installed
+		 */
+		void update() {
+			final ExecutorService executor = ref.get();
+			if(!(executor instanceof ThreadPoolExecutor) || !ThreadPoolMonitor.isInstrumented()) return;
+			final long count = ThreadPoolMonitor.getRejectedCount((ThreadPoolExecutor)executor);
+			if(count < 0L) return;
+			if(rejected==null) {
+				rejected = metricRegistry.meter(MetricRegistry.name(prefix, "rejected"));
+				priorRejected = count;
+			}
+			rejected.mark(count - priorRejected);
+			priorRejected = count;
+		}
+		
+		void remove() {
+			metricRegistry.removeMatching((n, m) -> n.startsWith(prefix + "."));
+			names.remove(name);
+			Logger.info("Removed executor [{}]", name);
+		}
+	}
+}
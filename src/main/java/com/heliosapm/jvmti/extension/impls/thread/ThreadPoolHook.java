@@ -0,0 +1,396 @@
+/**
+ * 
+ */
+package com.heliosapm.jvmti.extension.impls.thread;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The recording side of the {@link ThreadPoolMonitor}, called from the instrumented {@link ThreadPoolExecutor}.
+ * It is defined by the bootstrap class loader so that the executor can call it, which means it must only reference JDK classes,
+ * and it must not use lambdas, which the instrumentation compiler cannot read. Every nested class must be listed in
+ * {@link ThreadPoolMonitor}'s hook classes. Pools are keyed weakly so recording never keeps an abandoned executor alive.
+ * Each thread caches the last pool it recorded to, so the pool lookup on every task neither allocates nor hashes.
+ * A task's queue wait runs from the stamp taken when it is passed to <code>execute</code> to a worker starting it, and the stamps
+ * are kept in a small open addressed table per pool keyed by task identity, so stamping a task allocates nothing. A stamp is released
+ * when its task is rejected or removed from the queue. Execution time runs from a thread local start stamp.
+ * Both are counted into log linear histograms striped by thread, so workers rarely contend on the same counters.
+ * @author nwhitehead
+ */
+public final class ThreadPoolHook {
+	/** The recorded pools, keyed weakly by executor */
+	private static final ConcurrentHashMap<PoolKey, Pool> POOLS = new ConcurrentHashMap<PoolKey, Pool>();
+	/** The keys of the collected executors */
+	private static final ReferenceQueue<ThreadPoolExecutor> COLLECTED = new ReferenceQueue<ThreadPoolExecutor>();
+	/** The recording state of each thread. No lambdas here, the instrumentation compiler cannot read them */
+	private static final ThreadLocal<Local> LOCAL = new ThreadLocal<Local>();
+	/** Marks a stamp slot whose task and stamp are being written */
+	private static final Object CLAIMED = new Object();
+	/** Indicates if recording is enabled */
+	private static volatile boolean enabled = true;
+	
+	/** The number of bits of sub bucket resolution in each power of 2 */
+	private static final int SUB_BITS = 3;
+	/** The number of sub buckets in each power of 2 */
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	/** Times are capped just below 2^46 ns, about 19.5 hours */
+	private static final long MAX_VALUE = (1L << 46) - 1;
+	/** The number of histogram buckets */
+	public static final int BUCKETS = bucket(MAX_VALUE) + 1;
+	/** The offset of the summed times after the buckets */
+	public static final int SUM = BUCKETS;
+	/** The number of histogram stripes */
+	private static final int STRIPES = Math.min(16, Math.max(2, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1)));
+	/** The number of task stamp slots per pool */
+	private static final int STAMP_SLOTS = 4096;
+	/** The number of slots probed for a free or matching stamp slot */
+	private static final int PROBES = 4;
+	/** Stamps older than this are assumed orphaned, by a task drained from the queue without running, and may be overwritten */
+	private static final long STALE_NANOS = TimeUnit.MINUTES.toNanos(1);
+	
+	private ThreadPoolHook() {}
+	
+	/**
+	 * Called when a task is passed to <code>execute</code>
+	 * @param executor The executor
+	 * @param task The task
+	 */
+	public static void executed(final ThreadPoolExecutor executor, final Runnable task) {
+		if(!enabled || task==null) return;
+		pool(executor, local()).stamp(task, System.nanoTime());
+	}
+	
+	/**
+	 * Called when a task is rejected, before the rejection handler is called
+	 * @param executor The executor
+	 * @param task The task
+	 */
+	public static void rejected(final ThreadPoolExecutor executor, final Runnable task) {
+		if(!enabled || task==null) return;
+		final Pool pool = pool(executor, local());
+		pool.unstamp(task);
+		pool.rejected.increment();
+	}
+	
+	/**
+	 * Called when <code>remove</code> has removed a task from the queue
+	 * @param executor The executor
+	 * @param task The task
+	 */
+	public static void removed(final ThreadPoolExecutor executor, final Runnable task) {
+		if(!enabled || task==null) return;
+		pool(executor, local()).unstamp(task);
+	}
+	
+	/**
+	 * Called when a worker is about to run a task, after <code>beforeExecute</code> returns
+	 * @param executor The executor
+	 * @param thread The worker thread
+	 * @param task The task
+	 */
+	public static void started(final ThreadPoolExecutor executor, final Thread thread, final Runnable task) {
+		if(!enabled) return;
+		final long now = System.nanoTime();
+		final Local local = local();
+		final Pool pool = pool(executor, local);
+		if(pool.threadName==null) pool.threadName = thread.getName();
+		final long stamp = pool.unstamp(task);
+		if(stamp!=0L) pool.waits.record(now - stamp);
+		local.running = pool;
+		local.started = now;
+	}
+	
+	/**
+	 * Called when a worker has run a task, before <code>afterExecute</code> is called. The time is recorded to the pool the task was started in.
+	 * @param executor The executor
+	 * @param task The task
+	 * @param thrown The exception the task threw, or null
+	 */
+	public static void finished(final ThreadPoolExecutor executor, final Runnable task, final Throwable thrown) {
+		if(!enabled) return;
+		final Local local = LOCAL.get();
+		if(local==null || local.started==0L) return;
+		final long elapsed = System.nanoTime() - local.started;
+		final Pool pool = local.running;
+		local.started = 0L;
+		local.running = null;
+		pool.execs.record(elapsed);
+		if(thrown!=null) pool.failed.increment();
+	}
+	
+	/**
+	 * Returns the recorded pools whose executors have not been collected
+	 * @return a snapshot of the recorded pools keyed by executor
+	 */
+	public static Map<ThreadPoolExecutor, Pool> pools() {
+		expunge();
+		final Map<ThreadPoolExecutor, Pool> pools = new HashMap<ThreadPoolExecutor, Pool>(POOLS.size() * 2);
+		for(Map.Entry<PoolKey, Pool> entry: POOLS.entrySet()) {
+			final ThreadPoolExecutor executor = entry.getKey().get();
+			if(executor!=null) pools.put(executor, entry.getValue());
+		}
+		return pools;
+	}
+	
+	/**
+	 * Returns the recorded pool of an executor
+	 * @param executor The executor
+	 * @return the pool or null if the executor has not been recorded
+	 */
+	public static Pool find(final ThreadPoolExecutor executor) {
+		return POOLS.get(new PoolKey(executor, null));
+	}
+	
+	/**
+	 * Stops recording a pool
+	 * @param executor The executor
+	 */
+	public static void remove(final ThreadPoolExecutor executor) {
+		final Pool pool = POOLS.remove(new PoolKey(executor, null));
+		if(pool!=null) pool.removed = true;
+	}
+	
+	/**
+	 * Enables or disables recording
+	 * @param enable true to enable, false to disable
+	 */
+	public static void setEnabled(final boolean enable) {
+		enabled = enable;
+	}
+	
+	private static Local local() {
+		Local local = LOCAL.get();
+		if(local==null) {
+			local = new Local();
+			LOCAL.set(local);
+		}
+		return local;
+	}
+	
+	/**
+	 * Returns the pool of an executor, from the thread's cache when it is the last pool the thread recorded to
+	 * @param executor The executor
+	 * @param local The thread's recording state
+	 * @return the pool
+	 */
+	private static Pool pool(final ThreadPoolExecutor executor, final Local local) {
+		Pool pool = local.pool;
+		if(pool!=null && pool.key.get()==executor && !pool.removed) return pool;
+		pool = POOLS.get(new PoolKey(executor, null));
+		if(pool==null) {
+			expunge();
+			final PoolKey key = new PoolKey(executor, COLLECTED);
+			pool = new Pool(key);
+			final Pool prior = POOLS.putIfAbsent(key, pool);
+			if(prior!=null) pool = prior;
+		}
+		local.pool = pool;
+		return pool;
+	}
+	
+	private static void expunge() {
+		Reference<? extends ThreadPoolExecutor> ref;
+		while((ref = COLLECTED.poll())!=null) POOLS.remove(ref);
+	}
+	
+	/**
+	 * Returns the histogram bucket of a time. Times below <code>2 * SUB_BUCKETS</code> have a bucket each,
+	 * and every higher power of 2 is split into <code>SUB_BUCKETS</code> equal buckets.
+	 * @param value The time in ns
+	 * @return the bucket index
+	 */
+	public static int bucket(long value) {
+		if(value < SUB_BUCKETS) return value < 0 ? 0 : (int)value;
+		if(value > MAX_VALUE) value = MAX_VALUE;
+		final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return ((shift + 1) << SUB_BITS) + (int)(value >>> shift) - SUB_BUCKETS;
+	}
+	
+	/**
+	 * Returns the time a histogram bucket reports, the middle of the range of times it counts
+	 * @param bucket The bucket index
+	 * @return the bucket time in ns
+	 */
+	public static long bucketValue(final int bucket) {
+		if(bucket < SUB_BUCKETS * 2) return bucket;
+		final int shift = (bucket >>> SUB_BITS) - 1;
+		final long lowest = ((long)((bucket & (SUB_BUCKETS - 1)) + SUB_BUCKETS)) << shift;
+		return lowest + ((1L << shift) >>> 1);
+	}
+	
+	/**
+	 * A weak pool key matching the executor by identity. A cleared key only matches itself.
+	 */
+	static final class PoolKey extends WeakReference<ThreadPoolExecutor> {
+		private final int hash;
+		
+		PoolKey(final ThreadPoolExecutor executor, final ReferenceQueue<ThreadPoolExecutor> queue) {
+			super(executor, queue);
+			hash = System.identityHashCode(executor);
+		}
+		
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(final Object obj) {
+			if(obj==this) return true;
+			if(!(obj instanceof PoolKey)) return false;
+			final ThreadPoolExecutor executor = get();
+			return executor!=null && executor==((PoolKey)obj).get();
+		}
+	}
+	
+	/**
+	 * The recording state of one thread. It only references pools, which only reference their executor weakly.
+	 */
+	static final class Local {
+		/** The last pool the thread recorded to */
+		Pool pool;
+		/** The pool of the task the thread is running */
+		Pool running;
+		/** The start stamp of the task the thread is running, 0 if none */
+		long started;
+	}
+	
+	/**
+	 * The recorded times of one pool
+	 */
+	public static final class Pool {
+		/** The key of the pool's executor */
+		final PoolKey key;
+		/** Set once the pool is removed, so thread caches stop recording to it */
+		volatile boolean removed = false;
+		/** The name of the first worker thread seen */
+		volatile String threadName = null;
+		/** The queue wait times */
+		final Striped waits = new Striped();
+		/** The execution times */
+		final Striped execs = new Striped();
+		/** The number of tasks that threw */
+		final LongAdder failed = new LongAdder();
+		/** The number of tasks whose execute stamp could not be kept */
+		final LongAdder untracked = new LongAdder();
+		/** The number of rejected tasks */
+		final LongAdder rejected = new LongAdder();
+		/** The stamped tasks, or {@link ThreadPoolHook#CLAIMED} while a slot is being written */
+		private final AtomicReferenceArray<Object> tasks = new AtomicReferenceArray<Object>(STAMP_SLOTS);
+		/** The execute stamps, index aligned with the tasks */
+		private final AtomicLongArray stamps = new AtomicLongArray(STAMP_SLOTS);
+		
+		Pool(final PoolKey key) {
+			this.key = key;
+		}
+		
+		/**
+		 * Stamps a task. The slot is claimed before the stamp is written and the task published after it,
+		 * so a worker matching the task always reads the task's own stamp.
+		 */
+		void stamp(final Runnable task, final long now) {
+			int slot = System.identityHashCode(task) & (STAMP_SLOTS - 1);
+			for(int i = 0; i < PROBES; i++, slot = (slot + 1) & (STAMP_SLOTS - 1)) {
+				final Object current = tasks.get(slot);
+				if((current==null || (current!=CLAIMED && now - stamps.get(slot) > STALE_NANOS)) && tasks.compareAndSet(slot, current, CLAIMED)) {
+					stamps.set(slot, now);
+					tasks.set(slot, task);
+					return;
+				}
+			}
+			untracked.increment();
+		}
+		
+		long unstamp(final Runnable task) {
+			int slot = System.identityHashCode(task) & (STAMP_SLOTS - 1);
+			for(int i = 0; i < PROBES; i++, slot = (slot + 1) & (STAMP_SLOTS - 1)) {
+				if(tasks.get(slot)==task) {
+					final long stamp = stamps.get(slot);
+					if(tasks.compareAndSet(slot, task, null)) return stamp;
+				}
+			}
+			return 0L;
+		}
+		
+		/**
+		 * Returns the name of the first worker thread seen
+		 * @return the thread name or null if no task has started
+		 */
+		public String getThreadName() {
+			return threadName;
+		}
+		
+		/**
+		 * Adds the queue wait bucket counts to the passed array, with the summed time at {@link ThreadPoolHook#SUM}
+		 * @param into An array of at least <code>BUCKETS + 1</code>
+		 */
+		public void collectWaits(final long[] into) {
+			waits.collect(into);
+		}
+		
+		/**
+		 * Adds the execution time bucket counts to the passed array, with the summed time at {@link ThreadPoolHook#SUM}
+		 * @param into An array of at least <code>BUCKETS + 1</code>
+		 */
+		public void collectExecs(final long[] into) {
+			execs.collect(into);
+		}
+		
+		/**
+		 * Returns the number of tasks that threw
+		 * @return the failed task count
+		 */
+		public long getFailed() {
+			return failed.sum();
+		}
+		
+		/**
+		 * Returns the number of tasks the executor rejected
+		 * @return the rejected task count
+		 */
+		public long getRejected() {
+			return rejected.sum();
+		}
+		
+		/**
+		 * Returns the number of tasks whose queue wait was not measured because the stamp table was full
+		 * @return the untracked task count
+		 */
+		public long getUntracked() {
+			return untracked.sum();
+		}
+	}
+	
+	/**
+	 * A histogram striped by thread, each stripe holding the bucket counts followed by the summed times
+	 */
+	static final class Striped {
+		private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+		
+		Striped() {
+			for(int i = 0; i < STRIPES; i++) stripes[i] = new AtomicLongArray(BUCKETS + 1);
+		}
+		
+		void record(final long nanos) {
+			final AtomicLongArray stripe = stripes[(int)Thread.currentThread().getId() & (STRIPES - 1)];
+			stripe.getAndIncrement(bucket(nanos));
+			stripe.getAndAdd(SUM, nanos);
+		}
+		
+		void collect(final long[] into) {
+			for(AtomicLongArray stripe: stripes) {
+				for(int b = 0; b <= BUCKETS; b++) into[b] += stripe.get(b);
+			}
+		}
+	}
+}
@@ -3,103 +3,283 @@
  */
 package com.heliosapm.jvmti.extension.impls.thread;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.lang.instrument.Instrumentation;
 import java.security.ProtectionDomain;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
 
 import org.pmw.tinylog.Logger;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.heliosapm.jvmti.agent.NativeAgent;
+import com.heliosapm.jvmti.extension.Scheduled;
 import com.heliosapm.jvmti.extension.ScheduledExtension;
 import com.heliosapm.jvmti.install.JavaAgent2;
-import com.heliosapm.utils.unsafe.UnsafeAdapter;
+import com.heliosapm.jvmti.metrics.BucketHistogram;
 
+import javassist.CannotCompileException;
 import javassist.ClassPool;
 import javassist.CtClass;
-import javassist.CtMethod;
+import javassist.LoaderClassPath;
+import javassist.expr.ExprEditor;
+import javassist.expr.MethodCall;
 
 /**
+ * Publishes the queue wait and execution time of the tasks run by every {@link ThreadPoolExecutor}.
+ * The executor is instrumented once so that <code>execute</code>, <code>reject</code>, <code>remove</code> and the worker loop
+ * call the {@link ThreadPoolHook}, which is appended to the bootstrap class path so the executor can see it. Each run registers
+ * the pools that have started tasks since, updates their interval histograms and drops the metrics of terminated or collected pools.
+ * Pools are named after their worker threads, with the trailing thread number removed. The pool size, activity and queue
+ * depth are published by the {@link ExecutorDiscoveryExtension}.
  * @author nwhitehead
- *
  */
+@Scheduled(fixedDelay=5000, initialDelay=1000)
 public class ThreadPoolMonitor extends ScheduledExtension {
 
 	private static final AtomicBoolean TPOOLS_INSTRUMENTED = new AtomicBoolean(false);
+	/** Set once the executor has been instrumented and the hook is on the bootstrap class path */
+	private static volatile boolean instrumented = false;
+	/** The hook class and its nested classes, which are appended to the bootstrap class path */
+	private static final String[] HOOK_CLASSES = {"ThreadPoolHook", "ThreadPoolHook$Pool", "ThreadPoolHook$Striped", "ThreadPoolHook$PoolKey", "ThreadPoolHook$Local"};
+	private static final String HOOK = "com.heliosapm.jvmti.extension.impls.thread.ThreadPoolHook";
+	/** The value reported by each hook histogram bucket */
+	private static long[] bucketValues = null;
+	
+	/** The published pools keyed by the hook's pool, which does not reference the executor */
+	private final Map<ThreadPoolHook.Pool, PoolMetrics> published = new HashMap<ThreadPoolHook.Pool, PoolMetrics>();
+	/** The names of the published pools */
+	private final Set<String> names = new HashSet<String>();
+	/** The buffer the hook's bucket counts are collected into */
+	private long[] buffer = null;
 
 	public ThreadPoolMonitor(MetricRegistry metricRegistry, NativeAgent nativeAgent) {
 		super(metricRegistry, nativeAgent);
-		instrumentThreadPools();
+		if(instrumentThreadPools()) {
+			buffer = new long[ThreadPoolHook.BUCKETS + 1];
+		}
 	}
 	
 	@Override
 	public void doRun() throws Exception {
-		// TODO Auto-generated method stub
+		if(buffer==null) return;
+		for(Iterator<PoolMetrics> iter = published.values().iterator(); iter.hasNext();) {
+			final PoolMetrics metrics = iter.next();
+			final ThreadPoolExecutor executor = metrics.executor.get();
+			if(executor==null || executor.isTerminated()) {
+				if(executor!=null) ThreadPoolHook.remove(executor);
+				metrics.remove();
+				iter.remove();
+			}
+		}
+		for(Map.Entry<ThreadPoolExecutor, ThreadPoolHook.Pool> entry: ThreadPoolHook.pools().entrySet()) {
+			PoolMetrics metrics = published.get(entry.getValue());
+			if(metrics==null) {
+				if(entry.getKey().isTerminated()) {
+					ThreadPoolHook.remove(entry.getKey());
+					continue;
+				}
+				final String threadName = entry.getValue().getThreadName();
+				if(threadName==null) continue;
+				metrics = new PoolMetrics(entry.getKey(), entry.getValue(), uniqueName(poolName(threadName)));
+				published.put(entry.getValue(), metrics);
+			}
+			metrics.update();
+		}
+	}
+	
+	/**
+	 * Returns a pool name from a worker thread name by removing the trailing thread number,
+	 * so <code>pool-3-thread-1</code> becomes <code>pool-3-thread</code>
+	 * @param threadName The worker thread name
+	 * @return the pool name
+	 */
+	static String poolName(final String threadName) {
+		int end = threadName.length();
+		while(end > 0 && Character.isDigit(threadName.charAt(end - 1))) end--;
+		while(end > 0 && "-_#. ".indexOf(threadName.charAt(end - 1))!=-1) end--;
+		return end==0 ? threadName : threadName.substring(0, end);
+	}
+	
+	private String uniqueName(final String name) {
+		String unique = name;
+		for(int i = 2; !names.add(unique); i++) unique = name + "-" + i;
+		return unique;
+	}
+	
+	/**
+	 * The metrics of one published pool
+	 */
+	private class PoolMetrics {
+		final WeakReference<ThreadPoolExecutor> executor;
+		final ThreadPoolHook.Pool pool;
+		final String name;
+		final String prefix;
+		final Meter tasks;
+		final Meter failed;
+		final BucketHistogram waits = new BucketHistogram(bucketValues);
+		final BucketHistogram execs = new BucketHistogram(bucketValues);
+		long priorFailed = 0L;
+		
+		PoolMetrics(final ThreadPoolExecutor executor, final ThreadPoolHook.Pool pool, final String name) {
+			this.executor = new WeakReference<ThreadPoolExecutor>(executor);
+			this.pool = pool;
+			this.name = name;
+			prefix = MetricRegistry.name(ThreadPoolMonitor.class, "pool", name);
+			tasks = metricRegistry.meter(MetricRegistry.name(prefix, "tasks"));
+			failed = metricRegistry.meter(MetricRegistry.name(prefix, "failed"));
+			metricRegistry.register(MetricRegistry.name(prefix, "wait.nanos"), waits);
+			metricRegistry.register(MetricRegistry.name(prefix, "exec.nanos"), execs);
+			metricRegistry.register(MetricRegistry.name(prefix, "untracked"), (Gauge<Long>)pool::getUntracked);
+			Logger.info("Publishing ThreadPool [{}]", name);
+		}
 		
+		void update() {
+			Arrays.fill(buffer, 0L);
+			pool.collectWaits(buffer);
+			waits.update(buffer);
+			Arrays.fill(buffer, 0L);
+			pool.collectExecs(buffer);
+			tasks.mark(execs.update(buffer));
+			final long currentFailed = pool.getFailed();
+			failed.mark(currentFailed - priorFailed);
+			priorFailed = currentFailed;
+		}
+		
+		void remove() {
+			metricRegistry.removeMatching((n, m) -> n.startsWith(prefix + "."));
+			names.remove(name);
+			Logger.info("Removed terminated ThreadPool [{}]", name);
+		}
 	}
 	
-
-	public static void beforeExecute(Thread t, Runnable r) {
-		Logger.info("BEFORE EXEC [{}]: {}, {}", Thread.currentThread(), t, r);
+	/**
+	 * Indicates if the executor has been instrumented. Only when it has may the {@link ThreadPoolHook} be referenced,
+	 * otherwise it would be loaded by this class loader and could no longer be appended to the bootstrap class path.
+	 * @return true if the executor is instrumented
+	 */
+	public static boolean isInstrumented() {
+		return instrumented;
 	}
 	
-	public static void afterExecute(Runnable r, Throwable t) {
-		Logger.info("AFTER EXEC [{}]: {}, {}", Thread.currentThread(), r, t);
+	/**
+	 * Returns the number of tasks the passed executor has rejected since it was first recorded by the hook
+	 * @param executor The executor
+	 * @return the rejected task count, or -1 if the executor is not instrumented
+	 */
+	public static long getRejectedCount(final ThreadPoolExecutor executor) {
+		if(!instrumented) return -1L;
+		final ThreadPoolHook.Pool pool = ThreadPoolHook.find(executor);
+		return pool==null ? 0L : pool.getRejected();
 	}
 	
-	private static void instrumentThreadPools() {
+	/**
+	 * Appends the hook to the bootstrap class path and instruments the executor to call it
+	 * @return true if the executor is instrumented
+	 */
+	private static boolean instrumentThreadPools() {
 		final Instrumentation instr = JavaAgent2.INSTRUMENTATION;
-		if(instr==null) return;
+		if(instr==null) {
+			Logger.warn("No Instrumentation available, ThreadPools will not be monitored");
+			return false;
+		}
 		if(TPOOLS_INSTRUMENTED.compareAndSet(false, true)) {
 			try {
+				appendHook(instr);
+				if(ThreadPoolHook.class.getClassLoader()!=null) {
+					throw new IllegalStateException("ThreadPoolHook was loaded by " + ThreadPoolHook.class.getClassLoader() + " before it could be appended to the bootstrap class path");
+				}
+				final long[] values = new long[ThreadPoolHook.BUCKETS];
+				for(int b = 0; b < values.length; b++) values[b] = ThreadPoolHook.bucketValue(b);
+				bucketValues = values;
 				
-				ClassPool cp = new ClassPool();
+				final ClassPool cp = new ClassPool();
 				cp.appendSystemPath();
-				CtClass threadCtClass = cp.get(Thread.class.getName());
-				CtClass runnableCtClass = cp.get(Runnable.class.getName());
-				CtClass throwableCtClass = cp.get(Runnable.class.getName());
-				CtClass ME = cp.get("com.heliosapm.jvmti.extension.impls.thread.ThreadPoolMonitor");
-				CtClass threadPoolCtClass = cp.get(ThreadPoolExecutor.class.getName());
-				CtMethod before = threadPoolCtClass.getDeclaredMethod("beforeExecute");
-				CtMethod after = threadPoolCtClass.getDeclaredMethod("afterExecute");
-				before.insertBefore("{com.heliosapm.jvmti.extension.impls.thread.ThreadPoolMonitor.beforeExecute($1, $2);}");
-				after.insertBefore("{com.heliosapm.jvmti.extension.impls.thread.ThreadPoolMonitor.afterExecute($1, $2);}");
+				cp.appendClassPath(new LoaderClassPath(ThreadPoolMonitor.class.getClassLoader()));
+				final CtClass threadPoolCtClass = cp.get(ThreadPoolExecutor.class.getName());
+				threadPoolCtClass.getDeclaredMethod("execute").insertBefore("{" + HOOK + ".executed(this, $1);}");
+				threadPoolCtClass.getDeclaredMethod("reject").insertBefore("{" + HOOK + ".rejected(this, $1);}");
+				threadPoolCtClass.getDeclaredMethod("remove").insertAfter("{ if($_) " + HOOK + ".removed(this, $1); }");
+				threadPoolCtClass.getDeclaredMethod("runWorker").instrument(new ExprEditor() {
+					@Override
+					public void edit(final MethodCall m) throws CannotCompileException {
+						if("beforeExecute".equals(m.getMethodName())) {
+							m.replace("{ $proceed($$); " + HOOK + ".started(this, $1, $2); }");
+						} else if("afterExecute".equals(m.getMethodName())) {
+							m.replace("{ " + HOOK + ".finished(this, $1, $2); $proceed($$); }");
+						}
+					}
+				});
 				final byte[] byteCode = threadPoolCtClass.toBytecode();
-				final byte[] meCode = ME.toBytecode();
 				
 				final String clazzName = ThreadPoolExecutor.class.getName().replace('.', '/');
-				final String myClazzName = "com.heliosapm.jvmti.extension.impls.thread.ThreadPoolMonitor".replace('.', '/');
-				final ProtectionDomain pd = ThreadPoolExecutor.class.getProtectionDomain();
 				final ClassFileTransformer transformer = new ClassFileTransformer() {
 					@Override
 					public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
 							ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException {
 						if(clazzName.equals(className)) {
-							UnsafeAdapter.defineClass("com.heliosapm.jvmti.extension.impls.thread.ThreadPoolMonitor", meCode, 0, meCode.length, loader, pd);
-							
 							return byteCode;
 						}
-						return classfileBuffer;
+						return null;
 					}
 				};
 				try {
 					instr.addTransformer(transformer, true);
 					instr.retransformClasses(ThreadPoolExecutor.class);
+					instrumented = true;
 					Logger.info("Instrumented ThreadPools");
 				} finally {
 					instr.removeTransformer(transformer);
 				}
-				
-			} catch (Exception ex) {
+				return true;
+			} catch (Throwable ex) {
 				Logger.error("Failed to instrument ThreadPools", ex);
-				ex.printStackTrace(System.err);
 				TPOOLS_INSTRUMENTED.set(false);
+				return false;
 			}
 		}
-		
+		return instrumented;
+	}
+	
+	/**
+	 * Writes the hook classes to a temp jar and appends it to the bootstrap class path.
+	 * The class files are read as resources so the hook is not loaded by this class loader first.
+	 * @param instr The instrumentation
+	 * @throws Exception thrown on any error writing the jar
+	 */
+	private static void appendHook(final Instrumentation instr) throws Exception {
+		final File jar = File.createTempFile("threadpool-hook", ".jar");
+		jar.deleteOnExit();
+		final String dir = HOOK.substring(0, HOOK.lastIndexOf('.') + 1).replace('.', '/');
+		try(final JarOutputStream jos = new JarOutputStream(new FileOutputStream(jar))) {
+			final byte[] buff = new byte[8192];
+			for(String name: HOOK_CLASSES) {
+				try(final InputStream is = ThreadPoolMonitor.class.getClassLoader().getResourceAsStream(dir + name + ".class")) {
+					if(is==null) throw new IllegalStateException("Class file not found for " + name);
+					jos.putNextEntry(new ZipEntry(dir + name + ".class"));
+					int read;
+					while((read = is.read(buff))!=-1) jos.write(buff, 0, read);
+					jos.closeEntry();
+				}
+			}
+		}
+		instr.appendToBootstrapClassLoaderSearch(new JarFile(jar));
 	}
 
 }
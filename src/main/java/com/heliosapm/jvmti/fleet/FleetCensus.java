@@ -0,0 +1,197 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.fleet;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.heliosapm.jvmti.agent.AttachPool;
+import com.heliosapm.jvmti.install.AgentInstaller;
+import com.heliosapm.shorthand.attach.vm.VirtualMachine;
+import com.heliosapm.shorthand.attach.vm.VirtualMachineDescriptor;
+
+/**
+ * <p>Title: FleetCensus</p>
+ * <p>Description: Collects a census of every local JVM in parallel and merges it into a per host view.
+ * Each JVM has the agent installed if needed and is queried by a task on a bounded worker pool, using the JVM's pooled attach session,
+ * so a slow or unresponsive JVM only holds up its own worker. A JVM whose collection fails is reported as failed
+ * and one that does not complete within the per JVM timeout is cancelled and reported as timed out.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.fleet.FleetCensus</code></p>
+ */
+
+public class FleetCensus {
+	/** The number of collection workers */
+	private final int workers;
+	/** The per JVM collection timeout in ms */
+	private final long timeout;
+	/** The maximum number of classes pulled from each JVM and kept in the merged histogram */
+	private final int topN;
+	/** The agent jar to install */
+	private final String agentJar;
+	/** The packed agent options */
+	private final String agentOptions;
+
+	/** The system property for the number of collection workers */
+	public static final String WORKERS_PROP = "com.heliosapm.jvmti.fleet.workers";
+	/** The system property for the per JVM collection timeout in ms */
+	public static final String TIMEOUT_PROP = "com.heliosapm.jvmti.fleet.timeout";
+	/** The system property for the maximum number of classes per histogram */
+	public static final String TOPN_PROP = "com.heliosapm.jvmti.fleet.topn";
+	/** The system property for the agent jar to install */
+	public static final String AGENT_JAR_PROP = "com.heliosapm.jvmti.fleet.agentjar";
+	/** The system property for the packed agent options */
+	public static final String AGENT_OPTIONS_PROP = "com.heliosapm.jvmti.fleet.agentoptions";
+	/** The default number of collection workers */
+	public static final int DEFAULT_WORKERS = Math.min(Runtime.getRuntime().availableProcessors(), 8);
+	/** The default per JVM collection timeout in ms */
+	public static final long DEFAULT_TIMEOUT = 30000L;
+	/** The default maximum number of classes per histogram */
+	public static final int DEFAULT_TOPN = 50;
+
+	/** This JVM's process id, which is never collected */
+	private static final String SELF = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+	/** Static class logger */
+	private final static Logger LOG = Logger.getLogger(FleetCensus.class.getName());
+
+	/**
+	 * Creates a new FleetCensus configured from system properties
+	 */
+	public FleetCensus() {
+		this(Integer.getInteger(WORKERS_PROP, DEFAULT_WORKERS), Long.getLong(TIMEOUT_PROP, DEFAULT_TIMEOUT), 
+			Integer.getInteger(TOPN_PROP, DEFAULT_TOPN), System.getProperty(AGENT_JAR_PROP, AgentInstaller.agentJar()), 
+			System.getProperty(AGENT_OPTIONS_PROP, ""));
+	}
+
+	/**
+	 * Creates a new FleetCensus
+	 * @param workers The number of collection workers
+	 * @param timeout The per JVM collection timeout in ms
+	 * @param topN The maximum number of classes pulled from each JVM and kept in the merged histogram
+	 * @param agentJar The agent jar to install
+	 * @param agentOptions The packed agent options
+	 */
+	public FleetCensus(final int workers, final long timeout, final int topN, final String agentJar, final String agentOptions) {
+		if(workers < 1) throw new IllegalArgumentException("Invalid worker count:" + workers);
+		if(timeout < 1) throw new IllegalArgumentException("Invalid timeout:" + timeout);
+		if(topN < 1) throw new IllegalArgumentException("Invalid topN:" + topN);
+		this.workers = workers;
+		this.timeout = timeout;
+		this.topN = topN;
+		this.agentJar = agentJar;
+		this.agentOptions = agentOptions;
+	}
+
+	/**
+	 * Collects the census of every local JVM except this one
+	 * @return the host census
+	 */
+	public HostCensus collect() {
+		final long start = System.currentTimeMillis();
+		final Map<String, String> targets = new LinkedHashMap<String, String>();
+		for(VirtualMachineDescriptor vmd: VirtualMachine.list()) {
+			if(!SELF.equals(vmd.id())) targets.put(vmd.id(), vmd.displayName());
+		}
+		return collect(targets, start);
+	}
+
+	private HostCensus collect(final Map<String, String> targets, final long start) {
+		final List<VmCensus> results = new ArrayList<VmCensus>(targets.size());
+		if(targets.isEmpty()) return new HostCensus(results, topN, 0);
+		final ExecutorService pool = newPool(Math.min(workers, targets.size()));
+		try {
+			final Map<VmCensusTask, Future<VmCensus>> pending = new LinkedHashMap<VmCensusTask, Future<VmCensus>>();
+			for(Map.Entry<String, String> target: targets.entrySet()) {
+				final VmCensusTask task = new VmCensusTask(target.getKey(), target.getValue(), agentJar, agentOptions, topN, timeout);
+				pending.put(task, pool.submit(() -> {
+					task.started = System.currentTimeMillis();
+					return AttachPool.getInstance().run(task.pid, task);
+				}));
+			}
+			// A worker stuck in a blocking attach call may ignore its interrupt, so queued tasks get a
+			// deadline too: the time every wave of workers would take if every JVM timed out
+			final long waves = (targets.size() + workers - 1) / workers;
+			final long deadline = start + (waves + 1) * timeout;
+			while(!pending.isEmpty()) {
+				final long now = System.currentTimeMillis();
+				for(Iterator<Map.Entry<VmCensusTask, Future<VmCensus>>> iter = pending.entrySet().iterator(); iter.hasNext();) {
+					final Map.Entry<VmCensusTask, Future<VmCensus>> entry = iter.next();
+					final VmCensusTask task = entry.getKey();
+					final Future<VmCensus> future = entry.getValue();
+					final long started = task.started;
+					if(future.isDone()) {
+						results.add(result(task, future, now));
+					} else if((started > 0 && now - started > timeout) || now > deadline) {
+						future.cancel(true);
+						results.add(VmCensus.failed(task.pid, task.displayName, VmCensus.Status.TIMEOUT, 
+							started==0 ? "Not started" : "Timed out after " + timeout + " ms", started==0 ? 0 : now - started));
+					} else {
+						continue;
+					}
+					iter.remove();
+				}
+				if(!pending.isEmpty()) Thread.sleep(50);
+			}
+		} catch (InterruptedException iex) {
+			Thread.currentThread().interrupt();
+		} finally {
+			pool.shutdownNow();
+		}
+		return new HostCensus(results, topN, System.currentTimeMillis() - start);
+	}
+
+	private static VmCensus result(final VmCensusTask task, final Future<VmCensus> future, final long now) throws InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException eex) {
+			final Throwable cause = eex.getCause();
+			LOG.log(Level.FINE, "Census of JVM [" + task.pid + "] failed", cause);
+			return VmCensus.failed(task.pid, task.displayName, VmCensus.Status.FAILED, cause.toString(), now - task.started);
+		}
+	}
+
+	private static ExecutorService newPool(final int size) {
+		return new ThreadPoolExecutor(size, size, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory(){
+			final AtomicInteger serial = new AtomicInteger(0);
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "FleetCensusThread#" + serial.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Collects and prints the census of every local JVM
+	 * @param args None
+	 */
+	public static void main(final String[] args) {
+		System.out.println(new FleetCensus().collect().render());
+	}
+}
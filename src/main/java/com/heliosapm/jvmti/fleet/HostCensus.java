@@ -0,0 +1,131 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.fleet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>Title: HostCensus</p>
+ * <p>Description: The per host view merged from the census of each local JVM.
+ * Instance counts are summed by class name and metrics are summed by name over the JVMs that were collected.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.fleet.HostCensus</code></p>
+ */
+
+public class HostCensus {
+	/** The census of each JVM */
+	private final List<VmCensus> vms;
+	/** The merged instance counts, largest first */
+	private final LinkedHashMap<String, Long> histogram;
+	/** The merged metrics, in name order */
+	private final Map<String, Long> metrics;
+	/** The number of JVMs by collection outcome */
+	private final Map<VmCensus.Status, Integer> outcomes = new EnumMap<VmCensus.Status, Integer>(VmCensus.Status.class);
+	/** The collection elapsed time in ms */
+	private final long elapsed;
+
+	/**
+	 * Creates a new HostCensus
+	 * @param vms The census of each JVM
+	 * @param topN The maximum number of classes in the merged histogram
+	 * @param elapsed The collection elapsed time in ms
+	 */
+	public HostCensus(final List<VmCensus> vms, final int topN, final long elapsed) {
+		if(topN < 1) throw new IllegalArgumentException("Invalid topN:" + topN);
+		this.vms = Collections.unmodifiableList(new ArrayList<VmCensus>(vms));
+		this.elapsed = elapsed;
+		for(VmCensus.Status status: VmCensus.Status.values()) outcomes.put(status, 0);
+		final Map<String, Long> counts = new HashMap<String, Long>();
+		final Map<String, Long> sums = new TreeMap<String, Long>();
+		for(VmCensus vm: vms) {
+			outcomes.merge(vm.getStatus(), 1, Integer::sum);
+			if(vm.getStatus()!=VmCensus.Status.OK) continue;
+			for(Map.Entry<String, Long> entry: vm.getHistogram().entrySet()) counts.merge(entry.getKey(), entry.getValue(), Long::sum);
+			for(Map.Entry<String, Long> entry: vm.getMetrics().entrySet()) sums.merge(entry.getKey(), entry.getValue(), Long::sum);
+		}
+		final List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(counts.entrySet());
+		entries.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+		histogram = new LinkedHashMap<String, Long>();
+		for(int i = 0; i < entries.size() && i < topN; i++) histogram.put(entries.get(i).getKey(), entries.get(i).getValue());
+		metrics = Collections.unmodifiableMap(sums);
+	}
+
+	/**
+	 * Returns the census of each JVM
+	 * @return the JVM census list
+	 */
+	public List<VmCensus> getVms() {
+		return vms;
+	}
+
+	/**
+	 * Returns the instance counts summed over all collected JVMs, largest first
+	 * @return the merged histogram
+	 */
+	public Map<String, Long> getHistogram() {
+		return Collections.unmodifiableMap(histogram);
+	}
+
+	/**
+	 * Returns the metrics summed over all collected JVMs
+	 * @return the merged metrics
+	 */
+	public Map<String, Long> getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Returns the number of JVMs with the passed collection outcome
+	 * @param status The collection outcome
+	 * @return the number of JVMs
+	 */
+	public int getCount(final VmCensus.Status status) {
+		return outcomes.get(status);
+	}
+
+	/**
+	 * Returns the collection elapsed time
+	 * @return the elapsed time in ms
+	 */
+	public long getElapsed() {
+		return elapsed;
+	}
+
+	/**
+	 * Renders a plain text report of the host census
+	 * @return the report
+	 */
+	public String render() {
+		final StringBuilder b = new StringBuilder("Host Census: ").append(vms.size()).append(" JVMs ").append(outcomes)
+			.append(" in ").append(elapsed).append(" ms\n");
+		for(VmCensus vm: vms) b.append("\t").append(vm).append("\n");
+		b.append("Metrics:\n");
+		for(Map.Entry<String, Long> entry: metrics.entrySet()) b.append("\t").append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+		b.append("Instances:\n");
+		for(Map.Entry<String, Long> entry: histogram.entrySet()) b.append("\t").append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+		return b.toString();
+	}
+
+	@Override
+	public String toString() {
+		return "HostCensus [vms=" + vms.size() + ", outcomes=" + outcomes + ", elapsed=" + elapsed + "ms]";
+	}
+}
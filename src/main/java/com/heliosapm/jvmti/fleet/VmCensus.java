@@ -0,0 +1,148 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.fleet;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Title: VmCensus</p>
+ * <p>Description: The census collected from one local JVM: the instance count histogram pulled from its agent,
+ * the metrics read from its hsperfdata file and, if the collection failed or timed out, why.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.fleet.VmCensus</code></p>
+ */
+
+public class VmCensus {
+	/** The collection outcome */
+	public static enum Status {
+		/** The census was collected */
+		OK,
+		/** The collection failed */
+		FAILED,
+		/** The collection did not finish within the per JVM timeout */
+		TIMEOUT;
+	}
+
+	/** The JVM process id */
+	private final String pid;
+	/** The JVM display name */
+	private final String displayName;
+	/** The collection outcome */
+	private final Status status;
+	/** The failure description, null when the status is OK */
+	private final String error;
+	/** The instance counts keyed by class name, largest first */
+	private final Map<String, Long> histogram;
+	/** The metrics keyed by name */
+	private final Map<String, Long> metrics;
+	/** The collection elapsed time in ms */
+	private final long elapsed;
+
+	/**
+	 * Creates a new VmCensus
+	 * @param pid The JVM process id
+	 * @param displayName The JVM display name
+	 * @param status The collection outcome
+	 * @param error The failure description, null when the status is OK
+	 * @param histogram The instance counts keyed by class name
+	 * @param metrics The metrics keyed by name
+	 * @param elapsed The collection elapsed time in ms
+	 */
+	public VmCensus(final String pid, final String displayName, final Status status, final String error, final Map<String, Long> histogram, final Map<String, Long> metrics, final long elapsed) {
+		this.pid = pid;
+		this.displayName = displayName;
+		this.status = status;
+		this.error = error;
+		this.histogram = Collections.unmodifiableMap(histogram==null ? new LinkedHashMap<String, Long>() : histogram);
+		this.metrics = Collections.unmodifiableMap(metrics==null ? new LinkedHashMap<String, Long>() : metrics);
+		this.elapsed = elapsed;
+	}
+
+	/**
+	 * Creates a failed or timed out VmCensus
+	 * @param pid The JVM process id
+	 * @param displayName The JVM display name
+	 * @param status The collection outcome
+	 * @param error The failure description
+	 * @param elapsed The collection elapsed time in ms
+	 * @return the VmCensus
+	 */
+	public static VmCensus failed(final String pid, final String displayName, final Status status, final String error, final long elapsed) {
+		return new VmCensus(pid, displayName, status, error, null, null, elapsed);
+	}
+
+	/**
+	 * Returns the JVM process id
+	 * @return the pid
+	 */
+	public String getPid() {
+		return pid;
+	}
+
+	/**
+	 * Returns the JVM display name
+	 * @return the display name
+	 */
+	public String getDisplayName() {
+		return displayName;
+	}
+
+	/**
+	 * Returns the collection outcome
+	 * @return the status
+	 */
+	public Status getStatus() {
+		return status;
+	}
+
+	/**
+	 * Returns the failure description
+	 * @return the error or null when the status is OK
+	 */
+	public String getError() {
+		return error;
+	}
+
+	/**
+	 * Returns the instance counts keyed by class name
+	 * @return the histogram
+	 */
+	public Map<String, Long> getHistogram() {
+		return histogram;
+	}
+
+	/**
+	 * Returns the metrics keyed by name
+	 * @return the metrics
+	 */
+	public Map<String, Long> getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Returns the collection elapsed time
+	 * @return the elapsed time in ms
+	 */
+	public long getElapsed() {
+		return elapsed;
+	}
+
+	@Override
+	public String toString() {
+		return "VmCensus [pid=" + pid + ", name=" + displayName + ", status=" + status + (error==null ? "" : ", error=" + error) 
+			+ ", classes=" + histogram.size() + ", elapsed=" + elapsed + "ms]";
+	}
+}
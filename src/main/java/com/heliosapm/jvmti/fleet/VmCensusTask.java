@@ -0,0 +1,149 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.fleet;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+
+import com.heliosapm.jvmti.agent.AbstractVirtualMachineTask;
+import com.heliosapm.jvmti.agent.AgentMBean;
+import com.heliosapm.jvmti.install.AgentInstaller;
+import com.heliosapm.jvmti.util.HsPerfData;
+
+/**
+ * <p>Title: VmCensusTask</p>
+ * <p>Description: Collects the census of one local JVM over its pooled attach session: installs the agent if it is
+ * not already installed, waits for the agent MBean, pulls the instance count histogram over the local JMX connector and reads the
+ * JVM's metrics from its hsperfdata file.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.fleet.VmCensusTask</code></p>
+ */
+
+class VmCensusTask extends AbstractVirtualMachineTask<VmCensus> {
+	/** The JVM process id */
+	final String pid;
+	/** The JVM display name */
+	final String displayName;
+	/** The agent jar to install */
+	private final String agentJar;
+	/** The packed agent options */
+	private final String agentOptions;
+	/** The maximum number of classes to pull */
+	private final int topN;
+	/** The collection timeout in ms */
+	private final long timeout;
+	/** The time the collection started, including the attach, 0 until it starts */
+	volatile long started = 0L;
+
+	/** The getTopNInstanceCounts operation signature */
+	private static final String[] TOPN_SIGNATURE = {String.class.getName(), int.class.getName(), boolean.class.getName()};
+	/** The hsperfdata counters read, keyed by the census metric name */
+	private static final String[][] PERF_COUNTERS = {
+		{"classes.loaded", "java.cls.loadedClasses"},
+		{"classes.unloaded", "java.cls.unloadedClasses"},
+		{"threads.live", "java.threads.live"},
+		{"gc.young.count", "sun.gc.collector.0.invocations"},
+		{"gc.old.count", "sun.gc.collector.1.invocations"},
+		{"safepoints", "sun.rt.safepoints"},
+		{"metaspace.used", "sun.gc.metaspace.used"}
+	};
+	/** The hsperfdata tick counters read, keyed by the census metric name, converted to ms */
+	private static final String[][] PERF_TIMERS = {
+		{"gc.young.ms", "sun.gc.collector.0.time"},
+		{"gc.old.ms", "sun.gc.collector.1.time"},
+		{"safepoints.ms", "sun.rt.safepointTime"}
+	};
+
+	/**
+	 * Creates a new VmCensusTask
+	 * @param pid The JVM process id
+	 * @param displayName The JVM display name
+	 * @param agentJar The agent jar to install
+	 * @param agentOptions The packed agent options
+	 * @param topN The maximum number of classes to pull
+	 * @param timeout The collection timeout in ms
+	 */
+	VmCensusTask(final String pid, final String displayName, final String agentJar, final String agentOptions, final int topN, final long timeout) {
+		this.pid = pid;
+		this.displayName = displayName;
+		this.agentJar = agentJar;
+		this.agentOptions = agentOptions;
+		this.topN = topN;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.util.concurrent.Callable#call()
+	 */
+	@Override
+	public VmCensus call() throws Exception {
+		final long deadline = started + timeout;
+		JMXConnector connector = null;
+		try {
+			AgentInstaller.install(vm, agentJar, agentOptions);
+			connector = JMXConnectorFactory.connect(vm.getJMXServiceURL());
+			final MBeanServerConnection conn = connector.getMBeanServerConnection();
+			final ObjectName agentName = new ObjectName(AgentMBean.OBJECT_NAME);
+			while(!conn.isRegistered(agentName)) {
+				if(System.currentTimeMillis() > deadline) throw new TimeoutException("Agent MBean not registered");
+				Thread.sleep(100);
+			}
+			@SuppressWarnings("unchecked")
+			final Map<String, Long> histogram = (Map<String, Long>)conn.invoke(agentName, "getTopNInstanceCounts", 
+				new Object[]{Object.class.getName(), topN, false}, TOPN_SIGNATURE);
+			return new VmCensus(pid, displayName, VmCensus.Status.OK, null, histogram, readMetrics(pid), System.currentTimeMillis() - started);
+		} finally {
+			if(connector!=null) try { connector.close(); } catch (Exception x) {/* No Op */}
+		}
+	}
+
+	/**
+	 * Reads the census metrics of a JVM from its hsperfdata file
+	 * @param pid The JVM process id
+	 * @return the metrics keyed by name, empty if the JVM has no hsperfdata file
+	 */
+	static Map<String, Long> readMetrics(final String pid) {
+		final Map<String, Long> metrics = new LinkedHashMap<String, Long>();
+		try(final HsPerfData perf = HsPerfData.open(pid)) {
+			for(String[] counter: PERF_COUNTERS) {
+				final HsPerfData.Counter c = perf.getCounter(counter[1]);
+				if(c!=null && c.isLong()) metrics.put(counter[0], c.get());
+			}
+			for(String[] timer: PERF_TIMERS) {
+				final HsPerfData.Counter c = perf.getCounter(timer[1]);
+				if(c!=null && c.isLong()) metrics.put(timer[0], perf.ticksTo(c.get(), TimeUnit.MILLISECONDS));
+			}
+			long heapUsed = 0, heapCapacity = 0;
+			for(HsPerfData.Counter c: perf.getCounters("sun.gc.generation.").values()) {
+				if(!c.isLong()) continue;
+				final String name = c.getName();
+				if(name.endsWith(".used") && name.contains(".space.")) heapUsed += c.get();
+				else if(name.endsWith(".capacity") && !name.contains(".space.")) heapCapacity += c.get();
+			}
+			metrics.put("heap.used", heapUsed);
+			metrics.put("heap.capacity", heapCapacity);
+		} catch (Exception ex) {
+			/* No hsperfdata, e.g. -XX:-UsePerfData */
+		}
+		return metrics;
+	}
+}
@@ -60,25 +60,44 @@ public class AgentInstaller {
 			final String pid = (String)agentOptions.get(AgentOption.PID);
 			LOG.log(Level.INFO, "Installing Agent into JVM [" + pid + "]...");
 			vm = VirtualMachine.attach(pid);
-			if(vm.getSystemProperties().containsKey(AGENT_INSTALLED_PROP)) {
-				LOG.log(Level.WARNING, "Agent already installed in JVM [" + pid + "]");
-				return;
-			}
-			final String jarFile = AgentInstaller.class.getProtectionDomain().getCodeSource().getLocation().getFile();
-			LOG.log(Level.INFO, "Agent jar [" + jarFile + "]");
-			if(packedAgentOptions.isEmpty()) {
-				LOG.log(Level.INFO, "Executing [vm.loadAgent(\"" + jarFile + "\")]");
-				vm.loadAgent(jarFile);				
-			} else {
-				LOG.log(Level.INFO, "Executing [vm.loadAgent(\"" + jarFile + "\",\"" + packedAgentOptions + "\")]");
-				vm.loadAgent(jarFile, packedAgentOptions);
-			}
-			LOG.log(Level.INFO, "Successfully installed Agent jar [" + jarFile + "] into JVM [" + pid + "]");
+			install(vm, agentJar(), packedAgentOptions);
 		} catch (Throwable ex) {
 			LOG.log(Level.SEVERE, "Failed to install Agent", ex);
 		} finally {
 			if(vm!=null) try { vm.detach(); } catch (Exception x) {/* No Op */}
 		}
 	}
+	
+	/**
+	 * Returns the location of the agent jar this class was loaded from
+	 * @return the agent jar file name
+	 */
+	public static String agentJar() {
+		return AgentInstaller.class.getProtectionDomain().getCodeSource().getLocation().getFile();
+	}
+	
+	/**
+	 * Installs the agent jar into an attached JVM unless it is already installed
+	 * @param vm The attached JVM
+	 * @param jarFile The agent jar file name
+	 * @param packedAgentOptions The packed agent options, or an empty string for none
+	 * @return true if the agent was installed, false if it was already installed
+	 */
+	public static boolean install(final VirtualMachine vm, final String jarFile, final String packedAgentOptions) {
+		if(vm.getSystemProperties().containsKey(AGENT_INSTALLED_PROP)) {
+			LOG.log(Level.WARNING, "Agent already installed in JVM [" + vm.id() + "]");
+			return false;
+		}
+		LOG.log(Level.INFO, "Agent jar [" + jarFile + "]");
+		if(packedAgentOptions==null || packedAgentOptions.isEmpty()) {
+			LOG.log(Level.INFO, "Executing [vm.loadAgent(\"" + jarFile + "\")]");
+			vm.loadAgent(jarFile);				
+		} else {
+			LOG.log(Level.INFO, "Executing [vm.loadAgent(\"" + jarFile + "\",\"" + packedAgentOptions + "\")]");
+			vm.loadAgent(jarFile, packedAgentOptions);
+		}
+		LOG.log(Level.INFO, "Successfully installed Agent jar [" + jarFile + "] into JVM [" + vm.id() + "]");
+		return true;
+	}
 
 }
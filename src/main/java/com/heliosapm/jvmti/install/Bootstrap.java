@@ -0,0 +1,150 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.install;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.pmw.tinylog.Logger;
+
+/**
+ * <p>Title: Bootstrap</p>
+ * <p>Description: A dependency ordered startup graph. Each step starts on a small daemon pool as soon as the steps it
+ * depends on have finished, so steps with no dependency on each other start concurrently.
+ * A step that fails is logged and does not stop the steps that depend on it, so one broken subsystem
+ * does not keep the rest of the agent from starting.
+ * Dependencies must be added before their dependents, which keeps the graph acyclic.
+ * The pool threads time out once the steps are done.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.install.Bootstrap</code></p>
+ */
+
+public class Bootstrap {
+	/** The step completions keyed by step name, in the order added */
+	private final Map<String, CompletableFuture<Void>> steps = new LinkedHashMap<String, CompletableFuture<Void>>();
+	/** The names of the steps that failed */
+	private final Set<String> failed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	/** The pool running the steps */
+	private final ExecutorService executor;
+	/** The time the bootstrap started */
+	private final long start = System.currentTimeMillis();
+
+	/**
+	 * <p>Title: Step</p>
+	 * <p>Description: A bootstrap step</p>
+	 */
+	public static interface Step {
+		/**
+		 * Runs the step
+		 * @throws Exception thrown on any error
+		 */
+		public void run() throws Exception;
+	}
+
+	/**
+	 * Creates a new Bootstrap
+	 * @param threads The maximum number of steps to run concurrently
+	 */
+	public Bootstrap(final int threads) {
+		executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory(){
+			final AtomicInteger serial = new AtomicInteger(0);
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "AgentBootstrap#" + serial.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		((ThreadPoolExecutor)executor).allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Adds a step, which starts as soon as the steps it depends on have finished
+	 * @param name The step name
+	 * @param step The step
+	 * @param dependsOn The names of the steps this step depends on, which must already have been added
+	 * @return this bootstrap
+	 */
+	public synchronized Bootstrap step(final String name, final Step step, final String...dependsOn) {
+		if(steps.containsKey(name)) throw new IllegalArgumentException("Duplicate step [" + name + "]");
+		final CompletableFuture<?>[] dependencies = new CompletableFuture<?>[dependsOn.length];
+		for(int i = 0; i < dependsOn.length; i++) {
+			dependencies[i] = steps.get(dependsOn[i]);
+			if(dependencies[i]==null) throw new IllegalArgumentException("Step [" + name + "] depends on unknown step [" + dependsOn[i] + "]");
+		}
+		steps.put(name, CompletableFuture.allOf(dependencies).thenRunAsync(() -> {
+			final long stepStart = System.currentTimeMillis();
+			try {
+				step.run();
+				Logger.info("Bootstrap step [{}] completed in {} ms", name, System.currentTimeMillis() - stepStart);
+			} catch (Throwable t) {
+				failed.add(name);
+				Logger.error("Bootstrap step [{}] failed", name, t);
+			}
+		}, executor));
+		return this;
+	}
+
+	/**
+	 * Returns true if the named step has been added
+	 * @param name The step name
+	 * @return true if the step exists
+	 */
+	public synchronized boolean hasStep(final String name) {
+		return steps.containsKey(name);
+	}
+
+	/**
+	 * Waits for every step to finish
+	 * @param timeout The maximum time to wait
+	 * @param unit The timeout unit
+	 * @return true if every step finished within the timeout, whether or not it failed
+	 * @throws InterruptedException thrown if the calling thread is interrupted while waiting
+	 */
+	public boolean await(final long timeout, final TimeUnit unit) throws InterruptedException {
+		final CompletableFuture<Void> all;
+		synchronized(this) {
+			all = CompletableFuture.allOf(steps.values().toArray(new CompletableFuture<?>[steps.size()]));
+		}
+		try {
+			all.get(timeout, unit);
+			Logger.info("Bootstrap of {} steps completed in {} ms with {} failures", steps.size(), System.currentTimeMillis() - start, failed.size());
+			return true;
+		} catch (TimeoutException tex) {
+			Logger.warn("Bootstrap did not complete within {} ms", unit.toMillis(timeout));
+			return false;
+		} catch (Exception ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the names of the steps that failed
+	 * @return the failed step names
+	 */
+	public Set<String> getFailed() {
+		return Collections.unmodifiableSet(failed);
+	}
+}
@@ -20,6 +20,7 @@ import java.net.URL;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import javax.management.ObjectName;
 import javax.management.loading.PrivateMLet;
@@ -29,6 +30,7 @@ import org.pmw.tinylog.Logger;
 import org.w3c.dom.Node;
 
 import com.heliosapm.jvmti.extension.ExecutionScheduler;
+import com.heliosapm.jvmti.metrics.PrometheusEndpoint;
 import com.heliosapm.utils.collections.Props;
 import com.heliosapm.utils.concurrency.ExtendedThreadManager;
 import com.heliosapm.utils.jmx.JMXHelper;
@@ -55,6 +57,15 @@ public class JavaAgent2 {
 	/** The class name of the native agent */
 	public static final String AGENT_CLASS_NAME = "com.heliosapm.jvmti.agent.Agent";
 	
+	/** The system property for the maximum time in ms the loader thread waits for the bootstrap to complete */
+	public static final String BOOTSTRAP_TIMEOUT_PROP = "com.heliosapm.jvmti.bootstrap.timeout";
+	/** The default bootstrap timeout in ms */
+	public static final long DEFAULT_BOOTSTRAP_TIMEOUT = 60000L;
+	/** The maximum number of bootstrap steps run concurrently */
+	public static final int BOOTSTRAP_THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+	/** The name of the bootstrap step that loads the native agent */
+	public static final String AGENT_STEP = "agent";
+	
 	/** The agent arg (location of xml config) */
 	private static String xmlConfig = "defaultconfig.xml";
 	/** The xml config URL */
@@ -85,19 +96,24 @@ public class JavaAgent2 {
 			System.err.println("DEBUG: Found class [" + agentClass.getName() + "]");
 			final Method method = agentClass.getDeclaredMethod("getInstance");
 			System.err.println("DEBUG: Found method [" + method.toGenericString() + "]\n\tInvoking.....");
-			// need to delay the invocation in a seperate thread because
-			// the Agent will need to attach to itself to load the native agent.
+			// the invocation runs in a seperate thread so agentmain returns promptly. If the
+			// native agent cannot be loaded in process, the Agent falls back to attaching to itself,
+			// which waits for the attach listener to finish this agentmain.
 			final Thread agentLoader = new Thread("NativeAgentLoader") {
 				public void run() {
 					try {
-						Thread.currentThread().join(500);  // TODO: make this configurable
-						method.invoke(null);
-						System.err.println("OK: Native Agent Installed. Configuring...");
+						final Bootstrap bootstrap = new Bootstrap(BOOTSTRAP_THREADS);
+						bootstrap.step(AGENT_STEP, () -> {
+							method.invoke(null);
+							System.err.println("OK: Native Agent Installed.");
+						});
+						// the config is parsed while the native agent loads
 						xmlConfigUrl = URLHelper.toURL(xmlConfig);
 						Logger.info("XML Config: [{}]", xmlConfigUrl);
 						rootConfigNode = XMLHelper.parseXML(xmlConfigUrl).getDocumentElement();
 						Logger.debug("First Child Node: [{}]", XMLHelper.renderNode(rootConfigNode));		
-						configure();
+						configure(bootstrap);
+						bootstrap.await(Long.getLong(BOOTSTRAP_TIMEOUT_PROP, DEFAULT_BOOTSTRAP_TIMEOUT), TimeUnit.MILLISECONDS);
 					} catch (Throwable ex) {
 						System.err.println("Failed to load native agent. Stack trace follows:");
 						ex.printStackTrace(System.err);
@@ -115,13 +131,20 @@ public class JavaAgent2 {
 		
 	}
 	
-	protected static void configure() throws Exception {
+	/**
+	 * Adds the configured subsystems to the bootstrap graph. Subsystems that read tokens or system properties
+	 * start after the sysprops step, extensions also wait for logging and the native agent, and the rest start concurrently.
+	 * The JMXMP server is started eagerly, off the critical path: its only users are remote clients, which need it listening before they can connect.
+	 * @param bootstrap The bootstrap graph, which already has the native agent step
+	 */
+	protected static void configure(final Bootstrap bootstrap) {
 		if(XMLHelper.hasChildNodeByName(rootConfigNode, "logging")) {
-			sysPropsConfig();
-			externalLoggingConfig();
-			extensionsConfig();
-			jmxmpConfig();
-			extendedThreadManagerConfig();
+			bootstrap.step("sysprops", JavaAgent2::sysPropsConfig);
+			bootstrap.step("logging", JavaAgent2::externalLoggingConfig, "sysprops");
+			bootstrap.step("extendedtm", JavaAgent2::extendedThreadManagerConfig, "sysprops");
+			bootstrap.step("jmxmp", JavaAgent2::jmxmpConfig, "sysprops");
+			bootstrap.step("prometheus", JavaAgent2::prometheusConfig, "sysprops");
+			extensionsConfig(bootstrap, "sysprops", "logging", AGENT_STEP);
 		}
 	}
 	
@@ -160,11 +183,13 @@ public class JavaAgent2 {
 		}
 	}	
 	
-	private static void extensionsConfig() {
+	private static void extensionsConfig(final Bootstrap bootstrap, final String...dependsOn) {
 		Node node = XMLHelper.getChildNodeByName(rootConfigNode, "extensions");
 		for(Node xnode : XMLHelper.getChildNodesByName(node, "extension", false)) {
-			String className = XMLHelper.getNodeTextValue(xnode);
-			ExecutionScheduler.getInstance().schedule(className);
+			final String className = XMLHelper.getNodeTextValue(xnode);
+			final String stepName = "extension:" + className;
+			if(bootstrap.hasStep(stepName)) continue;
+			bootstrap.step(stepName, () -> ExecutionScheduler.getInstance().schedule(className), dependsOn);
 		}
 	}
 	
@@ -181,6 +206,21 @@ public class JavaAgent2 {
 		}
 	}
 	
+	private static void prometheusConfig() throws IOException {
+		Node node = XMLHelper.getChildNodeByName(rootConfigNode, "prometheus");
+		if(node!=null && Boolean.parseBoolean(StringHelper.resolveTokens(XMLHelper.getAttributeByName(node, "enabled", "true")))) {
+			Node portNode = XMLHelper.getChildNodeByName(node, "port");
+			if(portNode!=null) {
+				Node ifaceNode = XMLHelper.getChildNodeByName(node, "iface");
+				Node pathNode = XMLHelper.getChildNodeByName(node, "path");
+				String iface = ifaceNode==null ? PrometheusEndpoint.DEFAULT_IFACE : StringHelper.resolveTokens(XMLHelper.getNodeTextValue(ifaceNode));
+				String path = pathNode==null ? PrometheusEndpoint.DEFAULT_PATH : StringHelper.resolveTokens(XMLHelper.getNodeTextValue(pathNode));
+				int port = Integer.parseInt(StringHelper.resolveTokens(XMLHelper.getNodeTextValue(portNode)));
+				boolean fallback = Boolean.parseBoolean(StringHelper.resolveTokens(XMLHelper.getAttributeByName(node, "fallback", "false")));
+				PrometheusEndpoint.start(ExecutionScheduler.getInstance().getRegistry(), iface, port, fallback, path);
+			}
+		}
+	}
 	
 	protected static ClassLoader getClassLoader(final Set<URL> classPath) {
 		if(classPath==null) return JavaAgent2.class.getClassLoader();
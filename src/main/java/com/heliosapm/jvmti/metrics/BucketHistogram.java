@@ -0,0 +1,209 @@
+/**
+ * 
+ */
+package com.heliosapm.jvmti.metrics;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.SlidingWindowReservoir;
+import com.codahale.metrics.Snapshot;
+
+/**
+ * A histogram fed with cumulative bucket counts recorded elsewhere, rather than with single values.
+ * Each {@link #update(long[])} replaces the snapshot with the values recorded since the previous update,
+ * while the count stays cumulative, so the snapshot quantiles describe the last interval.
+ * Single values passed to {@link #update(long)} are counted in the nearest bucket of the current interval.
+ * @author nwhitehead
+ */
+public class BucketHistogram extends Histogram {
+	/** The value each bucket reports */
+	private final long[] bucketValues;
+	/** The cumulative bucket counts, followed by the summed values, at the last update */
+	private final long[] prior;
+	/** The bucket counts of the current interval, followed by the summed values */
+	private long[] interval;
+	/** The number of values in the current interval */
+	private long intervalCount = 0L;
+	/** The cumulative count */
+	private volatile long count = 0L;
+	/** The snapshot of the current interval, null once the interval has changed */
+	private volatile Snapshot snapshot = null;
+
+	/**
+	 * Creates a new BucketHistogram
+	 * @param bucketValues The value each bucket reports, in ascending order
+	 */
+	public BucketHistogram(final long[] bucketValues) {
+		super(new SlidingWindowReservoir(1));
+		this.bucketValues = bucketValues.clone();
+		prior = new long[bucketValues.length + 1];
+		interval = new long[bucketValues.length + 1];
+	}
+
+	/**
+	 * Replaces the snapshot with the values recorded since the previous update
+	 * @param cumulative The cumulative count of each bucket, followed by the cumulative sum of the recorded values
+	 * @return the number of values recorded since the previous update
+	 */
+	public synchronized long update(final long[] cumulative) {
+		final int buckets = bucketValues.length;
+		if(cumulative.length < buckets + 1) throw new IllegalArgumentException("Expected " + (buckets + 1) + " counts but got " + cumulative.length);
+		final long[] counts = new long[buckets + 1];
+		long total = 0L;
+		for(int b = 0; b < buckets; b++) {
+			counts[b] = Math.max(0L, cumulative[b] - prior[b]);
+			total += counts[b];
+		}
+		counts[buckets] = Math.max(0L, cumulative[buckets] - prior[buckets]);
+		System.arraycopy(cumulative, 0, prior, 0, buckets + 1);
+		interval = counts;
+		intervalCount = total;
+		snapshot = null;
+		count += total;
+		return total;
+	}
+
+	/**
+	 * Counts a single value in the current interval, in the bucket whose value is nearest
+	 * @param value The value
+	 */
+	@Override
+	public synchronized void update(final long value) {
+		final int buckets = bucketValues.length;
+		interval[nearestBucket(value)]++;
+		interval[buckets] += value;
+		intervalCount++;
+		snapshot = null;
+		count++;
+	}
+
+	/**
+	 * Returns the bucket whose value is nearest the passed value
+	 * @param value The value
+	 * @return the bucket index
+	 */
+	int nearestBucket(final long value) {
+		final int found = Arrays.binarySearch(bucketValues, value);
+		if(found >= 0) return found;
+		final int above = -found - 1;
+		if(above==0) return 0;
+		if(above==bucketValues.length) return above - 1;
+		return value - bucketValues[above - 1] <= bucketValues[above] - value ? above - 1 : above;
+	}
+
+	@Override
+	public long getCount() {
+		return count;
+	}
+
+	@Override
+	public Snapshot getSnapshot() {
+		Snapshot s = snapshot;
+		if(s==null) {
+			synchronized(this) {
+				s = snapshot;
+				if(s==null) {
+					final int buckets = bucketValues.length;
+					s = new BucketSnapshot(bucketValues, Arrays.copyOf(interval, buckets), intervalCount, interval[buckets]);
+					snapshot = s;
+				}
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * A snapshot of bucket counts, where every value in a bucket is reported as the bucket's value
+	 */
+	static class BucketSnapshot extends Snapshot {
+		private final long[] bucketValues;
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+
+		BucketSnapshot(final long[] bucketValues, final long[] counts, final long count, final long sum) {
+			this.bucketValues = bucketValues;
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+		}
+
+		@Override
+		public double getValue(final double quantile) {
+			if(quantile < 0d || quantile > 1d || Double.isNaN(quantile)) throw new IllegalArgumentException(quantile + " is not in [0..1]");
+			if(count==0L) return 0d;
+			final long rank = Math.max(1L, (long)Math.ceil(quantile * count));
+			long seen = 0L;
+			for(int b = 0; b < counts.length; b++) {
+				seen += counts[b];
+				if(seen >= rank) return bucketValues[b];
+			}
+			return getMax();
+		}
+
+		@Override
+		public long[] getValues() {
+			final long[] values = new long[size()];
+			int index = 0;
+			for(int b = 0; b < counts.length && index < values.length; b++) {
+				final int end = (int)Math.min(values.length, index + counts[b]);
+				Arrays.fill(values, index, end, bucketValues[b]);
+				index = end;
+			}
+			return values;
+		}
+
+		@Override
+		public int size() {
+			return (int)Math.min(Integer.MAX_VALUE, count);
+		}
+
+		@Override
+		public long getMax() {
+			for(int b = counts.length - 1; b >= 0; b--) {
+				if(counts[b]!=0L) return bucketValues[b];
+			}
+			return 0L;
+		}
+
+		@Override
+		public double getMean() {
+			return count==0L ? 0d : (double)sum / count;
+		}
+
+		@Override
+		public long getMin() {
+			for(int b = 0; b < counts.length; b++) {
+				if(counts[b]!=0L) return bucketValues[b];
+			}
+			return 0L;
+		}
+
+		@Override
+		public double getStdDev() {
+			if(count < 2L) return 0d;
+			final double mean = getMean();
+			double squares = 0d;
+			for(int b = 0; b < counts.length; b++) {
+				if(counts[b]==0L) continue;
+				final double diff = bucketValues[b] - mean;
+				squares += diff * diff * counts[b];
+			}
+			return Math.sqrt(squares / (count - 1));
+		}
+
+		@Override
+		public void dump(final OutputStream output) {
+			try(final PrintWriter out = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8))) {
+				for(int b = 0; b < counts.length; b++) {
+					for(long i = 0; i < counts[b]; i++) out.printf("%d%n", bucketValues[b]);
+				}
+			}
+		}
+	}
+}
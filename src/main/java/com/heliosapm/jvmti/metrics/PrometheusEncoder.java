@@ -0,0 +1,311 @@
+/**
+ * 
+ */
+package com.heliosapm.jvmti.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+/**
+ * Encodes the metrics of a {@link MetricRegistry} in the Prometheus text exposition format (version 0.0.4)
+ * into a reusable byte buffer. Metric names are sanitized and encoded once, and numbers are written digit by digit,
+ * so repeated encodes allocate nothing beyond what the metrics themselves allocate to report their values.
+ * Counters and gauges are exposed as gauges, meters as counters, and histograms and timers as summaries,
+ * with timer quantiles in seconds. Registry names that sanitize to a sample name already in use, such as
+ * <code>a.b</code> and <code>a_b</code>, are disambiguated with a numeric suffix. The names of metrics removed from the
+ * registry are released on the next encode. Not thread safe.
+ * @author nwhitehead
+ */
+public class PrometheusEncoder {
+	/** The encoded name of each metric keyed by the registry name */
+	private final Map<String, byte[]> names = new HashMap<String, byte[]>();
+	/** The sample names claimed by the encoded names, with their metric suffixes */
+	private final Set<String> claimed = new HashSet<String>();
+	/** The sample names claimed by each registry name */
+	private final Map<String, String[]> claims = new HashMap<String, String[]>();
+	/** The number of named metrics encoded by the current encode */
+	private int encoded = 0;
+	/** The encoding buffer */
+	private byte[] buffer = new byte[16 * 1024];
+	/** The number of bytes encoded */
+	private int size = 0;
+	/** Scratch space for writing numbers */
+	private final byte[] digits = new byte[20];
+	/** Encodes one metric, created once so each encode does not allocate a new one */
+	private final BiConsumer<String, Metric> encodeMetric = this::encode;
+	
+	/** The content type of the encoded exposition */
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+	
+	private static final double[] QUANTILES = {0.5, 0.75, 0.95, 0.98, 0.99, 0.999};
+	private static final byte[][] QUANTILE_LABELS = new byte[QUANTILES.length][];
+	private static final byte[] TYPE = ascii("# TYPE ");
+	private static final byte[] GAUGE = ascii(" gauge\n");
+	private static final byte[] COUNTER = ascii(" counter\n");
+	private static final byte[] SUMMARY = ascii(" summary\n");
+	private static final byte[] TOTAL = ascii("_total");
+	private static final byte[] COUNT = ascii("_count");
+	private static final byte[] SECONDS = ascii("_seconds");
+	private static final byte[] NAN = ascii("NaN");
+	private static final byte[] POS_INF = ascii("+Inf");
+	private static final byte[] NEG_INF = ascii("-Inf");
+	/** Values from here on are written in scientific notation */
+	private static final double PLAIN_MAX = 1e15;
+	/** Fractional digits written for non integral values */
+	private static final int FRACTION_DIGITS = 6;
+	private static final double FRACTION_SCALE = 1e6;
+	
+	static {
+		for(int i = 0; i < QUANTILES.length; i++) QUANTILE_LABELS[i] = ascii("{quantile=\"" + QUANTILES[i] + "\"} ");
+	}
+	
+	/**
+	 * Encodes every metric in the passed registry, replacing the previous encoding
+	 * @param registry The registry to encode
+	 * @return the number of bytes encoded
+	 */
+	public int encode(final MetricRegistry registry) {
+		size = 0;
+		encoded = 0;
+		// forEach reaches the registry's map without the entry wrappers an unmodifiable entry set allocates
+		final Map<String, Metric> metrics = registry.getMetrics();
+		metrics.forEach(encodeMetric);
+		if(encoded < names.size()) prune(metrics);
+		return size;
+	}
+	
+	/**
+	 * Releases the names, and the sample names they claimed, of metrics no longer in the registry
+	 * @param metrics The registry's metrics
+	 */
+	private void prune(final Map<String, Metric> metrics) {
+		for(Iterator<String> it = names.keySet().iterator(); it.hasNext();) {
+			final String registryName = it.next();
+			if(metrics.containsKey(registryName)) continue;
+			it.remove();
+			for(String family: claims.remove(registryName)) claimed.remove(family);
+		}
+	}
+	
+	private void encode(final String registryName, final Metric metric) {
+		if(metric instanceof Gauge) {
+			final Object value = ((Gauge<?>)metric).getValue();
+			final double d;
+			if(value instanceof Number) d = ((Number)value).doubleValue();
+			else if(value instanceof Boolean) d = ((Boolean)value) ? 1d : 0d;
+			else return;
+			final byte[] name = name(registryName, null, false);
+			header(name, null, GAUGE);
+			sample(name, null, null, d);
+		} else if(metric instanceof Counter) {
+			final byte[] name = name(registryName, null, false);
+			header(name, null, GAUGE);
+			sample(name, null, null, ((Counter)metric).getCount());
+		} else if(metric instanceof Meter) {
+			final byte[] name = name(registryName, "_total", false);
+			header(name, TOTAL, COUNTER);
+			sample(name, TOTAL, null, ((Meter)metric).getCount());
+		} else if(metric instanceof Timer) {
+			final Timer timer = (Timer)metric;
+			summary(name(registryName, "_seconds", true), SECONDS, timer.getSnapshot(), timer.getCount(), 1d / TimeUnit.SECONDS.toNanos(1));
+		} else if(metric instanceof Histogram) {
+			final Histogram histogram = (Histogram)metric;
+			summary(name(registryName, null, true), null, histogram.getSnapshot(), histogram.getCount(), 1d);
+		}
+	}
+	
+	/**
+	 * Writes the current encoding to the passed stream
+	 * @param out The stream to write to
+	 * @throws IOException thrown on any IO error
+	 */
+	public void writeTo(final OutputStream out) throws IOException {
+		out.write(buffer, 0, size);
+	}
+	
+	/**
+	 * Returns the number of bytes in the current encoding
+	 * @return the encoded size
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Returns the current encoding as a string
+	 * @return the encoded exposition
+	 */
+	@Override
+	public String toString() {
+		return new String(buffer, 0, size, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Converts a registry metric name to a valid Prometheus metric name
+	 * @param name The registry name
+	 * @return the sanitized name
+	 */
+	static String sanitize(final String name) {
+		final StringBuilder b = new StringBuilder(name.length() + 1);
+		if(name.isEmpty() || Character.isDigit(name.charAt(0))) b.append('_');
+		for(int i = 0; i < name.length(); i++) {
+			final char c = name.charAt(i);
+			b.append((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c=='_' || c==':' ? c : '_');
+		}
+		return b.toString();
+	}
+	
+	/**
+	 * Returns the encoded name of a metric, claiming the sample names it writes on first use
+	 * @param registryName The registry name
+	 * @param suffix The suffix appended to the name for the metric's type, or null
+	 * @param summary true if the metric also writes a <code>_count</code> sample
+	 * @return the encoded name
+	 */
+	private byte[] name(final String registryName, final String suffix, final boolean summary) {
+		encoded++;
+		byte[] name = names.get(registryName);
+		if(name==null) {
+			final String base = sanitize(registryName);
+			String candidate = base;
+			for(int n = 2; !claim(registryName, candidate + (suffix==null ? "" : suffix), summary); n++) candidate = base + "_" + n;
+			name = ascii(candidate);
+			names.put(registryName, name);
+		}
+		return name;
+	}
+	
+	private boolean claim(final String registryName, final String family, final boolean summary) {
+		if(claimed.contains(family) || (summary && claimed.contains(family + "_count"))) return false;
+		claimed.add(family);
+		if(summary) claimed.add(family + "_count");
+		claims.put(registryName, summary ? new String[]{family, family + "_count"} : new String[]{family});
+		return true;
+	}
+	
+	/**
+	 * Returns the number of registry names with an encoded name
+	 * @return the number of named metrics
+	 */
+	int getNameCount() {
+		return names.size();
+	}
+	
+	private void summary(final byte[] name, final byte[] suffix, final Snapshot snapshot, final long count, final double scale) {
+		header(name, suffix, SUMMARY);
+		for(int i = 0; i < QUANTILES.length; i++) {
+			sample(name, suffix, QUANTILE_LABELS[i], snapshot.getValue(QUANTILES[i]) * scale);
+		}
+		write(name);
+		if(suffix!=null) write(suffix);
+		write(COUNT);
+		write((byte)' ');
+		writeLong(count);
+		write((byte)'\n');
+	}
+	
+	private void header(final byte[] name, final byte[] suffix, final byte[] type) {
+		write(TYPE);
+		write(name);
+		if(suffix!=null) write(suffix);
+		write(type);
+	}
+	
+	private void sample(final byte[] name, final byte[] suffix, final byte[] labels, final double value) {
+		write(name);
+		if(suffix!=null) write(suffix);
+		if(labels!=null) write(labels); else write((byte)' ');
+		writeDouble(value);
+		write((byte)'\n');
+	}
+	
+	private void sample(final byte[] name, final byte[] suffix, final byte[] labels, final long value) {
+		write(name);
+		if(suffix!=null) write(suffix);
+		if(labels!=null) write(labels); else write((byte)' ');
+		writeLong(value);
+		write((byte)'\n');
+	}
+	
+	/**
+	 * Writes a double as an integer when it is integral, otherwise with up to 6 fractional digits.
+	 * Only values too large or too small for that fall back to {@link Double#toString(double)}.
+	 * @param value The value to write
+	 */
+	void writeDouble(final double value) {
+		if(Double.isNaN(value)) { write(NAN); return; }
+		if(Double.isInfinite(value)) { write(value > 0 ? POS_INF : NEG_INF); return; }
+		final double abs = Math.abs(value);
+		if(abs >= PLAIN_MAX || (abs!=0d && abs < 1d / FRACTION_SCALE)) {
+			write(ascii(Double.toString(value)));
+			return;
+		}
+		long scaled = Math.round(abs * FRACTION_SCALE);
+		if(value < 0 && scaled!=0) write((byte)'-');
+		writeLong(scaled / (long)FRACTION_SCALE);
+		long fraction = scaled % (long)FRACTION_SCALE;
+		if(fraction==0) return;
+		int places = FRACTION_DIGITS;
+		while(fraction % 10==0) { fraction /= 10; places--; }
+		write((byte)'.');
+		for(int i = places - 1; i >= 0; i--) {
+			digits[i] = (byte)('0' + fraction % 10);
+			fraction /= 10;
+		}
+		write(digits, places);
+	}
+	
+	void writeLong(long value) {
+		if(value==Long.MIN_VALUE) { write(ascii(Long.toString(value))); return; }
+		if(value < 0) { write((byte)'-'); value = -value; }
+		int i = digits.length;
+		do {
+			digits[--i] = (byte)('0' + value % 10);
+			value /= 10;
+		} while(value!=0);
+		ensure(digits.length - i);
+		System.arraycopy(digits, i, buffer, size, digits.length - i);
+		size += digits.length - i;
+	}
+	
+	private void write(final byte b) {
+		ensure(1);
+		buffer[size++] = b;
+	}
+	
+	private void write(final byte[] bytes) {
+		write(bytes, bytes.length);
+	}
+	
+	private void write(final byte[] bytes, final int length) {
+		ensure(length);
+		System.arraycopy(bytes, 0, buffer, size, length);
+		size += length;
+	}
+	
+	private void ensure(final int length) {
+		if(size + length > buffer.length) buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + length));
+	}
+	
+	private static byte[] ascii(final String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+}
@@ -0,0 +1,180 @@
+/**
+ * 
+ */
+package com.heliosapm.jvmti.metrics;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.pmw.tinylog.Logger;
+
+import com.codahale.metrics.MetricRegistry;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An embedded HTTP endpoint serving a {@link MetricRegistry} to Prometheus scrapers.
+ * Exchanges are handled one at a time on the server's dispatcher thread, so a single {@link PrometheusEncoder}
+ * buffer is reused for every scrape, and the encoding is served from that buffer until it is older than the
+ * cache time set by the {@link #CACHE_PROP} system property. The port actually listened on is published in the
+ * {@link #PORT_PROP} system property.
+ * @author nwhitehead
+ */
+public class PrometheusEndpoint implements HttpHandler {
+	private static volatile PrometheusEndpoint instance = null;
+	private static final Object lock = new Object();
+	
+	/** The system property for the time in ms an encoding is served before the registry is encoded again */
+	public static final String CACHE_PROP = "com.heliosapm.jvmti.prometheus.cache";
+	/** The default encoding cache time in ms */
+	public static final long DEFAULT_CACHE = 1000L;
+	/** The system property the endpoint publishes the port it listens on in */
+	public static final String PORT_PROP = "com.heliosapm.jvmti.prometheus.boundport";
+	/** The default interface to bind to */
+	public static final String DEFAULT_IFACE = "127.0.0.1";
+	/** The default scrape path */
+	public static final String DEFAULT_PATH = "/metrics";
+	
+	private final MetricRegistry registry;
+	private final HttpServer server;
+	private final PrometheusEncoder encoder = new PrometheusEncoder();
+	private final long cacheNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong(CACHE_PROP, DEFAULT_CACHE));
+	/** The nano time of the last encode, 0 before the first */
+	private long encodedAt = 0L;
+	private volatile long scrapes = 0L;
+	private volatile long encodes = 0L;
+	
+	/**
+	 * Starts the endpoint, or returns the running one
+	 * @param registry The registry to serve
+	 * @param iface The interface to bind to
+	 * @param port The port to listen on, 0 for any free port
+	 * @param fallback true to listen on a free port if this port is in use, false to fail
+	 * @param path The scrape path
+	 * @return the endpoint
+	 * @throws IOException thrown if the server cannot be started, including when the port is in use and fallback is false
+	 */
+	public static PrometheusEndpoint start(final MetricRegistry registry, final String iface, final int port, final boolean fallback, final String path) throws IOException {
+		if(instance==null) {
+			synchronized(lock) {
+				if(instance==null) {
+					instance = new PrometheusEndpoint(registry, iface, port, fallback, path);
+				}
+			}
+		}
+		return instance;
+	}
+	
+	/**
+	 * Returns the running endpoint
+	 * @return the endpoint or null if one has not been started
+	 */
+	public static PrometheusEndpoint getInstance() {
+		return instance;
+	}
+	
+	private PrometheusEndpoint(final MetricRegistry registry, final String iface, final int port, final boolean fallback, final String path) throws IOException {
+		if(registry==null) throw new IllegalArgumentException("The passed registry was null");
+		this.registry = registry;
+		final String host = iface==null ? DEFAULT_IFACE : iface;
+		HttpServer httpServer;
+		try {
+			httpServer = HttpServer.create(new InetSocketAddress(host, port), 0);
+		} catch (BindException bex) {
+			if(port==0 || !fallback) throw new BindException("Prometheus endpoint port " + port + " on " + host + " is in use: " + bex.getMessage());
+			Logger.warn("Prometheus endpoint port {} is in use, falling back to a free port: {}", port, bex.toString());
+			httpServer = HttpServer.create(new InetSocketAddress(host, 0), 0);
+		}
+		server = httpServer;
+		server.createContext(path==null ? DEFAULT_PATH : path, this);
+		// the dispatcher thread inherits the daemon status of the thread starting the server
+		final Thread starter = new Thread(server::start, "PrometheusEndpointStarter");
+		starter.setDaemon(true);
+		starter.start();
+		try {
+			starter.join();
+		} catch (InterruptedException iex) {
+			Thread.currentThread().interrupt();
+		}
+		System.setProperty(PORT_PROP, Integer.toString(server.getAddress().getPort()));
+		Logger.info("Prometheus endpoint started at http://{}:{}{}", server.getAddress().getHostString(), server.getAddress().getPort(), path==null ? DEFAULT_PATH : path);
+	}
+	
+	@Override
+	public void handle(final HttpExchange exchange) throws IOException {
+		boolean responded = false;
+		try {
+			final String method = exchange.getRequestMethod();
+			final boolean head = "HEAD".equals(method);
+			if(!head && !"GET".equals(method)) {
+				responded = true;
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			final long now = System.nanoTime();
+			if(encodedAt==0L || now - encodedAt >= cacheNanos) {
+				encoder.encode(registry);
+				encodedAt = now;
+				encodes++;
+			}
+			scrapes++;
+			exchange.getResponseHeaders().set("Content-Type", PrometheusEncoder.CONTENT_TYPE);
+			responded = true;
+			exchange.sendResponseHeaders(200, head ? -1 : encoder.size());
+			if(!head) encoder.writeTo(exchange.getResponseBody());
+		} catch (Exception ex) {
+			Logger.warn("Prometheus scrape failed", ex);
+			// a failed encode leaves a partial buffer, so the next scrape encodes again
+			encodedAt = 0L;
+			if(!responded) {
+				try {
+					exchange.sendResponseHeaders(500, -1);
+				} catch (IOException iex) {
+					/* No Op */
+				}
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+	
+	/**
+	 * Stops the endpoint
+	 */
+	public void stop() {
+		synchronized(lock) {
+			server.stop(0);
+			if(instance==this) {
+				instance = null;
+				System.clearProperty(PORT_PROP);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the address the endpoint is listening on
+	 * @return the listening address
+	 */
+	public InetSocketAddress getAddress() {
+		return server.getAddress();
+	}
+	
+	/**
+	 * Returns the number of scrapes served
+	 * @return the scrape count
+	 */
+	public long getScrapeCount() {
+		return scrapes;
+	}
+	
+	/**
+	 * Returns the number of times the registry was encoded. Scrapes within the cache time are served without an encode.
+	 * @return the encode count
+	 */
+	public long getEncodeCount() {
+		return encodes;
+	}
+}
@@ -0,0 +1,570 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.snapshot;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Title: CensusRing</p>
+ * <p>Description: A fixed size, memory mapped ring file of class census ticks. Each tick is one record
+ * holding the instance count and total bytes per class index, either as a full keyframe or as zigzag varint deltas
+ * from the previous tick, so only classes whose population changed cost anything. The oldest records are overwritten
+ * once the ring is full and, since the file is mapped, the history survives a crash or restart of the JVM.
+ * The file is exclusively locked while open, so only one JVM at a time can write a ring.</p>
+ * <p>The file layout (big endian) is:<ul>
+ * 	<li><b>Header</b> (128 bytes): magic <code>OIFR</code>, short version, short reserved, long data capacity, int dictionary capacity,
+ *  int dictionary bytes used, int dictionary entry count, int keyframe interval, then longs for the head and tail logical positions
+ *  and the total number of records appended.</li>
+ *  <li><b>Dictionary</b>: class names in class index order, each a short byte length and UTF-8 bytes. Index 0 is {@link #OTHER},
+ *  which accumulates classes that no longer fit in the dictionary.</li>
+ *  <li><b>Data ring</b>: records at <code>logical position % data capacity</code>, each an int total length, a type byte
+ *  ({@link #KEYFRAME} or {@link #DELTA}), a long timestamp, a varint entry count and the entries in ascending class index order.
+ *  A keyframe entry is the varint class index gap from the previous entry then varint count and bytes. A delta entry is the gap
+ *  then zigzag varint count and bytes deltas. A record never wraps; a zero length (or fewer than 4 bytes left) means the next record
+ *  is at the start of the ring.</li>
+ * </ul></p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.snapshot.CensusRing</code></p>
+ */
+
+public class CensusRing implements Closeable {
+	/** The file magic, <code>OIFR</code> */
+	public static final int MAGIC = 0x4F494652;
+	/** The current format version */
+	public static final short VERSION = 1;
+	/** The header size in bytes */
+	public static final int HEADER_SIZE = 128;
+	/** The keyframe record type */
+	public static final byte KEYFRAME = 1;
+	/** The delta record type */
+	public static final byte DELTA = 2;
+	/** The name of class index 0 which accumulates classes that do not fit in the dictionary */
+	public static final String OTHER = "<other>";
+	/** The default dictionary capacity in bytes */
+	public static final int DEFAULT_DICTIONARY_CAPACITY = 4 * 1024 * 1024;
+	/** The default number of records between keyframes */
+	public static final int DEFAULT_KEYFRAME_INTERVAL = 60;
+
+	private static final int RECORD_HEADER = 4 + 1 + 8;
+	private static final int HEAD_OFFSET = 32;
+	private static final int TAIL_OFFSET = 40;
+	private static final int RECORDS_OFFSET = 48;
+	private static final int DICT_SIZE_OFFSET = 20;
+	private static final int DICT_COUNT_OFFSET = 24;
+
+	/** The ring file */
+	private final File file;
+	/** The ring file channel */
+	private final FileChannel channel;
+	/** The mapped file */
+	private final MappedByteBuffer map;
+	/** The data ring capacity in bytes */
+	private final long capacity;
+	/** The dictionary capacity in bytes */
+	private final int dictionaryCapacity;
+	/** The offset of the data ring in the file */
+	private final int dataOffset;
+	/** The number of records between keyframes */
+	private final int keyframeInterval;
+	/** The class names by class index */
+	private final List<String> classNames = new ArrayList<String>();
+	/** The class indexes by class name */
+	private final Map<String, Integer> classIndexes = new HashMap<String, Integer>();
+	/** The record encoding buffer */
+	private byte[] encoded = new byte[4096];
+	/** The encoding position */
+	private int encodedSize = 0;
+	/** The class indexes of the last appended tick, ascending */
+	private int[] lastIndexes = null;
+	/** The counts of the last appended tick */
+	private long[] lastCounts = null;
+	/** The bytes of the last appended tick */
+	private long[] lastBytes = null;
+	/** The number of records appended since the last keyframe */
+	private int sinceKeyframe = 0;
+
+	/**
+	 * <p>Title: Tick</p>
+	 * <p>Description: The census of one tick, with class indexes in ascending order</p>
+	 */
+	public static class Tick {
+		/** The tick timestamp in ms */
+		public final long timestamp;
+		/** The class indexes */
+		public final int[] classIndexes;
+		/** The instance counts, index aligned with the class indexes */
+		public final long[] counts;
+		/** The total shallow bytes, index aligned with the class indexes */
+		public final long[] bytes;
+
+		Tick(final long timestamp, final int[] classIndexes, final long[] counts, final long[] bytes) {
+			this.timestamp = timestamp;
+			this.classIndexes = classIndexes;
+			this.counts = counts;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * <p>Title: TickVisitor</p>
+	 * <p>Description: Visitor for replayed ticks</p>
+	 */
+	public static interface TickVisitor {
+		/**
+		 * Visits a replayed tick
+		 * @param tick The tick
+		 */
+		public void visit(Tick tick);
+	}
+
+	/**
+	 * Opens and exclusively locks the ring file, creating it if it does not exist. An existing ring keeps its own capacities.
+	 * @param file The ring file
+	 * @param capacity The data ring capacity in bytes for a new ring
+	 * @param dictionaryCapacity The dictionary capacity in bytes for a new ring
+	 * @param keyframeInterval The number of records between keyframes for a new ring
+	 * @return the opened ring
+	 * @throws IOException thrown on any IO error, if an existing file is not a ring or if the ring is already open elsewhere
+	 */
+	public static CensusRing open(final File file, final long capacity, final int dictionaryCapacity, final int keyframeInterval) throws IOException {
+		if(file==null) throw new IllegalArgumentException("The passed file was null");
+		if(capacity < 1024) throw new IllegalArgumentException("Invalid capacity:" + capacity);
+		if(dictionaryCapacity < 64) throw new IllegalArgumentException("Invalid dictionary capacity:" + dictionaryCapacity);
+		if(keyframeInterval < 1) throw new IllegalArgumentException("Invalid keyframe interval:" + keyframeInterval);
+		if((long)HEADER_SIZE + dictionaryCapacity + capacity > Integer.MAX_VALUE) throw new IllegalArgumentException("Ring file would exceed 2GB");
+		final FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			final FileLock lock;
+			try {
+				lock = fc.tryLock();
+			} catch (OverlappingFileLockException ex) {
+				throw new IOException("Census ring [" + file + "] is already open in this JVM");
+			}
+			if(lock==null) throw new IOException("Census ring [" + file + "] is locked by another process");
+			return new CensusRing(file, fc, capacity, dictionaryCapacity, keyframeInterval);
+		} catch (IOException iex) {
+			fc.close();
+			throw iex;
+		}
+	}
+
+	/**
+	 * Opens the ring file with the default dictionary capacity and keyframe interval
+	 * @param file The ring file
+	 * @param capacity The data ring capacity in bytes for a new ring
+	 * @return the opened ring
+	 * @throws IOException thrown on any IO error or if an existing file is not a ring
+	 */
+	public static CensusRing open(final File file, final long capacity) throws IOException {
+		return open(file, capacity, DEFAULT_DICTIONARY_CAPACITY, DEFAULT_KEYFRAME_INTERVAL);
+	}
+
+	private CensusRing(final File file, final FileChannel channel, final long capacity, final int dictionaryCapacity, final int keyframeInterval) throws IOException {
+		this.file = file;
+		this.channel = channel;
+		if(channel.size() >= HEADER_SIZE) {
+			final MappedByteBuffer header = channel.map(MapMode.READ_ONLY, 0, HEADER_SIZE);
+			if(header.getInt(0)!=MAGIC) throw new IOException("File [" + file + "] is not a census ring");
+			if(header.getShort(4)!=VERSION) throw new IOException("Unsupported census ring version [" + header.getShort(4) + "]");
+			this.capacity = header.getLong(8);
+			this.dictionaryCapacity = header.getInt(16);
+			this.keyframeInterval = header.getInt(28);
+			dataOffset = HEADER_SIZE + this.dictionaryCapacity;
+			if(channel.size() < dataOffset + this.capacity) throw new IOException("Census ring [" + file + "] is truncated");
+			map = channel.map(MapMode.READ_WRITE, 0, dataOffset + this.capacity);
+			final int dictCount = map.getInt(DICT_COUNT_OFFSET);
+			int pos = HEADER_SIZE;
+			for(int i = 0; i < dictCount; i++) {
+				final byte[] name = new byte[map.getShort(pos) & 0xFFFF];
+				pos += 2;
+				for(int b = 0; b < name.length; b++) name[b] = map.get(pos++);
+				registerName(new String(name, StandardCharsets.UTF_8));
+			}
+		} else {
+			this.capacity = capacity;
+			this.dictionaryCapacity = dictionaryCapacity;
+			this.keyframeInterval = keyframeInterval;
+			dataOffset = HEADER_SIZE + dictionaryCapacity;
+			map = channel.map(MapMode.READ_WRITE, 0, dataOffset + capacity);
+			map.putInt(0, MAGIC);
+			map.putShort(4, VERSION);
+			map.putLong(8, capacity);
+			map.putInt(16, dictionaryCapacity);
+			map.putInt(DICT_SIZE_OFFSET, 0);
+			map.putInt(DICT_COUNT_OFFSET, 0);
+			map.putInt(28, keyframeInterval);
+			map.putLong(HEAD_OFFSET, 0L);
+			map.putLong(TAIL_OFFSET, 0L);
+			map.putLong(RECORDS_OFFSET, 0L);
+			classIndex(OTHER);
+		}
+	}
+
+	private void registerName(final String name) {
+		classIndexes.put(name, classNames.size());
+		classNames.add(name);
+	}
+
+	/**
+	 * Returns the class index for the passed class name, adding it to the dictionary if it is new
+	 * @param className The class name
+	 * @return the class index, or 0 ({@link #OTHER}) if the dictionary is full
+	 */
+	public synchronized int classIndex(final String className) {
+		final Integer index = classIndexes.get(className);
+		if(index!=null) return index;
+		final byte[] name = className.getBytes(StandardCharsets.UTF_8);
+		final int used = map.getInt(DICT_SIZE_OFFSET);
+		if(name.length > 0xFFFF || used + 2 + name.length > dictionaryCapacity) return 0;
+		int pos = HEADER_SIZE + used;
+		map.putShort(pos, (short)name.length);
+		pos += 2;
+		for(byte b: name) map.put(pos++, b);
+		map.putInt(DICT_SIZE_OFFSET, used + 2 + name.length);
+		map.putInt(DICT_COUNT_OFFSET, classNames.size() + 1);
+		registerName(className);
+		return classNames.size() - 1;
+	}
+
+	/**
+	 * Returns the class name for the passed class index
+	 * @param classIndex The class index
+	 * @return the class name or null if the index is unknown
+	 */
+	public synchronized String className(final int classIndex) {
+		return (classIndex < 0 || classIndex >= classNames.size()) ? null : classNames.get(classIndex);
+	}
+
+	/**
+	 * Appends a census tick. Classes with the same name are summed.
+	 * @param timestamp The tick timestamp in ms
+	 * @param names The class names
+	 * @param counts The instance counts, index aligned with the names
+	 * @param bytes The total shallow bytes, index aligned with the names
+	 */
+	public synchronized void append(final long timestamp, final String[] names, final long[] counts, final long[] bytes) {
+		if(names==null || counts==null || bytes==null) throw new IllegalArgumentException("The passed arrays must not be null");
+		if(counts.length < names.length || bytes.length < names.length) throw new IllegalArgumentException("The counts and bytes arrays must be as long as the names array");
+		final long[][] byIndex = new long[classNames.size() + names.length][];
+		int entries = 0;
+		for(int i = 0; i < names.length; i++) {
+			if(counts[i]==0 && bytes[i]==0) continue;
+			final int index = classIndex(names[i]);
+			if(byIndex[index]==null) {
+				byIndex[index] = new long[2];
+				entries++;
+			}
+			byIndex[index][0] += counts[i];
+			byIndex[index][1] += bytes[i];
+		}
+		final int[] indexes = new int[entries];
+		final long[] tickCounts = new long[entries];
+		final long[] tickBytes = new long[entries];
+		for(int index = 0, e = 0; index < byIndex.length && e < entries; index++) {
+			if(byIndex[index]==null) continue;
+			indexes[e] = index;
+			tickCounts[e] = byIndex[index][0];
+			tickBytes[e] = byIndex[index][1];
+			e++;
+		}
+		append(timestamp, indexes, tickCounts, tickBytes);
+	}
+
+	private void append(final long timestamp, final int[] indexes, final long[] counts, final long[] bytes) {
+		final boolean keyframe = lastIndexes==null || sinceKeyframe >= keyframeInterval;
+		encodedSize = RECORD_HEADER;
+		if(keyframe) {
+			putVarint(indexes.length);
+			int previous = -1;
+			for(int i = 0; i < indexes.length; i++) {
+				putVarint(indexes[i] - previous);
+				putVarint(counts[i]);
+				putVarint(bytes[i]);
+				previous = indexes[i];
+			}
+		} else {
+			// merge the previous and current ticks, emitting only changed classes
+			final int countPos = encodedSize;
+			encodedSize += 5;
+			int changed = 0, previous = -1, c = 0, p = 0;
+			while(c < indexes.length || p < lastIndexes.length) {
+				final int index;
+				long dc, db;
+				if(p >= lastIndexes.length || (c < indexes.length && indexes[c] < lastIndexes[p])) {
+					index = indexes[c]; dc = counts[c]; db = bytes[c]; c++;
+				} else if(c >= indexes.length || lastIndexes[p] < indexes[c]) {
+					index = lastIndexes[p]; dc = -lastCounts[p]; db = -lastBytes[p]; p++;
+				} else {
+					index = indexes[c]; dc = counts[c] - lastCounts[p]; db = bytes[c] - lastBytes[p]; c++; p++;
+				}
+				if(dc==0 && db==0) continue;
+				putVarint(index - previous);
+				putVarint(zigzag(dc));
+				putVarint(zigzag(db));
+				previous = index;
+				changed++;
+			}
+			// the entry count is written as a fixed 5 byte varint so the entries need not be moved
+			for(int i = 0; i < 5; i++) {
+				encoded[countPos + i] = (byte)(((changed >>> (7 * i)) & 0x7F) | (i < 4 ? 0x80 : 0));
+			}
+		}
+		writeRecord(keyframe ? KEYFRAME : DELTA, timestamp);
+		lastIndexes = indexes;
+		lastCounts = counts;
+		lastBytes = bytes;
+		sinceKeyframe = keyframe ? 1 : sinceKeyframe + 1;
+	}
+
+	private void writeRecord(final byte type, final long timestamp) {
+		final int length = encodedSize;
+		if(length > capacity) throw new IllegalStateException("Census record of " + length + " bytes exceeds the ring capacity of " + capacity);
+		long head = map.getLong(HEAD_OFFSET);
+		long tail = map.getLong(TAIL_OFFSET);
+		final long remaining = capacity - (head % capacity);
+		final long start = remaining < length ? head + remaining : head;
+		while(start + length - tail > capacity) {
+			if(tail >= head) {
+				tail = start;
+				break;
+			}
+			tail = next(tail, head);
+		}
+		// publish the new tail before overwriting so a crash never leaves the tail on a partial record
+		map.putLong(TAIL_OFFSET, tail);
+		if(start!=head && remaining >= 4) map.putInt(physical(head), 0);
+		encoded[4] = type;
+		putInt(encoded, 0, length);
+		putLong(encoded, 5, timestamp);
+		final int pos = physical(start);
+		for(int i = 0; i < length; i++) map.put(pos + i, encoded[i]);
+		map.putLong(HEAD_OFFSET, start + length);
+		map.putLong(RECORDS_OFFSET, map.getLong(RECORDS_OFFSET) + 1);
+	}
+
+	private int physical(final long logical) {
+		return dataOffset + (int)(logical % capacity);
+	}
+
+	/**
+	 * Returns the logical position of the record after the one at the passed position
+	 * @param position The logical position of a record
+	 * @param head The head position
+	 * @return the next record's logical position
+	 */
+	private long next(final long position, final long head) {
+		final long start = recordStart(position);
+		if(start >= head) return head;
+		return start + map.getInt(physical(start));
+	}
+
+	/**
+	 * Skips a wrap marker at the passed position
+	 * @param position The logical position
+	 * @return the logical position of the record at or after the passed position
+	 */
+	private long recordStart(final long position) {
+		final long remaining = capacity - (position % capacity);
+		if(remaining < 4 || map.getInt(physical(position))==0) return position + remaining;
+		return position;
+	}
+
+	/**
+	 * Replays the ticks between the passed times, inclusive
+	 * @param fromTime The earliest tick time in ms
+	 * @param toTime The latest tick time in ms
+	 * @param visitor The visitor each tick in the range is passed to
+	 */
+	public synchronized void replay(final long fromTime, final long toTime, final TickVisitor visitor) {
+		if(visitor==null) throw new IllegalArgumentException("The passed visitor was null");
+		final long head = map.getLong(HEAD_OFFSET);
+		long position = map.getLong(TAIL_OFFSET);
+		final Map<Integer, long[]> state = new HashMap<Integer, long[]>();
+		boolean synced = false;
+		while(position < head) {
+			position = recordStart(position);
+			if(position >= head) break;
+			final int pos = physical(position);
+			final int length = map.getInt(pos);
+			final byte type = map.get(pos + 4);
+			final long timestamp = map.getLong(pos + 5);
+			position += length;
+			if(timestamp > toTime) break;
+			if(type==KEYFRAME) {
+				state.clear();
+				synced = true;
+			} else if(!synced) {
+				// deltas before the oldest surviving keyframe cannot be resolved
+				continue;
+			}
+			final int[] cursor = {pos + RECORD_HEADER};
+			final long entries = getVarint(cursor);
+			int index = -1;
+			for(long e = 0; e < entries; e++) {
+				index += (int)getVarint(cursor);
+				final long c = getVarint(cursor);
+				final long b = getVarint(cursor);
+				if(type==KEYFRAME) {
+					state.put(index, new long[]{c, b});
+				} else {
+					long[] current = state.get(index);
+					if(current==null) {
+						current = new long[2];
+						state.put(index, current);
+					}
+					current[0] += unzigzag(c);
+					current[1] += unzigzag(b);
+					if(current[0]==0 && current[1]==0) state.remove(index);
+				}
+			}
+			if(timestamp >= fromTime) visitor.visit(snapshot(timestamp, state));
+		}
+	}
+
+	/**
+	 * Returns the ticks between the passed times, inclusive
+	 * @param fromTime The earliest tick time in ms
+	 * @param toTime The latest tick time in ms
+	 * @return the ticks in time order
+	 */
+	public List<Tick> query(final long fromTime, final long toTime) {
+		final List<Tick> ticks = new ArrayList<Tick>();
+		replay(fromTime, toTime, ticks::add);
+		return ticks;
+	}
+
+	private static Tick snapshot(final long timestamp, final Map<Integer, long[]> state) {
+		final int[] indexes = new int[state.size()];
+		int i = 0;
+		for(Integer index: state.keySet()) indexes[i++] = index;
+		Arrays.sort(indexes);
+		final long[] counts = new long[indexes.length];
+		final long[] bytes = new long[indexes.length];
+		for(i = 0; i < indexes.length; i++) {
+			final long[] value = state.get(indexes[i]);
+			counts[i] = value[0];
+			bytes[i] = value[1];
+		}
+		return new Tick(timestamp, indexes, counts, bytes);
+	}
+
+	private void putVarint(final long value) {
+		if(encodedSize + 10 > encoded.length) encoded = Arrays.copyOf(encoded, encoded.length * 2);
+		long v = value;
+		while((v & ~0x7FL)!=0) {
+			encoded[encodedSize++] = (byte)((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		encoded[encodedSize++] = (byte)v;
+	}
+
+	private long getVarint(final int[] cursor) {
+		long value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = map.get(cursor[0]++);
+			value |= (long)(b & 0x7F) << shift;
+			shift += 7;
+		} while((b & 0x80)!=0);
+		return value;
+	}
+
+	private static long zigzag(final long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unzigzag(final long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static void putInt(final byte[] arr, final int offset, final int value) {
+		for(int i = 0; i < 4; i++) arr[offset + i] = (byte)(value >>> (24 - 8 * i));
+	}
+
+	private static void putLong(final byte[] arr, final int offset, final long value) {
+		for(int i = 0; i < 8; i++) arr[offset + i] = (byte)(value >>> (56 - 8 * i));
+	}
+
+	/**
+	 * Returns the total number of records appended over the life of the ring file
+	 * @return the record count
+	 */
+	public synchronized long getRecordCount() {
+		return map.getLong(RECORDS_OFFSET);
+	}
+
+	/**
+	 * Returns the number of bytes of retained records
+	 * @return the retained bytes
+	 */
+	public synchronized long getRetainedBytes() {
+		return map.getLong(HEAD_OFFSET) - map.getLong(TAIL_OFFSET);
+	}
+
+	/**
+	 * Returns the data ring capacity in bytes
+	 * @return the capacity
+	 */
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the number of classes in the dictionary
+	 * @return the class count
+	 */
+	public synchronized int getClassCount() {
+		return classNames.size();
+	}
+
+	/**
+	 * Returns the ring file
+	 * @return the ring file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Flushes the mapped file to disk
+	 */
+	public synchronized void force() {
+		map.force();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		map.force();
+		channel.close();
+	}
+}
@@ -0,0 +1,154 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.snapshot;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Title: ContentionProfile</p>
+ * <p>Description: An immutable copy of the native monitor contention table.
+ * Each site is a distinct (monitor class, contending method and bytecode index) pair with the number of times
+ * a thread blocked entering the monitor there, the total and the maximum blocked time in nanoseconds.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.snapshot.ContentionProfile</code></p>
+ */
+
+public class ContentionProfile {
+	/** The monitor class name of each site */
+	private final String[] monitorClasses;
+	/** The contending method and bytecode index of each site */
+	private final String[] sites;
+	/** The flat <code>[count, nanos, maxNanos]</code> stats of each site */
+	private final long[] stats;
+	/** The number of sites */
+	private final int siteCount;
+	/** The number of contentions not recorded because the native table was full */
+	private final long dropped;
+
+	/** The offset of the contention count in a site's stats */
+	public static final int COUNT = 0;
+	/** The offset of the total blocked nanos in a site's stats */
+	public static final int NANOS = 1;
+	/** The offset of the maximum blocked nanos in a site's stats */
+	public static final int MAX_NANOS = 2;
+
+	/**
+	 * Creates a new ContentionProfile
+	 * @param monitorClasses The monitor class name of each site
+	 * @param sites The contending method and bytecode index of each site
+	 * @param stats The flat <code>[count, nanos, maxNanos]</code> stats of each site
+	 * @param siteCount The number of valid sites in the passed arrays
+	 * @param dropped The number of contentions not recorded because the native table was full
+	 */
+	public ContentionProfile(final String[] monitorClasses, final String[] sites, final long[] stats, final int siteCount, final long dropped) {
+		if(siteCount < 0 || siteCount > monitorClasses.length || siteCount > sites.length || siteCount * 3 > stats.length) {
+			throw new IllegalArgumentException("Invalid site count:" + siteCount);
+		}
+		this.monitorClasses = monitorClasses;
+		this.sites = sites;
+		this.stats = stats;
+		this.siteCount = siteCount;
+		this.dropped = dropped;
+	}
+
+	/**
+	 * Returns the number of distinct contention sites
+	 * @return the site count
+	 */
+	public int getSiteCount() {
+		return siteCount;
+	}
+
+	/**
+	 * Returns the number of contentions not recorded because the native table was full
+	 * @return the dropped count
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Returns the total number of recorded contentions
+	 * @return the contention count
+	 */
+	public long getTotalCount() {
+		return total(COUNT);
+	}
+
+	/**
+	 * Returns the total time threads spent blocked entering contended monitors
+	 * @return the blocked time in nanoseconds
+	 */
+	public long getTotalNanos() {
+		return total(NANOS);
+	}
+
+	/**
+	 * Returns the most contended sites by total blocked time
+	 * @param topN The maximum number of sites to return
+	 * @return a map of <code>[count, nanos, maxNanos]</code> keyed by <code>monitor class</code> <code>&lt;-</code> <code>contending site</code>
+	 */
+	public LinkedHashMap<String, long[]> topSites(final int topN) {
+		final LinkedHashMap<String, long[]> bySite = new LinkedHashMap<String, long[]>(siteCount);
+		for(int i = 0; i < siteCount; i++) {
+			merge(bySite, monitorClasses[i] + " <- " + sites[i], i);
+		}
+		return top(bySite, topN);
+	}
+
+	/**
+	 * Returns the most contended monitor classes by total blocked time, summing all their contending sites
+	 * @param topN The maximum number of monitor classes to return
+	 * @return a map of <code>[count, nanos, maxNanos]</code> keyed by monitor class name
+	 */
+	public LinkedHashMap<String, long[]> topMonitorClasses(final int topN) {
+		final LinkedHashMap<String, long[]> byClass = new LinkedHashMap<String, long[]>();
+		for(int i = 0; i < siteCount; i++) {
+			merge(byClass, monitorClasses[i], i);
+		}
+		return top(byClass, topN);
+	}
+
+	private void merge(final Map<String, long[]> map, final String key, final int site) {
+		final long[] s = map.computeIfAbsent(key, k -> new long[3]);
+		s[COUNT] += stats[site * 3 + COUNT];
+		s[NANOS] += stats[site * 3 + NANOS];
+		s[MAX_NANOS] = Math.max(s[MAX_NANOS], stats[site * 3 + MAX_NANOS]);
+	}
+
+	private static LinkedHashMap<String, long[]> top(final Map<String, long[]> map, final int topN) {
+		if(topN < 1) throw new IllegalArgumentException("Invalid topN:" + topN);
+		final List<Map.Entry<String, long[]>> entries = new ArrayList<Map.Entry<String, long[]>>(map.entrySet());
+		entries.sort((a, b) -> Long.compare(b.getValue()[NANOS], a.getValue()[NANOS]));
+		final LinkedHashMap<String, long[]> top = new LinkedHashMap<String, long[]>();
+		for(int i = 0; i < entries.size() && i < topN; i++) {
+			top.put(entries.get(i).getKey(), entries.get(i).getValue());
+		}
+		return top;
+	}
+
+	private long total(final int offset) {
+		long total = 0;
+		for(int i = 0; i < siteCount; i++) total += stats[i * 3 + offset];
+		return total;
+	}
+
+	@Override
+	public String toString() {
+		return "ContentionProfile [sites=" + siteCount + ", contentions=" + getTotalCount() + ", blockedNanos=" + getTotalNanos() + ", dropped=" + dropped + "]";
+	}
+}
@@ -0,0 +1,470 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.snapshot;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.heliosapm.jvmti.agent.Agent;
+import com.heliosapm.jvmti.agent.NativeAgent;
+
+/**
+ * <p>Title: HeapSnapshot</p>
+ * <p>Description: A compact heap snapshot written natively into a memory mapped file, and its reader.</p>
+ * <p>The file layout is:<ul>
+ * 	<li><b>Header</b> (64 bytes): the ASCII magic <code>OIFS</code>, a byte order byte (<code>0</code> big endian, <code>1</code> little endian)
+ *  which applies to everything that follows, a flags byte ({@link #FLAG_REFERENCES}, {@link #FLAG_TRUNCATED}), a short version,
+ *  then longs for the timestamp, object count, reference count and class table offset, an int class count and reserved padding.</li>
+ *  <li><b>Object records</b> (24 bytes each): long object id (1 based, in heap iteration order), long shallow size,
+ *  int class index (<code>-1</code> if unknown) and int array length (<code>-1</code> if not an array).</li>
+ *  <li><b>Reference records</b> (24 bytes each), only when references were requested: long referrer id (<code>0</code> for a heap root),
+ *  long referent id, int JVMTI <code>jvmtiHeapReferenceKind</code> and int kind specific index (field index, array index,
+ *  constant pool index or stack depth, otherwise <code>-1</code>). References from an object to its class are not recorded
+ *  since the class index is in the object record.</li>
+ *  <li><b>Class table</b> at the class table offset: the class count as an int, then for each class index an int byte length and the UTF-8 class name.</li>
+ * </ul>
+ * If the mapped capacity fills up, the snapshot is flagged as truncated, references are skipped and the records written so far remain valid.
+ * The writer releases its mapping and truncates the file to the records actually written, and {@link #close()} releases the reader's mappings.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.snapshot.HeapSnapshot</code></p>
+ */
+
+public class HeapSnapshot implements Closeable {
+	/** The file magic, <code>OIFS</code> */
+	public static final int MAGIC = 0x4F494653;
+	/** The current format version */
+	public static final short VERSION = 1;
+	/** The header size in bytes */
+	public static final int HEADER_SIZE = 64;
+	/** The size of object and reference records in bytes */
+	public static final int RECORD_SIZE = 24;
+	/** The size of each mapped segment. A multiple of the record size so records never straddle segments. */
+	public static final int SEGMENT_SIZE = ((1 << 30) / RECORD_SIZE) * RECORD_SIZE;
+	/** Flag indicating the snapshot contains reference records */
+	public static final int FLAG_REFERENCES = 1;
+	/** Flag indicating the snapshot was truncated */
+	public static final int FLAG_TRUNCATED = 2;
+	/** The minimum mapped capacity when the capacity is estimated */
+	public static final long MIN_CAPACITY = 16L * 1024L * 1024L;
+	/** The estimated number of reference records per byte of shallow size, one per compressed reference slot */
+	private static final long BYTES_PER_REFERENCE = 8L;
+
+	/** Releases a mapped buffer, <code>Unsafe.invokeCleaner</code> on Java 9+ or the buffer's cleaner on Java 8, null if neither resolves */
+	private static final Method UNMAP;
+	/** The target of {@link #UNMAP}, the Unsafe instance on Java 9+ and null on Java 8 */
+	private static final Object UNMAP_TARGET;
+
+	static {
+		Method unmap = null;
+		Object target = null;
+		try {
+			final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			unmap = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			final Field f = unsafeClass.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			target = f.get(null);
+		} catch (NoSuchMethodException nsme) {
+			try {
+				unmap = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+			} catch (Throwable t) {
+				unmap = null;
+			}
+		} catch (Throwable t) {
+			unmap = null;
+		}
+		UNMAP = unmap;
+		UNMAP_TARGET = target;
+	}
+
+	/** The snapshot file */
+	private final File file;
+	/** The snapshot file channel */
+	private final FileChannel channel;
+	/** The mapped record segments */
+	private final MappedByteBuffer[] segments;
+	/** Indicates the snapshot has been closed and its segments released */
+	private volatile boolean closed = false;
+	/** The byte order of the snapshot */
+	private final ByteOrder order;
+	/** The snapshot flags */
+	private final int flags;
+	/** The snapshot timestamp */
+	private final long timestamp;
+	/** The number of object records */
+	private final long objectCount;
+	/** The number of reference records */
+	private final long referenceCount;
+	/** The class names by class index */
+	private final String[] classNames;
+
+	/**
+	 * <p>Title: ObjectVisitor</p>
+	 * <p>Description: Visitor for object records</p>
+	 */
+	public static interface ObjectVisitor {
+		/**
+		 * Visits an object record
+		 * @param id The object id
+		 * @param size The object's shallow size
+		 * @param classIndex The object's class index or -1 if unknown
+		 * @param length The array length or -1 if not an array
+		 */
+		public void visit(long id, long size, int classIndex, int length);
+	}
+
+	/**
+	 * <p>Title: ReferenceVisitor</p>
+	 * <p>Description: Visitor for reference records</p>
+	 */
+	public static interface ReferenceVisitor {
+		/**
+		 * Visits a reference record
+		 * @param referrer The referrer id or 0 for a heap root
+		 * @param referent The referent id
+		 * @param kind The JVMTI reference kind
+		 * @param index The kind specific index or -1
+		 */
+		public void visit(long referrer, long referent, int kind, int index);
+	}
+
+	/**
+	 * Writes a snapshot of the heap of this JVM to the passed file
+	 * @param file The file to write to. Any existing content is replaced.
+	 * @param references true to include the references between objects
+	 * @param maxBytes The maximum record bytes to map. If less than 1, a capacity is estimated from a class census of the heap.
+	 * @return the written snapshot, which should be closed when no longer required
+	 * @throws IOException thrown on any IO error
+	 */
+	public static HeapSnapshot write(final File file, final boolean references, final long maxBytes) throws IOException {
+		if(file==null) throw new IllegalArgumentException("The passed file was null");
+		final NativeAgent nativeAgent = NativeAgent.getInstance();
+		final Class<?>[] classes = nativeAgent.getLoadedTypesOf(Object.class);
+		final long capacity = (capacity(nativeAgent, classes, references, maxBytes) / RECORD_SIZE) * RECORD_SIZE;
+		final long[] counts = new long[2];
+		final boolean truncated;
+		try(final FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			final ByteBuffer[] segments = new ByteBuffer[(int)((capacity + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+			try {
+				for(int i = 0; i < segments.length; i++) {
+					final long offset = (long)i * SEGMENT_SIZE;
+					segments[i] = fc.map(MapMode.READ_WRITE, HEADER_SIZE + offset, Math.min(SEGMENT_SIZE, capacity - offset));
+				}
+				truncated = nativeAgent.heapSnapshot(segments, classes, references, counts);
+				for(ByteBuffer segment: segments) ((MappedByteBuffer)segment).force();
+			} finally {
+				for(ByteBuffer segment: segments) unmap(segment);
+			}
+			final long classTableOffset = HEADER_SIZE + (counts[0] + counts[1]) * RECORD_SIZE;
+			final ByteOrder order = ByteOrder.nativeOrder();
+			final byte[][] names = new byte[classes.length][];
+			int tableSize = 4;
+			for(int i = 0; i < classes.length; i++) {
+				names[i] = Agent.renderClassName(classes[i]).getBytes(StandardCharsets.UTF_8);
+				tableSize += 4 + names[i].length;
+			}
+			final ByteBuffer table = ByteBuffer.allocate(tableSize).order(order);
+			table.putInt(classes.length);
+			for(byte[] name: names) {
+				table.putInt(name.length);
+				table.put(name);
+			}
+			table.flip();
+			writeFully(fc, table, classTableOffset);
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(order);
+			header.position(4);
+			header.put(order==ByteOrder.BIG_ENDIAN ? (byte)0 : (byte)1);
+			header.put((byte)((references ? FLAG_REFERENCES : 0) | (truncated ? FLAG_TRUNCATED : 0)));
+			header.putShort(VERSION);
+			header.putLong(System.currentTimeMillis());
+			header.putLong(counts[0]);
+			header.putLong(counts[1]);
+			header.putLong(classTableOffset);
+			header.putInt(classes.length);
+			header.clear();
+			// the magic reads the same in either byte order
+			header.put(0, (byte)'O').put(1, (byte)'I').put(2, (byte)'F').put(3, (byte)'S');
+			writeFully(fc, header, 0L);
+			fc.force(true);
+			try {
+				fc.truncate(classTableOffset + tableSize);
+			} catch (IOException iex) {
+				/* Some platforms refuse to truncate a file still mapped, which it is only if unmap fell back to the GC. The header locates everything so the tail is just slack. */
+			}
+		}
+		return open(file);
+	}
+
+	/**
+	 * Computes the record bytes to map for a snapshot
+	 * @param nativeAgent The native agent
+	 * @param classes The classes the snapshot indexes
+	 * @param references true if references will be written
+	 * @param maxBytes The requested maximum, or less than 1 to estimate
+	 * @return the record bytes to map
+	 */
+	private static long capacity(final NativeAgent nativeAgent, final Class<?>[] classes, final boolean references, final long maxBytes) {
+		if(maxBytes > 0) return maxBytes;
+		// the census counts the objects exactly; allow an eighth more for allocation between the census and the snapshot
+		final long[] sizes = new long[classes.length];
+		final long objects = nativeAgent.classCensus(classes, null, sizes);
+		long records = objects + (objects >> 3);
+		if(references) {
+			long bytes = 0;
+			for(long size: sizes) bytes += size;
+			records += bytes / BYTES_PER_REFERENCE;
+		}
+		return Math.max(MIN_CAPACITY, records * RECORD_SIZE);
+	}
+
+	/**
+	 * Releases a mapped buffer now rather than when it is collected.
+	 * The buffer must not be accessed afterwards.
+	 * @param buffer The buffer to release, ignored if null
+	 */
+	private static void unmap(final ByteBuffer buffer) {
+		if(buffer==null || UNMAP==null) return;
+		try {
+			if(UNMAP_TARGET!=null) {
+				UNMAP.invoke(UNMAP_TARGET, buffer);
+			} else {
+				final Object cleaner = UNMAP.invoke(buffer);
+				if(cleaner!=null) cleaner.getClass().getMethod("clean").invoke(cleaner);
+			}
+		} catch (Throwable t) {
+			/* Left for the GC to release */
+		}
+	}
+
+	private static void writeFully(final FileChannel fc, final ByteBuffer buff, final long position) throws IOException {
+		long pos = position;
+		while(buff.hasRemaining()) {
+			pos += fc.write(buff, pos);
+		}
+	}
+
+	/**
+	 * Opens a snapshot file for reading
+	 * @param file The snapshot file
+	 * @return the snapshot, which should be closed when no longer required
+	 * @throws IOException thrown on any IO error or if the file is not a snapshot
+	 */
+	public static HeapSnapshot open(final File file) throws IOException {
+		if(file==null) throw new IllegalArgumentException("The passed file was null");
+		final FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			return new HeapSnapshot(file, fc);
+		} catch (IOException iex) {
+			fc.close();
+			throw iex;
+		} catch (RuntimeException rex) {
+			fc.close();
+			throw new IOException("Invalid snapshot file [" + file + "]", rex);
+		}
+	}
+
+	private HeapSnapshot(final File file, final FileChannel channel) throws IOException {
+		this.file = file;
+		this.channel = channel;
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		if(channel.read(header, 0L) < HEADER_SIZE) throw new IOException("Snapshot file [" + file + "] is too short");
+		header.flip();
+		if(header.getInt(0)!=MAGIC) throw new IOException("Snapshot file [" + file + "] has an invalid magic");
+		order = header.get(4)==0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+		header.order(order);
+		flags = header.get(5);
+		final short version = header.getShort(6);
+		if(version!=VERSION) throw new IOException("Unsupported snapshot version [" + version + "]");
+		timestamp = header.getLong(8);
+		objectCount = header.getLong(16);
+		referenceCount = header.getLong(24);
+		final long classTableOffset = header.getLong(32);
+		final int classCount = header.getInt(40);
+		final long recordBytes = (objectCount + referenceCount) * RECORD_SIZE;
+		segments = new MappedByteBuffer[(int)((recordBytes + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+		for(int i = 0; i < segments.length; i++) {
+			final long offset = (long)i * SEGMENT_SIZE;
+			segments[i] = channel.map(MapMode.READ_ONLY, HEADER_SIZE + offset, Math.min(SEGMENT_SIZE, recordBytes - offset));
+			segments[i].order(order);
+		}
+		final MappedByteBuffer table = channel.map(MapMode.READ_ONLY, classTableOffset, channel.size() - classTableOffset);
+		try {
+			table.order(order);
+			if(table.getInt()!=classCount) throw new IOException("Snapshot file [" + file + "] class table does not match the header");
+			classNames = new String[classCount];
+			for(int i = 0; i < classCount; i++) {
+				final byte[] name = new byte[table.getInt()];
+				table.get(name);
+				classNames[i] = new String(name, StandardCharsets.UTF_8);
+			}
+		} catch (IOException | RuntimeException ex) {
+			for(MappedByteBuffer segment: segments) unmap(segment);
+			throw ex;
+		} finally {
+			unmap(table);
+		}
+	}
+
+	/**
+	 * Visits each object record in heap iteration order
+	 * @param visitor The visitor
+	 */
+	public void forEachObject(final ObjectVisitor visitor) {
+		if(visitor==null) throw new IllegalArgumentException("The passed visitor was null");
+		if(closed) throw new IllegalStateException("Snapshot [" + file + "] is closed");
+		for(long r = 0; r < objectCount; r++) {
+			final ByteBuffer segment = segments[(int)(r * RECORD_SIZE / SEGMENT_SIZE)];
+			final int offset = (int)(r * RECORD_SIZE % SEGMENT_SIZE);
+			visitor.visit(segment.getLong(offset), segment.getLong(offset + 8), segment.getInt(offset + 16), segment.getInt(offset + 20));
+		}
+	}
+
+	/**
+	 * Visits each reference record
+	 * @param visitor The visitor
+	 */
+	public void forEachReference(final ReferenceVisitor visitor) {
+		if(visitor==null) throw new IllegalArgumentException("The passed visitor was null");
+		if(closed) throw new IllegalStateException("Snapshot [" + file + "] is closed");
+		final long end = objectCount + referenceCount;
+		for(long r = objectCount; r < end; r++) {
+			final ByteBuffer segment = segments[(int)(r * RECORD_SIZE / SEGMENT_SIZE)];
+			final int offset = (int)(r * RECORD_SIZE % SEGMENT_SIZE);
+			visitor.visit(segment.getLong(offset), segment.getLong(offset + 8), segment.getInt(offset + 16), segment.getInt(offset + 20));
+		}
+	}
+
+	/**
+	 * Computes the instance count and total shallow size of each class in the snapshot
+	 * @return a map of <code>[count, bytes]</code> keyed by class name
+	 */
+	public Map<String, long[]> classHistogram() {
+		final long[] counts = new long[classNames.length];
+		final long[] bytes = new long[classNames.length];
+		final long[] unknown = new long[2];
+		forEachObject((id, size, classIndex, length) -> {
+			if(classIndex < 0 || classIndex >= classNames.length) {
+				unknown[0]++;
+				unknown[1] += size;
+			} else {
+				counts[classIndex]++;
+				bytes[classIndex] += size;
+			}
+		});
+		final Map<String, long[]> histogram = new HashMap<String, long[]>();
+		for(int i = 0; i < classNames.length; i++) {
+			if(counts[i]==0) continue;
+			histogram.merge(classNames[i], new long[]{counts[i], bytes[i]}, (a, b) -> new long[]{a[0] + b[0], a[1] + b[1]});
+		}
+		if(unknown[0] > 0) histogram.put("<unknown>", unknown);
+		return histogram;
+	}
+
+	/**
+	 * Returns the name of the class with the passed index
+	 * @param classIndex The class index from an object record
+	 * @return the class name or null if the index is unknown
+	 */
+	public String getClassName(final int classIndex) {
+		return (classIndex < 0 || classIndex >= classNames.length) ? null : classNames[classIndex];
+	}
+
+	/**
+	 * Returns the number of classes in the class table
+	 * @return the class count
+	 */
+	public int getClassCount() {
+		return classNames.length;
+	}
+
+	/**
+	 * Returns the number of object records
+	 * @return the object count
+	 */
+	public long getObjectCount() {
+		return objectCount;
+	}
+
+	/**
+	 * Returns the number of reference records
+	 * @return the reference count
+	 */
+	public long getReferenceCount() {
+		return referenceCount;
+	}
+
+	/**
+	 * Indicates if the snapshot includes references
+	 * @return true if the snapshot includes references
+	 */
+	public boolean hasReferences() {
+		return (flags & FLAG_REFERENCES)!=0;
+	}
+
+	/**
+	 * Indicates if the snapshot was truncated because the mapped capacity filled up
+	 * @return true if truncated
+	 */
+	public boolean isTruncated() {
+		return (flags & FLAG_TRUNCATED)!=0;
+	}
+
+	/**
+	 * Returns the time the snapshot was written
+	 * @return the snapshot timestamp in ms
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Returns the snapshot file
+	 * @return the snapshot file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>Releases the mapped records, after which the records can no longer be visited.</p>
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized(segments) {
+			if(closed) return;
+			closed = true;
+			for(MappedByteBuffer segment: segments) unmap(segment);
+		}
+		channel.close();
+	}
+
+	@Override
+	public String toString() {
+		return "HeapSnapshot [file=" + file + ", objects=" + objectCount + ", references=" + referenceCount
+				+ ", classes=" + classNames.length + (isTruncated() ? ", truncated" : "") + "]";
+	}
+}
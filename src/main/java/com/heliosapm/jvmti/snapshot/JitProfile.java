@@ -0,0 +1,158 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.snapshot;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Title: JitProfile</p>
+ * <p>Description: An immutable copy of the native JIT compilation counters.
+ * The totals are indexed by the <code>LOADS</code> .. <code>UNTRACKED</code> constants and each compiled method
+ * carries its load count, unload count and the size of its currently live compiled code.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.snapshot.JitProfile</code></p>
+ */
+
+public class JitProfile {
+	/** The totals */
+	private final long[] totals;
+	/** The name of each compiled method */
+	private final String[] methods;
+	/** The flat <code>[loads, unloads, liveBytes]</code> stats of each compiled method */
+	private final long[] stats;
+	/** The number of compiled methods */
+	private final int methodCount;
+
+	/** The total index of the number of compiled method loads */
+	public static final int LOADS = 0;
+	/** The total index of the number of compiled method unloads */
+	public static final int UNLOADS = 1;
+	/** The total index of the number of loads of methods that had been compiled before */
+	public static final int RECOMPILES = 2;
+	/** The total index of the number of methods with live compiled code */
+	public static final int LIVE_METHODS = 3;
+	/** The total index of the size of the live compiled code */
+	public static final int LIVE_BYTES = 4;
+	/** The total index of the size of all compiled code loaded */
+	public static final int TOTAL_BYTES = 5;
+	/** The total index of the number of dynamically generated code blobs, such as the interpreter and stubs */
+	public static final int DYNAMIC_BLOBS = 6;
+	/** The total index of the size of dynamically generated code */
+	public static final int DYNAMIC_BYTES = 7;
+	/** The total index of the number of loads not tracked per method because the native method table was full */
+	public static final int UNTRACKED = 8;
+	/** The number of totals */
+	public static final int TOTALS = 9;
+
+	/**
+	 * Creates a new JitProfile
+	 * @param totals The totals
+	 * @param methods The name of each compiled method
+	 * @param stats The flat <code>[loads, unloads, liveBytes]</code> stats of each compiled method
+	 * @param methodCount The number of valid methods in the passed arrays
+	 */
+	public JitProfile(final long[] totals, final String[] methods, final long[] stats, final int methodCount) {
+		if(totals.length < TOTALS) throw new IllegalArgumentException("Expected " + TOTALS + " totals but got " + totals.length);
+		if(methodCount < 0 || methodCount > methods.length || methodCount * 3 > stats.length) {
+			throw new IllegalArgumentException("Invalid method count:" + methodCount);
+		}
+		this.totals = totals;
+		this.methods = methods;
+		this.stats = stats;
+		this.methodCount = methodCount;
+	}
+
+	/**
+	 * Returns a total
+	 * @param index The total index, one of the <code>LOADS</code> .. <code>UNTRACKED</code> constants
+	 * @return the total
+	 */
+	public long getTotal(final int index) {
+		return totals[index];
+	}
+
+	/**
+	 * Returns the number of compiled methods in this profile
+	 * @return the method count
+	 */
+	public int getMethodCount() {
+		return methodCount;
+	}
+
+	/**
+	 * Returns the live compiled code size by package, largest first
+	 * @param topN The maximum number of packages to return
+	 * @return a map of <code>[liveMethods, liveBytes, loads]</code> keyed by package name
+	 */
+	public LinkedHashMap<String, long[]> codeByPackage(final int topN) {
+		final Map<String, long[]> byPackage = new HashMap<String, long[]>();
+		for(int i = 0; i < methodCount; i++) {
+			final long[] s = byPackage.computeIfAbsent(packageOf(methods[i]), k -> new long[3]);
+			if(stats[i * 3 + 2] > 0) s[0]++;
+			s[1] += stats[i * 3 + 2];
+			s[2] += stats[i * 3];
+		}
+		return top(byPackage, topN, 1);
+	}
+
+	/**
+	 * Returns the most recompiled methods
+	 * @param topN The maximum number of methods to return
+	 * @return a map of <code>[loads, unloads, liveBytes]</code> keyed by method name, for methods loaded more than once
+	 */
+	public LinkedHashMap<String, long[]> topRecompiled(final int topN) {
+		final Map<String, long[]> recompiled = new HashMap<String, long[]>();
+		for(int i = 0; i < methodCount; i++) {
+			if(stats[i * 3] < 2) continue;
+			final long[] s = recompiled.computeIfAbsent(methods[i], k -> new long[3]);
+			for(int x = 0; x < 3; x++) s[x] += stats[i * 3 + x];
+		}
+		return top(recompiled, topN, 0);
+	}
+
+	/**
+	 * Returns the package of a method name rendered as <code>package.Class.method</code>.
+	 * The address suffix of hidden classes is dropped.
+	 * @param method The method name
+	 * @return the package name, or an empty string for the default package
+	 */
+	static String packageOf(final String method) {
+		String className = method.substring(0, Math.max(0, method.lastIndexOf('.')));
+		final int hidden = className.indexOf(".0x");
+		if(hidden!=-1) className = className.substring(0, hidden);
+		final int index = className.lastIndexOf('.');
+		return index==-1 ? "" : className.substring(0, index);
+	}
+
+	private static LinkedHashMap<String, long[]> top(final Map<String, long[]> map, final int topN, final int sortIndex) {
+		if(topN < 1) throw new IllegalArgumentException("Invalid topN:" + topN);
+		final List<Map.Entry<String, long[]>> entries = new ArrayList<Map.Entry<String, long[]>>(map.entrySet());
+		entries.sort((a, b) -> Long.compare(b.getValue()[sortIndex], a.getValue()[sortIndex]));
+		final LinkedHashMap<String, long[]> top = new LinkedHashMap<String, long[]>();
+		for(int i = 0; i < entries.size() && i < topN; i++) {
+			top.put(entries.get(i).getKey(), entries.get(i).getValue());
+		}
+		return top;
+	}
+
+	@Override
+	public String toString() {
+		return "JitProfile [loads=" + totals[LOADS] + ", unloads=" + totals[UNLOADS] + ", recompiles=" + totals[RECOMPILES]
+			+ ", liveMethods=" + totals[LIVE_METHODS] + ", liveBytes=" + totals[LIVE_BYTES] + ", dynamicBytes=" + totals[DYNAMIC_BYTES] + "]";
+	}
+}
@@ -0,0 +1,200 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.snapshot;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+/**
+ * <p>Title: StackProfile</p>
+ * <p>Description: An immutable copy of the native stack sampler's trie.
+ * Node 0 is the root and every other node is a frame whose parent is its caller, so parents always precede their children.
+ * Each node carries the number of samples whose innermost frame it was, for all threads (wall clock) and for runnable threads only (cpu).</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.snapshot.StackProfile</code></p>
+ */
+
+public class StackProfile {
+	/** The parent node index of each node, -1 for the root */
+	private final int[] parents;
+	/** The method name index of each node, -1 for the root */
+	private final int[] nameIds;
+	/** The wall clock samples ending at each node */
+	private final long[] wall;
+	/** The cpu (runnable thread) samples ending at each node */
+	private final long[] cpu;
+	/** The method names, indexed by name index */
+	private final String[] names;
+	/** The number of nodes */
+	private final int nodeCount;
+	/** The number of samples charged to the overflow node because the trie was full */
+	private final long overflow;
+
+	/**
+	 * Creates a new StackProfile
+	 * @param parents The parent node index of each node, -1 for the root
+	 * @param nameIds The method name index of each node, -1 for the root
+	 * @param wall The wall clock samples ending at each node
+	 * @param cpu The cpu samples ending at each node
+	 * @param names The method names, indexed by name index
+	 * @param nodeCount The number of valid nodes in the passed arrays
+	 * @param overflow The number of samples charged to the overflow node because the trie was full
+	 */
+	public StackProfile(final int[] parents, final int[] nameIds, final long[] wall, final long[] cpu, final String[] names, final int nodeCount, final long overflow) {
+		if(nodeCount < 0 || nodeCount > parents.length || nodeCount > nameIds.length || nodeCount > wall.length || nodeCount > cpu.length) {
+			throw new IllegalArgumentException("Invalid node count:" + nodeCount);
+		}
+		this.parents = parents;
+		this.nameIds = nameIds;
+		this.wall = wall;
+		this.cpu = cpu;
+		this.names = names;
+		this.nodeCount = nodeCount;
+		this.overflow = overflow;
+	}
+
+	/**
+	 * Creates a new StackProfile with no overflow
+	 * @param parents The parent node index of each node, -1 for the root
+	 * @param nameIds The method name index of each node, -1 for the root
+	 * @param wall The wall clock samples ending at each node
+	 * @param cpu The cpu samples ending at each node
+	 * @param names The method names, indexed by name index
+	 * @param nodeCount The number of valid nodes in the passed arrays
+	 */
+	public StackProfile(final int[] parents, final int[] nameIds, final long[] wall, final long[] cpu, final String[] names, final int nodeCount) {
+		this(parents, nameIds, wall, cpu, names, nodeCount, 0L);
+	}
+
+	/**
+	 * Returns the number of samples charged to the overflow node because the native trie was full
+	 * @return the overflow count
+	 */
+	public long getOverflowCount() {
+		return overflow;
+	}
+
+	/**
+	 * Returns the number of trie nodes, including the root
+	 * @return the node count
+	 */
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	/**
+	 * Returns the total number of samples
+	 * @param cpuOnly true for samples of runnable threads only, false for all samples
+	 * @return the sample count
+	 */
+	public long getSampleCount(final boolean cpuOnly) {
+		final long[] counts = cpuOnly ? cpu : wall;
+		long total = 0;
+		for(int i = 0; i < nodeCount; i++) total += counts[i];
+		return total;
+	}
+
+	/**
+	 * Writes the profile in the collapsed stack format read by flame graph tools:
+	 * one line per distinct stack with the frames outermost first, separated by <code>;</code>, followed by a space and the sample count.
+	 * @param out The appendable to write to
+	 * @param cpuOnly true for samples of runnable threads only, false for all samples
+	 */
+	public void writeCollapsed(final Appendable out, final boolean cpuOnly) {
+		final long[] counts = cpuOnly ? cpu : wall;
+		final int[] path = new int[64];
+		try {
+			for(int i = 1; i < nodeCount; i++) {
+				if(counts[i]==0) continue;
+				final int[] frames = pathOf(i, path);
+				final int depth = depthOf(i);
+				for(int f = depth - 1; f >= 0; f--) {
+					out.append(names[nameIds[frames[f]]]);
+					if(f > 0) out.append(';');
+				}
+				out.append(' ').append(Long.toString(counts[i])).append('\n');
+			}
+		} catch (IOException iex) {
+			throw new UncheckedIOException(iex);
+		}
+	}
+
+	/**
+	 * Returns the profile in the collapsed stack format
+	 * @param cpuOnly true for samples of runnable threads only, false for all samples
+	 * @return the collapsed stacks
+	 * @see #writeCollapsed(Appendable, boolean)
+	 */
+	public String toCollapsed(final boolean cpuOnly) {
+		final StringBuilder b = new StringBuilder();
+		writeCollapsed(b, cpuOnly);
+		return b.toString();
+	}
+
+	/**
+	 * Returns the hottest methods by self samples.
+	 * A method's self count is the number of samples it was the innermost frame of and its total count is
+	 * the number of samples it appeared anywhere in, counting recursive frames once.
+	 * @param cpuOnly true for samples of runnable threads only, false for all samples
+	 * @param topN The maximum number of methods to return
+	 * @return a map of <code>[self, total]</code> sample counts keyed by method name, in descending self count order
+	 */
+	public LinkedHashMap<String, long[]> topMethods(final boolean cpuOnly, final int topN) {
+		if(topN < 1) throw new IllegalArgumentException("Invalid topN:" + topN);
+		final long[] counts = cpuOnly ? cpu : wall;
+		final long[] self = new long[names.length];
+		final long[] total = new long[names.length];
+		final int[] seen = new int[names.length];
+		Arrays.fill(seen, -1);
+		for(int i = 1; i < nodeCount; i++) {
+			if(counts[i]==0) continue;
+			self[nameIds[i]] += counts[i];
+			for(int n = i; n > 0; n = parents[n]) {
+				if(seen[nameIds[n]]==i) continue;
+				seen[nameIds[n]] = i;
+				total[nameIds[n]] += counts[i];
+			}
+		}
+		final Integer[] order = new Integer[names.length];
+		for(int i = 0; i < order.length; i++) order[i] = i;
+		Arrays.sort(order, (a, b) -> self[a]!=self[b] ? Long.compare(self[b], self[a]) : Long.compare(total[b], total[a]));
+		final LinkedHashMap<String, long[]> top = new LinkedHashMap<String, long[]>();
+		for(int i = 0; i < order.length && top.size() < topN; i++) {
+			if(total[order[i]]==0) break;
+			top.put(names[order[i]], new long[]{self[order[i]], total[order[i]]});
+		}
+		return top;
+	}
+
+	private int depthOf(final int node) {
+		int depth = 0;
+		for(int n = node; n > 0; n = parents[n]) depth++;
+		return depth;
+	}
+
+	private int[] pathOf(final int node, final int[] buffer) {
+		final int depth = depthOf(node);
+		final int[] path = depth > buffer.length ? new int[depth] : buffer;
+		int d = 0;
+		for(int n = node; n > 0; n = parents[n]) path[d++] = n;
+		return path;
+	}
+
+	@Override
+	public String toString() {
+		return "StackProfile [nodes=" + nodeCount + ", wall=" + getSampleCount(false) + ", cpu=" + getSampleCount(true) + ", overflow=" + overflow + "]";
+	}
+}
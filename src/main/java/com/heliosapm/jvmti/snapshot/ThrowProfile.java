@@ -0,0 +1,115 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.snapshot;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Title: ThrowProfile</p>
+ * <p>Description: An immutable copy of the native exception throw site table.
+ * Each site is a distinct (exception class, throwing method and bytecode index) pair with the number of times it was thrown.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.snapshot.ThrowProfile</code></p>
+ */
+
+public class ThrowProfile {
+	/** The exception class name of each site */
+	private final String[] exceptionClasses;
+	/** The throwing method and bytecode index of each site */
+	private final String[] sites;
+	/** The throw count of each site */
+	private final long[] counts;
+	/** The number of sites */
+	private final int siteCount;
+
+	/**
+	 * Creates a new ThrowProfile
+	 * @param exceptionClasses The exception class name of each site
+	 * @param sites The throwing method and bytecode index of each site
+	 * @param counts The throw count of each site
+	 * @param siteCount The number of valid sites in the passed arrays
+	 */
+	public ThrowProfile(final String[] exceptionClasses, final String[] sites, final long[] counts, final int siteCount) {
+		if(siteCount < 0 || siteCount > exceptionClasses.length || siteCount > sites.length || siteCount > counts.length) {
+			throw new IllegalArgumentException("Invalid site count:" + siteCount);
+		}
+		this.exceptionClasses = exceptionClasses;
+		this.sites = sites;
+		this.counts = counts;
+		this.siteCount = siteCount;
+	}
+
+	/**
+	 * Returns the number of distinct throw sites
+	 * @return the site count
+	 */
+	public int getSiteCount() {
+		return siteCount;
+	}
+
+	/**
+	 * Returns the total number of recorded throws
+	 * @return the throw count
+	 */
+	public long getTotalCount() {
+		long total = 0;
+		for(int i = 0; i < siteCount; i++) total += counts[i];
+		return total;
+	}
+
+	/**
+	 * Returns the most frequent throw sites
+	 * @param topN The maximum number of sites to return
+	 * @return a map of throw counts keyed by <code>exception class</code> <code>&lt;-</code> <code>throw site</code>
+	 */
+	public LinkedHashMap<String, Long> topSites(final int topN) {
+		final LinkedHashMap<String, Long> bySite = new LinkedHashMap<String, Long>(siteCount);
+		for(int i = 0; i < siteCount; i++) {
+			bySite.merge(exceptionClasses[i] + " <- " + sites[i], counts[i], Long::sum);
+		}
+		return top(bySite, topN);
+	}
+
+	/**
+	 * Returns the most frequently thrown exception classes, summing all their throw sites
+	 * @param topN The maximum number of exception classes to return
+	 * @return a map of throw counts keyed by exception class name
+	 */
+	public LinkedHashMap<String, Long> topExceptionClasses(final int topN) {
+		final LinkedHashMap<String, Long> byClass = new LinkedHashMap<String, Long>();
+		for(int i = 0; i < siteCount; i++) {
+			byClass.merge(exceptionClasses[i], counts[i], Long::sum);
+		}
+		return top(byClass, topN);
+	}
+
+	private static LinkedHashMap<String, Long> top(final Map<String, Long> map, final int topN) {
+		if(topN < 1) throw new IllegalArgumentException("Invalid topN:" + topN);
+		final List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(map.entrySet());
+		entries.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+		final LinkedHashMap<String, Long> top = new LinkedHashMap<String, Long>();
+		for(int i = 0; i < entries.size() && i < topN; i++) {
+			top.put(entries.get(i).getKey(), entries.get(i).getValue());
+		}
+		return top;
+	}
+
+	@Override
+	public String toString() {
+		return "ThrowProfile [sites=" + siteCount + ", throws=" + getTotalCount() + "]";
+	}
+}
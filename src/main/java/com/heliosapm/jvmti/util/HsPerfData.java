@@ -0,0 +1,431 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Title: HsPerfData</p>
+ * <p>Description: A reader for the HotSpot performance counters a JVM publishes in its memory mapped
+ * <code>hsperfdata_&lt;user&gt;/&lt;pid&gt;</code> file. The file is mapped read only and each {@link Counter}
+ * reads its value with a single load from the mapping, so counters such as <code>sun.rt.safepoints</code>,
+ * <code>sun.gc.collector.0.invocations</code> or <code>java.cls.loadedClasses</code> can be sampled at sub-second intervals
+ * without JMX. The files of other local JVMs run by the same user can be read the same way.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.util.HsPerfData</code></p>
+ */
+
+public class HsPerfData implements Closeable {
+	/** The perf data file magic number */
+	public static final int MAGIC = 0xCAFEC0C0;
+	/** The size of the perf data prologue */
+	public static final int PROLOGUE_SIZE = 32;
+	/** The name of the counter holding the tick frequency of tick based counters */
+	public static final String TICK_FREQUENCY = "sun.os.hrt.frequency";
+	/** The data type of long counters */
+	public static final byte TYPE_LONG = 'J';
+	/** The data type of byte array (string) counters */
+	public static final byte TYPE_BYTE = 'B';
+
+	/** The units of a counter */
+	public static enum Units {
+		/** Unknown units */
+		UNKNOWN,
+		/** A plain number */
+		NONE,
+		/** A number of bytes */
+		BYTES,
+		/** A number of high resolution timer ticks, see {@link HsPerfData#TICK_FREQUENCY} */
+		TICKS,
+		/** A number of events */
+		EVENTS,
+		/** A string */
+		STRING,
+		/** A frequency */
+		HERTZ;
+
+		static Units decode(final int code) {
+			return code > 0 && code < values().length ? values()[code] : UNKNOWN;
+		}
+	}
+
+	/** The variability of a counter */
+	public static enum Variability {
+		/** Unknown variability */
+		UNKNOWN,
+		/** The value never changes */
+		CONSTANT,
+		/** The value only increases */
+		MONOTONIC,
+		/** The value goes up and down */
+		VARIABLE;
+
+		static Variability decode(final int code) {
+			return code > 0 && code < values().length ? values()[code] : UNKNOWN;
+		}
+	}
+
+	/** The perf data file */
+	private final File file;
+	/** The mapped perf data */
+	private final ByteBuffer buffer;
+	/** The counters decoded so far, keyed by name */
+	private final Map<String, Counter> counters = new TreeMap<String, Counter>();
+	/** The offset of the next undecoded entry */
+	private int nextEntry;
+	/** The number of entries decoded so far */
+	private int decoded = 0;
+	/** The file channel, null for an unmapped buffer */
+	private final FileChannel channel;
+
+	/**
+	 * <p>Title: Counter</p>
+	 * <p>Description: A single perf counter. Reading the value reads the mapped memory, so a counter can be held and read repeatedly.</p>
+	 */
+	public class Counter {
+		/** The counter name */
+		private final String name;
+		/** The counter units */
+		private final Units units;
+		/** The counter variability */
+		private final Variability variability;
+		/** The counter data type */
+		private final byte type;
+		/** The offset of the value */
+		private final int offset;
+		/** The number of bytes in a byte array value, 0 for a long value */
+		private final int length;
+
+		private Counter(final String name, final Units units, final Variability variability, final byte type, final int offset, final int length) {
+			this.name = name;
+			this.units = units;
+			this.variability = variability;
+			this.type = type;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		/**
+		 * Returns the current value of a long counter
+		 * @return the value
+		 */
+		public long get() {
+			if(type!=TYPE_LONG || length!=0) throw new IllegalStateException("Counter [" + name + "] is not a long counter");
+			return buffer.getLong(offset);
+		}
+
+		/**
+		 * Returns the current value of a tick counter in the passed unit
+		 * @param unit The unit to convert to
+		 * @return the converted value
+		 */
+		public long get(final TimeUnit unit) {
+			if(units!=Units.TICKS) throw new IllegalStateException("Counter [" + name + "] is not a tick counter");
+			return ticksTo(get(), unit);
+		}
+
+		/**
+		 * Returns the current value of a byte array counter as a string
+		 * @return the string value
+		 */
+		public String getString() {
+			if(type!=TYPE_BYTE) throw new IllegalStateException("Counter [" + name + "] is not a string counter");
+			int end = 0;
+			while(end < length && buffer.get(offset + end)!=0) end++;
+			final byte[] bytes = new byte[end];
+			for(int i = 0; i < end; i++) bytes[i] = buffer.get(offset + i);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * Returns the current value as a Long or a String
+		 * @return the value
+		 */
+		public Object getValue() {
+			return type==TYPE_LONG && length==0 ? (Object)get() : getString();
+		}
+
+		/**
+		 * Indicates if this is a long counter
+		 * @return true for a long counter, false for a string counter
+		 */
+		public boolean isLong() {
+			return type==TYPE_LONG && length==0;
+		}
+
+		/**
+		 * Returns the counter name
+		 * @return the name
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Returns the counter units
+		 * @return the units
+		 */
+		public Units getUnits() {
+			return units;
+		}
+
+		/**
+		 * Returns the counter variability
+		 * @return the variability
+		 */
+		public Variability getVariability() {
+			return variability;
+		}
+
+		@Override
+		public String toString() {
+			return name + "=" + getValue() + " [" + units + "]";
+		}
+	}
+
+	/**
+	 * Opens the perf data file of this JVM
+	 * @return the perf data reader
+	 * @throws IOException thrown if the file does not exist, for example when the JVM runs with <code>-XX:+PerfDisableSharedMem</code>
+	 */
+	public static HsPerfData self() throws IOException {
+		return open(ManagementFactory.getRuntimeMXBean().getName().split("@")[0]);
+	}
+
+	/**
+	 * Opens the perf data file of a local JVM run by the current user
+	 * @param pid The process id of the JVM
+	 * @return the perf data reader
+	 * @throws IOException thrown if the file does not exist or cannot be read
+	 */
+	public static HsPerfData open(final String pid) throws IOException {
+		return open(new File(perfDataDirectory(), pid));
+	}
+
+	/**
+	 * Opens a perf data file
+	 * @param file The perf data file
+	 * @return the perf data reader
+	 * @throws IOException thrown if the file does not exist, cannot be read or is not a perf data file
+	 */
+	public static HsPerfData open(final File file) throws IOException {
+		if(file==null) throw new IllegalArgumentException("The passed file was null");
+		if(!file.isFile()) throw new FileNotFoundException("No perf data file [" + file + "]");
+		final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			return new HsPerfData(file, channel, channel.map(MapMode.READ_ONLY, 0, channel.size()));
+		} catch (IOException | RuntimeException ex) {
+			channel.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Returns the perf data files of the local JVMs run by the current user
+	 * @return a map of perf data files keyed by process id
+	 */
+	public static Map<String, File> locate() {
+		final Map<String, File> files = new TreeMap<String, File>();
+		final File[] candidates = perfDataDirectory().listFiles();
+		if(candidates!=null) {
+			for(File f: candidates) {
+				if(f.isFile() && f.getName().chars().allMatch(Character::isDigit)) files.put(f.getName(), f);
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Returns the directory HotSpot writes the current user's perf data files to.
+	 * HotSpot uses <code>/tmp</code> on Linux regardless of <code>java.io.tmpdir</code>.
+	 * @return the perf data directory
+	 */
+	public static File perfDataDirectory() {
+		final String tmp = System.getProperty("os.name").toLowerCase().contains("linux") ? "/tmp" : System.getProperty("java.io.tmpdir");
+		return new File(tmp, "hsperfdata_" + System.getProperty("user.name"));
+	}
+
+	/**
+	 * Creates a new HsPerfData reader over a perf data buffer
+	 * @param buffer The perf data
+	 */
+	HsPerfData(final ByteBuffer buffer) {
+		this(null, null, buffer);
+	}
+
+	private HsPerfData(final File file, final FileChannel channel, final ByteBuffer buffer) {
+		this.file = file;
+		this.channel = channel;
+		this.buffer = buffer.duplicate();
+		if(this.buffer.capacity() < PROLOGUE_SIZE || this.buffer.order(ByteOrder.BIG_ENDIAN).getInt(0)!=MAGIC) {
+			throw new IllegalArgumentException("Not a perf data file [" + file + "]");
+		}
+		this.buffer.order(this.buffer.get(4)==0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+		nextEntry = this.buffer.getInt(24);
+		refresh();
+	}
+
+	/**
+	 * Decodes any counters the JVM created since the last refresh
+	 * @return the number of new counters
+	 */
+	public synchronized int refresh() {
+		final int entries = buffer.getInt(28);
+		final int used = Math.min(buffer.getInt(8), buffer.capacity());
+		int added = 0;
+		while(decoded < entries && nextEntry + 20 <= used) {
+			final int entryLength = buffer.getInt(nextEntry);
+			if(entryLength <= 0 || nextEntry + entryLength > used) break;
+			final int nameOffset = buffer.getInt(nextEntry + 4);
+			final int vectorLength = buffer.getInt(nextEntry + 8);
+			final byte type = buffer.get(nextEntry + 12);
+			final Units units = Units.decode(buffer.get(nextEntry + 14));
+			final Variability variability = Variability.decode(buffer.get(nextEntry + 15));
+			final int dataOffset = buffer.getInt(nextEntry + 16);
+			final String name = cString(nextEntry + nameOffset, nextEntry + entryLength);
+			final int length = type==TYPE_BYTE ? Math.min(vectorLength, entryLength - dataOffset) : vectorLength;
+			counters.put(name, new Counter(name, units, variability, type, nextEntry + dataOffset, length));
+			nextEntry += entryLength;
+			decoded++;
+			added++;
+		}
+		return added;
+	}
+
+	private String cString(final int start, final int limit) {
+		int end = start;
+		while(end < limit && buffer.get(end)!=0) end++;
+		final byte[] bytes = new byte[end - start];
+		for(int i = 0; i < bytes.length; i++) bytes[i] = buffer.get(start + i);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Returns the named counter
+	 * @param name The counter name
+	 * @return the counter or null if the JVM has no such counter
+	 */
+	public synchronized Counter getCounter(final String name) {
+		Counter counter = counters.get(name);
+		if(counter==null && refresh() > 0) counter = counters.get(name);
+		return counter;
+	}
+
+	/**
+	 * Returns the current value of the named long counter
+	 * @param name The counter name
+	 * @return the value
+	 */
+	public long getLong(final String name) {
+		return require(name).get();
+	}
+
+	/**
+	 * Returns the current value of the named string counter
+	 * @param name The counter name
+	 * @return the value
+	 */
+	public String getString(final String name) {
+		return require(name).getString();
+	}
+
+	private Counter require(final String name) {
+		final Counter counter = getCounter(name);
+		if(counter==null) throw new IllegalArgumentException("No counter named [" + name + "]");
+		return counter;
+	}
+
+	/**
+	 * Returns all the counters whose name starts with the passed prefix
+	 * @param prefix The name prefix, e.g. <code>sun.gc.</code>, or an empty string for all counters
+	 * @return a map of counters keyed by name, in name order
+	 */
+	public synchronized Map<String, Counter> getCounters(final String prefix) {
+		refresh();
+		final Map<String, Counter> matched = new LinkedHashMap<String, Counter>();
+		for(Counter counter: counters.values()) {
+			if(counter.name.startsWith(prefix)) matched.put(counter.name, counter);
+		}
+		return Collections.unmodifiableMap(matched);
+	}
+
+	/**
+	 * Returns the current values of all the counters whose name starts with the passed prefix
+	 * @param prefix The name prefix, or an empty string for all counters
+	 * @return a map of Long and String values keyed by counter name, in name order
+	 */
+	public Map<String, Object> snapshot(final String prefix) {
+		final Map<String, Object> values = new LinkedHashMap<String, Object>();
+		for(Counter counter: getCounters(prefix).values()) values.put(counter.name, counter.getValue());
+		return values;
+	}
+
+	/**
+	 * Converts high resolution timer ticks to the passed unit
+	 * @param ticks The number of ticks
+	 * @param unit The unit to convert to
+	 * @return the converted value
+	 */
+	public long ticksTo(final long ticks, final TimeUnit unit) {
+		final Counter frequency = getCounter(TICK_FREQUENCY);
+		final long hz = frequency==null ? TimeUnit.SECONDS.toNanos(1) : frequency.get();
+		return unit.convert((long)(ticks * (1e9d / hz)), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Indicates if the JVM has finished initializing its perf data
+	 * @return true if accessible
+	 */
+	public boolean isAccessible() {
+		return buffer.get(7)!=0;
+	}
+
+	/**
+	 * Returns the perf data file
+	 * @return the file or null if this reader was not created from a file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Closes the file channel. The mapping is released when this reader is collected.
+	 * {@inheritDoc}
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		if(channel!=null) channel.close();
+	}
+
+	@Override
+	public String toString() {
+		return "HsPerfData [file=" + file + ", counters=" + counters.size() + "]";
+	}
+}
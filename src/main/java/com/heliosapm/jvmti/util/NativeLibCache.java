@@ -0,0 +1,199 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.zip.CRC32;
+
+/**
+ * <p>Title: NativeLibCache</p>
+ * <p>Description: A persistent, content addressed cache of native libraries extracted from the class path.
+ * Each library is cached as <code>&lt;name&gt;-&lt;crc32&gt;-&lt;size&gt;.&lt;ext&gt;</code>, keyed by the checksum the jar
+ * already records for the entry, so a JVM whose library is already cached only reads it to verify the checksum.
+ * A missing library is written to a temp file in the cache directory and atomically renamed into place,
+ * so any number of JVMs starting at once share a single complete copy. The cache directory must be private to
+ * the current user, and a cached library whose checksum no longer matches is replaced.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.util.NativeLibCache</code></p>
+ */
+
+public class NativeLibCache {
+
+	/** The system property for the cache directory */
+	public static final String CACHE_DIR_PROP = "com.heliosapm.jvmti.lib.cache";
+
+	private NativeLibCache() {}
+
+	/**
+	 * Returns the configured cache directory, by default <code>oifagent-&lt;user&gt;</code> in the temp directory
+	 * @return the cache directory
+	 */
+	public static File cacheDirectory() {
+		final String dir = System.getProperty(CACHE_DIR_PROP);
+		if(dir!=null) return new File(dir);
+		return new File(System.getProperty("java.io.tmpdir"), "oifagent-" + System.getProperty("user.name"));
+	}
+
+	/**
+	 * Returns the cached copy of a native library resource, extracting it if it is not cached yet
+	 * @param classLoader The class loader to load the resource from
+	 * @param resourceName The library resource name
+	 * @param cacheDir The cache directory
+	 * @return the cached library file
+	 * @throws IOException thrown if the resource cannot be found, read or cached
+	 */
+	public static File extract(final ClassLoader classLoader, final String resourceName, final File cacheDir) throws IOException {
+		final URL url = classLoader.getResource(resourceName);
+		if(url==null) throw new IOException("Failed to find resource [" + resourceName + "]");
+		final URLConnection conn = url.openConnection();
+		conn.setUseCaches(false);
+		try {
+			byte[] content = null;
+			long crc = -1, size = -1;
+			if(conn instanceof JarURLConnection) {
+				final JarEntry entry = ((JarURLConnection)conn).getJarEntry();
+				crc = entry.getCrc();
+				size = entry.getSize();
+			}
+			if(crc==-1 || size==-1) {
+				try(final InputStream is = conn.getInputStream()) {
+					content = readFully(is);
+				}
+				final CRC32 crc32 = new CRC32();
+				crc32.update(content);
+				crc = crc32.getValue();
+				size = content.length;
+			}
+			final File cached = new File(cacheDir, cachedName(resourceName, crc, size));
+			secureDirectory(cacheDir);
+			if(cached.length()==size && crcOf(cached)==crc) return cached;
+			if(content==null) {
+				try(final InputStream is = conn.getInputStream()) {
+					content = readFully(is);
+				}
+			}
+			// Files.createTempFile creates the file readable by the owner only
+			final File tmp = Files.createTempFile(cacheDir.toPath(), cached.getName(), ".tmp").toFile();
+			try {
+				try(final OutputStream os = Files.newOutputStream(tmp.toPath())) {
+					os.write(content);
+				}
+				try {
+					Files.move(tmp.toPath(), cached.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				} catch (AtomicMoveNotSupportedException ex) {
+					Files.move(tmp.toPath(), cached.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+			} finally {
+				tmp.delete();
+			}
+			return cached;
+		} finally {
+			// the jar file is not cached by the connection so it must be closed
+			if(conn instanceof JarURLConnection) ((JarURLConnection)conn).getJarFile().close();
+		}
+	}
+
+	/**
+	 * Creates the cache directory readable and writable by the current user only if it does not exist, and verifies
+	 * that an existing directory is owned by the current user and not writable by anyone else, so no other user can
+	 * plant a library in it
+	 * @param cacheDir The cache directory
+	 * @throws IOException thrown if the directory cannot be created or is not private to the current user
+	 */
+	static void secureDirectory(final File cacheDir) throws IOException {
+		final Path dir = cacheDir.toPath();
+		final boolean posix = dir.getFileSystem().supportedFileAttributeViews().contains("posix");
+		if(!Files.isDirectory(dir)) {
+			try {
+				if(posix) {
+					Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+				} else {
+					Files.createDirectories(dir);
+				}
+			} catch (FileAlreadyExistsException ex) {
+				/* created concurrently, verified below */
+			}
+			if(!Files.isDirectory(dir)) throw new IOException("Failed to create cache directory [" + cacheDir + "]");
+		}
+		if(!posix) return;
+		final PosixFileAttributes attrs = Files.readAttributes(dir, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		if(!attrs.isDirectory()) throw new IOException("Cache directory [" + cacheDir + "] is not a directory");
+		final UserPrincipal user = dir.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName(System.getProperty("user.name"));
+		if(!attrs.owner().equals(user)) {
+			throw new IOException("Cache directory [" + cacheDir + "] is owned by [" + attrs.owner().getName() + "], not [" + user.getName() + "]");
+		}
+		final Set<PosixFilePermission> perms = attrs.permissions();
+		if(perms.contains(PosixFilePermission.GROUP_WRITE) || perms.contains(PosixFilePermission.OTHERS_WRITE)) {
+			throw new IOException("Cache directory [" + cacheDir + "] is writable by other users: " + PosixFilePermissions.toString(perms));
+		}
+	}
+
+	/**
+	 * Computes the CRC32 of a file
+	 * @param file The file
+	 * @return the checksum
+	 * @throws IOException thrown if the file cannot be read
+	 */
+	static long crcOf(final File file) throws IOException {
+		final CRC32 crc32 = new CRC32();
+		try(final InputStream is = Files.newInputStream(file.toPath())) {
+			final byte[] buffer = new byte[64 * 1024];
+			int bytesRead;
+			while((bytesRead = is.read(buffer))!=-1) crc32.update(buffer, 0, bytesRead);
+		}
+		return crc32.getValue();
+	}
+
+	/**
+	 * Returns the cache file name of a library
+	 * @param resourceName The library resource name
+	 * @param crc The library checksum
+	 * @param size The library size in bytes
+	 * @return the cache file name
+	 */
+	static String cachedName(final String resourceName, final long crc, final long size) {
+		final String fileName = resourceName.substring(resourceName.lastIndexOf('/') + 1);
+		final int dot = fileName.lastIndexOf('.');
+		final String base = dot==-1 ? fileName : fileName.substring(0, dot);
+		final String ext = dot==-1 ? "" : fileName.substring(dot);
+		return base + "-" + String.format("%08x", crc) + "-" + size + ext;
+	}
+
+	private static byte[] readFully(final InputStream is) throws IOException {
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream(256 * 1024);
+		final byte[] buffer = new byte[64 * 1024];
+		int bytesRead;
+		while((bytesRead = is.read(buffer))!=-1) baos.write(buffer, 0, bytesRead);
+		return baos.toByteArray();
+	}
+}
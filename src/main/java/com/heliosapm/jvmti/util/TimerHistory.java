@@ -12,39 +12,52 @@
 // see <http://www.gnu.org/licenses/>.
 package com.heliosapm.jvmti.util;
 
-import java.nio.ByteBuffer;
-import java.nio.LongBuffer;
 import java.util.Arrays;
 import java.util.LongSummaryStatistics;
 import java.util.concurrent.ThreadLocalRandom;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.IntStream;
 import java.util.stream.LongStream;
 
 import com.heliosapm.jvmti.util.SystemClock.ElapsedTime;
 
 /**
  * <p>Title: TimerHistory</p>
- * <p>Description: A fixed size long time manager</p> 
+ * <p>Description: A fixed size, lock free history of the most recent non-negative long times.
+ * Each add claims the next ring slot with a single atomic increment, and a log linear (HDR style) histogram of the
+ * retained times is maintained alongside the ring by counting the added time in and the time it overwrites out,
+ * so percentiles, averages and rates are all read in place without copying or locking.
+ * Histogram buckets are within {@link #PRECISION} of the values they count.
+ * Reads racing with adds may see a slot an in flight add has claimed but not yet written.</p>
  * <p>Company: Helios Development Group LLC</p>
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>com.heliosapm.jvmti.util.TimerHistory</code></p>
  */
 
 public class TimerHistory {
-	/** The long array holder */
-	private final LongBuffer arr;
-	/** The max size of the array */
+	/** The ring of retained times */
+	private final AtomicLongArray ring;
+	/** The nano time each retained time was added, index aligned with the ring */
+	private final AtomicLongArray added;
+	/** The count of retained times in each histogram bucket */
+	private final AtomicLongArray buckets;
+	/** The max size of the ring */
 	private final int maxSize;
-	/** The compact position */
-	private final int compactPos;
-	/** The total number of added points */
+	/** The total number of added points, which is also the sequence of the next add */
 	private final AtomicLong count = new AtomicLong(0L);
+	/** The sequence of the first add retained since the last reset */
+	private volatile long floor = 0L;
 	
-	/** The current size */
-	private final AtomicInteger size = new AtomicInteger(0);
-	/** The concurrency guard */
-	private final AtomicLong guard = new AtomicLong(-1L);
+	/** The number of bits of sub bucket resolution in each power of 2 */
+	private static final int SUB_BITS = 6;
+	/** The number of sub buckets in each power of 2 */
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	/** The number of histogram buckets needed to cover every non-negative long */
+	private static final int BUCKET_COUNT = (64 - SUB_BITS) * SUB_BUCKETS;
+	/** The maximum relative error of a histogram bucket's value */
+	public static final double PRECISION = 1d / SUB_BUCKETS;
 
 	/**
 	 * Creates a new TimerHistory
@@ -53,76 +66,70 @@ public class TimerHistory {
 	public TimerHistory(final int size) {
 		if(size < 1) throw new IllegalArgumentException("Invalid size:" + size);
 		maxSize = size;
-		compactPos = maxSize-1;
-		arr = ByteBuffer.allocateDirect(size * 8).asLongBuffer();		
+		ring = new AtomicLongArray(size);
+		added = new AtomicLongArray(size);
+		buckets = new AtomicLongArray(BUCKET_COUNT);
 	}
 	
-	private static final long[] EMPTY_ARR = {};
-	private static final LongStream EMPTY_STREAM = LongStream.empty();
-	
-	private long[] asArray() {
-		final int s = size.get();
-		if(s==0) return EMPTY_ARR;
-		final long[] larr = new long[s];
-		arr.position(0);
-		arr.slice().get(larr, 0, Math.min(s, maxSize));
-		return larr;
-	}
-	
-	private void lock(final boolean barge) {
-		final long id = Thread.currentThread().getId();
-		while(true) {
-			if(guard.compareAndSet(-1L, id)) break;
-			if(!barge) Thread.yield();
-		}
-	}
-	
-	private void unlock() {
-		final long id = Thread.currentThread().getId();
-		if(guard.get()!=id) throw new IllegalStateException("Not locked by calling thread");
-		guard.set(-1L);
+	/**
+	 * Returns the histogram bucket of a value. Values below <code>2 * SUB_BUCKETS</code> have a bucket each,
+	 * and every higher power of 2 is split into <code>SUB_BUCKETS</code> equal buckets.
+	 * @param value The value, negative values are counted as zero
+	 * @return the bucket index
+	 */
+	static int bucket(final long value) {
+		if(value < SUB_BUCKETS) return value < 0 ? 0 : (int)value;
+		final int msb = 63 - Long.numberOfLeadingZeros(value);
+		final int shift = msb - SUB_BITS;
+		return ((shift + 1) << SUB_BITS) + (int)(value >>> shift) - SUB_BUCKETS;
 	}
 	
-	/*
-	 * [][][]
-	 * [a][][]
-	 * [a][b][]
-	 * [a][b][c]
-	 * [b][c][d]
-	 * [c][d][e]
+	/**
+	 * Returns the value a histogram bucket reports, the middle of the range of values it counts
+	 * @param bucket The bucket index
+	 * @return the bucket value
 	 */
+	static long bucketValue(final int bucket) {
+		if(bucket < SUB_BUCKETS * 2) return bucket;
+		final int shift = (bucket >>> SUB_BITS) - 1;
+		final long lowest = ((long)((bucket & (SUB_BUCKETS - 1)) + SUB_BUCKETS)) << shift;
+		return lowest + ((1L << shift) >>> 1);
+	}
 	
 	public static void log(Object fmt, Object...args) {
 		System.out.println(String.format(fmt.toString(), args));
 	}
 
-	
+	/**
+	 * Adds a time, replacing the oldest retained time once the history is full
+	 * @param value The time to add
+	 */
 	public void add(final long value) {
-		try {
-			lock(false);
-			final int s = size.get();
-			if(s < maxSize) {
-				arr.put(s, value);
-				size.incrementAndGet();
-			} else {
-				arr.position(1);
-				arr.compact();
-				arr.put(compactPos, value);
-			}
-			count.incrementAndGet();
-		} finally {
-			unlock();
-		}
+		final long seq = count.getAndIncrement();
+		final int slot = (int)(seq % maxSize);
+		added.lazySet(slot, System.nanoTime());
+		final long replaced = ring.getAndSet(slot, value);
+		buckets.getAndIncrement(bucket(value));
+		if(seq - maxSize >= floor) buckets.getAndDecrement(bucket(replaced));
+	}
+	
+	/**
+	 * Returns the number of retained times
+	 * @return the number of retained times
+	 */
+	public int size() {
+		return (int)Math.min(count.get() - floor, maxSize);
 	}
 	
+	/**
+	 * Returns the retained times, oldest first
+	 * @return a stream of the retained times
+	 */
 	public LongStream stream() {
-		try {
-			lock(false);
-			if(size.get()==0) return EMPTY_STREAM;
-			return LongStream.of(asArray()).parallel();
-		} finally {
-			unlock();
-		}
+		final long end = count.get();
+		final int s = (int)Math.min(end - floor, maxSize);
+		final long start = end - s;
+		return IntStream.range(0, s).mapToLong(i -> ring.get((int)((start + i) % maxSize)));
 	}
 	
 	public long count() {
@@ -130,55 +137,128 @@ public class TimerHistory {
 	}
 	
 	public double average() {
-		return stream().average().orElse(-1L);
+		final LongSummaryStatistics stats = stats();
+		return stats.getCount()==0 ? -1L : stats.getAverage();
 	}
 	
 	public long max() {
-		return stream().max().orElse(-1L);
+		final LongSummaryStatistics stats = stats();
+		return stats.getCount()==0 ? -1L : stats.getMax();
 	}
 	
 	public long min() {
-		return stream().min().orElse(-1L);
+		final LongSummaryStatistics stats = stats();
+		return stats.getCount()==0 ? -1L : stats.getMin();
 	}
 	
+	/**
+	 * Summarizes the retained times in place
+	 * @return the summary statistics
+	 */
 	public LongSummaryStatistics stats() {
-		return stream().summaryStatistics();
+		final LongSummaryStatistics stats = new LongSummaryStatistics();
+		final long end = count.get();
+		final int s = (int)Math.min(end - floor, maxSize);
+		int slot = (int)((end - s) % maxSize);
+		for(int i = 0; i < s; i++) {
+			stats.accept(ring.get(slot));
+			if(++slot==maxSize) slot = 0;
+		}
+		return stats;
 	}
 	
-	
+	/**
+	 * Returns the most recently added time
+	 * @return the most recent time or -1 if there are none
+	 */
 	public long last() {
-		try {
-			lock(false);
-			if(size.get()==0) return -1L;
-			return arr.get(0);
-		} finally {
-			unlock();
-		}		
+		final long end = count.get();
+		if(end==floor) return -1L;
+		return ring.get((int)((end - 1) % maxSize));
+	}
+	
+	/**
+	 * Returns the value at the passed percentile of the retained times, within {@link #PRECISION}
+	 * @param percentile The percentile, from 0 to 100
+	 * @return the percentile value or -1 if there are no retained times
+	 */
+	public long percentile(final double percentile) {
+		return percentiles(percentile)[0];
+	}
+	
+	/**
+	 * Returns the values at the passed percentiles of the retained times, within {@link #PRECISION}, in one pass of the histogram
+	 * @param percentiles The percentiles in ascending order, each from 0 to 100
+	 * @return the percentile values, -1 if there are no retained times
+	 */
+	public long[] percentiles(final double...percentiles) {
+		final long[] values = new long[percentiles.length];
+		long total = 0;
+		for(int b = 0; b < BUCKET_COUNT; b++) total += buckets.get(b);
+		if(total <= 0) {
+			Arrays.fill(values, -1L);
+			return values;
+		}
+		int p = 0;
+		long seen = 0;
+		for(int b = 0; b < BUCKET_COUNT && p < percentiles.length; b++) {
+			final long c = buckets.get(b);
+			if(c <= 0) continue;
+			seen += c;
+			while(p < percentiles.length && seen >= rank(percentiles[p], total)) {
+				values[p++] = bucketValue(b);
+			}
+		}
+		// concurrent adds may leave the walk short of the highest ranks
+		while(p < percentiles.length) values[p++] = max();
+		return values;
+	}
+	
+	private static long rank(final double percentile, final long total) {
+		if(percentile < 0 || percentile > 100) throw new IllegalArgumentException("Invalid percentile:" + percentile);
+		return Math.max(1L, (long)Math.ceil(percentile / 100d * total));
+	}
+	
+	/**
+	 * Returns the rate of adds per second over the passed trailing window, counting only retained times.
+	 * When the history holds fewer times than were added in the window, the rate is computed over the span of the retained times.
+	 * @param window The window
+	 * @param unit The unit of the window
+	 * @return the rate per second
+	 */
+	public double rate(final long window, final TimeUnit unit) {
+		final long now = System.nanoTime();
+		final long windowNanos = unit.toNanos(window);
+		if(windowNanos <= 0) throw new IllegalArgumentException("Invalid window:" + window + " " + unit);
+		final long end = count.get();
+		final int s = (int)Math.min(end - floor, maxSize);
+		int inWindow = 0;
+		long oldest = now;
+		for(int i = 1; i <= s; i++) {
+			final long t = added.get((int)((end - i) % maxSize));
+			if(now - t > windowNanos) break;
+			inWindow++;
+			oldest = t;
+		}
+		if(inWindow==0) return 0d;
+		final long span = inWindow==maxSize ? now - oldest : windowNanos;
+		return span <= 0 ? 0d : inWindow * (double)TimeUnit.SECONDS.toNanos(1) / span;
 	}
 	
 	/**
 	 * Resets the array but not the count
 	 */
 	public void reset() {
-		try {
-			size.set(0);
-			lock(true);
-		} finally {
-			unlock();
-		}
+		floor = count.get();
+		for(int b = 0; b < BUCKET_COUNT; b++) buckets.set(b, 0L);
 	}
 	
 	/**
 	 * Resets the array and the count
 	 */
-	public void resetAll() {
-		try {
-			size.set(0);
-			count.set(0L);
-			lock(true);
-		} finally {
-			unlock();
-		}
+	public synchronized void resetAll() {
+		count.set(0L);
+		reset();
 	}
 	
 	
@@ -204,26 +284,18 @@ public class TimerHistory {
 			}			
 		}
 		log(et.printAvg("Samples", 10000));
-		log("Average : %s", (long)t.stream().average().getAsDouble());
-		log("Distinct : %s", t.stream().distinct().toArray().length);
-		log("First : %s", t.stream().findFirst().getAsLong());
-		log("Max : %s", t.stream().max().getAsLong());
-		log("Min : %s", t.stream().min().getAsLong());
-		log("Sum : %s", t.stream().sum());
+		log("Average : %s", (long)t.average());
+		log("Max : %s", t.max());
+		log("Min : %s", t.min());
+		log("p50/p90/p99/p999 : %s", Arrays.toString(t.percentiles(50, 90, 99, 99.9)));
 		log("Count : %s", t.count());
-		log("Summary : %s", t.stream().summaryStatistics());
+		log("Summary : %s", t.stats());
 	}
 	
 	
 	public String toString() {
-		final long[] larr;
-		try {
-			lock(true);
-			larr = asArray();			
-		} finally {
-			unlock();
-		}
-		return arr.toString() + ":" + Arrays.toString(larr);
+		final long[] p = percentiles(50, 90, 99, 99.9);
+		return "TimerHistory [size=" + size() + ", count=" + count() + ", p50=" + p[0] + ", p90=" + p[1] + ", p99=" + p[2] + ", p999=" + p[3] + "]";
 	}
 	
 	
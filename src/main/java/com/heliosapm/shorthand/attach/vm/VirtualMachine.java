@@ -351,6 +351,22 @@ public class VirtualMachine extends BaseWrappedClass {
 		}
 	}
 	
+	/**
+	 * Starts the local JMX management agent in the target VM. Only supported by Java 9+ attach providers.
+	 * @return the local connector address
+	 */
+	public String startLocalManagementAgent() {
+		try {
+			pushCl();
+			final Class<?> vmClass = Class.forName("com.sun.tools.attach.VirtualMachine", true, delegate.getClass().getClassLoader());
+			return (String)vmClass.getMethod("startLocalManagementAgent").invoke(delegate);
+		} catch (Exception e) {
+			throw new RuntimeException("Failed to start the local management agent in VirtualMachine [" + id() + "]", e);
+		} finally {
+			popCl();
+		}
+	}
+	
 	/**
 	 * Returns a {@link JMXServiceURL} to connect to this VM instance
 	 * @return a {@link JMXServiceURL} to connect to this VM instance
@@ -367,9 +383,14 @@ public class VirtualMachine extends BaseWrappedClass {
 							String fileSep = sysProps.getProperty(FILE_SEP, File.separator);
 							String javaHome = sysProps.getProperty(JAVA_HOME);
 							String agentPath = String.format("%s%slib%s%s", javaHome, fileSep, fileSep, JMX_AGENT);
-							loadAgent(agentPath);
+							if(new File(agentPath).exists()) {
+								loadAgent(agentPath);
+							} else {
+								// Java 9+ has no management agent jar but starts the local connector on request
+								connAddr = startLocalManagementAgent();
+							}
 							//, JMX_PORT + "=" + FreePortFinder.getNextFreePort() + ",com.sun.management.jmxremote.authenticate=false");
-							connAddr = getAgentProperties().getProperty(CONNECTOR_ADDRESS);
+							if(connAddr==null) connAddr = getAgentProperties().getProperty(CONNECTOR_ADDRESS);
 						}
 						if(connAddr==null) throw new RuntimeException("Failed to acquire JMXServiceURL for MBeanServerConnection to VirtualMachine [" + id() + "]", new Throwable());
 						jmxServiceURL =  new JMXServiceURL(connAddr);			
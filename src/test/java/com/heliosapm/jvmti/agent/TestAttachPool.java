@@ -0,0 +1,137 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.agent;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.UUID;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * <p>Title: TestAttachPool</p>
+ * <p>Description: Tests session reuse, the health check before reuse and idle eviction of the attach pool against a child JVM</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.agent.TestAttachPool</code></p>
+ */
+
+public class TestAttachPool {
+
+	/** The child JVM attached to */
+	private static Process child;
+	/** The child JVM's process id */
+	private static String pid;
+	/** The value of the child's {@link #TOKEN_PROP} system property */
+	private static final String TOKEN = UUID.randomUUID().toString();
+	/** The system property identifying the child */
+	private static final String TOKEN_PROP = "com.heliosapm.jvmti.test.token";
+
+	/**
+	 * The child JVM, which prints its pid and waits to be killed
+	 */
+	public static class Child {
+		public static void main(final String[] args) throws Exception {
+			System.out.println(ManagementFactory.getRuntimeMXBean().getName().split("@")[0]);
+			System.out.flush();
+			Thread.sleep(120000);
+		}
+	}
+
+	@BeforeClass
+	public static void startChild() throws Exception {
+		final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		child = new ProcessBuilder(java, "-D" + TOKEN_PROP + "=" + TOKEN, "-cp", System.getProperty("java.class.path"), Child.class.getName())
+			.redirectErrorStream(true).start();
+		pid = new BufferedReader(new InputStreamReader(child.getInputStream())).readLine();
+		Assert.assertNotNull("Child JVM did not start", pid);
+	}
+
+	@AfterClass
+	public static void stopChild() throws Exception {
+		if(child!=null) child.destroy();
+	}
+
+	/**
+	 * A task reading the child's token system property over the attach connection
+	 */
+	private static class TokenTask extends AbstractVirtualMachineTask<String> {
+		@Override
+		public String call() throws Exception {
+			return vm.getSystemProperties().getProperty(TOKEN_PROP);
+		}
+	}
+
+	@Test
+	public void testHealthCheckReattaches() throws Exception {
+		final AttachPool pool = new AttachPool(60000L, 0L);
+		try {
+			Assert.assertEquals(TOKEN, pool.run(pid, new TokenTask()));
+			Thread.sleep(5);
+			// a healthy session passes its check and is reused
+			Assert.assertEquals(TOKEN, pool.run(pid, new TokenTask()));
+			Assert.assertEquals(1, pool.getAttachCount());
+			Assert.assertEquals(1, pool.getReuseCount());
+			Assert.assertEquals(0, pool.getFailedCheckCount());
+			// a task that detaches breaks the session, as a dead connection would
+			pool.run(pid, new AbstractVirtualMachineTask<Void>() {
+				@Override
+				public Void call() throws Exception {
+					vm.detach();
+					return null;
+				}
+			});
+			Thread.sleep(5);
+			Assert.assertEquals(TOKEN, pool.run(pid, new TokenTask()));
+			Assert.assertEquals(1, pool.getFailedCheckCount());
+			Assert.assertEquals(2, pool.getAttachCount());
+			Assert.assertEquals(1, pool.getSessionCount());
+		} finally {
+			pool.clear();
+		}
+	}
+
+	@Test
+	public void testIdleEviction() throws Exception {
+		final AttachPool pool = new AttachPool(100L, 60000L);
+		try {
+			Assert.assertEquals(TOKEN, pool.run(pid, new TokenTask()));
+			Assert.assertEquals(1, pool.getSessionCount());
+			// a session in use is never evicted, however long the task runs
+			final int inUse = pool.run(pid, new AbstractVirtualMachineTask<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					Thread.sleep(150);
+					pool.evict();
+					return pool.getSessionCount();
+				}
+			});
+			Assert.assertEquals(1, inUse);
+			Assert.assertEquals(0, pool.getEvictionCount());
+			Thread.sleep(150);
+			pool.evict();
+			Assert.assertEquals(0, pool.getSessionCount());
+			Assert.assertEquals(1, pool.getEvictionCount());
+			// the next task attaches a new session
+			Assert.assertEquals(TOKEN, pool.run(pid, new TokenTask()));
+			Assert.assertEquals(2, pool.getAttachCount());
+		} finally {
+			pool.clear();
+		}
+	}
+}
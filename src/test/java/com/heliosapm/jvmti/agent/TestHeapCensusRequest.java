@@ -0,0 +1,89 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.agent;
+
+import java.nio.Buffer;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * <p>Title: TestHeapCensusRequest</p>
+ * <p>Description: Tests merging and validating the declarations of a heap census request</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.agent.TestHeapCensusRequest</code></p>
+ */
+
+public class TestHeapCensusRequest {
+
+	static class Sample extends Thread {
+		int small;
+		long large;
+		double ratio;
+		static int shared;
+		String name;
+	}
+
+	@Test
+	public void testMerge() throws Exception {
+		final HeapCensusRequest request = new HeapCensusRequest();
+		Assert.assertTrue(request.isEmpty());
+		request.count(String.class, Sample.class);
+		request.sum(Sample.class, "small");
+		request.sum(Sample.class, "large");
+		request.sum(Sample.class, "small");
+		request.instances(Sample.class, 5);
+		request.instances(Sample.class, 2);
+		request.instances(Integer.class, 3);
+		Assert.assertFalse(request.isEmpty());
+		Assert.assertEquals(2, request.getFieldSumCount());
+		Assert.assertEquals(5, request.getMaxInstances(Sample.class));
+		Assert.assertEquals(3, request.getMaxInstances(Integer.class));
+		Assert.assertEquals(0, request.getMaxInstances(String.class));
+		Assert.assertEquals(Arrays.asList(String.class, Sample.class, Integer.class), Arrays.asList(request.classes(null)));
+	}
+
+	@Test
+	public void testCountAll() throws Exception {
+		final HeapCensusRequest request = new HeapCensusRequest().count(Sample.class).countAll();
+		Assert.assertEquals(Arrays.asList(String.class, Long.class, Sample.class), Arrays.asList(request.classes(new Class<?>[]{String.class, Long.class, String.class})));
+	}
+
+	@Test
+	public void testInheritedField() throws Exception {
+		Assert.assertEquals(1, new HeapCensusRequest().sum(Sample.class, "priority").getFieldSumCount());
+		Assert.assertEquals(1, new HeapCensusRequest().sum(Buffer.class, "capacity").getFieldSumCount());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testFloatingField() throws Exception {
+		new HeapCensusRequest().sum(Sample.class, "ratio");
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testStaticField() throws Exception {
+		new HeapCensusRequest().sum(Sample.class, "shared");
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testReferenceField() throws Exception {
+		new HeapCensusRequest().sum(Sample.class, "name");
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testMissingField() throws Exception {
+		new HeapCensusRequest().sum(Sample.class, "missing");
+	}
+}
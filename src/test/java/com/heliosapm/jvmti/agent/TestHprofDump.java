@@ -0,0 +1,344 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.agent;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * <p>Title: TestHprofDump</p>
+ * <p>Description: Tests that an HPROF dump reads back with the field values and references of the dumped objects,
+ * and that no record refers to an object the dump does not contain, with and without package filters</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.agent.TestHprofDump</code></p>
+ */
+
+public class TestHprofDump {
+
+	/** The number of included instances */
+	static final int INSTANCES = 100;
+	/** The package filter selecting {@link InMarker}, {@link Included} and their arrays but not {@link Excluded} */
+	static final String FILTER = TestHprofDump.class.getName() + "$In";
+
+	static interface InMarker {
+	}
+
+	static class Excluded implements InMarker {
+	}
+
+	static class Included implements InMarker {
+		final int value;
+		final Excluded excluded = new Excluded();
+		Included next;
+		Included(final int value) {
+			this.value = value;
+		}
+	}
+
+	final NativeAgent agent = NativeAgent.getInstance();
+	Included[] instances;
+	InMarker[] mixed;
+	File file;
+
+	@Before
+	public void createInstances() throws Exception {
+		instances = new Included[INSTANCES];
+		for(int i = 0; i < INSTANCES; i++) instances[i] = new Included(i);
+		for(int i = 0; i < INSTANCES - 1; i++) instances[i].next = instances[i + 1];
+		mixed = new InMarker[]{instances[0], instances[0].excluded, null};
+		file = File.createTempFile("TestHprofDump", ".hprof");
+	}
+
+	@After
+	public void deleteFile() {
+		instances = null;
+		mixed = null;
+		file.delete();
+	}
+
+	@Test
+	public void testFilteredRoundTrip() throws Exception {
+		final long[] results = agent.hprofDump(file, new String[]{FILTER}, false);
+		Assert.assertEquals(7, results.length);
+		Assert.assertEquals(file.length(), results[5]);
+		Assert.assertEquals("Split referrers", 0, results[6]);
+		final Hprof hprof = new Hprof(file);
+		hprof.assertNoDanglingReferences();
+		Assert.assertEquals(INSTANCES, results[0]);
+		final List<Map<String, Object>> included = hprof.instancesOf(Included.class);
+		Assert.assertEquals(INSTANCES, included.size());
+		Assert.assertTrue(hprof.instancesOf(Excluded.class).isEmpty());
+		final Map<Integer, Long> idsByValue = new HashMap<Integer, Long>();
+		final Map<Integer, Long> nextByValue = new HashMap<Integer, Long>();
+		for(Map<String, Object> fields: included) {
+			final int value = (Integer)fields.get("value");
+			Assert.assertNull("Duplicate instance " + value, idsByValue.put(value, (Long)fields.get("<id>")));
+			nextByValue.put(value, (Long)fields.get("next"));
+			Assert.assertEquals("The excluded referent was written", 0L, fields.get("excluded"));
+		}
+		for(int i = 0; i < INSTANCES - 1; i++) Assert.assertEquals(idsByValue.get(i + 1), nextByValue.get(i));
+		Assert.assertEquals(0L, (long)nextByValue.get(INSTANCES - 1));
+		final long[] elements = hprof.arraysOf(InMarker[].class).get(0);
+		Assert.assertArrayEquals(new long[]{idsByValue.get(0), 0L, 0L}, elements);
+	}
+
+	@Test
+	public void testFullDump() throws Exception {
+		final long[] results = agent.hprofDump(file, null, true);
+		Assert.assertEquals("Split referrers", 0, results[6]);
+		final Hprof hprof = new Hprof(file);
+		hprof.assertNoDanglingReferences();
+		Assert.assertEquals(INSTANCES, hprof.instancesOf(Included.class).size());
+		Assert.assertEquals(INSTANCES, hprof.instancesOf(Excluded.class).size());
+		for(Map<String, Object> fields: hprof.instancesOf(Included.class)) {
+			Assert.assertFalse("The excluded referent was not written", fields.get("excluded").equals(0L));
+		}
+	}
+
+	/**
+	 * A minimal HPROF reader that keeps every dumped object id, every referenced id, the class dumps and
+	 * the raw instance and object array records
+	 */
+	static class Hprof {
+		final Map<Long, String> strings = new HashMap<Long, String>();
+		final Map<Long, String> classNames = new HashMap<Long, String>();
+		final Map<Long, long[]> classSupers = new HashMap<Long, long[]>();
+		final Map<Long, List<Object[]>> classFields = new HashMap<Long, List<Object[]>>();
+		final Set<Long> ids = new HashSet<Long>();
+		final Set<Long> references = new HashSet<Long>();
+		final Map<Long, List<Object[]>> instanceRecords = new HashMap<Long, List<Object[]>>();
+		final Map<Long, List<long[]>> arrayRecords = new HashMap<Long, List<long[]>>();
+
+		Hprof(final File file) throws IOException {
+			try(final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+				while(in.readByte()!=0) { /* header string */ }
+				Assert.assertEquals(8, in.readInt());
+				in.readLong();
+				while(true) {
+					final int tag;
+					try {
+						tag = in.readUnsignedByte();
+					} catch (EOFException eof) {
+						break;
+					}
+					in.readInt();
+					final long length = in.readInt() & 0xFFFFFFFFL;
+					if(tag==0x01) {
+						final long id = in.readLong();
+						final byte[] utf8 = new byte[(int)length - 8];
+						in.readFully(utf8);
+						strings.put(id, new String(utf8, "UTF-8"));
+					} else if(tag==0x02) {
+						in.readInt();
+						final long id = in.readLong();
+						in.readInt();
+						classNames.put(id, strings.get(in.readLong()));
+					} else if(tag==0x1C) {
+						readSegment(in, length);
+					} else {
+						skip(in, length);
+					}
+				}
+			}
+			// instance field values can only be read once every class dump is known
+			for(List<Object[]> records: instanceRecords.values()) {
+				for(Object[] record: records) {
+					final Map<String, Object> fields = fields(record);
+					for(Object[] field: allFields((Long)record[1])) {
+						if((Integer)field[1]==2 && !fields.get(field[0]).equals(0L)) references.add((Long)fields.get(field[0]));
+					}
+				}
+			}
+		}
+
+		void readSegment(final DataInputStream in, final long length) throws IOException {
+			long remaining = length;
+			while(remaining > 0) {
+				final int sub = in.readUnsignedByte();
+				long read = 1;
+				switch(sub) {
+					case 0x01:
+						references.add(in.readLong()); in.readLong(); read += 16; break;
+					case 0x05: case 0x07: case 0xFF:
+						references.add(in.readLong()); read += 8; break;
+					case 0x20: {
+						final long id = in.readLong();
+						ids.add(id);
+						in.readInt();
+						final long superId = in.readLong();
+						final long loaderId = in.readLong();
+						if(superId!=0) references.add(superId);
+						if(loaderId!=0) references.add(loaderId);
+						classSupers.put(id, new long[]{superId});
+						skip(in, 32 + 4);
+						read += 8 + 4 + 16 + 36;
+						Assert.assertEquals(0, in.readUnsignedShort());
+						final int statics = in.readUnsignedShort();
+						read += 4;
+						for(int i = 0; i < statics; i++) {
+							in.readLong();
+							final int type = in.readUnsignedByte();
+							final long value = readValue(in, type);
+							if(type==2 && value!=0) references.add(value);
+							read += 9 + typeSize(type);
+						}
+						final int count = in.readUnsignedShort();
+						final List<Object[]> fields = new ArrayList<Object[]>(count);
+						for(int i = 0; i < count; i++) fields.add(new Object[]{strings.get(in.readLong()), in.readUnsignedByte()});
+						classFields.put(id, fields);
+						read += 2 + count * 9L;
+						break;
+					}
+					case 0x21: {
+						final long id = in.readLong();
+						ids.add(id);
+						in.readInt();
+						final long classId = in.readLong();
+						references.add(classId);
+						final byte[] bytes = new byte[in.readInt()];
+						in.readFully(bytes);
+						instanceRecords.computeIfAbsent(classId, k -> new ArrayList<Object[]>()).add(new Object[]{id, classId, bytes});
+						read += 24 + bytes.length;
+						break;
+					}
+					case 0x22: {
+						final long id = in.readLong();
+						ids.add(id);
+						in.readInt();
+						final long[] elements = new long[in.readInt()];
+						final long classId = in.readLong();
+						references.add(classId);
+						for(int i = 0; i < elements.length; i++) {
+							elements[i] = in.readLong();
+							if(elements[i]!=0) references.add(elements[i]);
+						}
+						arrayRecords.computeIfAbsent(classId, k -> new ArrayList<long[]>()).add(elements);
+						read += 24 + elements.length * 8L;
+						break;
+					}
+					case 0x23: {
+						ids.add(in.readLong());
+						in.readInt();
+						final int count = in.readInt();
+						final int size = typeSize(in.readUnsignedByte());
+						skip(in, (long)count * size);
+						read += 17 + (long)count * size;
+						break;
+					}
+					default:
+						throw new IOException("Unknown sub record " + Integer.toHexString(sub));
+				}
+				remaining -= read;
+			}
+		}
+
+		/**
+		 * Decodes an instance record's field values by name, most derived class first, plus its id as <code>&lt;id&gt;</code>.
+		 * Object references are returned as Longs and ints as Integers.
+		 */
+		Map<String, Object> fields(final Object[] record) throws IOException {
+			final Map<String, Object> values = new HashMap<String, Object>();
+			values.put("<id>", record[0]);
+			final DataInputStream in = new DataInputStream(new ByteArrayInputStream((byte[])record[2]));
+			for(long classId = (Long)record[1]; classId!=0; classId = classSupers.get(classId)[0]) {
+				Assert.assertTrue("No class dump for " + Long.toHexString(classId), classFields.containsKey(classId));
+				for(Object[] field: classFields.get(classId)) {
+					final int type = (Integer)field[1];
+					final long value = readValue(in, type);
+					values.putIfAbsent((String)field[0], type==10 ? (Object)(int)value : (Object)value);
+				}
+			}
+			Assert.assertEquals("Instance size mismatch", 0, in.available());
+			return values;
+		}
+
+		List<Object[]> allFields(final long classId) {
+			final List<Object[]> fields = new ArrayList<Object[]>();
+			for(long id = classId; id!=0; id = classSupers.get(id)[0]) fields.addAll(classFields.get(id));
+			return fields;
+		}
+
+		long classId(final Class<?> type) {
+			final String name = type.isArray() ? "[L" + type.getComponentType().getName().replace('.', '/') + ";" : type.getName().replace('.', '/');
+			for(Map.Entry<Long, String> entry: classNames.entrySet()) {
+				if(name.equals(entry.getValue())) return entry.getKey();
+			}
+			throw new AssertionError("No class " + name);
+		}
+
+		List<Map<String, Object>> instancesOf(final Class<?> type) throws IOException {
+			final List<Map<String, Object>> instances = new ArrayList<Map<String, Object>>();
+			final List<Object[]> records = instanceRecords.get(classId(type));
+			if(records!=null) {
+				for(Object[] record: records) instances.add(fields(record));
+			}
+			return instances;
+		}
+
+		List<long[]> arraysOf(final Class<?> type) {
+			final List<long[]> arrays = arrayRecords.get(classId(type));
+			Assert.assertNotNull("No arrays of " + type.getName(), arrays);
+			return arrays;
+		}
+
+		void assertNoDanglingReferences() {
+			for(long reference: references) {
+				Assert.assertTrue("Dangling reference " + Long.toHexString(reference), ids.contains(reference));
+			}
+		}
+
+		static long readValue(final DataInputStream in, final int type) throws IOException {
+			switch(typeSize(type)) {
+				case 1: return in.readUnsignedByte();
+				case 2: return in.readUnsignedShort();
+				case 4: return in.readInt();
+				default: return in.readLong();
+			}
+		}
+
+		static int typeSize(final int type) {
+			switch(type) {
+				case 4: case 8: return 1;
+				case 5: case 9: return 2;
+				case 6: case 10: return 4;
+				default: return 8;
+			}
+		}
+
+		static void skip(final DataInputStream in, final long bytes) throws IOException {
+			long remaining = bytes;
+			while(remaining > 0) {
+				final int skipped = in.skipBytes((int)Math.min(remaining, Integer.MAX_VALUE));
+				if(skipped <= 0) throw new EOFException();
+				remaining -= skipped;
+			}
+		}
+	}
+}
@@ -0,0 +1,122 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.agent;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.heliosapm.jvmti.agent.InstancePredicate.Clause;
+import com.heliosapm.jvmti.agent.InstancePredicate.Op;
+
+/**
+ * <p>Title: TestInstancePredicate</p>
+ * <p>Description: Tests parsing and validation of instance predicate expressions</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.agent.TestInstancePredicate</code></p>
+ */
+
+public class TestInstancePredicate {
+	
+	static class Sample {
+		int count;
+		long capacity;
+		double ratio;
+		boolean open;
+		String name;
+		static int created;
+	}
+	
+	@Test
+	public void testSingleClause() {
+		final List<Clause> clauses = InstancePredicate.parse("capacity > 1048576").getClauses();
+		Assert.assertEquals(1, clauses.size());
+		Assert.assertEquals("capacity", clauses.get(0).field);
+		Assert.assertEquals(Op.GT, clauses.get(0).op);
+		Assert.assertEquals(1048576L, clauses.get(0).longValue);
+		Assert.assertFalse(clauses.get(0).floating);
+	}
+	
+	@Test
+	public void testSizeUnitsAndHex() {
+		final List<Clause> clauses = InstancePredicate.parse("capacity>=1MB && capacity < 2g && count != 0x10 && count = -4k").getClauses();
+		Assert.assertEquals(4, clauses.size());
+		Assert.assertEquals(Op.GE, clauses.get(0).op);
+		Assert.assertEquals(1024L * 1024L, clauses.get(0).longValue);
+		Assert.assertEquals(Op.LT, clauses.get(1).op);
+		Assert.assertEquals(2L * 1024L * 1024L * 1024L, clauses.get(1).longValue);
+		Assert.assertEquals(Op.NE, clauses.get(2).op);
+		Assert.assertEquals(16L, clauses.get(2).longValue);
+		Assert.assertEquals(Op.EQ, clauses.get(3).op);
+		Assert.assertEquals(-4096L, clauses.get(3).longValue);
+	}
+	
+	@Test
+	public void testFloatingAndBoolean() {
+		final List<Clause> clauses = InstancePredicate.parse("ratio <= 0.75 && open == true").getClauses();
+		Assert.assertTrue(clauses.get(0).floating);
+		Assert.assertEquals(0.75D, clauses.get(0).doubleValue, 0D);
+		Assert.assertFalse(clauses.get(1).floating);
+		Assert.assertEquals(1L, clauses.get(1).longValue);
+	}
+	
+	@Test
+	public void testValidate() {
+		InstancePredicate.parse("count > 0 && ratio < 1.5 && open == false").validate(Sample.class);
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testValidateNonPrimitive() {
+		InstancePredicate.parse("name == 0").validate(Sample.class);
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testValidateStatic() {
+		InstancePredicate.parse("created > 0").validate(Sample.class);
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testValidateMissingField() {
+		InstancePredicate.parse("nope > 0").validate(Sample.class);
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testBadOperator() {
+		InstancePredicate.parse("count => 3");
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testBadLiteral() {
+		InstancePredicate.parse("count > lots");
+	}
+	
+	@Test
+	public void testDanglingOperators() {
+		for(String expression: new String[]{"count > 3 &&", "count > 3 && ", "&& count > 3", "count > 3 && && ratio < 1", "count >", "count > 3 &"}) {
+			try {
+				InstancePredicate.parse(expression);
+				Assert.fail("Parsed [" + expression + "]");
+			} catch (IllegalArgumentException expected) {
+				/* No Op */
+			}
+		}
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testUnitOverflow() {
+		InstancePredicate.parse("capacity > 0x7fffffffffffGB");
+	}
+
+}
@@ -0,0 +1,85 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.agent;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.heliosapm.jvmti.snapshot.StackProfile;
+
+/**
+ * <p>Title: TestStackSampler</p>
+ * <p>Description: Tests that the native stack trie stays within its node cap, counts the stacks that do not fit
+ * and releases everything on reset</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.agent.TestStackSampler</code></p>
+ */
+
+public class TestStackSampler {
+
+	final NativeAgent agent = NativeAgent.getInstance();
+
+	@After
+	public void reset() {
+		agent.resetStackProfile();
+	}
+
+	private static void descend(final int depth, final CountDownLatch parked, final CountDownLatch release) throws InterruptedException {
+		if(depth > 0) {
+			descend(depth - 1, parked, release);
+		} else {
+			parked.countDown();
+			release.await();
+		}
+	}
+
+	@Test
+	public void testNodeCap() throws Exception {
+		final CountDownLatch parked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Thread deep = new Thread(() -> {
+			try {
+				descend(200, parked, release);
+			} catch (InterruptedException iex) {
+				/* No Op */
+			}
+		}, "TestStackSamplerDeep");
+		deep.setDaemon(true);
+		deep.start();
+		parked.await();
+		try {
+			agent.resetStackProfile();
+			final int sampled = agent.sampleStacks(256, 16);
+			final StackProfile profile = agent.stackProfile();
+			Assert.assertTrue("Trie exceeded the cap:" + profile.getNodeCount(), profile.getNodeCount() <= 16);
+			Assert.assertTrue("The deep stack did not overflow", profile.getOverflowCount() > 0);
+			Assert.assertEquals(profile.getOverflowCount(), agent.getStackOverflowCount());
+			Assert.assertEquals(sampled, profile.getSampleCount(false));
+			Assert.assertTrue(profile.toCollapsed(false).contains("<overflow> " + profile.getOverflowCount() + "\n"));
+		} finally {
+			release.countDown();
+			deep.join();
+		}
+		agent.resetStackProfile();
+		Assert.assertEquals(0, agent.getStackOverflowCount());
+		Assert.assertEquals(0, agent.stackProfile().getNodeCount());
+		final int sampled = agent.sampleStacks(256, 1024 * 1024);
+		final StackProfile profile = agent.stackProfile();
+		Assert.assertEquals(0, profile.getOverflowCount());
+		Assert.assertEquals(sampled, profile.getSampleCount(false));
+	}
+}
@@ -0,0 +1,330 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.agent;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.heliosapm.jvmti.snapshot.HeapSnapshot;
+
+/**
+ * <p>Title: TestTagOwnership</p>
+ * <p>Description: Tests that native heap operations find objects already tagged by someone else,
+ * leave their tags as they were and leave no tags of their own behind</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.agent.TestTagOwnership</code></p>
+ */
+
+public class TestTagOwnership {
+
+	/** The tag of the first foreign tagged object, as another agent sharing the heap might set */
+	static final long FOREIGN_TAG = 0x0123456700000000L;
+	/** The number of instances */
+	static final int INSTANCES = 200;
+
+	static class Marker {
+	}
+
+	static class Tagged {
+		long value;
+		final Marker marker = new Marker();
+		Tagged(final long value) {
+			this.value = value;
+		}
+	}
+
+	final NativeAgent agent = NativeAgent.getInstance();
+	Tagged[] instances;
+
+	@Before
+	public void tagInstances() {
+		// the heap walks also reach unreachable instances from earlier tests until they are collected
+		System.gc();
+		instances = new Tagged[INSTANCES];
+		for(int i = 0; i < INSTANCES; i++) {
+			instances[i] = new Tagged(i);
+			if(i % 2 == 0) agent.setTag(instances[i], FOREIGN_TAG + i);
+		}
+	}
+
+	@After
+	public void clearInstances() {
+		for(Tagged instance: instances) agent.setTag(instance, 0L);
+		instances = null;
+	}
+
+	/**
+	 * Asserts every instance carries the tag it was given before the operation
+	 */
+	void assertTagsPreserved() {
+		for(int i = 0; i < INSTANCES; i++) {
+			Assert.assertEquals("Tag of instance " + i, i % 2 == 0 ? FOREIGN_TAG + i : 0L, agent.getTag(instances[i]));
+		}
+	}
+
+	@Test
+	public void testSampling() throws Exception {
+		for(int i = 0; i < 5; i++) {
+			final Tagged[] sample = agent.sampleInstancesOf(Tagged.class, 10);
+			Assert.assertEquals(10, sample.length);
+			assertTagsPreserved();
+		}
+		Assert.assertEquals(INSTANCES, agent.sampleInstancesOf(Tagged.class, INSTANCES * 2).length);
+		assertTagsPreserved();
+	}
+
+	@Test
+	public void testPredicate() throws Exception {
+		final Tagged[] matched = agent.getInstancesOf(Tagged.class, InstancePredicate.parse("value >= 150"), Integer.MAX_VALUE);
+		Assert.assertEquals(50, matched.length);
+		for(Tagged t: matched) Assert.assertTrue(t.value >= 150);
+		assertTagsPreserved();
+	}
+
+	@Test
+	public void testCursor() throws Exception {
+		final InstanceCursor<Tagged> cursor = agent.openInstanceCursor(Tagged.class, 16);
+		try {
+			Assert.assertEquals(INSTANCES, cursor.getTagged());
+			assertTagsPreserved();
+			// retagging between pages, as any other operation might, does not lose instances
+			for(Tagged instance: instances) agent.setTag(instance, 0L);
+			int paged = 0;
+			while(cursor.hasNext()) paged += cursor.next(50).length;
+			Assert.assertEquals(INSTANCES, paged);
+		} finally {
+			cursor.close();
+		}
+	}
+
+	@Test
+	public void testSnapshot() throws Exception {
+		final File file = File.createTempFile("TestTagOwnership", ".snapshot");
+		file.deleteOnExit();
+		try(final HeapSnapshot snapshot = HeapSnapshot.write(file, true, 0L)) {
+			assertTagsPreserved();
+			final String taggedName = Agent.renderClassName(Tagged.class);
+			final String markerName = Agent.renderClassName(Marker.class);
+			final Set<Long> taggedIds = new HashSet<Long>();
+			final Set<Long> markerIds = new HashSet<Long>();
+			snapshot.forEachObject(new HeapSnapshot.ObjectVisitor() {
+				@Override
+				public void visit(final long id, final long size, final int classIndex, final int length) {
+					final String name = snapshot.getClassName(classIndex);
+					if(taggedName.equals(name)) taggedIds.add(id);
+					else if(markerName.equals(name)) markerIds.add(id);
+				}
+			});
+			final long[] edges = new long[1];
+			snapshot.forEachReference(new HeapSnapshot.ReferenceVisitor() {
+				@Override
+				public void visit(final long referrer, final long referent, final int kind, final int index) {
+					if(taggedIds.contains(referrer) && markerIds.contains(referent)) edges[0]++;
+				}
+			});
+			// every instance, foreign tagged or not, has its id and its edge
+			Assert.assertEquals(INSTANCES, edges[0]);
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testHprof() throws Exception {
+		final ClassLoader loader = getClass().getClassLoader();
+		agent.setTag(loader, FOREIGN_TAG - 2);
+		final File file = File.createTempFile("TestTagOwnership", ".hprof");
+		file.deleteOnExit();
+		try {
+			agent.hprofDump(file, null, false);
+			Assert.assertEquals(FOREIGN_TAG - 2, agent.getTag(loader));
+			assertTagsPreserved();
+			final HprofCounts counts = new HprofCounts(file, Tagged.class.getName().replace('.', '/'));
+			// every instance, foreign tagged or not, is written once
+			Assert.assertEquals(INSTANCES, counts.instances.size());
+			for(long id: counts.classRefs) {
+				Assert.assertTrue("Dangling class dump id " + Long.toHexString(id), counts.ids.contains(id));
+			}
+		} finally {
+			agent.setTag(loader, 0L);
+			file.delete();
+		}
+	}
+
+	/**
+	 * Reads an HPROF dump, collecting the ids of every dumped object, the super class and loader ids
+	 * referenced by class dumps and the ids of the instances of one class
+	 */
+	static class HprofCounts {
+		final Set<Long> ids = new HashSet<Long>();
+		final Set<Long> classRefs = new HashSet<Long>();
+		final Set<Long> instances = new HashSet<Long>();
+
+		HprofCounts(final File file, final String className) throws IOException {
+			final Map<Long, String> strings = new HashMap<Long, String>();
+			long classId = -1L;
+			try(final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+				while(in.readByte()!=0) { /* header string */ }
+				Assert.assertEquals(8, in.readInt());
+				in.readLong();
+				while(true) {
+					final int tag;
+					try {
+						tag = in.readUnsignedByte();
+					} catch (EOFException eof) {
+						break;
+					}
+					in.readInt();
+					final long length = in.readInt() & 0xFFFFFFFFL;
+					if(tag==0x01) {
+						final long id = in.readLong();
+						final byte[] utf8 = new byte[(int)length - 8];
+						in.readFully(utf8);
+						strings.put(id, new String(utf8, "UTF-8"));
+					} else if(tag==0x02) {
+						in.readInt();
+						final long id = in.readLong();
+						in.readInt();
+						if(className.equals(strings.get(in.readLong()))) classId = id;
+					} else if(tag==0x1C) {
+						readSegment(in, length, classId);
+					} else {
+						skip(in, length);
+					}
+				}
+			}
+		}
+
+		void readSegment(final DataInputStream in, final long length, final long classId) throws IOException {
+			long remaining = length;
+			while(remaining > 0) {
+				final int sub = in.readUnsignedByte();
+				long read = 1;
+				switch(sub) {
+					case 0x01:
+						in.readLong(); in.readLong(); read += 16; break;
+					case 0x05: case 0x07: case 0xFF:
+						in.readLong(); read += 8; break;
+					case 0x20: {
+						ids.add(in.readLong());
+						in.readInt();
+						for(int i = 0; i < 2; i++) {
+							final long ref = in.readLong();
+							if(ref!=0) classRefs.add(ref);
+						}
+						skip(in, 32 + 4);
+						read += 8 + 4 + 16 + 36;
+						final int cp = in.readUnsignedShort();
+						Assert.assertEquals(0, cp);
+						final int statics = in.readUnsignedShort();
+						read += 4;
+						for(int i = 0; i < statics; i++) {
+							in.readLong();
+							final int size = typeSize(in.readUnsignedByte());
+							skip(in, size);
+							read += 9 + size;
+						}
+						final int fields = in.readUnsignedShort();
+						skip(in, fields * 9L);
+						read += 2 + fields * 9L;
+						break;
+					}
+					case 0x21: {
+						final long id = in.readLong();
+						ids.add(id);
+						in.readInt();
+						if(in.readLong()==classId) instances.add(id);
+						final int bytes = in.readInt();
+						skip(in, bytes);
+						read += 24 + bytes;
+						break;
+					}
+					case 0x22: {
+						ids.add(in.readLong());
+						in.readInt();
+						final int count = in.readInt();
+						in.readLong();
+						skip(in, count * 8L);
+						read += 24 + count * 8L;
+						break;
+					}
+					case 0x23: {
+						ids.add(in.readLong());
+						in.readInt();
+						final int count = in.readInt();
+						final int size = typeSize(in.readUnsignedByte());
+						skip(in, (long)count * size);
+						read += 17 + (long)count * size;
+						break;
+					}
+					default:
+						throw new IOException("Unknown sub record " + Integer.toHexString(sub));
+				}
+				remaining -= read;
+			}
+		}
+
+		static int typeSize(final int type) {
+			switch(type) {
+				case 4: case 8: return 1;
+				case 5: case 9: return 2;
+				case 6: case 10: return 4;
+				default: return 8;
+			}
+		}
+
+		static void skip(final DataInputStream in, final long bytes) throws IOException {
+			long remaining = bytes;
+			while(remaining > 0) {
+				final int skipped = in.skipBytes((int)Math.min(remaining, Integer.MAX_VALUE));
+				if(skipped <= 0) throw new EOFException();
+				remaining -= skipped;
+			}
+		}
+	}
+
+	@Test
+	public void testHeapCensus() throws Exception {
+		final HeapCensus census = agent.heapCensus(new HeapCensusRequest().instances(Tagged.class, INSTANCES * 2));
+		Assert.assertEquals(INSTANCES, census.getInstances(Tagged.class).size());
+		assertTagsPreserved();
+	}
+
+	@Test
+	public void testClassTags() throws Exception {
+		agent.setTag(Tagged.class, FOREIGN_TAG - 1);
+		try {
+			final long[] counts = new long[1];
+			agent.classCensus(new Class<?>[]{Tagged.class}, counts, null, null);
+			Assert.assertEquals(INSTANCES, counts[0]);
+			Assert.assertEquals(FOREIGN_TAG - 1, agent.getTag(Tagged.class));
+			assertTagsPreserved();
+		} finally {
+			agent.setTag(Tagged.class, 0L);
+		}
+	}
+}
@@ -0,0 +1,82 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.extension;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+import com.heliosapm.jvmti.agent.NativeAgent;
+
+/**
+ * <p>Title: TestScheduledExtension</p>
+ * <p>Description: Tests the adaptive delay computation and stopping an adaptive extension</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.extension.TestScheduledExtension</code></p>
+ */
+
+public class TestScheduledExtension {
+
+	@Test
+	public void testAdaptiveDelay() {
+		// fast runs keep the minimum delay
+		Assert.assertEquals(5000, ScheduledExtension.adaptiveDelay(10, 0.01, 5000, 300000));
+		// a 100 ms walk at 1% needs 9900 ms between walks
+		Assert.assertEquals(9900, ScheduledExtension.adaptiveDelay(100, 0.01, 5000, 300000));
+		// a 4 s walk at 2% needs 196 s
+		Assert.assertEquals(196000, ScheduledExtension.adaptiveDelay(4000, 0.02, 5000, 300000));
+		// capped at the maximum delay
+		Assert.assertEquals(300000, ScheduledExtension.adaptiveDelay(10000, 0.01, 5000, 300000));
+		// the minimum wins over a smaller maximum
+		Assert.assertEquals(60000, ScheduledExtension.adaptiveDelay(10000, 0.01, 60000, 1000));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidOverhead() {
+		ScheduledExtension.adaptiveDelay(10, 1.5, 5000, 300000);
+	}
+
+	@Test
+	public void testAdaptiveSelfStop() throws Exception {
+		ExecutionScheduler.getInstance().schedule(SelfStopping.class.getName());
+		Assert.assertTrue(SelfStopping.STOPPED.await(5, TimeUnit.SECONDS));
+		Thread.sleep(200);
+		Assert.assertEquals(3, SelfStopping.RUNS.get());
+	}
+
+	/**
+	 * An adaptive extension that stops itself on its third run
+	 */
+	@Scheduled(fixedDelay=10, initialDelay=0, adaptive=true)
+	public static class SelfStopping extends ScheduledExtension {
+		static final AtomicInteger RUNS = new AtomicInteger();
+		static final CountDownLatch STOPPED = new CountDownLatch(1);
+
+		public SelfStopping(final MetricRegistry metricRegistry, final NativeAgent nativeAgent) {
+			super(metricRegistry, nativeAgent);
+		}
+
+		@Override
+		public void doRun() throws Exception {
+			if(RUNS.incrementAndGet()==3) {
+				stop();
+				STOPPED.countDown();
+			}
+		}
+	}
+}
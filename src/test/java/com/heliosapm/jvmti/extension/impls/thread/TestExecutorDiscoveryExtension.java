@@ -0,0 +1,80 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.extension.impls.thread;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+import com.heliosapm.jvmti.agent.NativeAgent;
+
+/**
+ * <p>Title: TestExecutorDiscoveryExtension</p>
+ * <p>Description: Tests that discovery registers a pool once two runs have found it, never registers a shut down pool
+ * and unregisters a pool once it is shut down</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.extension.impls.thread.TestExecutorDiscoveryExtension</code></p>
+ */
+
+public class TestExecutorDiscoveryExtension {
+
+	private static ThreadPoolExecutor executor() {
+		return new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+	}
+
+	private static boolean hasGauges(final MetricRegistry registry, final String name) {
+		return registry.getGauges().containsKey(MetricRegistry.name(ExecutorDiscoveryExtension.class, "executor", name, "active"));
+	}
+
+	@Test
+	public void testRegisteredOnSecondRun() throws Exception {
+		final MetricRegistry registry = new MetricRegistry();
+		final ExecutorDiscoveryExtension extension = new ExecutorDiscoveryExtension(registry, NativeAgent.getInstance());
+		final ThreadPoolExecutor executor = executor();
+		try {
+			final String name = ExecutorDiscoveryExtension.poolName(executor);
+			extension.doRun();
+			Assert.assertFalse(extension.getPoolNames().contains(name));
+			Assert.assertFalse(hasGauges(registry, name));
+			extension.doRun();
+			Assert.assertTrue(extension.getPoolNames().contains(name));
+			Assert.assertTrue(hasGauges(registry, name));
+			// shutting the pool down unregisters it on the next run
+			executor.shutdown();
+			extension.doRun();
+			Assert.assertFalse(extension.getPoolNames().contains(name));
+			Assert.assertFalse(hasGauges(registry, name));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testShutdownNeverRegistered() throws Exception {
+		final MetricRegistry registry = new MetricRegistry();
+		final ExecutorDiscoveryExtension extension = new ExecutorDiscoveryExtension(registry, NativeAgent.getInstance());
+		final ThreadPoolExecutor executor = executor();
+		final String name = ExecutorDiscoveryExtension.poolName(executor);
+		extension.doRun();
+		executor.shutdown();
+		extension.doRun();
+		extension.doRun();
+		Assert.assertFalse(extension.getPoolNames().contains(name));
+		Assert.assertFalse(hasGauges(registry, name));
+	}
+}
@@ -0,0 +1,111 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.extension.impls.thread;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * <p>Title: TestThreadPoolHook</p>
+ * <p>Description: Tests the thread pool hook's stamp release, weak pool keys and allocation free recording, calling the hook directly as the instrumented executor would</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.extension.impls.thread.TestThreadPoolHook</code></p>
+ */
+
+public class TestThreadPoolHook {
+
+	private static ThreadPoolExecutor executor() {
+		return new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+	}
+
+	private static long waits(final ThreadPoolHook.Pool pool) {
+		final long[] buckets = new long[ThreadPoolHook.BUCKETS + 1];
+		pool.collectWaits(buckets);
+		long count = 0L;
+		for(int b = 0; b < ThreadPoolHook.BUCKETS; b++) count += buckets[b];
+		return count;
+	}
+
+	@Test
+	public void testRejectedAndRemovedReleaseStamps() throws Exception {
+		final ThreadPoolExecutor executor = executor();
+		try {
+			final Runnable rejected = new Runnable() { public void run() {} };
+			final Runnable removed = new Runnable() { public void run() {} };
+			final Runnable started = new Runnable() { public void run() {} };
+			ThreadPoolHook.executed(executor, rejected);
+			ThreadPoolHook.rejected(executor, rejected);
+			ThreadPoolHook.executed(executor, removed);
+			ThreadPoolHook.removed(executor, removed);
+			ThreadPoolHook.executed(executor, started);
+			final ThreadPoolHook.Pool pool = ThreadPoolHook.pools().get(executor);
+			Assert.assertEquals(1, pool.getRejected());
+			// only the task still stamped records a queue wait when a worker starts it
+			for(Runnable task: new Runnable[]{rejected, removed, started}) ThreadPoolHook.started(executor, Thread.currentThread(), task);
+			ThreadPoolHook.finished(executor, started, null);
+			Assert.assertEquals(1, waits(pool));
+		} finally {
+			ThreadPoolHook.remove(executor);
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testCollectedPoolsDropped() throws Exception {
+		ThreadPoolExecutor executor = executor();
+		ThreadPoolHook.executed(executor, new Runnable() { public void run() {} });
+		final ThreadPoolHook.Pool pool = ThreadPoolHook.pools().get(executor);
+		Assert.assertNotNull(pool);
+		executor = null;
+		for(int i = 0; i < 50 && ThreadPoolHook.pools().containsValue(pool); i++) {
+			System.gc();
+			Thread.sleep(20);
+		}
+		Assert.assertFalse(ThreadPoolHook.pools().containsValue(pool));
+	}
+
+	@Test
+	public void testRecordingDoesNotAllocate() throws Exception {
+		final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+		final ThreadPoolExecutor executor = executor();
+		final Runnable[] tasks = new Runnable[64];
+		for(int i = 0; i < tasks.length; i++) tasks[i] = new Runnable() { public void run() {} };
+		final Thread self = Thread.currentThread();
+		try {
+			for(int round = 0; round < 2; round++) {
+				// the first round creates the pool and the thread state, and warms up the code
+				final long before = threads.getThreadAllocatedBytes(self.getId());
+				for(int n = 0; n < 100000; n++) {
+					final Runnable task = tasks[n & (tasks.length - 1)];
+					ThreadPoolHook.executed(executor, task);
+					ThreadPoolHook.started(executor, self, task);
+					ThreadPoolHook.finished(executor, task, null);
+				}
+				final long allocated = threads.getThreadAllocatedBytes(self.getId()) - before;
+				if(round==1) Assert.assertTrue("Allocated " + allocated + " bytes recording 100000 tasks", allocated < 64 * 1024);
+			}
+			Assert.assertEquals(200000, waits(ThreadPoolHook.find(executor)));
+		} finally {
+			ThreadPoolHook.remove(executor);
+			executor.shutdown();
+		}
+	}
+}
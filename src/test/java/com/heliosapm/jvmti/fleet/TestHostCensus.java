@@ -0,0 +1,61 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.fleet;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * <p>Title: TestHostCensus</p>
+ * <p>Description: Tests merging per JVM census results into the host view</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.fleet.TestHostCensus</code></p>
+ */
+
+public class TestHostCensus {
+
+	private static Map<String, Long> map(final Object... pairs) {
+		final Map<String, Long> map = new LinkedHashMap<String, Long>();
+		for(int i = 0; i < pairs.length; i += 2) map.put((String)pairs[i], ((Number)pairs[i + 1]).longValue());
+		return map;
+	}
+
+	@Test
+	public void testMerge() {
+		final HostCensus host = new HostCensus(Arrays.asList(
+			new VmCensus("1", "a", VmCensus.Status.OK, null, map("A", 10, "B", 5), map("threads.live", 10, "heap.used", 100), 5),
+			new VmCensus("2", "b", VmCensus.Status.OK, null, map("B", 20, "C", 1), map("threads.live", 7), 6),
+			VmCensus.failed("3", "c", VmCensus.Status.FAILED, "boom", 1),
+			VmCensus.failed("4", "d", VmCensus.Status.TIMEOUT, "Timed out", 30)
+		), 2, 40);
+		Assert.assertEquals(2, host.getCount(VmCensus.Status.OK));
+		Assert.assertEquals(1, host.getCount(VmCensus.Status.FAILED));
+		Assert.assertEquals(1, host.getCount(VmCensus.Status.TIMEOUT));
+		final Iterator<Map.Entry<String, Long>> top = host.getHistogram().entrySet().iterator();
+		Map.Entry<String, Long> entry = top.next();
+		Assert.assertEquals("B", entry.getKey());
+		Assert.assertEquals(25L, entry.getValue().longValue());
+		entry = top.next();
+		Assert.assertEquals("A", entry.getKey());
+		Assert.assertFalse(top.hasNext());
+		Assert.assertEquals(17L, host.getMetrics().get("threads.live").longValue());
+		Assert.assertEquals(100L, host.getMetrics().get("heap.used").longValue());
+		Assert.assertEquals(4, host.getVms().size());
+	}
+}
@@ -0,0 +1,76 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.install;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * <p>Title: TestBootstrap</p>
+ * <p>Description: Tests that bootstrap steps start after their dependencies, that independent steps run concurrently
+ * and that a failed step does not stop its dependents</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.install.TestBootstrap</code></p>
+ */
+
+public class TestBootstrap {
+
+	@Test
+	public void testOrdering() throws Exception {
+		final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+		final Bootstrap bootstrap = new Bootstrap(4)
+			.step("sysprops", () -> { Thread.sleep(50); order.add("sysprops"); })
+			.step("agent", () -> { Thread.sleep(20); order.add("agent"); })
+			.step("logging", () -> order.add("logging"), "sysprops")
+			.step("extension", () -> order.add("extension"), "sysprops", "logging", "agent");
+		Assert.assertTrue(bootstrap.await(5, TimeUnit.SECONDS));
+		Assert.assertEquals(4, order.size());
+		Assert.assertTrue(order.toString(), order.indexOf("sysprops") < order.indexOf("logging"));
+		Assert.assertTrue(order.toString(), order.indexOf("logging") < order.indexOf("extension"));
+		Assert.assertTrue(order.toString(), order.indexOf("agent") < order.indexOf("extension"));
+		Assert.assertTrue(bootstrap.getFailed().isEmpty());
+	}
+
+	@Test
+	public void testIndependentStepsRunConcurrently() throws Exception {
+		final CyclicBarrier barrier = new CyclicBarrier(2);
+		final Bootstrap bootstrap = new Bootstrap(2)
+			.step("a", () -> barrier.await(5, TimeUnit.SECONDS))
+			.step("b", () -> barrier.await(5, TimeUnit.SECONDS));
+		Assert.assertTrue(bootstrap.await(10, TimeUnit.SECONDS));
+		Assert.assertTrue(bootstrap.getFailed().toString(), bootstrap.getFailed().isEmpty());
+	}
+
+	@Test
+	public void testFailedDependency() throws Exception {
+		final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+		final Bootstrap bootstrap = new Bootstrap(2)
+			.step("logging", () -> { throw new IllegalStateException("no config"); })
+			.step("extension", () -> order.add("extension"), "logging");
+		Assert.assertTrue(bootstrap.await(5, TimeUnit.SECONDS));
+		Assert.assertEquals(Collections.singletonList("extension"), order);
+		Assert.assertEquals(Collections.singleton("logging"), bootstrap.getFailed());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testUnknownDependency() {
+		new Bootstrap(1).step("extension", () -> {}, "agent");
+	}
+}
@@ -0,0 +1,99 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.codahale.metrics.Snapshot;
+import com.heliosapm.jvmti.extension.impls.thread.ThreadPoolHook;
+
+/**
+ * <p>Title: TestBucketHistogram</p>
+ * <p>Description: Tests the interval snapshots of a bucket histogram fed with the thread pool hook's buckets</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.metrics.TestBucketHistogram</code></p>
+ */
+
+public class TestBucketHistogram {
+
+	private static final long[] VALUES = new long[ThreadPoolHook.BUCKETS];
+	static {
+		for(int b = 0; b < VALUES.length; b++) VALUES[b] = ThreadPoolHook.bucketValue(b);
+	}
+
+	private static void record(final long[] cumulative, final long value, final int times) {
+		cumulative[ThreadPoolHook.bucket(value)] += times;
+		cumulative[ThreadPoolHook.SUM] += value * times;
+	}
+
+	@Test
+	public void testBuckets() throws Exception {
+		for(long v = 0; v < 1000000; v += 7) {
+			final long reported = ThreadPoolHook.bucketValue(ThreadPoolHook.bucket(v));
+			Assert.assertTrue("value " + v + " reported " + reported, Math.abs(reported - v) <= Math.max(1, v / 8));
+		}
+		Assert.assertEquals(ThreadPoolHook.BUCKETS - 1, ThreadPoolHook.bucket(Long.MAX_VALUE));
+		Assert.assertEquals(0, ThreadPoolHook.bucket(-5));
+	}
+
+	@Test
+	public void testIntervals() throws Exception {
+		final BucketHistogram histogram = new BucketHistogram(VALUES);
+		final long[] cumulative = new long[ThreadPoolHook.BUCKETS + 1];
+		Assert.assertEquals(0, histogram.getSnapshot().size());
+		record(cumulative, 100, 90);
+		record(cumulative, 10000, 10);
+		Assert.assertEquals(100, histogram.update(cumulative));
+		Snapshot snapshot = histogram.getSnapshot();
+		Assert.assertEquals(100, histogram.getCount());
+		Assert.assertEquals(1090d, snapshot.getMean(), 0.001d);
+		Assert.assertEquals(100d, snapshot.getMedian(), 8d);
+		Assert.assertEquals(10000d, snapshot.get99thPercentile(), 10000 / 8d);
+		Assert.assertEquals(snapshot.getMin(), snapshot.getValues()[0]);
+		Assert.assertEquals(snapshot.getMax(), snapshot.getValues()[99]);
+		record(cumulative, 5000, 4);
+		Assert.assertEquals(4, histogram.update(cumulative));
+		snapshot = histogram.getSnapshot();
+		Assert.assertEquals(104, histogram.getCount());
+		Assert.assertEquals(4, snapshot.size());
+		Assert.assertEquals(5000d, snapshot.getMean(), 0.001d);
+		Assert.assertEquals(snapshot.getMin(), snapshot.getMax());
+		Assert.assertTrue(snapshot.getStdDev() <= 5000 / 8d);
+		Assert.assertEquals(0, histogram.update(cumulative));
+		Assert.assertEquals(0d, histogram.getSnapshot().getMedian(), 0d);
+	}
+
+	@Test
+	public void testSingleValues() throws Exception {
+		final BucketHistogram histogram = new BucketHistogram(VALUES);
+		for(int i = 0; i < 9; i++) histogram.update(100L);
+		histogram.update(10000);
+		Snapshot snapshot = histogram.getSnapshot();
+		Assert.assertEquals(10, histogram.getCount());
+		Assert.assertEquals(10, snapshot.size());
+		Assert.assertEquals(1090d, snapshot.getMean(), 0.001d);
+		Assert.assertEquals(100d, snapshot.getMedian(), 8d);
+		Assert.assertEquals(10000d, snapshot.getMax(), 10000 / 8d);
+		Assert.assertEquals(VALUES.length - 1, histogram.nearestBucket(Long.MAX_VALUE));
+		Assert.assertEquals(0, histogram.nearestBucket(-1L));
+		// a bucket count update starts a new interval
+		final long[] cumulative = new long[ThreadPoolHook.BUCKETS + 1];
+		record(cumulative, 5000, 4);
+		Assert.assertEquals(4, histogram.update(cumulative));
+		snapshot = histogram.getSnapshot();
+		Assert.assertEquals(14, histogram.getCount());
+		Assert.assertEquals(5000d, snapshot.getMean(), 0.001d);
+	}
+}
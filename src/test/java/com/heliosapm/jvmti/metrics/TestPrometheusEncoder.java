@@ -0,0 +1,139 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.metrics;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * <p>Title: TestPrometheusEncoder</p>
+ * <p>Description: Tests the Prometheus text encoding of a metric registry</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.metrics.TestPrometheusEncoder</code></p>
+ */
+
+public class TestPrometheusEncoder {
+
+	private static String encodeDouble(final double value) {
+		final PrometheusEncoder encoder = new PrometheusEncoder();
+		encoder.writeDouble(value);
+		return encoder.toString();
+	}
+
+	@Test
+	public void testNumbers() throws Exception {
+		Assert.assertEquals("0", encodeDouble(0d));
+		Assert.assertEquals("42", encodeDouble(42d));
+		Assert.assertEquals("-3.25", encodeDouble(-3.25d));
+		Assert.assertEquals("0.000123", encodeDouble(0.000123d));
+		Assert.assertEquals("1.5", encodeDouble(1.4999999d));
+		Assert.assertEquals("NaN", encodeDouble(Double.NaN));
+		Assert.assertEquals("+Inf", encodeDouble(Double.POSITIVE_INFINITY));
+		Assert.assertEquals(1e20, Double.parseDouble(encodeDouble(1e20)), 0d);
+		Assert.assertEquals(1e-9, Double.parseDouble(encodeDouble(1e-9)), 0d);
+		final PrometheusEncoder encoder = new PrometheusEncoder();
+		encoder.writeLong(Long.MIN_VALUE);
+		Assert.assertEquals(Long.toString(Long.MIN_VALUE), encoder.toString());
+	}
+
+	@Test
+	public void testSanitize() throws Exception {
+		Assert.assertEquals("com_foo_Bar_instance_count", PrometheusEncoder.sanitize("com.foo.Bar.instance.count"));
+		Assert.assertEquals("_9lives", PrometheusEncoder.sanitize("9lives"));
+	}
+
+	@Test
+	public void testEncode() throws Exception {
+		final MetricRegistry registry = new MetricRegistry();
+		registry.counter("a.counter").inc(3);
+		registry.register("a.gauge", (Gauge<Double>)() -> 0.5d);
+		registry.register("a.text", (Gauge<String>)() -> "skipped");
+		registry.meter("a.meter").mark(7);
+		registry.histogram("a.histogram").update(10);
+		registry.timer("a.timer").update(250, TimeUnit.MILLISECONDS);
+		final PrometheusEncoder encoder = new PrometheusEncoder();
+		final int size = encoder.encode(registry);
+		final String text = encoder.toString();
+		Assert.assertEquals(size, encoder.size());
+		Assert.assertTrue(text, text.contains("# TYPE a_counter gauge\na_counter 3\n"));
+		Assert.assertTrue(text, text.contains("# TYPE a_gauge gauge\na_gauge 0.5\n"));
+		Assert.assertFalse(text, text.contains("a_text"));
+		Assert.assertTrue(text, text.contains("# TYPE a_meter_total counter\na_meter_total 7\n"));
+		Assert.assertTrue(text, text.contains("a_histogram{quantile=\"0.5\"} 10\n"));
+		Assert.assertTrue(text, text.contains("a_histogram_count 1\n"));
+		Assert.assertTrue(text, text.contains("# TYPE a_timer_seconds summary\n"));
+		Assert.assertTrue(text, text.contains("a_timer_seconds{quantile=\"0.99\"} 0.25\n"));
+		Assert.assertTrue(text, text.contains("a_timer_seconds_count 1\n"));
+		// re-encoding replaces the previous encoding
+		Assert.assertEquals(size, encoder.encode(registry));
+		Assert.assertEquals(text, encoder.toString());
+	}
+
+	@Test
+	public void testNameCollisions() throws Exception {
+		final MetricRegistry registry = new MetricRegistry();
+		registry.counter("a.b").inc(1);
+		registry.counter("a_b").inc(2);
+		registry.counter("c_count").inc(3);
+		registry.histogram("c").update(4);
+		registry.counter("d.total").inc(5);
+		registry.meter("d").mark(6);
+		final PrometheusEncoder encoder = new PrometheusEncoder();
+		encoder.encode(registry);
+		final String text = encoder.toString();
+		// every sample outside a summary's quantiles has a name of its own
+		final Set<String> samples = new HashSet<String>();
+		for(String line: text.split("\n")) {
+			if(line.startsWith("#") || line.contains("{")) continue;
+			Assert.assertTrue(text, samples.add(line.substring(0, line.indexOf(' '))));
+		}
+		Assert.assertEquals(text, 6, samples.size());
+		Assert.assertTrue(text, text.contains("\na_b 1\n") || text.contains("\na_b 2\n"));
+		Assert.assertTrue(text, text.contains("\na_b_2 1\n") || text.contains("\na_b_2 2\n"));
+		// the disambiguated names are stable across encodes
+		encoder.encode(registry);
+		Assert.assertEquals(text, encoder.toString());
+	}
+
+	@Test
+	public void testRemovedNamesReleased() throws Exception {
+		final MetricRegistry registry = new MetricRegistry();
+		registry.counter("a.b").inc(1);
+		registry.counter("a_b").inc(2);
+		registry.histogram("c").update(3);
+		final PrometheusEncoder encoder = new PrometheusEncoder();
+		encoder.encode(registry);
+		Assert.assertEquals(3, encoder.getNameCount());
+		registry.remove("a.b");
+		registry.remove("a_b");
+		registry.remove("c");
+		encoder.encode(registry);
+		Assert.assertEquals(0, encoder.getNameCount());
+		Assert.assertEquals(0, encoder.size());
+		// the released sample names can be claimed again without a suffix
+		registry.counter("a_b").inc(4);
+		registry.counter("c_count").inc(5);
+		encoder.encode(registry);
+		final String text = encoder.toString();
+		Assert.assertTrue(text, text.contains("\na_b 4\n"));
+		Assert.assertTrue(text, text.contains("\nc_count 5\n"));
+	}
+}
@@ -0,0 +1,103 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.BindException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * <p>Title: TestPrometheusEndpoint</p>
+ * <p>Description: Tests the port handling and error responses of the Prometheus endpoint</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.metrics.TestPrometheusEndpoint</code></p>
+ */
+
+public class TestPrometheusEndpoint {
+
+	@After
+	public void stop() {
+		final PrometheusEndpoint endpoint = PrometheusEndpoint.getInstance();
+		if(endpoint!=null) endpoint.stop();
+	}
+
+	private static int scrape(final PrometheusEndpoint endpoint, final StringBuilder body) throws Exception {
+		final HttpURLConnection conn = (HttpURLConnection)new URL("http://127.0.0.1:" + endpoint.getAddress().getPort() + PrometheusEndpoint.DEFAULT_PATH).openConnection();
+		try {
+			final int status = conn.getResponseCode();
+			if(status==200) {
+				final ByteArrayOutputStream out = new ByteArrayOutputStream();
+				try(final InputStream in = conn.getInputStream()) {
+					final byte[] buffer = new byte[4096];
+					int read;
+					while((read = in.read(buffer)) > 0) out.write(buffer, 0, read);
+				}
+				body.append(new String(out.toByteArray(), StandardCharsets.UTF_8));
+			}
+			return status;
+		} finally {
+			conn.disconnect();
+		}
+	}
+
+	@Test
+	public void testPortInUse() throws Exception {
+		try(final ServerSocket taken = new ServerSocket()) {
+			taken.bind(new InetSocketAddress("127.0.0.1", 0));
+			final int port = taken.getLocalPort();
+			try {
+				PrometheusEndpoint.start(new MetricRegistry(), "127.0.0.1", port, false, null);
+				Assert.fail("Started on a port in use");
+			} catch (BindException expected) {
+				Assert.assertTrue(expected.getMessage(), expected.getMessage().contains(Integer.toString(port)));
+			}
+			Assert.assertNull(PrometheusEndpoint.getInstance());
+			final PrometheusEndpoint endpoint = PrometheusEndpoint.start(new MetricRegistry(), "127.0.0.1", port, true, null);
+			Assert.assertTrue(port!=endpoint.getAddress().getPort());
+			Assert.assertEquals(Integer.toString(endpoint.getAddress().getPort()), System.getProperty(PrometheusEndpoint.PORT_PROP));
+		}
+		PrometheusEndpoint.getInstance().stop();
+		Assert.assertNull(System.getProperty(PrometheusEndpoint.PORT_PROP));
+	}
+
+	@Test
+	public void testEncodeFailure() throws Exception {
+		final MetricRegistry registry = new MetricRegistry();
+		registry.counter("a.counter").inc(3);
+		final boolean[] fail = {true};
+		registry.register("a.gauge", (Gauge<Long>)() -> {
+			if(fail[0]) throw new IllegalStateException("Broken gauge");
+			return 1L;
+		});
+		final PrometheusEndpoint endpoint = PrometheusEndpoint.start(registry, "127.0.0.1", 0, false, null);
+		Assert.assertEquals(500, scrape(endpoint, new StringBuilder()));
+		fail[0] = false;
+		final StringBuilder body = new StringBuilder();
+		Assert.assertEquals(200, scrape(endpoint, body));
+		Assert.assertTrue(body.toString(), body.toString().contains("a_counter 3\n"));
+		Assert.assertTrue(body.toString(), body.toString().contains("a_gauge 1\n"));
+	}
+}
@@ -0,0 +1,126 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.heliosapm.jvmti.snapshot.CensusRing.Tick;
+
+/**
+ * <p>Title: TestCensusRing</p>
+ * <p>Description: Tests appending, wrapping, reopening and replaying the census ring</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.snapshot.TestCensusRing</code></p>
+ */
+
+public class TestCensusRing {
+
+	private File file;
+
+	@Before
+	public void createFile() throws Exception {
+		file = File.createTempFile("census", ".ring");
+		file.delete();
+	}
+
+	@After
+	public void deleteFile() {
+		file.delete();
+	}
+
+	private static long count(final CensusRing ring, final Tick tick, final String className) {
+		for(int i = 0; i < tick.classIndexes.length; i++) {
+			if(className.equals(ring.className(tick.classIndexes[i]))) return tick.counts[i];
+		}
+		return 0;
+	}
+
+	@Test
+	public void testDeltasReplay() throws Exception {
+		try(final CensusRing ring = CensusRing.open(file, 64 * 1024, 1024, 4)) {
+			for(int t = 0; t < 10; t++) {
+				ring.append(1000 + t, new String[]{"A", "B", "C"}, new long[]{t, 5, t % 2}, new long[]{t * 16, 80, (t % 2) * 32});
+			}
+			final List<Tick> ticks = ring.query(0, Long.MAX_VALUE);
+			Assert.assertEquals(10, ticks.size());
+			for(int t = 0; t < 10; t++) {
+				final Tick tick = ticks.get(t);
+				Assert.assertEquals(1000 + t, tick.timestamp);
+				Assert.assertEquals(t, count(ring, tick, "A"));
+				Assert.assertEquals(5, count(ring, tick, "B"));
+				Assert.assertEquals(t % 2, count(ring, tick, "C"));
+			}
+			Assert.assertEquals(3, ring.query(1004, 1006).size());
+		}
+	}
+
+	@Test
+	public void testWrapKeepsNewestTicks() throws Exception {
+		try(final CensusRing ring = CensusRing.open(file, 2048, 1024, 5)) {
+			for(int t = 0; t < 500; t++) {
+				ring.append(t, new String[]{"A", "B"}, new long[]{t, 1000 - t}, new long[]{t * 8, 8});
+			}
+			Assert.assertEquals(500, ring.getRecordCount());
+			Assert.assertTrue(ring.getRetainedBytes() <= ring.getCapacity());
+			final List<Tick> ticks = ring.query(0, Long.MAX_VALUE);
+			Assert.assertFalse(ticks.isEmpty());
+			Assert.assertTrue(ticks.size() < 500);
+			for(Tick tick: ticks) {
+				Assert.assertEquals(tick.timestamp, count(ring, tick, "A"));
+				Assert.assertEquals(1000 - tick.timestamp, count(ring, tick, "B"));
+			}
+			Assert.assertEquals(499, ticks.get(ticks.size() - 1).timestamp);
+		}
+	}
+
+	@Test
+	public void testReopen() throws Exception {
+		try(final CensusRing ring = CensusRing.open(file, 64 * 1024)) {
+			ring.append(1, new String[]{"A"}, new long[]{3}, new long[]{48});
+			ring.append(2, new String[]{"A", "B"}, new long[]{4, 1}, new long[]{64, 16});
+		}
+		try(final CensusRing ring = CensusRing.open(file, 1024)) {
+			Assert.assertEquals(64 * 1024, ring.getCapacity());
+			ring.append(3, new String[]{"B"}, new long[]{2}, new long[]{32});
+			final List<Tick> ticks = ring.query(0, Long.MAX_VALUE);
+			Assert.assertEquals(3, ticks.size());
+			Assert.assertEquals(4, count(ring, ticks.get(1), "A"));
+			Assert.assertEquals(0, count(ring, ticks.get(2), "A"));
+			Assert.assertEquals(2, count(ring, ticks.get(2), "B"));
+		}
+	}
+
+	@Test
+	public void testExclusiveLock() throws Exception {
+		try(final CensusRing ring = CensusRing.open(file, 64 * 1024)) {
+			try {
+				CensusRing.open(file, 64 * 1024).close();
+				Assert.fail("An open ring was opened twice");
+			} catch (IOException expected) {
+				Assert.assertTrue(expected.getMessage().contains(file.toString()));
+			}
+			ring.append(1, new String[]{"A"}, new long[]{1}, new long[]{16});
+		}
+		try(final CensusRing ring = CensusRing.open(file, 64 * 1024)) {
+			Assert.assertEquals(1, ring.getRecordCount());
+		}
+	}
+}
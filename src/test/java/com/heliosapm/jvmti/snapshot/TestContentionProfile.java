@@ -0,0 +1,99 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.snapshot;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.heliosapm.jvmti.agent.NativeAgent;
+
+/**
+ * <p>Title: TestContentionProfile</p>
+ * <p>Description: Tests the site and monitor class reports of a contention profile and its round trip through the native contention table</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.snapshot.TestContentionProfile</code></p>
+ */
+
+public class TestContentionProfile {
+
+	/** The monitor contended by {@link #testNativeRoundTrip()} */
+	static class Contended {
+		/* No Op */
+	}
+
+	@Test
+	public void testReports() {
+		final String[] monitorClasses = {"a.Lock", "a.Lock", "b.Other", null};
+		final String[] sites = {"x.F.run@3", "x.G.run@7", "x.F.run@3", null};
+		final long[] stats = {2, 100, 60, 1, 50, 50, 5, 400, 200, 0, 0, 0};
+		final ContentionProfile profile = new ContentionProfile(monitorClasses, sites, stats, 3, 4);
+		Assert.assertEquals(3, profile.getSiteCount());
+		Assert.assertEquals(4, profile.getDropped());
+		Assert.assertEquals(8, profile.getTotalCount());
+		Assert.assertEquals(550, profile.getTotalNanos());
+		final LinkedHashMap<String, long[]> top = profile.topSites(2);
+		Assert.assertArrayEquals(new String[]{"b.Other <- x.F.run@3", "a.Lock <- x.F.run@3"}, top.keySet().toArray(new String[0]));
+		final LinkedHashMap<String, long[]> classes = profile.topMonitorClasses(10);
+		Assert.assertArrayEquals(new String[]{"b.Other", "a.Lock"}, classes.keySet().toArray(new String[0]));
+		// counts and nanos sum across sites, the maximum is the largest of any site
+		Assert.assertTrue(Arrays.equals(new long[]{3, 150, 60}, classes.get("a.Lock")));
+		Assert.assertTrue(Arrays.equals(new long[]{5, 400, 200}, classes.get("b.Other")));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidSiteCount() {
+		new ContentionProfile(new String[1], new String[1], new long[2], 1, 0);
+	}
+
+	@Test
+	public void testNativeRoundTrip() throws Exception {
+		final NativeAgent agent = NativeAgent.getInstance();
+		Assume.assumeTrue(agent.setMonitorContentionEnabled(true));
+		try {
+			final Contended monitor = new Contended();
+			final Thread blocked = new Thread("ContendedThread") {
+				@Override
+				public void run() {
+					synchronized(monitor) {
+						/* No Op */
+					}
+				}
+			};
+			synchronized(monitor) {
+				blocked.start();
+				// hold the monitor until the thread blocks on it
+				while(blocked.getState()!=Thread.State.BLOCKED) Thread.sleep(5);
+				Thread.sleep(50);
+			}
+			blocked.join();
+			final ContentionProfile profile = agent.contentionProfile();
+			long[] stats = null;
+			for(Map.Entry<String, long[]> entry: profile.topMonitorClasses(Integer.MAX_VALUE).entrySet()) {
+				if(entry.getKey().contains("TestContentionProfile$Contended")) stats = entry.getValue();
+			}
+			Assert.assertNotNull("Contended monitor not recorded in " + profile.topMonitorClasses(10).keySet(), stats);
+			Assert.assertTrue(stats[ContentionProfile.COUNT] >= 1);
+			// the thread was blocked for at least the 50 ms the monitor was held after it blocked
+			Assert.assertTrue(stats[ContentionProfile.MAX_NANOS] >= 40000000L);
+			Assert.assertTrue(stats[ContentionProfile.NANOS] >= stats[ContentionProfile.MAX_NANOS]);
+		} finally {
+			agent.setMonitorContentionEnabled(false);
+		}
+	}
+}
@@ -0,0 +1,90 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.snapshot;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * <p>Title: TestHeapSnapshot</p>
+ * <p>Description: Tests that a written heap snapshot keeps only the records written and releases its mappings</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.snapshot.TestHeapSnapshot</code></p>
+ */
+
+public class TestHeapSnapshot {
+
+	private File file;
+
+	@Before
+	public void createFile() throws Exception {
+		file = File.createTempFile("heap", ".snapshot");
+	}
+
+	@After
+	public void deleteFile() {
+		file.delete();
+	}
+
+	/**
+	 * Returns the byte length of the class table of the passed snapshot
+	 */
+	private static long tableSize(final HeapSnapshot snapshot) {
+		long size = 4;
+		for(int i = 0; i < snapshot.getClassCount(); i++) {
+			size += 4 + snapshot.getClassName(i).getBytes(StandardCharsets.UTF_8).length;
+		}
+		return size;
+	}
+
+	@Test
+	public void testTruncatedToRecords() throws Exception {
+		for(boolean references: new boolean[]{false, true}) {
+			try(final HeapSnapshot snapshot = HeapSnapshot.write(file, references, 0L)) {
+				Assert.assertFalse(snapshot.isTruncated());
+				Assert.assertTrue(snapshot.getObjectCount() > 0);
+				Assert.assertEquals(references, snapshot.getReferenceCount() > 0);
+				final long records = (snapshot.getObjectCount() + snapshot.getReferenceCount()) * HeapSnapshot.RECORD_SIZE;
+				Assert.assertEquals(HeapSnapshot.HEADER_SIZE + records + tableSize(snapshot), file.length());
+				final long[] visited = new long[1];
+				snapshot.forEachObject((id, size, classIndex, length) -> visited[0]++);
+				Assert.assertEquals(snapshot.getObjectCount(), visited[0]);
+			}
+		}
+	}
+
+	@Test
+	public void testCloseReleasesMappings() throws Exception {
+		final HeapSnapshot snapshot = HeapSnapshot.write(file, false, 0L);
+		snapshot.close();
+		snapshot.close();
+		try {
+			snapshot.forEachObject((id, size, classIndex, length) -> {});
+			Assert.fail("Visited a closed snapshot");
+		} catch (IllegalStateException expected) {
+			/* No Op */
+		}
+		// with no mapping left the file can be cut down to its header
+		try(final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(HeapSnapshot.HEADER_SIZE);
+		}
+		Assert.assertEquals(HeapSnapshot.HEADER_SIZE, file.length());
+	}
+}
@@ -0,0 +1,51 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.snapshot;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * <p>Title: TestJitProfile</p>
+ * <p>Description: Tests the package and recompilation reports of a JIT profile</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.snapshot.TestJitProfile</code></p>
+ */
+
+public class TestJitProfile {
+
+	@Test
+	public void testPackageOf() {
+		Assert.assertEquals("java.util", JitProfile.packageOf("java.util.HashMap.get"));
+		Assert.assertEquals("java.util", JitProfile.packageOf("java.util.HashMap$Node.getKey"));
+		Assert.assertEquals("com.foo", JitProfile.packageOf("com.foo.Bar$$Lambda$14.0x00007f11ad0c6550.run"));
+		Assert.assertEquals("", JitProfile.packageOf("Main.run"));
+	}
+
+	@Test
+	public void testReports() {
+		final String[] methods = {"a.b.C.x", "a.b.D.y", "e.F.z"};
+		final long[] stats = {3, 2, 100, 1, 0, 50, 1, 1, 0};
+		final JitProfile profile = new JitProfile(new long[JitProfile.TOTALS], methods, stats, 3);
+		final LinkedHashMap<String, long[]> packages = profile.codeByPackage(10);
+		Assert.assertArrayEquals(new String[]{"a.b", "e"}, packages.keySet().toArray(new String[0]));
+		Assert.assertTrue(Arrays.equals(new long[]{2, 150, 4}, packages.get("a.b")));
+		Assert.assertTrue(Arrays.equals(new long[]{0, 0, 1}, packages.get("e")));
+		final LinkedHashMap<String, long[]> recompiled = profile.topRecompiled(10);
+		Assert.assertArrayEquals(new String[]{"a.b.C.x"}, recompiled.keySet().toArray(new String[0]));
+	}
+}
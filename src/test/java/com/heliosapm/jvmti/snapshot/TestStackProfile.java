@@ -0,0 +1,63 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.snapshot;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * <p>Title: TestStackProfile</p>
+ * <p>Description: Tests the collapsed stack and hot method rendering of a stack profile</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.snapshot.TestStackProfile</code></p>
+ */
+
+public class TestStackProfile {
+	
+	private static final String[] NAMES = {"main", "work", "parse", "sleep"};
+	
+	/**
+	 * root -> main(1) -> work(2) -> parse(3) -> work(4) and main(1) -> sleep(5)
+	 */
+	private static StackProfile profile() {
+		final int[] parents = {-1, 0, 1, 2, 3, 1};
+		final int[] nameIds = {-1, 0, 1, 2, 1, 3};
+		final long[] wall = {0, 0, 2, 3, 5, 10};
+		final long[] cpu = {0, 0, 2, 3, 5, 0};
+		return new StackProfile(parents, nameIds, wall, cpu, NAMES, parents.length);
+	}
+
+	@Test
+	public void testCollapsed() {
+		final StackProfile p = profile();
+		Assert.assertEquals("main;work 2\nmain;work;parse 3\nmain;work;parse;work 5\nmain;sleep 10\n", p.toCollapsed(false));
+		Assert.assertEquals("main;work 2\nmain;work;parse 3\nmain;work;parse;work 5\n", p.toCollapsed(true));
+		Assert.assertEquals(20, p.getSampleCount(false));
+		Assert.assertEquals(10, p.getSampleCount(true));
+	}
+
+	@Test
+	public void testTopMethods() {
+		final LinkedHashMap<String, long[]> wall = profile().topMethods(false, 10);
+		Assert.assertArrayEquals(new String[]{"sleep", "work", "parse", "main"}, wall.keySet().toArray(new String[0]));
+		Assert.assertTrue(Arrays.equals(new long[]{7, 10}, wall.get("work")));
+		Assert.assertTrue(Arrays.equals(new long[]{3, 8}, wall.get("parse")));
+		Assert.assertTrue(Arrays.equals(new long[]{0, 20}, wall.get("main")));
+		final LinkedHashMap<String, long[]> cpu = profile().topMethods(true, 2);
+		Assert.assertArrayEquals(new String[]{"work", "parse"}, cpu.keySet().toArray(new String[0]));
+	}
+}
@@ -0,0 +1,93 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.snapshot;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.heliosapm.jvmti.agent.NativeAgent;
+
+/**
+ * <p>Title: TestThrowProfile</p>
+ * <p>Description: Tests the site and exception class reports of a throw profile and its round trip through the native throw site table</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.snapshot.TestThrowProfile</code></p>
+ */
+
+public class TestThrowProfile {
+
+	/** The exception thrown by {@link #testNativeRoundTrip()} */
+	static class Thrown extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	private static void fail() {
+		throw new Thrown();
+	}
+
+	@Test
+	public void testReports() {
+		final String[] exceptionClasses = {"a.Fail", "a.Fail", "b.Other", null};
+		final String[] sites = {"x.F.run@3", "x.G.run@7", "x.F.run@3", null};
+		final long[] counts = {2, 3, 4, 0};
+		final ThrowProfile profile = new ThrowProfile(exceptionClasses, sites, counts, 3);
+		Assert.assertEquals(3, profile.getSiteCount());
+		Assert.assertEquals(9, profile.getTotalCount());
+		final LinkedHashMap<String, Long> top = profile.topSites(2);
+		Assert.assertArrayEquals(new String[]{"b.Other <- x.F.run@3", "a.Fail <- x.G.run@7"}, top.keySet().toArray(new String[0]));
+		final LinkedHashMap<String, Long> classes = profile.topExceptionClasses(10);
+		Assert.assertArrayEquals(new String[]{"a.Fail", "b.Other"}, classes.keySet().toArray(new String[0]));
+		Assert.assertEquals(5L, classes.get("a.Fail").longValue());
+		Assert.assertEquals(4L, classes.get("b.Other").longValue());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidSiteCount() {
+		new ThrowProfile(new String[2], new String[2], new long[1], 2);
+	}
+
+	@Test
+	public void testNativeRoundTrip() throws Exception {
+		final NativeAgent agent = NativeAgent.getInstance();
+		// only granted to an agent loaded on the command line with the exceptions option
+		Assume.assumeTrue(agent.setExceptionEventsEnabled(true));
+		try {
+			final long before = agent.throwCount();
+			for(int i = 0; i < 10; i++) {
+				try {
+					fail();
+				} catch (Thrown expected) {
+					/* No Op */
+				}
+			}
+			Assert.assertTrue(agent.throwCount() - before >= 10);
+			long thrown = 0;
+			String site = null;
+			for(Map.Entry<String, Long> entry: agent.throwProfile().topSites(Integer.MAX_VALUE).entrySet()) {
+				if(entry.getKey().contains("TestThrowProfile$Thrown <- ")) {
+					thrown += entry.getValue();
+					site = entry.getKey();
+				}
+			}
+			Assert.assertTrue(thrown >= 10);
+			Assert.assertTrue(site, site.contains("TestThrowProfile.fail@"));
+		} finally {
+			agent.setExceptionEventsEnabled(false);
+		}
+	}
+}
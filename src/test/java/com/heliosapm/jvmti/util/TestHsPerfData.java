@@ -0,0 +1,91 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.util;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * <p>Title: TestHsPerfData</p>
+ * <p>Description: Tests decoding hsperfdata counters from a synthetic buffer and from this JVM's own file</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.util.TestHsPerfData</code></p>
+ */
+
+public class TestHsPerfData {
+
+	private static void entry(final ByteBuffer buf, final String name, final byte type, final int units, final int variability, final int vectorLength, final byte[] data) {
+		final int start = buf.position();
+		final byte[] nameBytes = (name + "\0").getBytes(StandardCharsets.UTF_8);
+		final int nameOffset = 20;
+		int dataOffset = nameOffset + nameBytes.length;
+		dataOffset = (dataOffset + 7) & ~7;
+		final int length = (dataOffset + data.length + 7) & ~7;
+		buf.putInt(length).putInt(nameOffset).putInt(vectorLength).put(type).put((byte)0).put((byte)units).put((byte)variability).putInt(dataOffset);
+		buf.put(nameBytes);
+		buf.position(start + dataOffset);
+		buf.put(data);
+		buf.position(start + length);
+	}
+
+	@Test
+	public void testSyntheticBuffer() {
+		final ByteBuffer buf = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+		buf.order(ByteOrder.BIG_ENDIAN).putInt(HsPerfData.MAGIC).order(ByteOrder.LITTLE_ENDIAN);
+		buf.put((byte)1).put((byte)2).put((byte)0).put((byte)1);
+		buf.position(HsPerfData.PROLOGUE_SIZE);
+		entry(buf, "sun.os.hrt.frequency", HsPerfData.TYPE_LONG, 6, 1, 0, ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(1000000000L).array());
+		entry(buf, "sun.rt.safepointTime", HsPerfData.TYPE_LONG, 3, 2, 0, ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(2500000000L).array());
+		final int valueOffset = buf.position() + 40;
+		entry(buf, "sun.rt.safepoints", HsPerfData.TYPE_LONG, 4, 2, 0, ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(42).array());
+		final int twoEntries = buf.position();
+		entry(buf, "java.property.java.vm.name", HsPerfData.TYPE_BYTE, 5, 1, 16, "HotSpot\0\0\0\0\0\0\0\0\0".getBytes(StandardCharsets.UTF_8));
+		buf.putInt(8, twoEntries).putInt(24, HsPerfData.PROLOGUE_SIZE).putInt(28, 3);
+
+		final HsPerfData perfData = new HsPerfData(buf);
+		Assert.assertTrue(perfData.isAccessible());
+		Assert.assertNull(perfData.getCounter("java.property.java.vm.name"));
+		final HsPerfData.Counter safepoints = perfData.getCounter("sun.rt.safepoints");
+		Assert.assertEquals(42, safepoints.get());
+		Assert.assertEquals(HsPerfData.Units.EVENTS, safepoints.getUnits());
+		Assert.assertEquals(HsPerfData.Variability.MONOTONIC, safepoints.getVariability());
+		buf.putLong(valueOffset, 43);
+		Assert.assertEquals(43, safepoints.get());
+		Assert.assertEquals(2500, perfData.getCounter("sun.rt.safepointTime").get(TimeUnit.MILLISECONDS));
+
+		buf.putInt(8, buf.position()).putInt(28, 4);
+		Assert.assertEquals("HotSpot", perfData.getString("java.property.java.vm.name"));
+		Assert.assertEquals(2, perfData.snapshot("sun.rt.").size());
+	}
+
+	@Test
+	public void testSelf() throws Exception {
+		final File file = new File(HsPerfData.perfDataDirectory(), ManagementFactory.getRuntimeMXBean().getName().split("@")[0]);
+		Assume.assumeTrue(file.isFile());
+		try(final HsPerfData perfData = HsPerfData.self()) {
+			Assert.assertTrue(perfData.getCounters("").size() > 100);
+			Assert.assertTrue(perfData.getLong("java.cls.loadedClasses") > 0);
+			Assert.assertEquals(System.getProperty("java.vm.name"), perfData.getString("java.property.java.vm.name"));
+			Assert.assertTrue(HsPerfData.locate().containsKey(file.getName()));
+		}
+	}
+}
@@ -0,0 +1,129 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * <p>Title: TestNativeLibCache</p>
+ * <p>Description: Tests extracting a library from a jar into the cache, reusing the cached copy and concurrent extraction</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.util.TestNativeLibCache</code></p>
+ */
+
+public class TestNativeLibCache {
+
+	private File dir;
+	private byte[] content;
+	private URLClassLoader classLoader;
+
+	@Before
+	public void createJar() throws Exception {
+		dir = Files.createTempDirectory("libcache").toFile();
+		content = new byte[100000];
+		for(int i = 0; i < content.length; i++) content[i] = (byte)(i * 31);
+		final File jar = new File(dir, "lib.jar");
+		try(final JarOutputStream jos = new JarOutputStream(new FileOutputStream(jar))) {
+			jos.putNextEntry(new JarEntry("linux64/libtest.so"));
+			jos.write(content);
+			jos.closeEntry();
+		}
+		classLoader = new URLClassLoader(new URL[]{jar.toURI().toURL()}, null);
+	}
+
+	@After
+	public void deleteDir() throws Exception {
+		classLoader.close();
+		final File[] files = new File(dir, "cache").listFiles();
+		if(files!=null) for(File f: files) f.delete();
+		new File(dir, "cache").delete();
+		new File(dir, "lib.jar").delete();
+		dir.delete();
+	}
+
+	@Test
+	public void testExtractAndReuse() throws Exception {
+		final File cacheDir = new File(dir, "cache");
+		final File lib = NativeLibCache.extract(classLoader, "linux64/libtest.so", cacheDir);
+		Assert.assertTrue(lib.getName().matches("libtest-[0-9a-f]{8}-100000\\.so"));
+		Assert.assertArrayEquals(content, Files.readAllBytes(lib.toPath()));
+		lib.setLastModified(1000L);
+		Assert.assertEquals(lib, NativeLibCache.extract(classLoader, "linux64/libtest.so", cacheDir));
+		Assert.assertEquals(1000L, lib.lastModified());
+	}
+
+	@Test
+	public void testConcurrentExtract() throws Exception {
+		final File cacheDir = new File(dir, "cache");
+		final ExecutorService pool = Executors.newFixedThreadPool(8);
+		try {
+			final List<Future<File>> futures = new ArrayList<Future<File>>();
+			for(int i = 0; i < 32; i++) {
+				futures.add(pool.submit((Callable<File>)() -> NativeLibCache.extract(classLoader, "linux64/libtest.so", cacheDir)));
+			}
+			final File lib = futures.get(0).get();
+			for(Future<File> future: futures) Assert.assertEquals(lib, future.get());
+			Assert.assertArrayEquals(content, Files.readAllBytes(lib.toPath()));
+			Assert.assertEquals(1, cacheDir.listFiles().length);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testCorruptCacheReplaced() throws Exception {
+		final File cacheDir = new File(dir, "cache");
+		final File lib = NativeLibCache.extract(classLoader, "linux64/libtest.so", cacheDir);
+		final byte[] corrupt = content.clone();
+		corrupt[500]++;
+		Files.write(lib.toPath(), corrupt);
+		Assert.assertEquals(lib, NativeLibCache.extract(classLoader, "linux64/libtest.so", cacheDir));
+		Assert.assertArrayEquals(content, Files.readAllBytes(lib.toPath()));
+	}
+
+	@Test
+	public void testPrivateDirectory() throws Exception {
+		Assume.assumeTrue(dir.toPath().getFileSystem().supportedFileAttributeViews().contains("posix"));
+		final File cacheDir = new File(dir, "cache");
+		NativeLibCache.extract(classLoader, "linux64/libtest.so", cacheDir);
+		Assert.assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(cacheDir.toPath())));
+		Files.setPosixFilePermissions(cacheDir.toPath(), PosixFilePermissions.fromString("rwxrwxrwx"));
+		try {
+			NativeLibCache.extract(classLoader, "linux64/libtest.so", cacheDir);
+			Assert.fail("A world writable cache directory was accepted");
+		} catch (IOException expected) {
+			Assert.assertTrue(expected.getMessage(), expected.getMessage().contains("writable by other users"));
+		}
+	}
+}
@@ -0,0 +1,117 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2010-2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package com.heliosapm.jvmti.util;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.LongStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * <p>Title: TestTimerHistory</p>
+ * <p>Description: Tests the ring, histogram percentiles, resets and concurrent adds of the timer history</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.jvmti.util.TestTimerHistory</code></p>
+ */
+
+public class TestTimerHistory {
+
+	@Test
+	public void testBuckets() throws Exception {
+		long previous = -1;
+		for(long v: new long[]{0, 1, 63, 64, 127, 128, 129, 1000, 65535, 1L << 40, Long.MAX_VALUE}) {
+			final int b = TimerHistory.bucket(v);
+			Assert.assertTrue("bucket order at " + v, b >= previous);
+			previous = b;
+			Assert.assertEquals("bucket value of " + v, v, TimerHistory.bucketValue(b), v * TimerHistory.PRECISION);
+		}
+		Assert.assertEquals(0, TimerHistory.bucket(-5));
+	}
+
+	@Test
+	public void testRingWraps() throws Exception {
+		final TimerHistory t = new TimerHistory(10);
+		Assert.assertEquals(-1L, t.last());
+		Assert.assertEquals(-1L, t.percentile(50));
+		for(int i = 1; i <= 25; i++) t.add(i);
+		Assert.assertEquals(25, t.count());
+		Assert.assertEquals(10, t.size());
+		Assert.assertEquals(25, t.last());
+		Assert.assertEquals(16, t.min());
+		Assert.assertEquals(25, t.max());
+		Assert.assertEquals(20.5d, t.average(), 0d);
+		Assert.assertArrayEquals(LongStream.rangeClosed(16, 25).toArray(), t.stream().toArray());
+		Assert.assertArrayEquals(new long[]{20, 24, 25, 25}, t.percentiles(50, 90, 99, 99.9));
+	}
+
+	@Test
+	public void testPercentiles() throws Exception {
+		final TimerHistory t = new TimerHistory(100000);
+		final long[] values = new long[100000];
+		final ThreadLocalRandom r = ThreadLocalRandom.current();
+		for(int i = 0; i < values.length; i++) {
+			values[i] = r.nextLong(1, 1000000);
+			t.add(values[i]);
+		}
+		Arrays.sort(values);
+		final double[] ps = {50, 90, 99, 99.9};
+		final long[] actual = t.percentiles(ps);
+		for(int i = 0; i < ps.length; i++) {
+			final long expected = values[(int)Math.ceil(ps[i] / 100 * values.length) - 1];
+			Assert.assertEquals("p" + ps[i], expected, actual[i], expected * TimerHistory.PRECISION);
+		}
+	}
+
+	@Test
+	public void testReset() throws Exception {
+		final TimerHistory t = new TimerHistory(4);
+		for(int i = 0; i < 6; i++) t.add(1000);
+		t.reset();
+		Assert.assertEquals(0, t.size());
+		Assert.assertEquals(6, t.count());
+		Assert.assertEquals(-1L, t.percentile(99));
+		for(int i = 0; i < 6; i++) t.add(5);
+		Assert.assertEquals(4, t.size());
+		Assert.assertEquals(5, t.percentile(99.9));
+		Assert.assertEquals(5, t.max());
+		t.resetAll();
+		Assert.assertEquals(0, t.count());
+		t.add(7);
+		Assert.assertEquals(7, t.percentile(50));
+	}
+
+	@Test
+	public void testConcurrentAdds() throws Exception {
+		final TimerHistory t = new TimerHistory(256);
+		final int threads = 4;
+		final int adds = 50000;
+		final CountDownLatch done = new CountDownLatch(threads);
+		for(int i = 0; i < threads; i++) {
+			new Thread(() -> {
+				for(int x = 0; x < adds; x++) t.add(x % 100);
+				done.countDown();
+			}).start();
+		}
+		Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+		Assert.assertEquals(threads * adds, t.count());
+		Assert.assertEquals(256, t.size());
+		final long p100 = t.percentile(100);
+		Assert.assertTrue("p100:" + p100, p100 >= 0 && p100 < 100);
+		Assert.assertTrue(t.rate(1, TimeUnit.MINUTES) > 0);
+	}
+}